@@ -180,6 +180,10 @@ class Aligner
     puts "BWA Path = " + @bwaPath
     
     @javaDir = PathInfo::JAVA_DIR 
+
+    # Target intervals of the chip designs and heap to calculate capture stats
+    @targetsDir = configReader["captureStats"]["targetsDirectory"]
+    @heapSize   = configReader["picard"]["maxHeapSize"]
   end
 
   # Find the sequence files and determine if the sequence event is fragment or
@@ -289,8 +293,25 @@ class Aligner
     return cmd
   end
 
-  # Build the command to calculate capture stats  
+  # Build the command to calculate capture stats. If the chip design has a
+  # target file (chip design name with .bed) in the targets directory of the
+  # config, BAMAnalyzer calculates them, otherwise the external capture stats
+  # code does.
   def buildCaptureStatsCmd()
+    if @targetsDir != nil && !@targetsDir.empty?()
+      targetsFile = @targetsDir + "/" + @chipDesign.to_s + ".bed"
+
+      if File::exist?(targetsFile)
+        jarName = @javaDir + "/BAMAnalyzer.jar"
+        cmd = "java " + @heapSize + " -jar " + jarName + " I=" + @finalBamName +
+              " TARGETS=" + targetsFile + " O=CaptureStats.txt X=CaptureStats.xml " +
+              "PER_READ_GROUP=false PER_LIBRARY=false " +
+              "1>captureStats.o 2>captureStats.e"
+        return cmd
+      end
+      puts "No target file " + targetsFile + " for chip design " + @chipDesign.to_s
+    end
+
     scriptName = PathInfo::BLACK_BOX_DIR + "/CaptureStats.rb"
 
     cmd = "ruby " + scriptName + " " + @finalBamName + " " + @chipDesign.to_s
@@ -0,0 +1,199 @@
+#!/usr/bin/ruby
+
+$:.unshift File.join(File.dirname(__FILE__), ".", "..", "lib")
+
+require 'Scheduler'
+require 'PathInfo'
+require 'SchedulerInfo'
+require 'yaml'
+
+# Class to analyze a large BAM with BAMAnalyzer split into shards. Every shard
+# writes the state of its calculators, and a final step merges the states
+# into the usual BWA_Map_Stats.txt and BAMAnalysisInfo.xml. Shards run as
+# cluster jobs, or as separate processes on this machine with local=true.
+# Author: Nirav Shah niravs@bcm.edu
+class ShardedBAMAnalyzer
+  def initialize(cmdParams)
+    initializeDefaultParams()
+    parseCommandString(cmdParams)
+    obtainPathAndResourceInfo()
+
+    Dir.chdir(@outputDir)
+    shards = planShards()
+
+    if @local == true
+      runLocally(shards)
+    else
+      scheduleJobs(shards)
+    end
+  end
+
+  private
+  def initializeDefaultParams()
+    @bamFile   = nil
+    @numShards = 8
+    @outputDir = Dir.pwd
+    @local     = false
+    @queueName = SchedulerInfo::DEFAULT_QUEUE
+
+    # BAMAnalyzer options given to every shard and to the merge, which must
+    # use the same calculators to merge the state of the shards
+    @analyzerOptions = ""
+  end
+
+  def parseCommandString(cmdParams)
+    if cmdParams != nil
+      cmdParams.each do |entry|
+        line = entry.dup
+        line.strip!
+
+        if line.match(/bam=/)
+          @bamFile = File.expand_path(line.gsub(/bam=/, ""))
+        elsif line.match(/shards=/)
+          @numShards = line.gsub(/shards=/, "").to_i
+        elsif line.match(/outputdir=/)
+          @outputDir = File.expand_path(line.gsub(/outputdir=/, ""))
+        elsif line.match(/local=/)
+          @local = line.gsub(/local=/, "").eql?("true")
+        elsif line.match(/queue=/)
+          @queueName = line.gsub(/queue=/, "")
+        elsif line.match(/targets=/)
+          @analyzerOptions = @analyzerOptions + " TARGETS=" +
+                             File.expand_path(line.gsub(/targets=/, ""))
+        elsif line.match(/perreadgroup=/)
+          @analyzerOptions = @analyzerOptions + " PER_READ_GROUP=" +
+                             line.gsub(/perreadgroup=/, "")
+        elsif line.match(/perlibrary=/)
+          @analyzerOptions = @analyzerOptions + " PER_LIBRARY=" +
+                             line.gsub(/perlibrary=/, "")
+        end
+      end
+    end
+
+    if @bamFile == nil || !File::exist?(@bamFile) || @numShards < 1 ||
+       !File::directory?(@outputDir)
+      printUsage()
+      exit -1
+    end
+  end
+
+  def obtainPathAndResourceInfo()
+    yamlConfigFile = PathInfo::CONFIG_DIR + "/config_params.yml"
+    configReader = YAML.load_file(yamlConfigFile)
+
+    @heapSize = configReader["picard"]["maxHeapSize"]
+    @jarName  = PathInfo::JAVA_DIR + "/BAMAnalyzer.jar"
+  end
+
+  # Run BAMShardPlanner and return the shards, one string per shard
+  def planShards()
+    cmd = "java " + @heapSize + " -cp " + @jarName +
+          " analyzer.BAMAnalyzer.BAMShardPlanner I=" + @bamFile +
+          " SHARDS=" + @numShards.to_s + " O=shards.txt 2>shardPlanner.e"
+    puts cmd
+    `#{cmd}`
+
+    if $? != 0
+      raise "Error: could not plan the shards of " + @bamFile
+    end
+    return IO.readlines("shards.txt").map { |line| line.strip }.select { |line| !line.empty? }
+  end
+
+  # Command to analyze shard i
+  def shardCommand(shard, i)
+    return "java " + @heapSize + " -jar " + @jarName + " I=" + @bamFile +
+           " SHARD='" + shard + "' STATE_OUTPUT=" + stateFileName(i) + @analyzerOptions +
+           " 1>shard_" + i.to_s + ".o 2>shard_" + i.to_s + ".e"
+  end
+
+  # Command to merge the state of all shards into the final results
+  def mergeCommand(numShards)
+    cmd = "java " + @heapSize + " -jar " + @jarName +
+          " O=BWA_Map_Stats.txt X=BAMAnalysisInfo.xml STATE_OUTPUT=BAMAnalysisState.gz" +
+          @analyzerOptions
+
+    for i in 0..(numShards - 1)
+      cmd = cmd + " STATE_INPUT=" + stateFileName(i)
+    end
+    return cmd + " 1>bamAnalyzer.o 2>bamAnalyzer.e"
+  end
+
+  def stateFileName(i)
+    return "shard_" + i.to_s + ".state.gz"
+  end
+
+  # Run every shard as a separate process, wait for all and merge
+  def runLocally(shards)
+    pids = Array.new
+
+    shards.each_with_index do |shard, i|
+      cmd = shardCommand(shard, i)
+      puts cmd
+      pids << fork { exec(cmd) }
+    end
+
+    failed = 0
+
+    pids.each do |pid|
+      Process.waitpid(pid)
+      failed = failed + 1 if $?.exitstatus != 0
+    end
+
+    if failed > 0
+      raise "Error: " + failed.to_s + " shards failed"
+    end
+
+    cmd = mergeCommand(shards.length)
+    puts cmd
+    `#{cmd}`
+
+    if $? != 0
+      raise "Error: could not merge the shards"
+    end
+  end
+
+  # Schedule a job per shard and a merge job that waits for all of them. The
+  # JVMs use the heap of the config, so every job locks a whole node as the
+  # other picard jobs do.
+  def scheduleJobs(shards)
+    jobIDs = Array.new
+
+    shards.each_with_index do |shard, i|
+      obj = Scheduler.new("BAMAnalyzerShard_" + i.to_s, shardCommand(shard, i))
+      obj.lockWholeNode(@queueName)
+      obj.runCommand()
+      jobIDs << obj.getJobID()
+    end
+
+    obj = Scheduler.new("BAMAnalyzerMerge", mergeCommand(shards.length))
+    obj.lockWholeNode(@queueName)
+
+    jobIDs.each do |jobID|
+      obj.setDependency(jobID)
+    end
+    obj.runCommand()
+    puts "Merge job : " + obj.getJobID().to_s
+  end
+
+  # Print the usage
+  def printUsage()
+    puts "Utility to analyze a BAM in shards with BAMAnalyzer"
+    puts ""
+    puts "Usage:"
+    puts ""
+    puts "ruby " + __FILE__ + " bam=value [shards=value] [outputdir=value] [local=true]"
+    puts "     [targets=value] [perreadgroup=false] [perlibrary=false] [queue=value]"
+    puts ""
+    puts "bam          - Coordinate sorted and indexed BAM"
+    puts "shards       - Number of shards. Default: 8"
+    puts "outputdir    - Directory to write the results in. Default: current directory"
+    puts "local        - Run the shards as processes on this machine instead of cluster jobs"
+    puts "targets      - Target intervals to calculate capture metrics for"
+    puts "perreadgroup - Calculate metrics per read group. Default: true"
+    puts "perlibrary   - Calculate metrics per library. Default: true"
+    puts "queue        - Scheduler queue of the jobs. Default: " + SchedulerInfo::DEFAULT_QUEUE
+  end
+end
+
+cmdParams = ARGV
+obj = ShardedBAMAnalyzer.new(cmdParams)
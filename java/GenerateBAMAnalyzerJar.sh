@@ -20,8 +20,9 @@ echo "Compiling project"
 cd analyzer/BAMAnalyzer
 rm *.class
 rm ../Common*.class
+rm ../../common/*.class
 
-javac -classpath $samJarName":"$picardJarName ../Common/*.java *.java
+javac -classpath $samJarName":"$picardJarName ../../common/*.java ../Common/*.java *.java
 
 echo "Generating Manifest file"
 manifestFile=`pwd`"/BAMAnalyzerManifest.txt"
@@ -32,5 +33,5 @@ cd ../../
 echo "Building Jar file"
 pwd
 
-jar cvfm $outJarName $manifestFile ./analyzer/Common/*.class ./analyzer/BAMAnalyzer/*.class
+jar cvfm $outJarName $manifestFile ./common/*.class ./analyzer/Common/*.class ./analyzer/BAMAnalyzer/*.class
 echo "done"
@@ -10,6 +10,7 @@ mateInfoFixJarName="MateInfoFixer.jar"
 fixCIGARJarName="CIGARFixer.jar"
 bamHeaderFixerJarName="BAMHeaderFixer.jar"
 peToFragJarName="PEToFragConvertor.jar"
+dupMarkerJarName="DuplicateMarker.jar"
 
 echo "Building "$outJarName
 echo "SAM Jar : "$samJarName
@@ -18,33 +19,40 @@ echo "Picard Jar : "$picardJarName
 echo "Compiling project"
 cd bamtools
 rm *.class
+rm ../common/*.class
 
-javac -classpath $samJarName":"$picardJarName *.java
+javac -classpath $samJarName":"$picardJarName ../common/*.java *.java
 
 echo "Generating Manifest files"
 mateInfoFixerManifestFile=`pwd`"/MateInfoFixerManifest.txt"
 cigarFixerManifestFile=`pwd`"/CIGARFixerManifest.txt"
 bamHeaderFixerManifestFile=`pwd`"/BAMHeaderFixerManifest.txt"
 peToFragManifestFile=`pwd`"/PEToFragManifest.txt"
+dupMarkerManifestFile=`pwd`"/DuplicateMarkerManifest.txt"
 
 echo -e "Class-Path: "$samJarName" "$picardJarName"\nMain-Class: bamtools.MateInfoFixer\n" > $mateInfoFixerManifestFile
 echo -e "Class-Path: "$samJarName" "$picardJarName"\nMain-Class: bamtools.CIGARFixer\n" > $cigarFixerManifestFile
 echo -e "Class-Path: "$samJarName" "$picardJarName"\nMain-Class: bamtools.BAMHeaderFixer\n" > $bamHeaderFixerManifestFile
 echo -e "Class-Path: "$samJarName" "$picardJarName"\nMain-Class: bamtools.PEToFragConvertor\n" > $peToFragManifestFile
+echo -e "Class-Path: "$samJarName" "$picardJarName"\nMain-Class: bamtools.DuplicateMarker\n" > $dupMarkerManifestFile
 
 cd ../
 echo "Building "$mateInfoFixJarName 
-jar cvfm $mateInfoFixJarName $mateInfoFixerManifestFile bamtools/SAMRecordFixer.class bamtools/MateInfoFixer.class
+jar cvfm $mateInfoFixJarName $mateInfoFixerManifestFile common/*.class bamtools/SAMRecordFixer.class bamtools/MateInfoFixer.class bamtools/CoordinateSorter*.class bamtools/SAMTextStreamReader*.class
 echo "done"
 
 echo "Building "$fixCIGARJarName
-jar cvfm $fixCIGARJarName $cigarFixerManifestFile bamtools/SAMRecordFixer.class bamtools/CIGARFixer.class
+jar cvfm $fixCIGARJarName $cigarFixerManifestFile common/*.class bamtools/SAMRecordFixer.class bamtools/CIGARFixer.class
 echo "done"
 
 echo "Building "$bamHeaderFixerJarName
-jar cvfm $bamHeaderFixerJarName $bamHeaderFixerManifestFile bamtools/BAMHeaderFixer.class
+jar cvfm $bamHeaderFixerJarName $bamHeaderFixerManifestFile common/*.class bamtools/BAMHeaderFixer.class
 echo "done"
 
 echo "Building "$peToFragJarName
-jar cvfm $peToFragJarName $peToFragManifestFile bamtools/PEToFragConvertor.class
+jar cvfm $peToFragJarName $peToFragManifestFile common/*.class bamtools/SAMRecordFixer.class bamtools/PEToFragConvertor.class
+echo "done"
+
+echo "Building "$dupMarkerJarName
+jar cvfm $dupMarkerJarName $dupMarkerManifestFile common/*.class bamtools/SAMRecordFixer.class bamtools/DuplicateMarker*.class
 echo "done"
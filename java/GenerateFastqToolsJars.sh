@@ -9,6 +9,9 @@ picardJarName=`ls $picardPath"/"picard-*.jar`
 
 fastqDecontJarName="FastqDecontaminator.jar"
 fastqTrimmerJarName="FastqTrimmer.jar"
+contScreenerJarName="ContaminantScreener.jar"
+fastqPackerJarName="FastqPacker.jar"
+qualBinnerJarName="FastqQualityBinner.jar"
 
 echo "Building "$fastqDecontJarName
 echo "SAM Jar : "$samJarName
@@ -17,22 +20,44 @@ echo "Picard Jar : "$picardJarName
 echo "Compiling project"
 cd fastqtools
 rm *.class
+rm ../common/*.class
 
-javac -classpath $samJarName":"$picardJarName FastqDecontaminator.java
-javac -classpath $samJarName":"$picardJarName FastqTrimmer.java
+javac -classpath $samJarName":"$picardJarName ../common/*.java FastqDecontaminator.java
+javac -classpath $samJarName":"$picardJarName ../common/*.java FastqTrimmer.java
+javac -classpath $samJarName":"$picardJarName ../common/*.java ContaminantScreener.java
+javac -classpath $samJarName":"$picardJarName ../common/*.java FastqPacker.java
+javac -classpath $samJarName":"$picardJarName ../common/*.java FastqQualityBinner.java
 
 echo "Generating Manifest files"
 fastqDecontManifestFile=`pwd`"/FastqDecontManifest.txt"
 fastqTrimmerManifestFile=`pwd`"/FastqTrimManifest.txt"
+contScreenerManifestFile=`pwd`"/ContScreenerManifest.txt"
+fastqPackerManifestFile=`pwd`"/FastqPackerManifest.txt"
+qualBinnerManifestFile=`pwd`"/QualBinnerManifest.txt"
 
 echo -e "Class-Path: "$samJarName" "$picardJarName"\nMain-Class: fastqtools.FastqDecontaminator\n" > $fastqDecontManifestFile
 echo -e "Class-Path: "$samJarName" "$picardJarName"\nMain-Class: fastqtools.FastqTrimmer\n" > $fastqTrimmerManifestFile
+echo -e "Class-Path: "$samJarName" "$picardJarName"\nMain-Class: fastqtools.ContaminantScreener\n" > $contScreenerManifestFile
+echo -e "Class-Path: "$samJarName" "$picardJarName"\nMain-Class: fastqtools.FastqPacker\n" > $fastqPackerManifestFile
+echo -e "Class-Path: "$samJarName" "$picardJarName"\nMain-Class: fastqtools.FastqQualityBinner\n" > $qualBinnerManifestFile
 
 cd ../
 echo "Building "$fastqDecontJarName
-jar cvfm $fastqDecontJarName $fastqDecontManifestFile fastqtools/FastqDecontaminator.class
+jar cvfm $fastqDecontJarName $fastqDecontManifestFile common/*.class fastqtools/FastqDecontaminator.class
 echo "done"
 
 echo "Building "$fastqTrimmerJarName
-jar cvfm $fastqTrimmerJarName $fastqTrimmerManifestFile fastqtools/FastqTrimmer.class
+jar cvfm $fastqTrimmerJarName $fastqTrimmerManifestFile common/*.class fastqtools/FastqTrimmer.class
+echo "done"
+
+echo "Building "$contScreenerJarName
+jar cvfm $contScreenerJarName $contScreenerManifestFile common/*.class fastqtools/ContaminantScreener*.class
+echo "done"
+
+echo "Building "$fastqPackerJarName
+jar cvfm $fastqPackerJarName $fastqPackerManifestFile common/*.class fastqtools/FastqPacker*.class
+echo "done"
+
+echo "Building "$qualBinnerJarName
+jar cvfm $qualBinnerJarName $qualBinnerManifestFile common/*.class fastqtools/FastqQualityBinner.class
 echo "done"
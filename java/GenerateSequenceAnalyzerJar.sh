@@ -13,8 +13,9 @@ echo "Compiling project"
 cd analyzer/SequenceAnalyzer
 rm *.class
 rm ../Common/*.class
+rm ../../common/*.class
 
-javac -classpath $samJarName":"$picardJarName ../Common/*.java *.java
+javac -classpath $samJarName":"$picardJarName ../../common/*.java ../Common/*.java *.java
 
 echo "Generating Manifest file"
 manifestFile=`pwd`"/SequenceAnalyzerManifest.txt"
@@ -24,5 +25,5 @@ echo -e "Class-Path: "$samJarName" "$picardJarName"\nMain-Class: analyzer.Sequen
 cd ../../
 
 echo "Building Jar file"
-jar cvfm $outJarName $manifestFile analyzer/Common/*.class analyzer/SequenceAnalyzer/*.class
+jar cvfm $outJarName $manifestFile common/*.class analyzer/Common/*.class analyzer/SequenceAnalyzer/*.class
 echo "done"
@@ -1,5 +1,6 @@
 package analyzer.BAMAnalyzer;
 
+import java.io.*;
 import analyzer.Common.ResultMetric;
 import net.sf.samtools.SAMRecord;
 
@@ -29,6 +30,7 @@ public class AlignmentCalculator extends MetricsCalculator
   private long totalMappedBases  = 0;    // Number of bases for reads that map
                                          // (Partially or completely)
   private long totalEffectiveBases = 0;  // Bases that are not N's and are not from repeats
+  private long totalMappedValidBases = 0; // Bases that are not N's of mapped reads
 
   private long totalMismatches     = 0;  // Total number of mismatches
   private long totalExactMatches   = 0;  // Total number of reads with no mismatches
@@ -52,6 +54,29 @@ public class AlignmentCalculator extends MetricsCalculator
   }
 
 
+  @Override
+  public String getName()
+  {
+    return "AlignmentCalculator_" + readType.toString();
+  }
+
+  public ReadType getReadType()
+  {
+    return readType;
+  }
+
+  /**
+   * Replace the duplicate counts, e.g. with those of DuplicateMarker for the
+   * BAM of merged state files, whose duplicates were marked again
+   * @param reads - duplicate reads
+   * @param validBases - bases that are not N's of the duplicate reads
+   */
+  void setDuplicates(long reads, long validBases)
+  {
+    dupReads            = reads;
+    totalEffectiveBases = totalMappedValidBases - validBases;
+  }
+
   /**
    * Method to process the next read
    */
@@ -94,6 +119,38 @@ public class AlignmentCalculator extends MetricsCalculator
     }
   }
 
+  @Override
+  void writeState(DataOutputStream out) throws IOException
+  {
+    out.writeLong(totalReads);
+    out.writeLong(mappedReads);
+    out.writeLong(unmappedReads);
+    out.writeLong(dupReads);
+    out.writeLong(totalValidBases);
+    out.writeLong(totalBases);
+    out.writeLong(totalMappedBases);
+    out.writeLong(totalEffectiveBases);
+    out.writeLong(totalMappedValidBases);
+    out.writeLong(totalMismatches);
+    out.writeLong(totalExactMatches);
+  }
+
+  @Override
+  void mergeState(DataInputStream in) throws IOException
+  {
+    totalReads          += in.readLong();
+    mappedReads         += in.readLong();
+    unmappedReads       += in.readLong();
+    dupReads            += in.readLong();
+    totalValidBases     += in.readLong();
+    totalBases          += in.readLong();
+    totalMappedBases    += in.readLong();
+    totalEffectiveBases += in.readLong();
+    totalMappedValidBases += in.readLong();
+    totalMismatches     += in.readLong();
+    totalExactMatches   += in.readLong();
+  }
+
   /* (non-Javadoc)
    * Build the result metrics object for displaying the results.
    */
@@ -138,21 +195,23 @@ public class AlignmentCalculator extends MetricsCalculator
   {
 	int numMismatches = 0; // Number of mismatches in current read
 	int readLength = nextRead.getReadLength();
+	int validBases = countValidBases(nextRead.getReadString());
 
     totalReads++;
     totalBases += readLength;
-    totalValidBases += countValidBases(nextRead.getReadString());
+    totalValidBases += validBases;
 
     if(nextRead.getReadUnmappedFlag())
       unmappedReads++;
     else
     {
       mappedReads++;
+      totalMappedValidBases += validBases;
 
       if(nextRead.getDuplicateReadFlag())
         dupReads++;
       else
-        totalEffectiveBases += countValidBases(nextRead.getReadString());
+        totalEffectiveBases += validBases;
 
       // Since the read is mapped, update total number of mapped bases.
       // This is used to calculate the percentage of mismatches. This is
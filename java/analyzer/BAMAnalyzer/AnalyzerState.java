@@ -0,0 +1,235 @@
+package analyzer.BAMAnalyzer;
+
+import net.sf.samtools.*;
+import net.sf.samtools.util.StringLineReader;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Class to write the raw state of all calculators of a BAMAnalyzer run to a
+ * gzipped state file, and to merge state files of several runs, e.g. of the
+ * lanes of a sample, so that the metrics of the merged BAM are obtained
+ * without reading it again. The file holds the header of the BAM, for its
+ * read groups and sequence dictionary, the state of every library and read
+ * group partition, and the state of the global calculators.
+ * @author Nirav Shah niravs@bcm.edu
+ *
+ */
+public class AnalyzerState
+{
+  private static final String MAGIC = "BAMAnalyzerState";
+  private static final int VERSION  = 2;
+
+  /**
+   * Write the state to a temp file and rename it, so that a state file is
+   * never left half written
+   * @param stateFile
+   * @param header - header with the read groups of all input BAMs
+   * @param metrics - global calculators
+   * @param partitioner - calculators per read group and library
+   * @throws IOException
+   */
+  public static void write(File stateFile, SAMFileHeader header, CalculatorSet metrics,
+                           ReadGroupPartitioner partitioner) throws IOException
+  {
+    File tempFile = new File(stateFile.getPath() + ".tmp");
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                           new GZIPOutputStream(new FileOutputStream(tempFile)), 65536));
+    try
+    {
+      writeState(out, header, metrics, partitioner);
+    }
+    finally
+    {
+      out.close();
+    }
+
+    if(stateFile.exists() && !stateFile.delete())
+      throw new IOException("Could not replace " + stateFile.getAbsolutePath());
+    if(!tempFile.renameTo(stateFile))
+      throw new IOException("Could not rename " + tempFile.getAbsolutePath());
+  }
+
+  /**
+   * Write the state to a stream, e.g. as part of a checkpoint
+   * @param out
+   * @param header - header with the read groups of all input BAMs
+   * @param metrics - global calculators
+   * @param partitioner - calculators per read group and library
+   * @throws IOException
+   */
+  public static void writeState(DataOutputStream out, SAMFileHeader header, CalculatorSet metrics,
+                                ReadGroupPartitioner partitioner) throws IOException
+  {
+    StringWriter headerText = new StringWriter();
+    new SAMTextHeaderCodec().encode(headerText, header);
+    byte headerBytes[] = headerText.toString().getBytes("UTF-8");
+
+    out.writeUTF(MAGIC);
+    out.writeInt(VERSION);
+    out.writeInt(headerBytes.length);
+    out.write(headerBytes);
+
+    partitioner.writeState(out);
+    metrics.writeState(out);
+  }
+
+  /**
+   * Read only the header of a state file
+   * @param stateFile
+   * @return
+   * @throws IOException
+   */
+  public static SAMFileHeader readHeader(File stateFile) throws IOException
+  {
+    DataInputStream in = open(stateFile);
+
+    try
+    {
+      return readHeader(in, stateFile.getAbsolutePath());
+    }
+    finally
+    {
+      in.close();
+    }
+  }
+
+  /**
+   * Merge a state file into the calculators. The state of a library or read
+   * group partition is merged into the calculators of that library or read
+   * group, and that of a read group also into its library when the file has
+   * no state of the library. A file without partitions had a single read
+   * group or library, and its global state is used for those.
+   * @param stateFile
+   * @param metrics - global calculators
+   * @param partitioner - calculators per read group and library
+   * @throws IOException
+   */
+  public static void merge(File stateFile, CalculatorSet metrics,
+                           ReadGroupPartitioner partitioner) throws IOException
+  {
+    DataInputStream in = open(stateFile);
+
+    try
+    {
+      mergeState(in, stateFile.getAbsolutePath(), metrics, partitioner);
+    }
+    finally
+    {
+      in.close();
+    }
+  }
+
+  /**
+   * Merge state written by writeState into the calculators, as merge does
+   * for a state file
+   * @param in
+   * @param source - name of the state for error messages
+   * @param metrics - global calculators
+   * @param partitioner - calculators per read group and library
+   * @throws IOException
+   */
+  public static void mergeState(DataInputStream in, String source, CalculatorSet metrics,
+                                ReadGroupPartitioner partitioner) throws IOException
+  {
+    List<SAMReadGroupRecord> readGroups = readHeader(in, source).getReadGroups();
+    HashSet<String> libraries = new HashSet<String>();
+
+    for(SAMReadGroupRecord readGroup : readGroups)
+      libraries.add(ReadGroupPartitioner.getLibrary(readGroup));
+
+    HashSet<String> librariesWithState = new HashSet<String>();
+    int numLibraries = in.readInt();
+
+    for(int i = 0; i < numLibraries; i++)
+    {
+      String library = in.readUTF();
+      librariesWithState.add(library);
+
+      if(partitioner.getLibrarySet(library) == null)
+        warnNotMerged(source, "library", library);
+      CalculatorSet.mergeState(in, getSets(partitioner.getLibrarySet(library)));
+    }
+
+    int numReadGroups = in.readInt();
+
+    for(int i = 0; i < numReadGroups; i++)
+    {
+      String id = in.readUTF();
+      ArrayList<CalculatorSet> sets = getSets(partitioner.getReadGroupSet(id));
+      String library = getLibrary(readGroups, id);
+
+      if(sets.isEmpty())
+        warnNotMerged(source, "read group", id);
+      if(library != null && !librariesWithState.contains(library) &&
+         partitioner.getLibrarySet(library) != null)
+        sets.add(partitioner.getLibrarySet(library));
+      CalculatorSet.mergeState(in, sets);
+    }
+
+    ArrayList<CalculatorSet> sets = getSets(metrics);
+
+    if(numReadGroups == 0 && readGroups.size() == 1 &&
+       partitioner.getReadGroupSet(readGroups.get(0).getReadGroupId()) != null)
+      sets.add(partitioner.getReadGroupSet(readGroups.get(0).getReadGroupId()));
+
+    if(numLibraries == 0 && numReadGroups == 0 && libraries.size() == 1 &&
+       partitioner.getLibrarySet(libraries.iterator().next()) != null)
+      sets.add(partitioner.getLibrarySet(libraries.iterator().next()));
+
+    CalculatorSet.mergeState(in, sets);
+  }
+
+  /**
+   * Warn that the state of a partition is dropped, as this run does not
+   * calculate metrics for it
+   */
+  private static void warnNotMerged(String source, String partition, String name)
+  {
+    System.err.println("Warning : state of " + partition + " " + name + " of " + source +
+                       " is not merged. Use the PER_READ_GROUP and PER_LIBRARY options " +
+                       "the state was written with");
+  }
+
+  private static DataInputStream open(File stateFile) throws IOException
+  {
+    return new DataInputStream(new BufferedInputStream(
+                               new GZIPInputStream(new FileInputStream(stateFile)), 65536));
+  }
+
+  private static SAMFileHeader readHeader(DataInputStream in, String source)
+                                          throws IOException
+  {
+    if(!MAGIC.equals(in.readUTF()) || in.readInt() != VERSION)
+      throw new IOException(source + " is not a state file of this version");
+
+    byte headerBytes[] = new byte[in.readInt()];
+    in.readFully(headerBytes);
+
+    return new SAMTextHeaderCodec().decode(new StringLineReader(new String(headerBytes, "UTF-8")),
+                                           source);
+  }
+
+  private static ArrayList<CalculatorSet> getSets(CalculatorSet set)
+  {
+    ArrayList<CalculatorSet> sets = new ArrayList<CalculatorSet>();
+
+    if(set != null)
+      sets.add(set);
+    return sets;
+  }
+
+  private static String getLibrary(List<SAMReadGroupRecord> readGroups, String id)
+  {
+    for(SAMReadGroupRecord readGroup : readGroups)
+    {
+      if(readGroup.getReadGroupId().equals(id))
+        return ReadGroupPartitioner.getLibrary(readGroup);
+    }
+    return null;
+  }
+}
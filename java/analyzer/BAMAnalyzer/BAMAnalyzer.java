@@ -3,17 +3,26 @@ package analyzer.BAMAnalyzer;
 import java.util.List;
 
 import net.sf.samtools.*;
+import net.sf.samtools.SAMFileHeader.SortOrder;
 import net.sf.samtools.SAMFileReader.ValidationStringency;
 import net.sf.picard.cmdline.*;
 import net.sf.picard.io.IoUtil;
-import java.io.File;
+import java.io.*;
 import java.util.*;
 
 import analyzer.Common.*;
+import common.BatchManifest;
+import common.BatchRunner;
+import common.CheckpointWriter;
+import common.ProgressMonitor;
+import common.ReadSampler;
+import common.ProgressMonitor.Stage;
 
 /**
  * Driver class to analyzer a BAM file and calculate different metrics such
- * as alignment percentage, insert size etc.
+ * as alignment percentage, insert size etc. With MANIFEST, many BAMs are
+ * analyzed concurrently in one JVM, each writing its files in its own output
+ * directory.
  * @author Nirav Shah niravs@bcm.edu
  *
  */
@@ -23,18 +32,122 @@ public class BAMAnalyzer extends CommandLineProgram
   public String USAGE = getStandardUsagePreamble() +
   "Read SAM / BAM and calculate alignment and insert size metrics.\r\n";
 
-  @Option(shortName="I", doc="SAM or BAM input file(s)", minElements=1)
+  @Option(shortName="I", doc="SAM or BAM input file(s). Required unless STATE_INPUT is " +
+          "specified", minElements=0)
   public List<File> INPUT = new ArrayList<File>();
 
   @Option(doc = "Stop after debugging N reads. Mainly for debugging. Default value: 0, which means process the whole file")
   public int STOP_AFTER = 0;
 
-  @Option(shortName = StandardOptionDefinitions.OUTPUT_SHORT_NAME, doc = "Output file to write results in txt format")
+  @Option(doc = "Analyze only this fraction of the reads, chosen by a hash of the read name " +
+          "so that both reads of a pair, and the same reads as in the FASTQ files, are " +
+          "chosen", optional=true)
+  public double SAMPLE_FRACTION = 1.0;
+
+  @Option(shortName = StandardOptionDefinitions.OUTPUT_SHORT_NAME, doc = "Output file to write results in txt format",
+          optional=true)
   public File OUTPUT;
 
   @Option(shortName = "X", doc = "File with results in XML format", optional=true)
   public File XMLOUTPUT;
 
+  @Option(shortName = "BI", doc = "Build a BAM index (.bai) while reading a coordinate " +
+          "sorted BAM that does not have one", optional=true)
+  public boolean BUILD_INDEX = false;
+
+  @Option(shortName = "L", doc = "Analyze only reads overlapping these intervals " +
+          "(Picard interval list or BED). Requires an indexed BAM", optional=true)
+  public File INTERVALS;
+
+  @Option(shortName = "T", doc = "Number of sequences read in parallel with INTERVALS",
+          optional=true)
+  public int THREADS = 4;
+
+  @Option(doc = "Target intervals of the chip design (Picard interval list or BED). " +
+          "Capture and coverage metrics are calculated if specified", optional=true)
+  public File TARGETS;
+
+  @Option(shortName = "RG", doc = "Also calculate metrics for every read group when " +
+          "there is more than one", optional=true)
+  public boolean PER_READ_GROUP = true;
+
+  @Option(shortName = "LIB", doc = "Also calculate metrics for every library when " +
+          "there is more than one", optional=true)
+  public boolean PER_LIBRARY = true;
+
+  @Option(shortName = "SO", doc = "Gzipped file to write the raw state of the calculators " +
+          "to, so that the metrics of several BAMs can be merged with STATE_INPUT", optional=true)
+  public File STATE_OUTPUT;
+
+  @Option(shortName = "SI", doc = "State files written by STATE_OUTPUT to merge instead of " +
+          "reading the BAMs. If INPUT is also specified, the metrics of INPUT are added to " +
+          "those of the state files", minElements=0)
+  public List<File> STATE_INPUT = new ArrayList<File>();
+
+  @Option(shortName = "DM", doc = "Metrics file written by DuplicateMarker for the merged BAM " +
+          "of the STATE_INPUT files. Its duplicate counts replace those of the state files in " +
+          "the alignment metrics, so the merged BAM need not be read. Insert size and capture " +
+          "metrics still exclude the duplicates marked in the state files", optional=true)
+  public File DUPLICATE_METRICS;
+
+  @Option(doc = "Analyze only this shard of INPUT and write its state to STATE_OUTPUT, to be " +
+          "merged with the other shards by STATE_INPUT. Either voffset:START-END for a range " +
+          "of BGZF virtual offsets, or seq:start-end,... for the reads starting in those " +
+          "regions of an indexed BAM, * for unmapped reads. See BAMShardPlanner", optional=true)
+  public String SHARD;
+
+  @Option(doc = "File to periodically write a checkpoint of the calculators and of the " +
+          "position in INPUT to. Requires BAM input, not with INTERVALS, SHARD or " +
+          "STATE_INPUT", optional=true)
+  public File CHECKPOINT_FILE;
+
+  @Option(doc = "Seconds between checkpoints", optional=true)
+  public int CHECKPOINT_INTERVAL = 600;
+
+  @Option(doc = "Resume from CHECKPOINT_FILE if it exists, otherwise start from the beginning")
+  public boolean RESUME = false;
+
+  @Option(doc = "Tab separated file with an output directory and one or more BAMs per " +
+          "line, to analyze all of them in this JVM. OUTPUT, XMLOUTPUT, STATE_OUTPUT, " +
+          "PROGRESS_FILE and CHECKPOINT_FILE are then file names in every output directory",
+          optional=true)
+  public File MANIFEST;
+
+  @Option(doc = "Jobs of MANIFEST run at the same time", optional=true)
+  public int BATCH_THREADS = Runtime.getRuntime().availableProcessors();
+
+  @Option(doc = "Heap in MB shared by the running jobs of MANIFEST. Default value: 0, " +
+          "which means three quarters of the maximum heap", optional=true)
+  public int MEMORY_BUDGET_MB = 0;
+
+  @Option(doc = "Estimated heap in MB of one job of MANIFEST", optional=true)
+  public int JOB_MEMORY_MB = 1024;
+
+  @Option(doc = "File to periodically write progress and throughput to", optional=true)
+  public File PROGRESS_FILE;
+
+  @Option(doc = "Seconds between progress reports", optional=true)
+  public int PROGRESS_INTERVAL = 60;
+
+  private CalculatorSet metrics;            // Metrics over all reads
+  private ReadGroupPartitioner partitioner; // Metrics per read group / library
+  private ProgressMonitor monitor;          // Progress and stage timings
+  private RuntimeProfile profile;           // Time per calculator, GC etc.
+  private int partitionProfileId;           // Profile id of the partitions
+  private String outputPrefix = "";         // Prefix of plots and CSV files
+  private String toolName     = "BAMAnalyzer";
+  private boolean sharedJVM   = false;      // Other jobs of a batch run in this JVM
+  private ReadSampler sampler = null;       // Reads to analyze, null for all
+
+  private SAMFileHeader header;             // Header with all read groups
+  private CheckpointWriter checkpoint;      // null if not checkpointing
+  private int inputIndex;                   // INPUT being read
+  private int resumeIndex     = 0;          // INPUT to resume in
+  private SAMFileSpan resumeSpan = null;    // Records left in it, or null
+
+  private static final String CHECKPOINT_MAGIC = "BAMAnalyzerCheckpoint";
+  private static final int CHECKPOINT_VERSION  = 2;
+
   public static void main(String[] args)
   {
     new BAMAnalyzer().instanceMainWithExit(args);
@@ -46,11 +159,19 @@ public class BAMAnalyzer extends CommandLineProgram
   @Override
   protected int doWork()
   {
-    SAMFileReader reader  = null;  // To read a BAM file
     long totalReads       = 0;     // Total Reads in BAM file
 
+    if(MANIFEST != null)
+      return runBatch();
+
+    monitor = new ProgressMonitor(toolName, PROGRESS_FILE, PROGRESS_INTERVAL);
+    profile = new RuntimeProfile(sharedJVM);
+
     try
     {
+      if(SAMPLE_FRACTION != 1)
+        sampler = new ReadSampler(SAMPLE_FRACTION);
+
       if(OUTPUT != null)
       {
         OUTPUT = OUTPUT.getAbsoluteFile();
@@ -63,58 +184,547 @@ public class BAMAnalyzer extends CommandLineProgram
         IoUtil.assertFileIsWritable(XMLOUTPUT);
       }
 
+      if(STATE_OUTPUT != null)
+      {
+        STATE_OUTPUT = STATE_OUTPUT.getAbsoluteFile();
+        IoUtil.assertFileIsWritable(STATE_OUTPUT);
+      }
+
+      if(INPUT.isEmpty() && STATE_INPUT.isEmpty())
+        throw new Exception("Specify INPUT, STATE_INPUT or both");
+
+      if(DUPLICATE_METRICS != null && (STATE_INPUT.isEmpty() || !INPUT.isEmpty()))
+        throw new Exception("DUPLICATE_METRICS needs STATE_INPUT and no INPUT");
+
+      if(SHARD != null && (INPUT.size() != 1 || STATE_OUTPUT == null || INTERVALS != null))
+        throw new Exception("SHARD needs exactly one INPUT and STATE_OUTPUT, and no INTERVALS");
+
+      if(CHECKPOINT_FILE != null && (INTERVALS != null || SHARD != null || !STATE_INPUT.isEmpty()))
+        throw new Exception("CHECKPOINT_FILE can not be used with INTERVALS, SHARD or STATE_INPUT");
+
+      if(RESUME && CHECKPOINT_FILE == null)
+        throw new Exception("RESUME requires CHECKPOINT_FILE");
+
       SAMFileReader.setDefaultValidationStringency(ValidationStringency.SILENT);
 
-      ArrayList<MetricsCalculator> metrics = new ArrayList<MetricsCalculator>();
+      header = getHeader();
+      metrics = CalculatorSet.createDefault(outputPrefix);
+
+      // Capture stats hold coverage of all targets and are not partitioned
+      if(TARGETS != null)
+      {
+        IoUtil.assertFileIsReadable(TARGETS);
+        TargetIntervals targets = new TargetIntervals(TARGETS, header.getSequenceDictionary());
+        CaptureStatsCalculator captureStats = new CaptureStatsCalculator(targets);
+        captureStats.setOutputPrefix(outputPrefix);
+        metrics.add(captureStats);
+      }
+
+      metrics.setProfile(profile);
+      partitioner = new ReadGroupPartitioner(header.getReadGroups(), PER_READ_GROUP, PER_LIBRARY,
+                                             outputPrefix);
+      partitionProfileId = profile.addCalculator("ReadGroupPartitions");
+
+      if(CHECKPOINT_FILE != null)
+      {
+        CHECKPOINT_FILE = CHECKPOINT_FILE.getAbsoluteFile();
+
+        if(RESUME && CHECKPOINT_FILE.exists())
+        {
+          totalReads = restoreCheckpoint();
+          System.err.println("Resuming after " + totalReads + " reads from " +
+                             CHECKPOINT_FILE.getAbsolutePath());
+        }
+        checkpoint = new CheckpointWriter(CHECKPOINT_FILE, CHECKPOINT_INTERVAL);
+      }
 
-      metrics.add(new AlignmentCalculator(ReadType.READ1));
-      metrics.add(new AlignmentCalculator(ReadType.READ2));
-      metrics.add(new AlignmentCalculator(ReadType.FRAGMENT));
-      metrics.add(new InsertSizeCalculator());
-      metrics.add(new PairStatsCalculator());
-      metrics.add(new QualPerPosnCalculator());
+      monitor.start();
 
       /* Iterate over the input sam/bam */
-      for (final File inFile : INPUT)
+      for (inputIndex = resumeIndex; inputIndex < INPUT.size(); inputIndex++)
       {
+        File inFile = INPUT.get(inputIndex);
         IoUtil.assertFileIsReadable(inFile);
-        reader = new SAMFileReader(inFile);
-        for(SAMRecord record : reader)
-        {
-          totalReads++;
 
-          if(totalReads > 0 && totalReads % 1000000 == 0)
-            System.err.print("\r" + totalReads);
+        if(SHARD != null)
+          totalReads = analyzeShard(inFile, totalReads);
+        else if(INTERVALS != null)
+          totalReads = analyzeIntervals(inFile, totalReads);
+        else
+          totalReads = analyzeFile(inFile, totalReads);
+      }
 
-          for(int i = 0; i < metrics.size(); i++)
-            metrics.get(i).processRead(record);
+      profile.setStageMillis("Read", monitor.getStageMillis(Stage.DECODE));
+      profile.setStageMillis("IndexWrite", monitor.getStageMillis(Stage.WRITE));
 
-          if(STOP_AFTER > 0 && totalReads > STOP_AFTER)
-              break;
-        }
-        reader.close();
+      long stateStart = System.currentTimeMillis();
+
+      for(File stateFile : STATE_INPUT)
+        AnalyzerState.merge(stateFile, metrics, partitioner);
+
+      // Duplicates marked again on the merged BAM replace those of the lanes
+      if(DUPLICATE_METRICS != null)
+      {
+        IoUtil.assertFileIsReadable(DUPLICATE_METRICS);
+        DuplicateCounts duplicates = new DuplicateCounts(DUPLICATE_METRICS);
+        duplicates.checkReadGroups(header, DUPLICATE_METRICS.getAbsolutePath());
+        duplicates.apply(metrics, null);
+        partitioner.setDuplicateCounts(duplicates);
+      }
+
+      // Before the results are calculated, which may change the counts
+      if(STATE_OUTPUT != null)
+        AnalyzerState.write(STATE_OUTPUT, header, metrics, partitioner);
+      profile.setStageMillis("State", System.currentTimeMillis() - stateStart);
+
+      // The results of a shard are calculated after its state is merged
+      if(SHARD != null)
+      {
+        monitor.finish(true);
+        return 0;
       }
 
-      ArrayList<ResultMetric> resultMetrics = new ArrayList<ResultMetric>();
+      ArrayList<ResultMetric> resultMetrics = metrics.calculateResults();
 
-      for(int i = 0; i < metrics.size(); i++)
+      long t = System.nanoTime();
+      resultMetrics.addAll(partitioner.calculateResults());
+      profile.addResultTime(partitionProfileId, System.nanoTime() - t);
+      if(sampler != null)
       {
-        metrics.get(i).calculateResult();
-        metrics.get(i).buildResultMetrics();
-        if(metrics.get(i).getResultMetrics() != null)
-          resultMetrics.add(metrics.get(i).getResultMetrics());
+        ResultMetric sampling = new ResultMetric();
+        sampling.setMetricName("Sampling");
+        sampling.addKeyValue("SampleFraction", Double.toString(SAMPLE_FRACTION));
+        sampling.addKeyValue("SampledReads", Long.toString(totalReads));
+        resultMetrics.add(sampling);
       }
+      resultMetrics.add(profile.buildResultMetric());
 
       logResults(resultMetrics);
+
+      if(checkpoint != null)
+        checkpoint.close(true);
+      monitor.finish(true);
       return 0;
     }
     catch(Exception e)
     {
+      if(checkpoint != null)
+        checkpoint.close(false);
+      monitor.finish(false);
       System.out.println(e.getMessage());
       e.printStackTrace();
       return -1;
     }
   }
+  /**
+   * Analyze every line of MANIFEST as a separate BAMAnalyzer with the
+   * options of this one, on a shared pool of threads
+   * @return 0 if all jobs succeeded
+   */
+  private int runBatch()
+  {
+    try
+    {
+      if(!INPUT.isEmpty() || !STATE_INPUT.isEmpty() || SHARD != null || DUPLICATE_METRICS != null)
+        throw new Exception("INPUT, STATE_INPUT, SHARD and DUPLICATE_METRICS can not be used " +
+                            "with MANIFEST");
+
+      IoUtil.assertFileIsReadable(MANIFEST);
+      ArrayList<BatchRunner.Task> tasks = new ArrayList<BatchRunner.Task>();
+
+      for(BatchManifest.Job job : BatchManifest.read(MANIFEST, 1, Integer.MAX_VALUE))
+      {
+        final BAMAnalyzer analyzer = createJob(job);
+
+        tasks.add(new BatchRunner.Task(job.toString(), JOB_MEMORY_MB)
+        {
+          public int run() throws Exception
+          {
+            return analyzer.doWork();
+          }
+        });
+      }
+      return new BatchRunner(BATCH_THREADS, MEMORY_BUDGET_MB).run(tasks) == 0 ? 0 : -1;
+    }
+    catch(Exception e)
+    {
+      System.err.println(e.getMessage());
+      e.printStackTrace();
+      return -1;
+    }
+  }
+
+  /**
+   * Create the BAMAnalyzer of one job of MANIFEST
+   * @param job
+   * @return
+   * @throws IOException
+   */
+  private BAMAnalyzer createJob(BatchManifest.Job job) throws IOException
+  {
+    BAMAnalyzer analyzer = new BAMAnalyzer();
+
+    analyzer.INPUT               = new ArrayList<File>(job.getInputs());
+    analyzer.OUTPUT              = job.resolve(OUTPUT);
+    analyzer.XMLOUTPUT           = job.resolve(XMLOUTPUT);
+    analyzer.STATE_OUTPUT        = job.resolve(STATE_OUTPUT);
+    analyzer.PROGRESS_FILE       = job.resolve(PROGRESS_FILE);
+    analyzer.CHECKPOINT_FILE     = job.resolve(CHECKPOINT_FILE);
+    analyzer.STOP_AFTER          = STOP_AFTER;
+    analyzer.SAMPLE_FRACTION     = SAMPLE_FRACTION;
+    analyzer.BUILD_INDEX         = BUILD_INDEX;
+    analyzer.INTERVALS           = INTERVALS;
+    analyzer.THREADS             = THREADS;
+    analyzer.TARGETS             = TARGETS;
+    analyzer.PER_READ_GROUP      = PER_READ_GROUP;
+    analyzer.PER_LIBRARY         = PER_LIBRARY;
+    analyzer.PROGRESS_INTERVAL   = PROGRESS_INTERVAL;
+    analyzer.CHECKPOINT_INTERVAL = CHECKPOINT_INTERVAL;
+    analyzer.RESUME              = RESUME;
+    analyzer.TMP_DIR             = TMP_DIR;
+    analyzer.outputPrefix        = job.getOutputPrefix();
+    analyzer.toolName            = toolName + "_" + job.getName();
+    analyzer.sharedJVM           = true;
+    return analyzer;
+  }
+
+  /**
+   * Helper method to stream the whole file through the calculators, building
+   * the index on the way if required.
+   * @param inFile
+   * @param totalReads - reads processed so far
+   * @return reads processed including this file
+   * @throws Exception
+   */
+  private long analyzeFile(File inFile, long totalReads) throws Exception
+  {
+    SAMFileReader reader = new SAMFileReader(inFile);
+    BAMIndexer indexer   = null;
+    File indexFile       = null;
+    boolean stopped      = false;
+    boolean resumed      = (resumeSpan != null && inputIndex == resumeIndex);
+
+    if(checkpoint != null)
+    {
+      if(!reader.isBinary())
+        throw new Exception("CHECKPOINT_FILE requires BAM input, " + inFile.getName() + " is not");
+      reader.enableFileSource(true);
+    }
+
+    // An index can not be built from part of the file
+    if(BUILD_INDEX && !resumed && reader.isBinary() && !reader.hasIndex() &&
+       reader.getFileHeader().getSortOrder() == SortOrder.coordinate)
+    {
+      indexFile = getIndexFile(inFile);
+      IoUtil.assertFileIsWritable(indexFile);
+      reader.enableFileSource(true);
+      indexer = new BAMIndexer(indexFile, reader.getFileHeader());
+    }
+
+    SAMRecordIterator it = resumed ? reader.iterator(resumeSpan) : reader.iterator();
+
+    while(it.hasNext())
+    {
+      long t = System.nanoTime();
+      SAMRecord record = it.next();
+      t = monitor.addStageTime(Stage.DECODE, t);
+
+      if(indexer != null)
+      {
+        indexer.processAlignment(record);
+        t = monitor.addStageTime(Stage.WRITE, t);
+      }
+
+      if(!inSample(record))
+        continue;
+      totalReads++;
+
+      processRead(record);
+      monitor.addStageTime(Stage.CALCULATE, t);
+      monitor.addRecord();
+
+      // The snapshot is taken here, between records, and written in the
+      // background
+      if(checkpoint != null && (totalReads & 0xFFFF) == 0 && checkpoint.isDue())
+        checkpoint.submit(takeCheckpoint(record, totalReads));
+
+      if(STOP_AFTER > 0 && totalReads > STOP_AFTER)
+      {
+        stopped = true;
+        break;
+      }
+    }
+    it.close();
+    reader.close();
+
+    if(indexer != null)
+    {
+      indexer.finish();
+
+      // An index of part of the file is of no use
+      if(stopped)
+        indexFile.delete();
+      else
+        System.err.println("\nWrote index " + indexFile.getAbsolutePath());
+    }
+    return totalReads;
+  }
+
+  /**
+   * Helper method to process only the reads overlapping INTERVALS, reading
+   * the sequences in parallel.
+   * @param inFile
+   * @param totalReads - reads processed so far
+   * @return reads processed including this file
+   * @throws Exception
+   */
+  private long analyzeIntervals(File inFile, long totalReads) throws Exception
+  {
+    SAMFileReader reader = new SAMFileReader(inFile);
+    boolean indexed = reader.hasIndex();
+    SAMSequenceDictionary dictionary = reader.getFileHeader().getSequenceDictionary();
+    reader.close();
+
+    if(!indexed)
+      throw new Exception(inFile.getName() + " is not indexed. Run once with BUILD_INDEX=true " +
+                          "or index it before using INTERVALS");
+
+    TargetIntervals targets = new TargetIntervals(INTERVALS, dictionary);
+    System.err.println("Analyzing " + targets.getNumIntervals() + " intervals covering " +
+                       targets.getTotalBases() + " bases");
+
+    RegionReader regionReader = new RegionReader(inFile, targets, THREADS);
+    SAMRecord record;
+
+    try
+    {
+      long t = System.nanoTime();
+
+      while((record = regionReader.next()) != null)
+      {
+        t = monitor.addStageTime(Stage.DECODE, t);
+
+        if(!inSample(record))
+          continue;
+        totalReads++;
+
+        processRead(record);
+        t = monitor.addStageTime(Stage.CALCULATE, t);
+        monitor.addRecord();
+
+        if(STOP_AFTER > 0 && totalReads > STOP_AFTER)
+          break;
+      }
+    }
+    finally
+    {
+      regionReader.close();
+    }
+    return totalReads;
+  }
+
+  /**
+   * Helper method to process only the reads of SHARD
+   * @param inFile
+   * @param totalReads - reads processed so far
+   * @return reads processed including this file
+   * @throws Exception
+   */
+  private long analyzeShard(File inFile, long totalReads) throws Exception
+  {
+    SAMFileReader reader = new SAMFileReader(inFile);
+    BAMShard shard = BAMShard.parse(SHARD, reader.getFileHeader().getSequenceDictionary());
+
+    if(!shard.isOffsetRange() && !reader.hasIndex())
+    {
+      reader.close();
+      throw new Exception(inFile.getName() + " is not indexed. Run once with BUILD_INDEX=true " +
+                          "or index it before using SHARD with regions");
+    }
+    System.err.println("Analyzing shard " + shard);
+
+    int numQueries = shard.isOffsetRange() ? 1 : shard.getNumRegions();
+
+    try
+    {
+      for(int i = 0; i < numQueries; i++)
+      {
+        SAMRecordIterator it = shard.query(reader, i);
+        long t = System.nanoTime();
+
+        while(it.hasNext())
+        {
+          SAMRecord record = it.next();
+          t = monitor.addStageTime(Stage.DECODE, t);
+
+          if(!shard.startsInRegion(record, i) || !inSample(record))
+            continue;
+          totalReads++;
+
+          processRead(record);
+          t = monitor.addStageTime(Stage.CALCULATE, t);
+          monitor.addRecord();
+        }
+        it.close();
+      }
+    }
+    finally
+    {
+      reader.close();
+    }
+    return totalReads;
+  }
+
+  /**
+   * Take a snapshot of the position after the record and the state of the
+   * calculators. The position is the span of the BAM following the record,
+   * i.e. from the BGZF virtual offset of the next record.
+   * @param record - last record processed
+   * @param totalReads - reads processed including the record
+   * @return
+   * @throws IOException
+   */
+  private byte[] takeCheckpoint(SAMRecord record, long totalReads) throws IOException
+  {
+    ByteArrayOutputStream span = new ByteArrayOutputStream();
+    ObjectOutputStream spanOut = new ObjectOutputStream(span);
+    spanOut.writeObject(record.getFileSource().getFilePointer().getContentsFollowing());
+    spanOut.close();
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+
+    out.writeUTF(CHECKPOINT_MAGIC);
+    out.writeInt(CHECKPOINT_VERSION);
+    out.writeInt(inputIndex);
+    out.writeUTF(INPUT.get(inputIndex).getAbsolutePath());
+    out.writeLong(totalReads);
+    out.writeDouble(SAMPLE_FRACTION);
+    out.writeInt(span.size());
+    span.writeTo(out);
+    AnalyzerState.writeState(out, header, metrics, partitioner);
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Restore the calculators from CHECKPOINT_FILE and set the input and span
+   * to resume reading from
+   * @return number of reads processed before the checkpoint
+   * @throws Exception if the checkpoint is of other inputs
+   */
+  private long restoreCheckpoint() throws Exception
+  {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                                             CheckpointWriter.read(CHECKPOINT_FILE)));
+
+    if(!CHECKPOINT_MAGIC.equals(in.readUTF()) || in.readInt() != CHECKPOINT_VERSION)
+      throw new Exception(CHECKPOINT_FILE.getAbsolutePath() + " is not a checkpoint of this version");
+
+    resumeIndex = in.readInt();
+    String path = in.readUTF();
+
+    if(resumeIndex >= INPUT.size() ||
+       !INPUT.get(resumeIndex).getAbsolutePath().equals(path))
+      throw new Exception("Checkpoint " + CHECKPOINT_FILE.getAbsolutePath() +
+                          " is of other input files : " + path);
+
+    long totalReads = in.readLong();
+
+    if(in.readDouble() != SAMPLE_FRACTION)
+      throw new Exception("Checkpoint " + CHECKPOINT_FILE.getAbsolutePath() +
+                          " was taken with another SAMPLE_FRACTION");
+    byte span[]     = new byte[in.readInt()];
+    in.readFully(span);
+
+    ObjectInputStream spanIn = new ObjectInputStream(new ByteArrayInputStream(span));
+    resumeSpan = (SAMFileSpan)spanIn.readObject();
+    spanIn.close();
+
+    AnalyzerState.mergeState(in, CHECKPOINT_FILE.getAbsolutePath(), metrics, partitioner);
+    return totalReads;
+  }
+
+  /**
+   * Return true if the record is in the sample. Only its name is looked at,
+   * and BAM records decode the rest of their fields lazily, so the records
+   * not in the sample are never fully decoded.
+   * @param record
+   * @return
+   */
+  private boolean inSample(SAMRecord record)
+  {
+    return sampler == null || sampler.keep(record.getReadName());
+  }
+
+  /**
+   * Feed the record to the global calculators and to its partitions
+   * @param record
+   * @throws Exception
+   */
+  private void processRead(SAMRecord record) throws Exception
+  {
+    metrics.processRead(record);
+
+    if(partitioner.isEnabled())
+    {
+      long t = System.nanoTime();
+      partitioner.processRead(record);
+      profile.addProcessTime(partitionProfileId, System.nanoTime() - t);
+    }
+  }
+
+  /**
+   * Return the header of the first state file, or else of the first input
+   * file, with the read groups of all state and input files, each ID once
+   * @return
+   * @throws Exception
+   */
+  private SAMFileHeader getHeader() throws Exception
+  {
+    ArrayList<SAMFileHeader> headers = new ArrayList<SAMFileHeader>();
+
+    for(File stateFile : STATE_INPUT)
+    {
+      IoUtil.assertFileIsReadable(stateFile);
+      headers.add(AnalyzerState.readHeader(stateFile));
+    }
+    for(File inFile : INPUT)
+    {
+      SAMFileReader reader = new SAMFileReader(inFile);
+      headers.add(reader.getFileHeader());
+      reader.close();
+    }
+
+    ArrayList<SAMReadGroupRecord> readGroups = new ArrayList<SAMReadGroupRecord>();
+    HashSet<String> ids = new HashSet<String>();
+
+    for(SAMFileHeader header : headers)
+    {
+      for(SAMReadGroupRecord readGroup : header.getReadGroups())
+      {
+        if(ids.add(readGroup.getReadGroupId()))
+          readGroups.add(readGroup);
+      }
+    }
+    headers.get(0).setReadGroups(readGroups);
+    return headers.get(0);
+  }
+
+  /**
+   * Name of the index built for a BAM, foo.bam becomes foo.bai
+   * @param bamFile
+   * @return
+   */
+  private File getIndexFile(File bamFile)
+  {
+    String name = bamFile.getAbsolutePath();
+
+    if(name.toLowerCase().endsWith(".bam"))
+      name = name.substring(0, name.length() - 4);
+    return new File(name + ".bai");
+  }
+
   /**
    * Helper method to log the results in various formats.
    * @param resultMetrics
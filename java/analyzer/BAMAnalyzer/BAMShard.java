@@ -0,0 +1,166 @@
+package analyzer.BAMAnalyzer;
+
+import net.sf.samtools.*;
+import java.util.ArrayList;
+
+/**
+ * Class to describe one shard of a BAM, so that a large BAM can be analyzed
+ * by several processes, each writing the state of its shard, which are then
+ * merged. A shard is written as either
+ *
+ *   voffset:START-END  - records from BGZF virtual offset START up to END
+ *   REGION[,REGION...] - records whose alignment starts in the regions
+ *
+ * where a region is seq:start-end (1-based, closed), a whole sequence, or *
+ * for the unmapped reads without a position. Records are assigned by their
+ * alignment start, and not by overlap, so that each record of the BAM falls
+ * in exactly one shard of a plan.
+ * @author Nirav Shah niravs@bcm.edu
+ *
+ */
+public class BAMShard
+{
+  static final String OFFSET_PREFIX = "voffset:";
+  static final String UNMAPPED      = "*";
+
+  private long startOffset = -1;        // Virtual offsets, -1 if regions
+  private long endOffset   = -1;
+
+  private ArrayList<String> seqNames = new ArrayList<String>(); // UNMAPPED or sequence
+  private ArrayList<int[]> ranges    = new ArrayList<int[]>();  // 1-based start, end
+
+  /**
+   * Parse the shard
+   * @param spec - shard as described above
+   * @param dictionary - sequence dictionary of the BAM
+   * @return
+   * @throws Exception if the shard is malformed or names unknown sequences
+   */
+  public static BAMShard parse(String spec, SAMSequenceDictionary dictionary) throws Exception
+  {
+    BAMShard shard = new BAMShard();
+    spec = spec.trim();
+
+    if(spec.startsWith(OFFSET_PREFIX))
+    {
+      String offsets[] = spec.substring(OFFSET_PREFIX.length()).split("-");
+
+      if(offsets.length != 2)
+        throw new Exception("Malformed virtual offset range : " + spec);
+      shard.startOffset = Long.parseLong(offsets[0].trim());
+      shard.endOffset   = Long.parseLong(offsets[1].trim());
+      return shard;
+    }
+
+    for(String region : spec.split(","))
+    {
+      region = region.trim();
+
+      if(region.equals(UNMAPPED))
+      {
+        shard.addRegion(UNMAPPED, 0, 0);
+        continue;
+      }
+
+      // Sequence names may contain ':', a range follows the last one
+      int colon = region.lastIndexOf(':');
+
+      if(dictionary.getSequence(region) != null || colon < 0)
+      {
+        SAMSequenceRecord sequence = dictionary.getSequence(region);
+
+        if(sequence == null)
+          throw new Exception("Sequence " + region + " is not in the BAM header");
+        shard.addRegion(region, 1, sequence.getSequenceLength());
+        continue;
+      }
+
+      String seqName = region.substring(0, colon);
+      String range[] = region.substring(colon + 1).split("-");
+
+      if(dictionary.getSequence(seqName) == null)
+        throw new Exception("Sequence " + seqName + " is not in the BAM header");
+      if(range.length != 2)
+        throw new Exception("Malformed region : " + region);
+
+      shard.addRegion(seqName, Integer.parseInt(range[0].trim()),
+                      Integer.parseInt(range[1].trim()));
+    }
+    return shard;
+  }
+
+  /**
+   * Add a region of the shard
+   * @param seqName - sequence name or UNMAPPED
+   * @param start - 1-based start
+   * @param end - 1-based end
+   */
+  void addRegion(String seqName, int start, int end)
+  {
+    seqNames.add(seqName);
+    ranges.add(new int[]{start, end});
+  }
+
+  public boolean isOffsetRange()
+  {
+    return startOffset >= 0;
+  }
+
+  public int getNumRegions()
+  {
+    return seqNames.size();
+  }
+
+  /**
+   * Return an iterator over the records of region i, or of the virtual offset
+   * range. Records of a region that start before it must be skipped with
+   * startsInRegion.
+   * @param reader
+   * @param i - region index, ignored for a virtual offset range
+   * @return
+   */
+  public SAMRecordIterator query(SAMFileReader reader, int i)
+  {
+    if(isOffsetRange())
+      return reader.iterator(new BAMFileSpan(new Chunk(startOffset, endOffset)));
+    if(seqNames.get(i).equals(UNMAPPED))
+      return reader.queryUnmapped();
+    return reader.queryOverlapping(seqNames.get(i), ranges.get(i)[0], ranges.get(i)[1]);
+  }
+
+  /**
+   * Return true if the record returned by query for region i belongs to the
+   * shard, i.e. its alignment starts in the region
+   * @param record
+   * @param i
+   * @return
+   */
+  public boolean startsInRegion(SAMRecord record, int i)
+  {
+    if(isOffsetRange() || seqNames.get(i).equals(UNMAPPED))
+      return true;
+
+    int start = record.getAlignmentStart();
+    return start >= ranges.get(i)[0] && start <= ranges.get(i)[1];
+  }
+
+  @Override
+  public String toString()
+  {
+    if(isOffsetRange())
+      return OFFSET_PREFIX + startOffset + "-" + endOffset;
+
+    StringBuffer spec = new StringBuffer();
+
+    for(int i = 0; i < seqNames.size(); i++)
+    {
+      if(i > 0)
+        spec.append(",");
+      if(seqNames.get(i).equals(UNMAPPED))
+        spec.append(UNMAPPED);
+      else
+        spec.append(seqNames.get(i) + ":" + ranges.get(i)[0] + "-" + ranges.get(i)[1]);
+    }
+    return spec.toString();
+  }
+}
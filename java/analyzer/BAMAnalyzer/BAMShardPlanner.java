@@ -0,0 +1,120 @@
+package analyzer.BAMAnalyzer;
+
+import net.sf.samtools.*;
+import net.sf.picard.cmdline.*;
+import net.sf.picard.io.IoUtil;
+import java.io.*;
+import java.util.List;
+
+/**
+ * Class to split a coordinate sorted, indexed BAM into shards for BAMAnalyzer
+ * SHARD, writing one shard per line. The reference is cut into pieces of
+ * about equal length in the order of the sequence dictionary, so a shard may
+ * hold the end of one sequence and the start of the next, or many small
+ * contigs. The unmapped reads without a position go in the last shard.
+ * @author Nirav Shah niravs@bcm.edu
+ *
+ */
+public class BAMShardPlanner extends CommandLineProgram
+{
+  @Usage
+  public String USAGE = getStandardUsagePreamble() +
+  "Write the shards to analyze a BAM with, one per line, for BAMAnalyzer SHARD.\r\n";
+
+  @Option(shortName = StandardOptionDefinitions.INPUT_SHORT_NAME, doc = "Input BAM file")
+  public File INPUT;
+
+  @Option(shortName = "N", doc = "Number of shards")
+  public int SHARDS = 8;
+
+  @Option(shortName = StandardOptionDefinitions.OUTPUT_SHORT_NAME, doc = "File to write the " +
+          "shards to. Default: standard output", optional=true)
+  public File OUTPUT;
+
+  public static void main(String[] args)
+  {
+    new BAMShardPlanner().instanceMainWithExit(args);
+  }
+
+  @Override
+  protected int doWork()
+  {
+    try
+    {
+      IoUtil.assertFileIsReadable(INPUT);
+
+      if(SHARDS < 1)
+        throw new Exception("SHARDS must be at least 1");
+
+      SAMFileReader reader = new SAMFileReader(INPUT);
+      List<SAMSequenceRecord> sequences = reader.getFileHeader().getSequenceDictionary().getSequences();
+      reader.close();
+
+      PrintStream out = (OUTPUT != null) ? new PrintStream(new FileOutputStream(OUTPUT)) : System.out;
+
+      // There are fewer shards than asked for if the reference is tiny
+      for(BAMShard shard : planShards(sequences, SHARDS))
+      {
+        if(shard.getNumRegions() > 0)
+          out.println(shard.toString());
+      }
+
+      if(OUTPUT != null)
+        out.close();
+      return 0;
+    }
+    catch(Exception e)
+    {
+      System.err.println(e.getMessage());
+      e.printStackTrace();
+      return -1;
+    }
+  }
+
+  /**
+   * Cut the sequences into numShards shards of about equal length
+   * @param sequences
+   * @param numShards
+   * @return
+   */
+  static BAMShard[] planShards(List<SAMSequenceRecord> sequences, int numShards)
+  {
+    long totalLength = 0;
+
+    for(SAMSequenceRecord sequence : sequences)
+      totalLength += sequence.getSequenceLength();
+
+    long shardLength = Math.max(1, (totalLength + numShards - 1) / numShards);
+    BAMShard shards[] = new BAMShard[numShards];
+    int current       = 0;
+    long filled       = 0;     // Bases in the current shard
+
+    for(int i = 0; i < numShards; i++)
+      shards[i] = new BAMShard();
+
+    for(SAMSequenceRecord sequence : sequences)
+    {
+      int start  = 1;
+      int length = sequence.getSequenceLength();
+
+      while(start <= length)
+      {
+        if(filled >= shardLength && current < numShards - 1)
+        {
+          current++;
+          filled = 0;
+        }
+        int end = (int)Math.min(length, start - 1 + shardLength - filled);
+
+        if(current == numShards - 1)
+          end = length;
+
+        shards[current].addRegion(sequence.getSequenceName(), start, end);
+        filled += end - start + 1;
+        start   = end + 1;
+      }
+    }
+    shards[numShards - 1].addRegion(BAMShard.UNMAPPED, 0, 0);
+    return shards;
+  }
+}
@@ -0,0 +1,211 @@
+package analyzer.BAMAnalyzer;
+
+import net.sf.samtools.SAMRecord;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import analyzer.Common.ResultMetric;
+import analyzer.Common.RuntimeProfile;
+
+/**
+ * Class to hold one complete set of metrics calculators, e.g. for the whole
+ * BAM or for one read group, and feed each read to all of them.
+ * @author Nirav Shah niravs@bcm.edu
+ *
+ */
+public class CalculatorSet
+{
+  private ArrayList<MetricsCalculator> calculators; // Calculators in this set
+  private RuntimeProfile profile = null;            // To time calculators
+  private int profileIds[];                         // Id of each calculator
+
+  public CalculatorSet()
+  {
+    calculators = new ArrayList<MetricsCalculator>();
+  }
+
+  /**
+   * Create the set of calculators run on every BAM
+   * @param outputPrefix - prefix of plots and CSV files written by the set
+   * @return
+   */
+  public static CalculatorSet createDefault(String outputPrefix)
+  {
+    CalculatorSet set = new CalculatorSet();
+
+    set.add(new AlignmentCalculator(ReadType.READ1));
+    set.add(new AlignmentCalculator(ReadType.READ2));
+    set.add(new AlignmentCalculator(ReadType.FRAGMENT));
+    set.add(new InsertSizeCalculator());
+    set.add(new PairStatsCalculator());
+    set.add(new QualPerPosnCalculator());
+
+    for(int i = 0; i < set.calculators.size(); i++)
+      set.calculators.get(i).setOutputPrefix(outputPrefix);
+    return set;
+  }
+
+  public void add(MetricsCalculator calculator)
+  {
+    calculators.add(calculator);
+  }
+
+  /**
+   * Time every calculator of the set from now on. All calculators must have
+   * been added.
+   * @param profile
+   */
+  public void setProfile(RuntimeProfile profile)
+  {
+    this.profile = profile;
+    profileIds = new int[calculators.size()];
+
+    for(int i = 0; i < calculators.size(); i++)
+      profileIds[i] = profile.addCalculator(calculators.get(i).getName());
+  }
+
+  public ArrayList<MetricsCalculator> getCalculators()
+  {
+    return calculators;
+  }
+
+  /**
+   * Feed the read to every calculator
+   * @param record
+   * @throws Exception
+   */
+  public void processRead(SAMRecord record) throws Exception
+  {
+    if(profile == null)
+    {
+      for(int i = 0; i < calculators.size(); i++)
+        calculators.get(i).processRead(record);
+      return;
+    }
+    long t = System.nanoTime();
+
+    for(int i = 0; i < calculators.size(); i++)
+    {
+      calculators.get(i).processRead(record);
+      long now = System.nanoTime();
+      profile.addProcessTime(profileIds[i], now - t);
+      t = now;
+    }
+  }
+
+  /**
+   * Write the state of every calculator, with its name and length so that
+   * calculators can be matched by name and skipped when merging.
+   * @param out
+   * @throws IOException
+   */
+  public void writeState(DataOutputStream out) throws IOException
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    out.writeInt(calculators.size());
+
+    for(int i = 0; i < calculators.size(); i++)
+    {
+      bytes.reset();
+      DataOutputStream calculatorOut = new DataOutputStream(bytes);
+      calculators.get(i).writeState(calculatorOut);
+      calculatorOut.flush();
+
+      out.writeUTF(calculators.get(i).getName());
+      out.writeInt(bytes.size());
+      bytes.writeTo(out);
+    }
+  }
+
+  /**
+   * Merge a state written by writeState into each of the given sets, e.g. the
+   * state of a BAM with a single read group into the global set and into the
+   * set of its read group. The state of a calculator is merged into every set
+   * with a calculator of that name, e.g. capture stats only into the global
+   * set. The state is consumed even if the list is empty.
+   * @param in
+   * @param sets
+   * @throws IOException if a calculator of a set has no state, or a state has
+   * no calculator in any of the sets, e.g. capture stats without TARGETS
+   */
+  public static void mergeState(DataInputStream in, List<CalculatorSet> sets)
+                                throws IOException
+  {
+    int numCalculators = in.readInt();
+    boolean merged[][] = new boolean[sets.size()][];
+
+    for(int j = 0; j < sets.size(); j++)
+      merged[j] = new boolean[sets.get(j).calculators.size()];
+
+    for(int i = 0; i < numCalculators; i++)
+    {
+      String name  = in.readUTF();
+      byte state[] = new byte[in.readInt()];
+      in.readFully(state);
+      boolean found = false;
+
+      for(int j = 0; j < sets.size(); j++)
+      {
+        int index = sets.get(j).indexOf(name);
+
+        if(index >= 0)
+        {
+          sets.get(j).calculators.get(index).mergeState(new DataInputStream(
+                                                        new ByteArrayInputStream(state)));
+          merged[j][index] = true;
+          found = true;
+        }
+      }
+
+      if(!found && !sets.isEmpty())
+        throw new IOException("No calculator for the state of " + name +
+                              ". Use the options the state was written with, e.g. TARGETS");
+    }
+
+    for(int j = 0; j < sets.size(); j++)
+    {
+      for(int k = 0; k < merged[j].length; k++)
+      {
+        if(!merged[j][k])
+          throw new IOException("No state of " + sets.get(j).calculators.get(k).getName());
+      }
+    }
+  }
+
+  /**
+   * Return the index of the calculator with the given name, or -1
+   */
+  private int indexOf(String name)
+  {
+    for(int i = 0; i < calculators.size(); i++)
+    {
+      if(calculators.get(i).getName().equals(name))
+        return i;
+    }
+    return -1;
+  }
+
+  /**
+   * Calculate the results of every calculator and return the ones that
+   * have something to report.
+   * @return
+   */
+  public ArrayList<ResultMetric> calculateResults()
+  {
+    ArrayList<ResultMetric> resultMetrics = new ArrayList<ResultMetric>();
+
+    for(int i = 0; i < calculators.size(); i++)
+    {
+      long t = System.nanoTime();
+      calculators.get(i).calculateResult();
+      calculators.get(i).buildResultMetrics();
+
+      if(profile != null)
+        profile.addResultTime(profileIds[i], System.nanoTime() - t);
+
+      if(calculators.get(i).getResultMetrics() != null)
+        resultMetrics.add(calculators.get(i).getResultMetrics());
+    }
+    return resultMetrics;
+  }
+}
@@ -0,0 +1,355 @@
+package analyzer.BAMAnalyzer;
+
+import net.sf.samtools.*;
+import java.io.*;
+import java.util.List;
+import analyzer.Common.*;
+
+/**
+ * Class to calculate capture metrics against the target intervals of a chip
+ * design. Coverage of every target base is accumulated in a difference array
+ * over the concatenated target bases, so that each aligned block costs two
+ * array updates irrespective of its length. Depth per base is recovered with
+ * one prefix sum at the end.
+ * @author Nirav Shah niravs@bcm.edu
+ *
+ */
+public class CaptureStatsCalculator extends MetricsCalculator
+{
+  private static final int BUFFER_SIZE = 100;   // Distance for near target reads
+  private static final int MAX_DEPTH   = 10000; // Depths above are binned together
+  private static final int COVERAGE_LEVELS[] = {1, 10, 20, 40};
+
+  private TargetIntervals targets;      // Merged target intervals
+  private long targetOffsets[][];       // Offset of each target in coverage
+  private int coverage[];               // Difference array, then depth per base
+
+  private long totalReads     = 0;      // Mapped, non-duplicate reads examined
+  private long onTargetReads  = 0;      // Reads overlapping a target
+  private long nearTargetReads = 0;     // Reads within BUFFER_SIZE of a target
+  private long offTargetReads = 0;      // Remaining mapped reads
+  private long duplicateReads = 0;      // Excluded from coverage
+  private long alignedBases   = 0;      // Bases aligned by examined reads
+  private long onTargetBases  = 0;      // Aligned bases falling on targets
+
+  private long depthHist[];             // Number of target bases at each depth
+  private double meanDepth    = 0;
+  private double percentCovered[] = new double[COVERAGE_LEVELS.length];
+  private int depthPercentiles[]  = new int[3]; // 10th, 50th, 90th percentile
+  private double fold80Penalty    = 0;  // Mean / 20th percentile depth
+  private double percentUniform   = 0;  // Bases with depth >= 0.2 * mean
+
+  /**
+   * Class constructor
+   * @param targets - target intervals of the chip design
+   */
+  public CaptureStatsCalculator(TargetIntervals targets)
+  {
+    super();
+    this.targets = targets;
+
+    if(targets.getTotalBases() >= Integer.MAX_VALUE)
+      throw new IllegalArgumentException("Targets cover too many bases");
+
+    targetOffsets = new long[targets.getNumSequences()][];
+    long offset = 0;
+
+    for(int i = 0; i < targets.getNumSequences(); i++)
+    {
+      int starts[] = targets.getStarts(i);
+      int ends[]   = targets.getEnds(i);
+      targetOffsets[i] = new long[starts.length];
+
+      for(int j = 0; j < starts.length; j++)
+      {
+        targetOffsets[i][j] = offset;
+        offset += ends[j] - starts[j] + 1;
+      }
+    }
+    coverage = new int[(int)offset + 1];
+  }
+
+  /**
+   * Write the counters and the non zero entries of the difference array,
+   * which are few compared to the target bases
+   */
+  @Override
+  void writeState(DataOutputStream out) throws IOException
+  {
+    out.writeLong(totalReads);
+    out.writeLong(onTargetReads);
+    out.writeLong(nearTargetReads);
+    out.writeLong(offTargetReads);
+    out.writeLong(duplicateReads);
+    out.writeLong(alignedBases);
+    out.writeLong(onTargetBases);
+    out.writeInt(coverage.length);
+
+    int nonZero = 0;
+
+    for(int i = 0; i < coverage.length; i++)
+    {
+      if(coverage[i] != 0)
+        nonZero++;
+    }
+    out.writeInt(nonZero);
+
+    for(int i = 0; i < coverage.length; i++)
+    {
+      if(coverage[i] != 0)
+      {
+        out.writeInt(i);
+        out.writeInt(coverage[i]);
+      }
+    }
+  }
+
+  @Override
+  void mergeState(DataInputStream in) throws IOException
+  {
+    totalReads      += in.readLong();
+    onTargetReads   += in.readLong();
+    nearTargetReads += in.readLong();
+    offTargetReads  += in.readLong();
+    duplicateReads  += in.readLong();
+    alignedBases    += in.readLong();
+    onTargetBases   += in.readLong();
+
+    if(in.readInt() != coverage.length)
+      throw new IOException("Targets of the state file differ from TARGETS");
+
+    int nonZero = in.readInt();
+
+    for(int i = 0; i < nonZero; i++)
+    {
+      int index = in.readInt();
+      coverage[index] += in.readInt();
+    }
+  }
+
+  @Override
+  void processRead(SAMRecord nextRead) throws Exception
+  {
+    if(nextRead.getReadUnmappedFlag() || nextRead.getNotPrimaryAlignmentFlag() ||
+       nextRead.getReadFailsVendorQualityCheckFlag())
+      return;
+
+    if(nextRead.getDuplicateReadFlag())
+    {
+      duplicateReads++;
+      return;
+    }
+    totalReads++;
+
+    int seqIndex = nextRead.getReferenceIndex().intValue();
+    boolean onTarget = false;
+
+    if(seqIndex >= 0 && seqIndex < targets.getNumSequences())
+    {
+      List<AlignmentBlock> blocks = nextRead.getAlignmentBlocks();
+
+      for(int i = 0; i < blocks.size(); i++)
+      {
+        AlignmentBlock block = blocks.get(i);
+        int start = block.getReferenceStart();
+        int end   = start + block.getLength() - 1;
+
+        alignedBases += block.getLength();
+
+        if(addCoverage(seqIndex, start, end))
+          onTarget = true;
+      }
+    }
+
+    if(onTarget)
+      onTargetReads++;
+    else
+    if(targets.overlaps(seqIndex, nextRead.getAlignmentStart() - BUFFER_SIZE,
+                        nextRead.getAlignmentEnd() + BUFFER_SIZE))
+      nearTargetReads++;
+    else
+      offTargetReads++;
+  }
+
+  /**
+   * Add one to the depth of all target bases in [start, end]
+   * @return true if the block overlaps a target
+   */
+  private boolean addCoverage(int seqIndex, int start, int end)
+  {
+    int starts[] = targets.getStarts(seqIndex);
+    int ends[]   = targets.getEnds(seqIndex);
+    boolean overlaps = false;
+
+    for(int i = targets.findFirstEndingAtOrAfter(seqIndex, start);
+        i < starts.length && starts[i] <= end; i++)
+    {
+      int from = Math.max(start, starts[i]);
+      int to   = Math.min(end, ends[i]);
+      int offset = (int)targetOffsets[seqIndex][i] - starts[i];
+
+      coverage[offset + from]++;
+      coverage[offset + to + 1]--;
+      onTargetBases += to - from + 1;
+      overlaps = true;
+    }
+    return overlaps;
+  }
+
+  @Override
+  void calculateResult()
+  {
+    long numBases = coverage.length - 1;
+    depthHist = new long[MAX_DEPTH + 1];
+
+    if(numBases == 0)
+      return;
+
+    int depth = 0;
+    long sum  = 0;
+
+    for(int i = 0; i < numBases; i++)
+    {
+      depth += coverage[i];
+      coverage[i] = depth;
+      sum += depth;
+      depthHist[Math.min(depth, MAX_DEPTH)]++;
+    }
+    meanDepth = 1.0 * sum / numBases;
+
+    for(int i = 0; i < COVERAGE_LEVELS.length; i++)
+      percentCovered[i] = 100.0 * countBasesAtOrAbove(COVERAGE_LEVELS[i]) / numBases;
+
+    depthPercentiles[0] = getDepthPercentile(0.1, numBases);
+    depthPercentiles[1] = getDepthPercentile(0.5, numBases);
+    depthPercentiles[2] = getDepthPercentile(0.9, numBases);
+
+    int depth20 = getDepthPercentile(0.2, numBases);
+    fold80Penalty  = (depth20 > 0) ? meanDepth / depth20 : 0;
+    percentUniform = 100.0 * countBasesAtOrAbove((int)Math.ceil(0.2 * meanDepth)) / numBases;
+
+    try
+    {
+      writeTargetCoverage(outputPrefix + "TargetCoverage.csv");
+    }
+    catch(Exception e)
+    {
+      System.err.println(e.getMessage());
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Number of target bases with depth of at least minDepth
+   */
+  private long countBasesAtOrAbove(int minDepth)
+  {
+    long count = 0;
+
+    for(int i = Math.min(Math.max(minDepth, 0), MAX_DEPTH); i <= MAX_DEPTH; i++)
+      count += depthHist[i];
+    return count;
+  }
+
+  /**
+   * Depth such that the given fraction of target bases has lower or equal
+   * depth
+   */
+  private int getDepthPercentile(double fraction, long numBases)
+  {
+    long threshold = (long)Math.ceil(fraction * numBases);
+    long count = 0;
+
+    for(int i = 0; i <= MAX_DEPTH; i++)
+    {
+      count += depthHist[i];
+      if(count >= threshold)
+        return i;
+    }
+    return MAX_DEPTH;
+  }
+
+  /**
+   * Write mean depth and coverage of each target in CSV format
+   * @param fileName
+   * @throws IOException
+   */
+  private void writeTargetCoverage(String fileName) throws IOException
+  {
+    BufferedWriter writer = new BufferedWriter(new FileWriter(fileName));
+    writer.write("Chromosome,Start,End,Length,MeanDepth,PercentCovered");
+    writer.newLine();
+
+    for(int i = 0; i < targets.getNumSequences(); i++)
+    {
+      int starts[] = targets.getStarts(i);
+      int ends[]   = targets.getEnds(i);
+
+      for(int j = 0; j < starts.length; j++)
+      {
+        int from   = (int)targetOffsets[i][j];
+        int length = ends[j] - starts[j] + 1;
+        long sum   = 0;
+        int covered = 0;
+
+        for(int k = from; k < from + length; k++)
+        {
+          sum += coverage[k];
+          if(coverage[k] > 0)
+            covered++;
+        }
+        writer.write(targets.getSequenceName(i) + "," + starts[j] + "," + ends[j] + "," +
+                     length + "," + getFormattedNumber(1.0 * sum / length) + "," +
+                     getFormattedNumber(100.0 * covered / length));
+        writer.newLine();
+      }
+    }
+    writer.close();
+  }
+
+  @Override
+  void buildResultMetrics()
+  {
+    if(totalReads <= 0)
+    {
+      resultMetric = null;
+      return;
+    }
+    resultMetric.setMetricName("CaptureStats");
+    resultMetric.addKeyValue("NumTargets", Integer.toString(targets.getNumIntervals()));
+    resultMetric.addKeyValue("TargetBases", Long.toString(targets.getTotalBases()));
+
+    ResultMetric readInfo = new ResultMetric();
+    readInfo.setMetricName("ReadInfo");
+    readInfo.addKeyValue("ReadsExamined", Long.toString(totalReads));
+    readInfo.addKeyValue("DuplicatesExcluded", Long.toString(duplicateReads));
+    readInfo.addKeyValue("OnTargetReads", Long.toString(onTargetReads));
+    readInfo.addKeyValue("PercentOnTarget", getFormattedNumber(100.0 * onTargetReads / totalReads));
+    readInfo.addKeyValue("NearTargetReads", Long.toString(nearTargetReads));
+    readInfo.addKeyValue("PercentNearTarget", getFormattedNumber(100.0 * nearTargetReads / totalReads));
+    readInfo.addKeyValue("OffTargetReads", Long.toString(offTargetReads));
+    readInfo.addKeyValue("PercentOffTarget", getFormattedNumber(100.0 * offTargetReads / totalReads));
+    readInfo.addKeyValue("PercentBasesOnTarget", (alignedBases > 0) ?
+                         getFormattedNumber(100.0 * onTargetBases / alignedBases) : "0");
+
+    ResultMetric coverageInfo = new ResultMetric();
+    coverageInfo.setMetricName("Coverage");
+    coverageInfo.addKeyValue("MeanDepth", getFormattedNumber(meanDepth));
+
+    for(int i = 0; i < COVERAGE_LEVELS.length; i++)
+      coverageInfo.addKeyValue("PercentBases" + COVERAGE_LEVELS[i] + "X",
+                               getFormattedNumber(percentCovered[i]));
+
+    ResultMetric uniformityInfo = new ResultMetric();
+    uniformityInfo.setMetricName("Uniformity");
+    uniformityInfo.addKeyValue("Depth10thPercentile", Integer.toString(depthPercentiles[0]));
+    uniformityInfo.addKeyValue("MedianDepth", Integer.toString(depthPercentiles[1]));
+    uniformityInfo.addKeyValue("Depth90thPercentile", Integer.toString(depthPercentiles[2]));
+    uniformityInfo.addKeyValue("Fold80BasePenalty", getFormattedNumber(fold80Penalty));
+    uniformityInfo.addKeyValue("PercentBasesAbove20PctMean", getFormattedNumber(percentUniform));
+
+    resultMetric.addResultMetric(readInfo);
+    resultMetric.addResultMetric(coverageInfo);
+    resultMetric.addResultMetric(uniformityInfo);
+  }
+}
@@ -0,0 +1,138 @@
+package analyzer.BAMAnalyzer;
+
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMReadGroupRecord;
+import java.io.*;
+import java.util.Collection;
+import java.util.HashMap;
+
+/**
+ * Class to read the duplicate counts per read group and read type from the
+ * metrics file of DuplicateMarker. When the BAMs of several lanes are merged
+ * and duplicates are marked again, these counts replace the duplicate counts
+ * of the merged lane state files, so that the merged BAM is not read again.
+ * @author Nirav Shah niravs@bcm.edu
+ *
+ */
+public class DuplicateCounts
+{
+  // Header of the counts, DuplicateMarker.DUPLICATE_COUNTS_HEADER of bamtools
+  private static final String HEADER = "ReadGroup\tReadType\tDuplicateReads\tDuplicateValidBases";
+  private static final String NO_READ_GROUP = "-";   // Reads without a read group
+
+  // Duplicate reads and their valid bases per read group, by ReadType ordinal
+  private HashMap<String, long[][]> counts = new HashMap<String, long[][]>();
+
+  /**
+   * Class constructor
+   * @param metricsFile - metrics file written by DuplicateMarker
+   * @throws IOException if the file has no duplicate counts or they are malformed
+   */
+  public DuplicateCounts(File metricsFile) throws IOException
+  {
+    BufferedReader reader = new BufferedReader(new FileReader(metricsFile));
+    String source = metricsFile.getAbsolutePath();
+
+    try
+    {
+      String line;
+
+      while((line = reader.readLine()) != null && !line.equals(HEADER))
+        ;
+      if(line == null)
+        throw new IOException(source + " has no duplicate counts. It must be written by " +
+                              "this version of DuplicateMarker");
+
+      while((line = reader.readLine()) != null)
+      {
+        if(line.length() == 0)
+          continue;
+
+        String fields[] = line.split("\t");
+
+        if(fields.length != 4)
+          throw new IOException("Malformed duplicate counts in " + source + " : " + line);
+
+        long readGroupCounts[][] = counts.get(fields[0]);
+
+        if(readGroupCounts == null)
+        {
+          readGroupCounts = new long[ReadType.values().length][2];
+          counts.put(fields[0], readGroupCounts);
+        }
+
+        try
+        {
+          int type = ReadType.valueOf(fields[1]).ordinal();
+          readGroupCounts[type][0] += Long.parseLong(fields[2]);
+          readGroupCounts[type][1] += Long.parseLong(fields[3]);
+        }
+        catch(IllegalArgumentException e)
+        {
+          throw new IOException("Malformed duplicate counts in " + source + " : " + line);
+        }
+      }
+    }
+    finally
+    {
+      reader.close();
+    }
+  }
+
+  /**
+   * Check that the counts are of the BAM the header belongs to, i.e. that
+   * every read group with duplicates is in the header
+   * @param header
+   * @param source - name of the metrics file for the error message
+   * @throws IOException
+   */
+  public void checkReadGroups(SAMFileHeader header, String source) throws IOException
+  {
+    for(String readGroup : counts.keySet())
+    {
+      boolean found = readGroup.equals(NO_READ_GROUP);
+
+      for(SAMReadGroupRecord record : header.getReadGroups())
+        found = found || record.getReadGroupId().equals(readGroup);
+
+      if(!found)
+        throw new IOException("Read group " + readGroup + " of " + source +
+                              " is not in the state files");
+    }
+  }
+
+  /**
+   * Replace the duplicate counts of the alignment calculators of a set with
+   * the sum of the counts of the given read groups
+   * @param set
+   * @param readGroups - IDs of the read groups, or null for all reads
+   */
+  public void apply(CalculatorSet set, Collection<String> readGroups)
+  {
+    long total[][] = new long[ReadType.values().length][2];
+
+    for(String readGroup : counts.keySet())
+    {
+      if(readGroups != null && !readGroups.contains(readGroup))
+        continue;
+
+      long readGroupCounts[][] = counts.get(readGroup);
+
+      for(int i = 0; i < total.length; i++)
+      {
+        total[i][0] += readGroupCounts[i][0];
+        total[i][1] += readGroupCounts[i][1];
+      }
+    }
+
+    for(MetricsCalculator calculator : set.getCalculators())
+    {
+      if(calculator instanceof AlignmentCalculator)
+      {
+        AlignmentCalculator alignment = (AlignmentCalculator)calculator;
+        int type = alignment.getReadType().ordinal();
+        alignment.setDuplicates(total[type][0], total[type][1]);
+      }
+    }
+  }
+}
@@ -1,5 +1,6 @@
 package analyzer.BAMAnalyzer;
 
+import java.io.*;
 import analyzer.Common.ResultMetric;
 import net.sf.picard.sam.SamPairUtil.PairOrientation;
 import net.sf.samtools.*;
@@ -34,6 +35,38 @@ public class InsertSizeCalculator extends MetricsCalculator
     tandemInsertSize = new InsertSizeStats(PairOrientation.TANDEM);
   }
   
+  /**
+   * Pass the prefix on to the distribution of each orientation
+   */
+  @Override
+  public void setOutputPrefix(String prefix)
+  {
+    super.setOutputPrefix(prefix);
+    frInsertSize.setOutputPrefix(prefix);
+    rfInsertSize.setOutputPrefix(prefix);
+    tandemInsertSize.setOutputPrefix(prefix);
+  }
+
+  @Override
+  void writeState(DataOutputStream out) throws IOException
+  {
+    out.writeInt(totalPairs);
+    out.writeInt(totalMappedPairs);
+    frInsertSize.writeState(out);
+    rfInsertSize.writeState(out);
+    tandemInsertSize.writeState(out);
+  }
+
+  @Override
+  void mergeState(DataInputStream in) throws IOException
+  {
+    totalPairs       += in.readInt();
+    totalMappedPairs += in.readInt();
+    frInsertSize.mergeState(in);
+    rfInsertSize.mergeState(in);
+    tandemInsertSize.mergeState(in);
+  }
+
   /* 
    * Process the next read
    */
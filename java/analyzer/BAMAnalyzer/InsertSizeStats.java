@@ -21,6 +21,7 @@ public class InsertSizeStats
   private int modeInsertSize;              // Mode insert size value
   private int totalPairs;                  // Total pairs with this orientation
   private double threshold = 0.01;         // To clip insert size chart
+  private String outputPrefix = "";        // Prefix of CSV and plot names
   
   private TreeMap<Integer, Integer> insertSizeList = null;
   
@@ -57,6 +58,15 @@ public class InsertSizeStats
     iSize = null;
   }
   
+  /**
+   * Set the prefix of the names of CSV and plot files
+   * @param prefix
+   */
+  public void setOutputPrefix(String prefix)
+  {
+    outputPrefix = prefix;
+  }
+
   public int getTotalPairs()
   {
     return totalPairs;
@@ -77,6 +87,42 @@ public class InsertSizeStats
     return orientation;
   }
   
+  /**
+   * Write the number of pairs of every insert size
+   * @param out
+   * @throws IOException
+   */
+  public void writeState(DataOutputStream out) throws IOException
+  {
+    out.writeInt(insertSizeList.size());
+
+    for(Integer key : insertSizeList.keySet())
+    {
+      out.writeInt(key.intValue());
+      out.writeInt(insertSizeList.get(key).intValue());
+    }
+  }
+
+  /**
+   * Add the insert sizes written by writeState
+   * @param in
+   * @throws IOException
+   */
+  public void mergeState(DataInputStream in) throws IOException
+  {
+    int size = in.readInt();
+
+    for(int i = 0; i < size; i++)
+    {
+      Integer iSize = in.readInt();
+      int count     = in.readInt();
+      Integer val   = insertSizeList.get(iSize);
+
+      insertSizeList.put(iSize, (val == null) ? count : val + count);
+      totalPairs += count;
+    }
+  }
+
   public void finishedAllReads()
   {
     calculateStats();
@@ -135,7 +181,7 @@ public class InsertSizeStats
   private void logInsertSizeDistribution() throws IOException
   {
     System.err.println("Logging time");
-    String logFileName    = orientation.toString() + "_InsertSizeDist.csv";
+    String logFileName    = outputPrefix + orientation.toString() + "_InsertSizeDist.csv";
     BufferedWriter writer = new BufferedWriter(new FileWriter(logFileName));
     
     for(Integer key : insertSizeList.keySet())
@@ -152,7 +198,7 @@ public class InsertSizeStats
   private void createDistributionChart()
   {
     System.err.println("chart time");
-    String outputFile = orientation.toString() + "_InsertSizeDist.png";
+    String outputFile = outputPrefix + orientation.toString() + "_InsertSizeDist.png";
 
     long startTime = System.currentTimeMillis();
     trimInsertSizeDistribution2();
@@ -1,6 +1,7 @@
 package analyzer.BAMAnalyzer;
 
 import net.sf.samtools.*;
+import java.io.*;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
 import analyzer.Common.*;
@@ -14,6 +15,7 @@ abstract public class MetricsCalculator
   protected ResultMetric resultMetric;   // Result metric
   protected Plot p;                      // To generate plots
   private NumberFormat formatter;        // To format numbers
+  protected String outputPrefix = "";    // Prefix of plots and CSV files
   
   public MetricsCalculator()
   { 
@@ -25,11 +27,46 @@ abstract public class MetricsCalculator
   abstract void processRead(SAMRecord nextRead) throws Exception;
   abstract void calculateResult();
   abstract void buildResultMetrics();
+
+  /**
+   * Write the raw counts of this calculator, before calculateResult is
+   * called, so that they can be added to the counts of other BAMs by
+   * mergeState without reading the BAMs again.
+   * @param out
+   * @throws IOException
+   */
+  abstract void writeState(DataOutputStream out) throws IOException;
+
+  /**
+   * Add counts written by writeState of the same calculator to this one
+   * @param in
+   * @throws IOException
+   */
+  abstract void mergeState(DataInputStream in) throws IOException;
   
   public ResultMetric getResultMetrics()
   {
     return resultMetric;
   }
+
+  /**
+   * Name to report this calculator under
+   * @return
+   */
+  public String getName()
+  {
+    return getClass().getSimpleName();
+  }
+
+  /**
+   * Set the prefix of the names of plots and CSV files written by this
+   * calculator, so that several instances can write to the same directory.
+   * @param prefix
+   */
+  public void setOutputPrefix(String prefix)
+  {
+    outputPrefix = prefix;
+  }
   
   /**
    * Helper method to truncate doubles to 2 decimal places and return a string
@@ -1,6 +1,7 @@
 package analyzer.BAMAnalyzer;
 
 import net.sf.samtools.SAMRecord;
+import java.io.*;
 import org.w3c.dom.*;
 
 import analyzer.Common.ResultMetric;
@@ -101,6 +102,28 @@ public class PairStatsCalculator extends MetricsCalculator
     }
   }
 
+  @Override
+  void writeState(DataOutputStream out) throws IOException
+  {
+    out.writeLong(unmappedPairs);
+    out.writeLong(read1Mapped);
+    out.writeLong(read2Mapped);
+    out.writeLong(mappedPairs);
+    out.writeLong(mappedPairSameChr);
+    out.writeLong(totalPairs);
+  }
+
+  @Override
+  void mergeState(DataInputStream in) throws IOException
+  {
+    unmappedPairs     += in.readLong();
+    read1Mapped       += in.readLong();
+    read2Mapped       += in.readLong();
+    mappedPairs       += in.readLong();
+    mappedPairSameChr += in.readLong();
+    totalPairs        += in.readLong();
+  }
+
   @Override
   public void buildResultMetrics()
   {
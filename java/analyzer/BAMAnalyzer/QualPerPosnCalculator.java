@@ -1,7 +1,6 @@
 package analyzer.BAMAnalyzer;
 
 import net.sf.samtools.SAMRecord;
-import java.util.Arrays;
 import java.io.*;
 import analyzer.Common.*;
 
@@ -11,13 +10,13 @@ import analyzer.Common.*;
  */
 public class QualPerPosnCalculator extends MetricsCalculator
 {
-  private double meanQualRead1[] = null; // Mean base quality per read1
-  private double meanQualRead2[] = null; // Mean base quality per read2
-  private double numRead1[]      = null; // Number of read 1s
-  private double numRead2[]      = null; // Number of read 2s
-  private int readLen            = 0;    // Read length
-  private int maxLen             = 0;    // Max read length seen so far
-  private final int QUAL_ADDEND  = 33;   // Addition to phred base qualities
+  private PositionHistogram qualSumRead1;   // Sum of base qualities in read 1
+  private PositionHistogram qualSumRead2;   // Sum of base qualities in read 2
+  private PositionHistogram numRead1;       // Number of read 1 bases
+  private PositionHistogram numRead2;       // Number of read 2 bases
+  private double meanQualRead1[] = null;    // Mean base quality per read1
+  private double meanQualRead2[] = null;    // Mean base quality per read2
+  private final int QUAL_ADDEND  = 33;      // Addition to phred base qualities
 	  
   // Create an inner class to determine range of plot
   private class ScaleRange
@@ -32,10 +31,10 @@ public class QualPerPosnCalculator extends MetricsCalculator
   public QualPerPosnCalculator()
   {
     super();
-    meanQualRead1 = new double[maxLen];
-    meanQualRead2 = new double[maxLen];
-    numRead1      = new double[maxLen];
-    numRead2      = new double[maxLen];
+    qualSumRead1 = new PositionHistogram();
+    qualSumRead2 = new PositionHistogram();
+    numRead1     = new PositionHistogram();
+    numRead2     = new PositionHistogram();
   }
 
   /* (non-Javadoc)
@@ -45,16 +44,7 @@ public class QualPerPosnCalculator extends MetricsCalculator
   void processRead(SAMRecord nextRead) throws Exception
   {
     String baseQualString = nextRead.getBaseQualityString();
-    readLen = baseQualString.length();
-	 
-    if(readLen > maxLen)
-    {
-      maxLen = readLen;
-      meanQualRead1 = Arrays.copyOf(meanQualRead1, readLen);
-      meanQualRead2 = Arrays.copyOf(meanQualRead2, readLen);
-      numRead1      = Arrays.copyOf(numRead1, readLen);
-      numRead2      = Arrays.copyOf(numRead2, readLen);
-    }
+
    // Read 1 or fragment
    if(!nextRead.getReadPairedFlag() || 
      (nextRead.getReadPairedFlag() && nextRead.getFirstOfPairFlag()))
@@ -70,6 +60,24 @@ public class QualPerPosnCalculator extends MetricsCalculator
     }		
   }
   
+  @Override
+  void writeState(DataOutputStream out) throws IOException
+  {
+    qualSumRead1.write(out);
+    qualSumRead2.write(out);
+    numRead1.write(out);
+    numRead2.write(out);
+  }
+
+  @Override
+  void mergeState(DataInputStream in) throws IOException
+  {
+    qualSumRead1.merge(in);
+    qualSumRead2.merge(in);
+    numRead1.merge(in);
+    numRead2.merge(in);
+  }
+
   /* (non-Javadoc)
    * @see MetricsCalculator#buildResultMetrics()
    */
@@ -85,9 +93,14 @@ public class QualPerPosnCalculator extends MetricsCalculator
   @Override
   void calculateResult()
   {
-    double xPosn[] = new double[readLen];
+    int maxLen = Math.max(numRead1.length(), numRead2.length());
+
+    meanQualRead1 = qualSumRead1.divide(numRead1, numRead1.length() > 0 ? maxLen : 0);
+    meanQualRead2 = qualSumRead2.divide(numRead2, numRead2.length() > 0 ? maxLen : 0);
+
+    double xPosn[] = new double[maxLen];
 	    
-    for(int i = 0; i < readLen; i++)
+    for(int i = 0; i < maxLen; i++)
     {
       xPosn[i] = i + 1;
     }
@@ -96,20 +109,23 @@ public class QualPerPosnCalculator extends MetricsCalculator
       ScaleRange yRange = findMinMaxRange();
       logQualScoreDistribution();
 	      
-      if(meanQualRead1 != null && meanQualRead1.length > 0)
+      // Each read is plotted if it has bases, irrespective of the other
+      boolean hasRead1 = (meanQualRead1 != null && meanQualRead1.length > 0);
+      boolean hasRead2 = (meanQualRead2 != null && meanQualRead2.length > 0);
+
+      if(hasRead1 && hasRead2)
       {
-         if(meanQualRead2 != null && meanQualRead2.length > 0)
-         {
-           p = new Plot("BaseQualPerPosition.png", "Avg. Base Quality Per Position", 
-               "Base Position", "Avg. Base Quality - Phred Scale", "Read 1", "Read 2", xPosn, meanQualRead1, 
-               meanQualRead2);
-         }
-         else
-         {
-           p = new Plot("BaseQualPerPosition.png", "Avg. Base Quality Per Position",
-	                    "Base Position", "Avg. Quality", "Read 1", xPosn, meanQualRead1);
-         }
-       }
+        p = new Plot(outputPrefix + "BaseQualPerPosition.png", "Avg. Base Quality Per Position", 
+            "Base Position", "Avg. Base Quality - Phred Scale", "Read 1", "Read 2", xPosn, meanQualRead1, 
+            meanQualRead2);
+      }
+      else
+      if(hasRead1 || hasRead2)
+      {
+        p = new Plot(outputPrefix + "BaseQualPerPosition.png", "Avg. Base Quality Per Position",
+                     "Base Position", "Avg. Quality", hasRead1 ? "Read 1" : "Read 2", xPosn,
+                     hasRead1 ? meanQualRead1 : meanQualRead2);
+      }
        if(p != null)
        {
 //         p.setYScale(yRange.minValue, yRange.maxValue + 10);
@@ -134,21 +150,24 @@ public class QualPerPosnCalculator extends MetricsCalculator
   private void calculateBaseQuality(int readType, String baseQual, boolean reverseStrand)
   {
     int qual;
-    double qualArray[] = null;
-    double numReads[]  = null;
+    PositionHistogram qualSum  = null;
+    PositionHistogram numReads = null;
     int baseQualLength = baseQual.length();
     int pos;
 	    
     if(readType == 1)
     {
-      qualArray = meanQualRead1;
-      numReads  = numRead1;
+      qualSum  = qualSumRead1;
+      numReads = numRead1;
     }
     else
     {
-      qualArray = meanQualRead2;
-      numReads  = numRead2;
+      qualSum  = qualSumRead2;
+      numReads = numRead2;
     }
+    qualSum.ensureLength(baseQualLength);
+    numReads.ensureLength(baseQualLength);
+
     for(int i = 0; i < baseQualLength; i++)
     {
       /**
@@ -165,9 +184,8 @@ public class QualPerPosnCalculator extends MetricsCalculator
         pos = i;
       }
       qual = baseQual.charAt(i) - QUAL_ADDEND;
-      qualArray[pos] = (qualArray[pos] * (numReads[pos]) + qual) / 
-                       (1.0 * (numReads[pos] + 1));
-      numReads[pos] = numReads[pos] + 1;
+      qualSum.add(pos, qual);
+      numReads.increment(pos);
     }
   }
 
@@ -180,22 +198,25 @@ public class QualPerPosnCalculator extends MetricsCalculator
     double minYValue = 0;
     double maxYValue = 0;
 	    
-    for(int i = 0; i < meanQualRead1.length; i++)
+    if(meanQualRead1 != null)
     {
-      if(minYValue > meanQualRead1[i])
-        minYValue = meanQualRead1[i];
-      if(maxYValue < meanQualRead1[i])
-        maxYValue = meanQualRead1[i];
+      for(int i = 0; i < meanQualRead1.length; i++)
+      {
+        if(minYValue > meanQualRead1[i])
+          minYValue = meanQualRead1[i];
+        if(maxYValue < meanQualRead1[i])
+          maxYValue = meanQualRead1[i];
+      }
     }
     
-    if(meanQualRead2 != null && meanQualRead2.length > 0)
+    if(meanQualRead2 != null)
     {
-      for(int i = 0; i < meanQualRead1.length; i++)
+      for(int i = 0; i < meanQualRead2.length; i++)
       {
-    	if(minYValue > meanQualRead1[i])
-    	  minYValue = meanQualRead1[i];
-    	if(maxYValue < meanQualRead1[i])
-    	  maxYValue = meanQualRead1[i];
+        if(minYValue > meanQualRead2[i])
+          minYValue = meanQualRead2[i];
+        if(maxYValue < meanQualRead2[i])
+          maxYValue = meanQualRead2[i];
       }
     }
     
@@ -213,12 +234,12 @@ public class QualPerPosnCalculator extends MetricsCalculator
    */
   private void logQualScoreDistribution() throws IOException
   {
-    String logFileName = "AvgQualScoreDist.csv";
+    String logFileName = outputPrefix + "AvgQualScoreDist.csv";
     BufferedWriter writer = new BufferedWriter(new FileWriter(logFileName));
     StringBuffer record = null;
     String delimiter = ",";
     
-    int maxLen = meanQualRead1.length;
+    int maxLen = (meanQualRead1 != null) ? meanQualRead1.length : 0;
     
     if(meanQualRead2 != null && maxLen < meanQualRead2.length)
     {
@@ -232,6 +253,11 @@ public class QualPerPosnCalculator extends MetricsCalculator
       {
         record.append(meanQualRead1[i] + delimiter);
       }
+      else
+      {
+        // Keep read 2 in its column when read 1 is shorter or has no bases
+        record.append(delimiter);
+      }
       if(meanQualRead2 != null && meanQualRead2.length > i)
       {
         record.append(meanQualRead2[i] + delimiter);
@@ -0,0 +1,263 @@
+package analyzer.BAMAnalyzer;
+
+import net.sf.samtools.*;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import analyzer.Common.ResultMetric;
+
+/**
+ * Class to calculate metrics separately for every read group and every
+ * library of a merged BAM in the same pass as the global metrics. Read groups
+ * are resolved once from the header into ordinals. A record's RG is matched
+ * against the previous record's RG first, since reads of a read group tend to
+ * come together, and otherwise by a scan of the few read group IDs, so that
+ * no map lookup is made per record.
+ * @author Nirav Shah niravs@bcm.edu
+ *
+ */
+public class ReadGroupPartitioner
+{
+  private String readGroupIds[];          // Read group ID of each ordinal
+  private int libraryOfReadGroup[];       // Library ordinal of each read group
+  private String libraryNames[];          // Library name of each ordinal
+
+  private CalculatorSet readGroupSets[];  // Calculators per read group or null
+  private CalculatorSet librarySets[];    // Calculators per library or null
+
+  private String lastReadGroup = null;    // RG of the previous record
+  private int lastOrdinal      = -1;      // Its ordinal
+
+  /**
+   * Class constructor
+   * @param readGroups - read groups of all input files
+   * @param perReadGroup - calculate metrics per read group
+   * @param perLibrary - calculate metrics per library
+   * @param outputPrefix - prefix of the plots and CSV files of all partitions
+   */
+  public ReadGroupPartitioner(List<SAMReadGroupRecord> readGroups, boolean perReadGroup,
+                              boolean perLibrary, String outputPrefix)
+  {
+    ArrayList<String> libraries = new ArrayList<String>();
+
+    readGroupIds       = new String[readGroups.size()];
+    libraryOfReadGroup = new int[readGroups.size()];
+
+    for(int i = 0; i < readGroups.size(); i++)
+    {
+      readGroupIds[i] = readGroups.get(i).getReadGroupId();
+      String library  = getLibrary(readGroups.get(i));
+
+      if(!libraries.contains(library))
+        libraries.add(library);
+      libraryOfReadGroup[i] = libraries.indexOf(library);
+    }
+    libraryNames = libraries.toArray(new String[libraries.size()]);
+
+    if(perReadGroup && readGroupIds.length > 1)
+    {
+      readGroupSets = new CalculatorSet[readGroupIds.length];
+
+      for(int i = 0; i < readGroupIds.length; i++)
+        readGroupSets[i] = CalculatorSet.createDefault(outputPrefix + "RG_" +
+                                                       toFileName(readGroupIds[i]) + "_");
+    }
+
+    // Library metrics are the same as the read group metrics when every
+    // read group is its own library
+    if(perLibrary && libraryNames.length > 1 &&
+       !(readGroupSets != null && libraryNames.length == readGroupIds.length))
+    {
+      librarySets = new CalculatorSet[libraryNames.length];
+
+      for(int i = 0; i < libraryNames.length; i++)
+        librarySets[i] = CalculatorSet.createDefault(outputPrefix + "LIB_" +
+                                                     toFileName(libraryNames[i]) + "_");
+    }
+  }
+
+  /**
+   * Return true if metrics are partitioned at all
+   * @return
+   */
+  public boolean isEnabled()
+  {
+    return readGroupSets != null || librarySets != null;
+  }
+
+  /**
+   * Name of the library of a read group, its ID if it has no library
+   * @param readGroup
+   * @return
+   */
+  public static String getLibrary(SAMReadGroupRecord readGroup)
+  {
+    String library = readGroup.getLibrary();
+    return (library == null) ? readGroup.getReadGroupId() : library;
+  }
+
+  /**
+   * Return the calculators of the read group, or null if not partitioned by
+   * read group
+   * @param readGroup
+   * @return
+   */
+  public CalculatorSet getReadGroupSet(String readGroup)
+  {
+    int ordinal = getReadGroupOrdinal(readGroup);
+    return (readGroupSets == null || ordinal < 0) ? null : readGroupSets[ordinal];
+  }
+
+  /**
+   * Return the calculators of the library, or null if not partitioned by
+   * library
+   * @param library
+   * @return
+   */
+  public CalculatorSet getLibrarySet(String library)
+  {
+    for(int i = 0; librarySets != null && i < libraryNames.length; i++)
+    {
+      if(libraryNames[i].equals(library))
+        return librarySets[i];
+    }
+    return null;
+  }
+
+  /**
+   * Replace the duplicate counts of every read group and library with those
+   * of DuplicateMarker
+   * @param duplicates
+   */
+  public void setDuplicateCounts(DuplicateCounts duplicates)
+  {
+    for(int i = 0; readGroupSets != null && i < readGroupSets.length; i++)
+      duplicates.apply(readGroupSets[i], Collections.singleton(readGroupIds[i]));
+
+    for(int i = 0; librarySets != null && i < librarySets.length; i++)
+    {
+      ArrayList<String> readGroups = new ArrayList<String>();
+
+      for(int j = 0; j < readGroupIds.length; j++)
+      {
+        if(libraryOfReadGroup[j] == i)
+          readGroups.add(readGroupIds[j]);
+      }
+      duplicates.apply(librarySets[i], readGroups);
+    }
+  }
+
+  /**
+   * Write the state of every library and then of every read group. A section
+   * is empty when not partitioned that way.
+   * @param out
+   * @throws IOException
+   */
+  public void writeState(DataOutputStream out) throws IOException
+  {
+    out.writeInt(librarySets == null ? 0 : librarySets.length);
+
+    for(int i = 0; librarySets != null && i < librarySets.length; i++)
+    {
+      out.writeUTF(libraryNames[i]);
+      librarySets[i].writeState(out);
+    }
+    out.writeInt(readGroupSets == null ? 0 : readGroupSets.length);
+
+    for(int i = 0; readGroupSets != null && i < readGroupSets.length; i++)
+    {
+      out.writeUTF(readGroupIds[i]);
+      readGroupSets[i].writeState(out);
+    }
+  }
+
+  /**
+   * Feed the record to the calculators of its read group and library.
+   * Records without a known read group are counted only globally.
+   * @param record
+   * @throws Exception
+   */
+  public void processRead(SAMRecord record) throws Exception
+  {
+    int ordinal = getReadGroupOrdinal((String)record.getAttribute("RG"));
+
+    if(ordinal < 0)
+      return;
+    if(readGroupSets != null)
+      readGroupSets[ordinal].processRead(record);
+    if(librarySets != null)
+      librarySets[libraryOfReadGroup[ordinal]].processRead(record);
+  }
+
+  /**
+   * Resolve the read group ID to its ordinal
+   * @param readGroup
+   * @return ordinal or -1 if the read group is not in the header
+   */
+  private int getReadGroupOrdinal(String readGroup)
+  {
+    if(readGroup == null)
+      return -1;
+    if(readGroup.equals(lastReadGroup))
+      return lastOrdinal;
+
+    int ordinal = -1;
+
+    for(int i = 0; i < readGroupIds.length; i++)
+    {
+      if(readGroupIds[i].equals(readGroup))
+      {
+        ordinal = i;
+        break;
+      }
+    }
+    lastReadGroup = readGroup;
+    lastOrdinal   = ordinal;
+    return ordinal;
+  }
+
+  /**
+   * Calculate the results of every partition, one ResultMetric subtree per
+   * read group and per library.
+   * @return
+   */
+  public ArrayList<ResultMetric> calculateResults()
+  {
+    ArrayList<ResultMetric> resultMetrics = new ArrayList<ResultMetric>();
+
+    if(readGroupSets != null)
+    {
+      for(int i = 0; i < readGroupSets.length; i++)
+        resultMetrics.add(buildSubtree("ReadGroup", "ID", readGroupIds[i], readGroupSets[i]));
+    }
+    if(librarySets != null)
+    {
+      for(int i = 0; i < librarySets.length; i++)
+        resultMetrics.add(buildSubtree("Library", "Name", libraryNames[i], librarySets[i]));
+    }
+    return resultMetrics;
+  }
+
+  private ResultMetric buildSubtree(String metricName, String key, String value,
+                                    CalculatorSet set)
+  {
+    ResultMetric subtree = new ResultMetric();
+    subtree.setMetricName(metricName);
+    subtree.addKeyValue(key, value);
+
+    ArrayList<ResultMetric> results = set.calculateResults();
+
+    for(int i = 0; i < results.size(); i++)
+      subtree.addResultMetric(results.get(i));
+    return subtree;
+  }
+
+  /**
+   * Replace characters that do not belong in file names
+   */
+  private static String toFileName(String name)
+  {
+    return name.replaceAll("[^A-Za-z0-9._-]", "_");
+  }
+}
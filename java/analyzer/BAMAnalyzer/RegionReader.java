@@ -0,0 +1,159 @@
+package analyzer.BAMAnalyzer;
+
+import net.sf.samtools.*;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Class to read the records of an indexed BAM that overlap a set of target
+ * intervals. Each reference sequence is queried by its own thread with its
+ * own reader, and records are handed over in batches through a bounded queue
+ * to the single thread calling next(), so that the metrics calculators need
+ * not be thread safe. A record overlapping several merged intervals is
+ * returned only once.
+ * @author Nirav Shah niravs@bcm.edu
+ *
+ */
+public class RegionReader
+{
+  private static final int BATCH_SIZE = 10000;
+  private static final List<SAMRecord> END_OF_SEQUENCE = new ArrayList<SAMRecord>(0);
+
+  private File bamFile;                                 // Indexed BAM to read
+  private TargetIntervals intervals;                    // Regions to read
+  private ExecutorService pool;                         // Reader threads
+  private ArrayBlockingQueue<List<SAMRecord>> queue;    // Batches of records
+  private ArrayList<Future<Long>> tasks;                // One per sequence
+  private int pendingTasks = 0;                         // Sequences not finished
+
+  private List<SAMRecord> currentBatch = END_OF_SEQUENCE;
+  private int batchPosition = 0;
+
+  /**
+   * Class constructor
+   * @param bamFile - coordinate sorted and indexed BAM
+   * @param intervals - regions to read
+   * @param numThreads - number of sequences read in parallel
+   */
+  public RegionReader(File bamFile, TargetIntervals intervals, int numThreads)
+  {
+    this.bamFile   = bamFile;
+    this.intervals = intervals;
+
+    pool  = Executors.newFixedThreadPool(Math.max(1, numThreads));
+    queue = new ArrayBlockingQueue<List<SAMRecord>>(4 * Math.max(1, numThreads));
+    tasks = new ArrayList<Future<Long>>();
+
+    for(int i = 0; i < intervals.getNumSequences(); i++)
+    {
+      if(intervals.getStarts(i).length == 0)
+        continue;
+
+      final int seqIndex = i;
+      tasks.add(pool.submit(new Callable<Long>()
+      {
+        public Long call() throws Exception
+        {
+          return readSequence(seqIndex);
+        }
+      }));
+      pendingTasks++;
+    }
+  }
+
+  /**
+   * Return the next record, or null once all regions have been read.
+   * @return
+   * @throws Exception
+   */
+  public SAMRecord next() throws Exception
+  {
+    while(batchPosition >= currentBatch.size())
+    {
+      if(pendingTasks == 0)
+      {
+        // Rethrow the first failure of a reader thread, if any
+        for(Future<Long> task : tasks)
+        {
+          try
+          {
+            task.get();
+          }
+          catch(ExecutionException e)
+          {
+            throw new Exception("Failed to read " + bamFile.getName(), e.getCause());
+          }
+        }
+        return null;
+      }
+      currentBatch  = queue.take();
+      batchPosition = 0;
+
+      if(currentBatch == END_OF_SEQUENCE)
+        pendingTasks--;
+    }
+    return currentBatch.get(batchPosition++);
+  }
+
+  /**
+   * Stop the reader threads
+   */
+  public void close()
+  {
+    pool.shutdownNow();
+    queue.clear();
+  }
+
+  /**
+   * Read all the regions of one sequence and queue the records
+   * @param seqIndex
+   * @return number of records read
+   * @throws Exception
+   */
+  private long readSequence(int seqIndex) throws Exception
+  {
+    SAMFileReader reader = new SAMFileReader(bamFile);
+    String seqName = intervals.getSequenceName(seqIndex);
+    int starts[]   = intervals.getStarts(seqIndex);
+    int ends[]     = intervals.getEnds(seqIndex);
+    long numRecords = 0;
+    ArrayList<SAMRecord> batch = new ArrayList<SAMRecord>(BATCH_SIZE);
+
+    try
+    {
+      for(int i = 0; i < starts.length; i++)
+      {
+        SAMRecordIterator iter = reader.query(seqName, starts[i], ends[i], false);
+
+        while(iter.hasNext())
+        {
+          SAMRecord record = iter.next();
+
+          // Overlaps the previous interval too, so it was already queued
+          if(i > 0 && record.getAlignmentStart() <= ends[i - 1])
+            continue;
+
+          batch.add(record);
+          numRecords++;
+
+          if(batch.size() == BATCH_SIZE)
+          {
+            queue.put(batch);
+            batch = new ArrayList<SAMRecord>(BATCH_SIZE);
+          }
+        }
+        iter.close();
+      }
+      if(batch.size() > 0)
+        queue.put(batch);
+    }
+    finally
+    {
+      reader.close();
+      queue.put(END_OF_SEQUENCE);
+    }
+    return numRecords;
+  }
+}
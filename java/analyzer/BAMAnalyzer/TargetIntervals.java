@@ -0,0 +1,198 @@
+package analyzer.BAMAnalyzer;
+
+import net.sf.samtools.*;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Class to hold a set of genomic intervals, such as capture targets, indexed
+ * by reference sequence. Reads Picard interval lists (1-based, closed) and
+ * BED files (0-based, half-open). Overlapping and adjacent intervals are
+ * merged and kept as sorted primitive arrays per reference sequence, so that
+ * lookups are a binary search.
+ * @author Nirav Shah niravs@bcm.edu
+ *
+ */
+public class TargetIntervals
+{
+  private SAMSequenceDictionary dictionary; // Sequence dictionary of the BAM
+  private int starts[][];                   // 1-based starts per sequence
+  private int ends[][];                     // 1-based ends per sequence
+  private int numIntervals = 0;             // Number of merged intervals
+  private long totalBases = 0;              // Bases covered by the intervals
+
+  /**
+   * Class constructor - read the intervals from the file
+   * @param intervalFile - interval list or BED file
+   * @param dictionary - sequence dictionary of the BAM to be analyzed
+   * @throws Exception
+   */
+  public TargetIntervals(File intervalFile, SAMSequenceDictionary dictionary) throws Exception
+  {
+    this.dictionary = dictionary;
+    int numSeqs = dictionary.size();
+
+    ArrayList<ArrayList<int[]>> bySequence = new ArrayList<ArrayList<int[]>>(numSeqs);
+    for(int i = 0; i < numSeqs; i++)
+      bySequence.add(new ArrayList<int[]>());
+
+    boolean isBED = intervalFile.getName().toLowerCase().endsWith(".bed");
+    BufferedReader reader = new BufferedReader(new FileReader(intervalFile));
+    String line;
+    int lineNum = 0;
+    int numSkipped = 0;
+
+    while((line = reader.readLine()) != null)
+    {
+      lineNum++;
+      if(line.length() == 0 || line.startsWith("@") || line.startsWith("#") ||
+         line.startsWith("track") || line.startsWith("browser"))
+        continue;
+
+      String tokens[] = line.split("\t");
+      if(tokens.length < 3)
+      {
+        reader.close();
+        throw new Exception("Malformed interval at line " + lineNum + " of " +
+                            intervalFile.getName());
+      }
+      int seqIndex = dictionary.getSequenceIndex(tokens[0]);
+
+      if(seqIndex < 0)
+      {
+        numSkipped++;
+        continue;
+      }
+      int start = Integer.parseInt(tokens[1].trim());
+      int end   = Integer.parseInt(tokens[2].trim());
+
+      if(isBED)
+        start++;
+      if(end >= start)
+        bySequence.get(seqIndex).add(new int[]{start, end});
+    }
+    reader.close();
+
+    if(numSkipped > 0)
+      System.err.println("Skipped " + numSkipped + " intervals on sequences not in the BAM header");
+
+    starts = new int[numSeqs][];
+    ends   = new int[numSeqs][];
+
+    for(int i = 0; i < numSeqs; i++)
+      mergeIntervals(i, bySequence.get(i));
+  }
+
+  /**
+   * Sort the intervals of one sequence and merge overlapping or adjacent ones
+   * @param seqIndex
+   * @param intervals
+   */
+  private void mergeIntervals(int seqIndex, ArrayList<int[]> intervals)
+  {
+    long packed[] = new long[intervals.size()];
+
+    for(int i = 0; i < packed.length; i++)
+      packed[i] = ((long)intervals.get(i)[0] << 32) | intervals.get(i)[1];
+    Arrays.sort(packed);
+
+    int s[] = new int[packed.length];
+    int e[] = new int[packed.length];
+    int n = 0;
+
+    for(int i = 0; i < packed.length; i++)
+    {
+      int start = (int)(packed[i] >>> 32);
+      int end   = (int)packed[i];
+
+      if(n > 0 && start <= e[n - 1] + 1)
+      {
+        if(end > e[n - 1])
+          e[n - 1] = end;
+      }
+      else
+      {
+        s[n] = start;
+        e[n] = end;
+        n++;
+      }
+    }
+    starts[seqIndex] = Arrays.copyOf(s, n);
+    ends[seqIndex]   = Arrays.copyOf(e, n);
+    numIntervals += n;
+
+    for(int i = 0; i < n; i++)
+      totalBases += e[i] - s[i] + 1;
+  }
+
+  /**
+   * Return the index of the first interval on the sequence whose end is at
+   * or after the given position, or the number of intervals if there is none.
+   * @param seqIndex
+   * @param position
+   * @return
+   */
+  public int findFirstEndingAtOrAfter(int seqIndex, int position)
+  {
+    int e[] = ends[seqIndex];
+    int low = 0;
+    int high = e.length;
+
+    while(low < high)
+    {
+      int mid = (low + high) >>> 1;
+
+      if(e[mid] < position)
+        low = mid + 1;
+      else
+        high = mid;
+    }
+    return low;
+  }
+
+  /**
+   * Return true if [start, end] on the sequence overlaps any interval
+   * @param seqIndex
+   * @param start
+   * @param end
+   * @return
+   */
+  public boolean overlaps(int seqIndex, int start, int end)
+  {
+    if(seqIndex < 0 || seqIndex >= starts.length)
+      return false;
+    int idx = findFirstEndingAtOrAfter(seqIndex, start);
+    return idx < starts[seqIndex].length && starts[seqIndex][idx] <= end;
+  }
+
+  public int[] getStarts(int seqIndex)
+  {
+    return starts[seqIndex];
+  }
+
+  public int[] getEnds(int seqIndex)
+  {
+    return ends[seqIndex];
+  }
+
+  public int getNumSequences()
+  {
+    return starts.length;
+  }
+
+  public String getSequenceName(int seqIndex)
+  {
+    return dictionary.getSequence(seqIndex).getSequenceName();
+  }
+
+  public int getNumIntervals()
+  {
+    return numIntervals;
+  }
+
+  public long getTotalBases()
+  {
+    return totalBases;
+  }
+}
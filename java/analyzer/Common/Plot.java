@@ -14,6 +14,9 @@ enum PlotStyle
 /**
  * Class to generate a plot using GNUPlot.
  * GNUPlot must be part of the user's PATH environment variable.
+ * The plot, data and configuration files are given to GNUPlot by absolute
+ * path, so that plots can be written outside the working directory, e.g.
+ * by the jobs of a batch run.
  * Author Nirav Shah niravs@bcm.edu
  */
 public class Plot
@@ -94,13 +97,13 @@ public class Plot
     this.y2Data     = y2Data;
     this.yData      = yData;
 
-    tempDataFile =  new File(outputFile + ".dat");
-    dataFile = tempDataFile.getName();
+    tempDataFile =  new File(outputFile + ".dat").getAbsoluteFile();
+    dataFile = tempDataFile.getPath();
 
     System.err.println("Data file name : " + dataFile);
-    tempConfFile = new File(outputFile + ".tmp");
+    tempConfFile = new File(outputFile + ".tmp").getAbsoluteFile();
 
-    configFile = tempConfFile.getName();
+    configFile = tempConfFile.getPath();
 
     System.err.println("Plot Style : " + style.toString());
   }
@@ -125,7 +128,7 @@ public class Plot
     BufferedWriter writer = new BufferedWriter(new FileWriter(tempConfFile));
     writer.write("set terminal png");
     writer.newLine();
-    writer.write("set output \"" + outputFile + "\"");
+    writer.write("set output \"" + new File(outputFile).getAbsolutePath() + "\"");
     writer.newLine();
     writer.write("set title \"" + plotTitle + "\"");
     writer.newLine();
@@ -187,8 +190,10 @@ public class Plot
     writeGNUPlotConfigFile();
     Thread.sleep(30);
 
-    Process p = Runtime.getRuntime().exec("gnuplot " + configFile);
+    long startTime = System.nanoTime();
+    Process p = Runtime.getRuntime().exec(new String[]{"gnuplot", configFile});
     p.waitFor();
+    RuntimeProfile.addPlotTime(System.nanoTime() - startTime);
     System.err.println("Return Value of GNUPlot Process : " + p.exitValue());
     // Delete the temporary data and configuration files
     System.err.println("Deleting temp GNUPlot files");
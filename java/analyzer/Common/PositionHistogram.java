@@ -0,0 +1,162 @@
+package analyzer.Common;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Class to count a value per base position of a read, for reads of any
+ * length. The caller calls ensureLength once per read, before its loop over
+ * the bases, so that the loop itself needs no bounds checks or copying. The
+ * capacity starts large enough for common read lengths, or as given by the
+ * caller, and doubles when a longer read is seen, so growth is amortized.
+ * Histograms filled by separate threads or runs can be merged.
+ * @author Nirav Shah niravs@bcm.edu
+ *
+ */
+public class PositionHistogram
+{
+  public static final int DEFAULT_CAPACITY = 256;
+
+  private long counts[];       // Count per position
+  private int length = 0;      // Longest read length seen
+
+  public PositionHistogram()
+  {
+    this(DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Class constructor
+   * @param capacity - expected maximum read length
+   */
+  public PositionHistogram(int capacity)
+  {
+    counts = new long[Math.max(1, capacity)];
+  }
+
+  /**
+   * Make positions 0 to readLength - 1 valid
+   * @param readLength
+   */
+  public void ensureLength(int readLength)
+  {
+    if(readLength > length)
+    {
+      if(readLength > counts.length)
+        counts = Arrays.copyOf(counts, Math.max(readLength, 2 * counts.length));
+      length = readLength;
+    }
+  }
+
+  /**
+   * Add one at the position. The position must be below the length given
+   * to ensureLength.
+   * @param pos
+   */
+  public void increment(int pos)
+  {
+    counts[pos]++;
+  }
+
+  /**
+   * Add n at the position. The position must be below the length given to
+   * ensureLength.
+   * @param pos
+   * @param n
+   */
+  public void add(int pos, long n)
+  {
+    counts[pos] += n;
+  }
+
+  public long get(int pos)
+  {
+    return counts[pos];
+  }
+
+  /**
+   * Return the longest read length seen, i.e. the number of positions
+   * @return
+   */
+  public int length()
+  {
+    return length;
+  }
+
+  /**
+   * Add the counts of another histogram to this one
+   * @param other
+   */
+  public void merge(PositionHistogram other)
+  {
+    ensureLength(other.length);
+
+    for(int i = 0; i < other.length; i++)
+      counts[i] += other.counts[i];
+  }
+
+  /**
+   * Write the counts, to be merged into a histogram by merge(DataInput)
+   * @param out
+   * @throws IOException
+   */
+  public void write(DataOutput out) throws IOException
+  {
+    out.writeInt(length);
+
+    for(int i = 0; i < length; i++)
+      out.writeLong(counts[i]);
+  }
+
+  /**
+   * Add counts written by write(DataOutput) to this histogram
+   * @param in
+   * @throws IOException
+   */
+  public void merge(DataInput in) throws IOException
+  {
+    int otherLength = in.readInt();
+    ensureLength(otherLength);
+
+    for(int i = 0; i < otherLength; i++)
+      counts[i] += in.readLong();
+  }
+
+  /**
+   * Return the counts as percentages of the total, e.g. of the number of reads
+   * @param total
+   * @param size - size of the array to return, so that histograms of read 1
+   *               and read 2 can be plotted together. Positions beyond
+   *               length() are 0.
+   * @return
+   */
+  public double[] toPercent(long total, int size)
+  {
+    double result[] = new double[size];
+
+    for(int i = 0; total > 0 && i < length && i < size; i++)
+      result[i] = counts[i] * 100.0 / total;
+    return result;
+  }
+
+  /**
+   * Return the count at every position divided by the count of the same
+   * position in another histogram, e.g. the mean quality per position from the
+   * sum of qualities and the number of bases. Positions without any count in
+   * the denominator are 0.
+   * @param denominator
+   * @param size - size of the array to return
+   * @return
+   */
+  public double[] divide(PositionHistogram denominator, int size)
+  {
+    double result[] = new double[size];
+
+    for(int i = 0; i < length && i < denominator.length && i < size; i++)
+    {
+      if(denominator.counts[i] > 0)
+        result[i] = counts[i] * 1.0 / denominator.counts[i];
+    }
+    return result;
+  }
+}
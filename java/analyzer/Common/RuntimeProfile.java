@@ -0,0 +1,179 @@
+package analyzer.Common;
+
+import java.lang.management.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Class to collect where the time of an analysis run went: cumulative time
+ * in each metrics calculator, time spent by the driver in named stages such
+ * as reading input, time spent in gnuplot, and garbage collection and heap
+ * usage from the JVM's management beans. It is reported as a RuntimeProfile
+ * result metric along with the other results, so that runs can be compared
+ * across releases.
+ *
+ * Plot time is added to the profile created last on the plotting thread,
+ * which is the thread of the analysis. When jobs of a batch share the JVM,
+ * garbage collection and heap usage cannot be told apart by job, so they
+ * are reported as process-wide figures and the peak heap is not reset.
+ * @author Nirav Shah niravs@bcm.edu
+ *
+ */
+public class RuntimeProfile
+{
+  // Profile of the analysis running on each thread
+  private static ThreadLocal<RuntimeProfile> current = new ThreadLocal<RuntimeProfile>();
+
+  private long plotNanos = 0;                    // Time spent in gnuplot
+  private long numPlots  = 0;                    // Number of plots
+  private boolean sharedJVM;                     // Other jobs run in this JVM
+
+  private long startTime;                        // Wall clock start in ms
+  private long gcCountAtStart = 0;               // GC count when started
+  private long gcMillisAtStart = 0;              // GC time when started
+
+  private ArrayList<String> calculatorNames;     // Name of each calculator
+  private long processNanos[];                   // Time in processRead
+  private long resultNanos[];                    // Time calculating results
+  private LinkedHashMap<String, Long> stageMillis; // Named driver stages
+
+  public RuntimeProfile()
+  {
+    this(false);
+  }
+
+  /**
+   * Class constructor
+   * @param sharedJVM - true if other jobs of a batch run in this JVM
+   */
+  public RuntimeProfile(boolean sharedJVM)
+  {
+    this.sharedJVM  = sharedJVM;
+    calculatorNames = new ArrayList<String>();
+    processNanos    = new long[8];
+    resultNanos     = new long[8];
+    stageMillis     = new LinkedHashMap<String, Long>();
+
+    startTime = System.currentTimeMillis();
+
+    for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+    {
+      gcCountAtStart  += Math.max(0, gc.getCollectionCount());
+      gcMillisAtStart += Math.max(0, gc.getCollectionTime());
+    }
+    // The peak of a shared JVM belongs to every job, so it is not reset
+    for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+    {
+      if(pool.getType() == MemoryType.HEAP && !sharedJVM)
+        pool.resetPeakUsage();
+    }
+    current.set(this);
+  }
+
+  /**
+   * Called by Plot for every gnuplot invocation. The time is added to the
+   * profile of the analysis running on this thread, if any.
+   * @param nanos
+   */
+  public static void addPlotTime(long nanos)
+  {
+    RuntimeProfile profile = current.get();
+
+    if(profile != null)
+    {
+      profile.plotNanos += nanos;
+      profile.numPlots++;
+    }
+  }
+
+  /**
+   * Register a calculator to be timed
+   * @param name - name to report the calculator under
+   * @return id to pass to addProcessTime and addResultTime
+   */
+  public int addCalculator(String name)
+  {
+    int id = calculatorNames.size();
+    calculatorNames.add(name);
+
+    if(id == processNanos.length)
+    {
+      processNanos = Arrays.copyOf(processNanos, id * 2);
+      resultNanos  = Arrays.copyOf(resultNanos, id * 2);
+    }
+    return id;
+  }
+
+  public void addProcessTime(int id, long nanos)
+  {
+    processNanos[id] += nanos;
+  }
+
+  public void addResultTime(int id, long nanos)
+  {
+    resultNanos[id] += nanos;
+  }
+
+  /**
+   * Set the time spent in a stage of the driver, such as reading input
+   * @param stage
+   * @param millis
+   */
+  public void setStageMillis(String stage, long millis)
+  {
+    stageMillis.put(stage, millis);
+  }
+
+  /**
+   * Build the result metric with the profile collected so far
+   * @return
+   */
+  public ResultMetric buildResultMetric()
+  {
+    long gcCount  = 0;
+    long gcMillis = 0;
+    long peakHeap = 0;
+
+    for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+    {
+      gcCount  += Math.max(0, gc.getCollectionCount());
+      gcMillis += Math.max(0, gc.getCollectionTime());
+    }
+    for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+    {
+      if(pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null)
+        peakHeap += pool.getPeakUsage().getUsed();
+    }
+
+    ResultMetric profile = new ResultMetric();
+    profile.setMetricName("RuntimeProfile");
+    profile.addKeyValue("WallClockSeconds",
+                        Long.toString((System.currentTimeMillis() - startTime) / 1000));
+
+    for(Map.Entry<String, Long> stage : stageMillis.entrySet())
+      profile.addKeyValue(stage.getKey() + "Millis", stage.getValue().toString());
+
+    profile.addKeyValue("PlotMillis", Long.toString(plotNanos / 1000000));
+    profile.addKeyValue("NumPlots", Long.toString(numPlots));
+
+    // In a shared JVM these include the other jobs, hence the prefix
+    String prefix = sharedJVM ? "Process" : "";
+    profile.addKeyValue(prefix + "GCCount", Long.toString(gcCount - gcCountAtStart));
+    profile.addKeyValue(prefix + "GCMillis", Long.toString(gcMillis - gcMillisAtStart));
+    profile.addKeyValue(prefix + "PeakHeapMB", Long.toString(peakHeap / (1024 * 1024)));
+    profile.addKeyValue("MaxHeapMB", Long.toString(Runtime.getRuntime().maxMemory() / (1024 * 1024)));
+
+    for(int i = 0; i < calculatorNames.size(); i++)
+    {
+      ResultMetric calculator = new ResultMetric();
+      calculator.setMetricName("Calculator");
+      calculator.addKeyValue("Name", calculatorNames.get(i));
+      calculator.addKeyValue("ProcessReadMillis", Long.toString(processNanos[i] / 1000000));
+      calculator.addKeyValue("CalculateResultMillis", Long.toString(resultNanos[i] / 1000000));
+      profile.addResultMetric(calculator);
+    }
+    return profile;
+  }
+}
@@ -1,8 +1,7 @@
 package analyzer.SequenceAnalyzer;
 
-import java.util.Arrays;
+import java.io.*;
 import analyzer.Common.*;
-import net.sf.picard.fastq.FastqRecord;
 
 /**
  * Class to calculate the number adaptor reads in the sequences.
@@ -15,7 +14,9 @@ public class AdaptorCalculator extends MetricsCalculator
   private int totalReadsRead2    = 0;    // Number of "READ2" reads
   private int numAdaptorRead1    = 0;    // Number of adaptor reads in "READ1"
   private int numAdaptorRead2    = 0;    // Number of adaptor reads in "READ2"
-  private String adaptorSeq      = null; // Adaptor sequence
+
+  // Adaptor sequence, found in the reads by ReadScanner
+  static final String ADAPTOR_SEQUENCE = "GATCGGAA";
   
   /**
    * Class constructor
@@ -23,50 +24,48 @@ public class AdaptorCalculator extends MetricsCalculator
   public AdaptorCalculator()
   {
     super();
-    adaptorSeq = "GATCGGAA";
   }
  
   /**
    * Process the next read
    */
   @Override
-  void processRead(FastqRecord read1, FastqRecord read2) throws Exception
+  void processRead(ScannedRead read1, ScannedRead read2) throws Exception
   {
-    if(read1 == null)
-    {
-      throw new Exception("Encountered null/empty record for read 1");
-    }
-    String sequenceRead1 = read1.getReadString();
-    String sequenceRead2 = null;
-    
+    histRead1.ensureLength(read1.length);
+
     if(read2 != null)
-    {
-      sequenceRead2 = read2.getReadString();
-    }
-		    
-    if(sequenceRead1.length() > maxLen)
-      maxLen = sequenceRead1.length();
-    if(sequenceRead2 != null && sequenceRead2.length() > maxLen)
-      maxLen = sequenceRead2.length();
-    
-    if(maxLen > distRead1.length)
-    {
-      distRead1 = Arrays.copyOf(distRead1, maxLen);
-    }
-    if(sequenceRead2 != null && maxLen > distRead2.length)
-    {
-      distRead2 = Arrays.copyOf(distRead2, maxLen);
-    }
+      histRead2.ensureLength(read2.length);
     totalReadsRead1++;
-    findMatchWithAdaptor(sequenceRead1, ReadType.READ1);
+    findMatchWithAdaptor(read1, ReadType.READ1);
     
-    if(sequenceRead2 != null && !sequenceRead2.isEmpty())
+    if(read2 != null && read2.length > 0)
     {
       totalReadsRead2++;
-      findMatchWithAdaptor(sequenceRead2, ReadType.READ2);
+      findMatchWithAdaptor(read2, ReadType.READ2);
     }
-    sequenceRead1 = null;
-    sequenceRead2 = null;
+  }
+
+  @Override
+  void writeState(DataOutputStream out) throws IOException
+  {
+    out.writeInt(totalReadsRead1);
+    out.writeInt(totalReadsRead2);
+    out.writeInt(numAdaptorRead1);
+    out.writeInt(numAdaptorRead2);
+    histRead1.write(out);
+    histRead2.write(out);
+  }
+
+  @Override
+  void readState(DataInputStream in) throws IOException
+  {
+    totalReadsRead1 = in.readInt();
+    totalReadsRead2 = in.readInt();
+    numAdaptorRead1 = in.readInt();
+    numAdaptorRead2 = in.readInt();
+    histRead1.merge(in);
+    histRead2.merge(in);
   }
 
   /**
@@ -75,14 +74,8 @@ public class AdaptorCalculator extends MetricsCalculator
   @Override
   void calculateResult()
   {
-    for(int i = 0; i < distRead1.length && totalReadsRead1 > 0; i++)
-    {
-      distRead1[i] = distRead1[i] / totalReadsRead1 * 100.0; 
-    }
-    for(int i = 0; i < distRead2.length && totalReadsRead2 > 0; i++)
-    {
-      distRead2[i] = distRead2[i] / totalReadsRead2 * 100.0;
-    }
+    distRead1 = histRead1.toPercent(totalReadsRead1, getMaxLength());
+    distRead2 = histRead2.toPercent(totalReadsRead2, getMaxLength());
     plotDistribution();
   }
 	
@@ -111,27 +104,25 @@ public class AdaptorCalculator extends MetricsCalculator
   }
 	
   /**
-   * Method to perform adaptor screening
-   * @param sequence
+   * Method to count the adaptor found by the scan of a read
+   * @param read
    * @param readType
    */
-  private void findMatchWithAdaptor(String sequence, ReadType readType)
+  private void findMatchWithAdaptor(ScannedRead read, ReadType readType)
   {
-    int startPoint = -1;
-    
-    startPoint = sequence.indexOf(adaptorSeq);
+    int startPoint = read.adaptorPosition;
     
     // Found the adaptor sequence, update the corresponding counter
-    if(startPoint >= 0 && startPoint < sequence.length())
+    if(startPoint >= 0 && startPoint < read.length)
     {
       if(readType == ReadType.READ1)
       {
-        distRead1[startPoint]++;
+        histRead1.increment(startPoint);
         numAdaptorRead1++;
       }
       else
       {
-        distRead2[startPoint]++;
+        histRead2.increment(startPoint);
         numAdaptorRead2++;
       }
     }
@@ -159,20 +150,20 @@ public class AdaptorCalculator extends MetricsCalculator
       {
         if(totalReadsRead2 > 0 && distRead2.length > 0)
         {
-          p = new Plot("AdaptorReadDistribution.png", 
+          p = new Plot(outputPrefix + "AdaptorReadDistribution.png", 
        	               "Distribution of adaptor reads per base position",
                        "Base Position", "Number of reads having adaptor",
                        "Read 1", "Read 2", xAxis, distRead1, distRead2);
         }
         else
         {
-          p = new Plot("AdaptorReadDistribution.png", 
+          p = new Plot(outputPrefix + "AdaptorReadDistribution.png", 
                        "Distribution of adaptor reads per base position",
                        "Base Position", "Number of reads having adaptor",
                        "Read 1", xAxis, distRead1);
         }
         p.setYScale(0, 100);
-        p.setXScale(0, maxLen);
+        p.setXScale(0, getMaxLength());
         p.plotGraph();
       }
     }
@@ -0,0 +1,365 @@
+package analyzer.SequenceAnalyzer;
+
+import java.io.*;
+import analyzer.Common.*;
+
+/**
+ * Class to calculate the base composition per cycle and the distribution of
+ * GC content of the reads. Counts are kept in a PositionHistogram per base
+ * and read, and the loops over the bases use lookup tables instead of
+ * branches on the base.
+ * @author Nirav Shah niravs@bcm.edu
+ *
+ */
+public class BaseCompositionCalculator extends MetricsCalculator
+{
+  private static final int NUM_BASES    = 5;  // A, C, G, T, N
+  private static final String BASE_NAMES[] = {"A", "C", "G", "T", "N"};
+  private static final int GC_PERCENTS  = 101; // 0 to 100 percent GC
+
+  // 1 for G and C, and for any called base, by base index
+  private static final int IS_GC[]      = {0, 1, 1, 0, 0};
+  private static final int IS_CALLED[]  = {1, 1, 1, 1, 0};
+
+  private PositionHistogram basesRead1[]; // Count per cycle of each base in read 1
+  private PositionHistogram basesRead2[]; // Count per cycle of each base in read 2
+
+  private PositionHistogram gcHistRead1;  // Reads per GC percentage
+  private PositionHistogram gcHistRead2;
+
+  private long totalReadsRead1 = 0;       // Reads with called bases
+  private long totalReadsRead2 = 0;
+
+  /**
+   * Class constructor
+   */
+  public BaseCompositionCalculator()
+  {
+    super();
+    basesRead1  = createBaseHistograms();
+    basesRead2  = createBaseHistograms();
+    gcHistRead1 = createGCHistogram();
+    gcHistRead2 = createGCHistogram();
+  }
+
+  private static PositionHistogram[] createBaseHistograms()
+  {
+    PositionHistogram hists[] = new PositionHistogram[NUM_BASES];
+
+    for(int b = 0; b < NUM_BASES; b++)
+      hists[b] = new PositionHistogram();
+    return hists;
+  }
+
+  private static PositionHistogram createGCHistogram()
+  {
+    PositionHistogram hist = new PositionHistogram(GC_PERCENTS);
+    hist.ensureLength(GC_PERCENTS);
+    return hist;
+  }
+
+  /**
+   * Process the next read
+   */
+  @Override
+  void processRead(ScannedRead read1, ScannedRead read2) throws Exception
+  {
+    if(addRead(read1, basesRead1, gcHistRead1))
+      totalReadsRead1++;
+
+    if(read2 != null && read2.length > 0)
+    {
+      if(addRead(read2, basesRead2, gcHistRead2))
+        totalReadsRead2++;
+    }
+  }
+
+  /**
+   * Count the bases of a read per cycle and add its GC content to the
+   * histogram
+   * @return true if the read has called bases
+   */
+  private boolean addRead(ScannedRead read, PositionHistogram bases[], PositionHistogram gcHist)
+  {
+    byte readBases[] = read.bases;
+    int length       = read.length;
+    int gc           = 0;
+    int called       = 0;
+
+    for(int b = 0; b < NUM_BASES; b++)
+      bases[b].ensureLength(length);
+
+    for(int i = 0; i < length; i++)
+    {
+      int base = readBases[i];
+      bases[base].increment(i);
+      gc     += IS_GC[base];
+      called += IS_CALLED[base];
+    }
+
+    if(called == 0)
+      return false;
+    gcHist.increment((gc * 100 + called / 2) / called);
+    return true;
+  }
+
+  @Override
+  void writeState(DataOutputStream out) throws IOException
+  {
+    out.writeLong(totalReadsRead1);
+    out.writeLong(totalReadsRead2);
+
+    for(int b = 0; b < NUM_BASES; b++)
+    {
+      basesRead1[b].write(out);
+      basesRead2[b].write(out);
+    }
+    gcHistRead1.write(out);
+    gcHistRead2.write(out);
+  }
+
+  @Override
+  void readState(DataInputStream in) throws IOException
+  {
+    totalReadsRead1 = in.readLong();
+    totalReadsRead2 = in.readLong();
+
+    for(int b = 0; b < NUM_BASES; b++)
+    {
+      basesRead1[b].merge(in);
+      basesRead2[b].merge(in);
+    }
+    gcHistRead1.merge(in);
+    gcHistRead2.merge(in);
+  }
+
+  /**
+   * Write the per cycle composition and plot the GC content
+   */
+  @Override
+  void calculateResult()
+  {
+    try
+    {
+      logBaseComposition();
+      plotGCPerCycle();
+      plotGCDistribution();
+    }
+    catch(Exception e)
+    {
+      System.err.println(e.getMessage());
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Build the result object
+   */
+  @Override
+  void buildResultMetrics()
+  {
+    if(totalReadsRead1 <= 0)
+    {
+      resultMetric = null;
+      return;
+    }
+    resultMetric = new ResultMetric();
+    resultMetric.setMetricName("BaseComposition");
+    addReadResults("Read1", basesRead1, gcHistRead1, totalReadsRead1);
+
+    if(totalReadsRead2 > 0)
+      addReadResults("Read2", basesRead2, gcHistRead2, totalReadsRead2);
+  }
+
+  private void addReadResults(String readName, PositionHistogram bases[],
+                              PositionHistogram gcHist, long totalReads)
+  {
+    long baseTotals[] = new long[NUM_BASES];
+    long allBases     = 0;
+
+    for(int b = 0; b < NUM_BASES; b++)
+    {
+      for(int i = 0; i < bases[b].length(); i++)
+        baseTotals[b] += bases[b].get(i);
+      allBases += baseTotals[b];
+    }
+    for(int b = 0; b < NUM_BASES; b++)
+    {
+      resultMetric.addKeyValue("Percent" + BASE_NAMES[b] + "_" + readName,
+                               getFormattedNumber(baseTotals[b] * 100.0 / allBases));
+    }
+
+    double meanGC = 0;
+
+    for(int i = 0; i < gcHist.length(); i++)
+      meanGC += i * gcHist.get(i);
+    resultMetric.addKeyValue("MeanGCPercent_" + readName,
+                             getFormattedNumber(meanGC / totalReads));
+  }
+
+  /**
+   * Return the sum of the histograms of the given bases
+   */
+  private static PositionHistogram sum(PositionHistogram bases[], int... baseIndexes)
+  {
+    PositionHistogram total = new PositionHistogram(bases[0].length());
+
+    for(int b : baseIndexes)
+      total.merge(bases[b]);
+    return total;
+  }
+
+  /**
+   * Return the percentage of G and C among the called bases of every cycle
+   */
+  private static double[] getGCPerCycle(PositionHistogram bases[], int size)
+  {
+    double gcPercent[] = sum(bases, 1, 2).divide(sum(bases, 0, 1, 2, 3), size);
+
+    for(int i = 0; i < gcPercent.length; i++)
+      gcPercent[i] *= 100;
+    return gcPercent;
+  }
+
+  /**
+   * Return the number of cycles of a read
+   */
+  private static int getCycles(PositionHistogram bases[])
+  {
+    return bases[0].length();
+  }
+
+  /**
+   * Helper method to plot the GC content per cycle
+   */
+  private void plotGCPerCycle() throws Exception
+  {
+    if(totalReadsRead1 <= 0)
+      return;
+
+    int maxCycles  = Math.max(getCycles(basesRead1), getCycles(basesRead2));
+    double xAxis[] = new double[maxCycles];
+
+    for(int i = 0; i < xAxis.length; i++)
+      xAxis[i] = (i + 1);
+
+    double gcRead1[] = getGCPerCycle(basesRead1, maxCycles);
+
+    if(totalReadsRead2 > 0)
+    {
+      p = new Plot(outputPrefix + "GCPerCycle.png", "GC content per cycle", "Cycle",
+                   "Percentage of GC", "Read 1", "Read 2", xAxis, gcRead1,
+                   getGCPerCycle(basesRead2, maxCycles));
+    }
+    else
+    {
+      p = new Plot(outputPrefix + "GCPerCycle.png", "GC content per cycle", "Cycle",
+                   "Percentage of GC", "Read 1", xAxis, gcRead1);
+    }
+    p.setYScale(0, 100);
+    p.setXScale(0, maxCycles);
+    p.plotGraph();
+  }
+
+  /**
+   * Helper method to plot the distribution of GC content of the reads
+   */
+  private void plotGCDistribution() throws Exception
+  {
+    if(totalReadsRead1 <= 0)
+      return;
+
+    double xAxis[] = new double[GC_PERCENTS];
+
+    for(int i = 0; i < xAxis.length; i++)
+      xAxis[i] = i;
+
+    double distRead1[] = gcHistRead1.toPercent(totalReadsRead1, GC_PERCENTS);
+    double maxY        = 0;
+
+    for(int i = 0; i < distRead1.length; i++)
+      maxY = Math.max(maxY, distRead1[i]);
+
+    if(totalReadsRead2 > 0)
+    {
+      double distRead2[] = gcHistRead2.toPercent(totalReadsRead2, GC_PERCENTS);
+
+      for(int i = 0; i < distRead2.length; i++)
+        maxY = Math.max(maxY, distRead2[i]);
+
+      p = new Plot(outputPrefix + "GCDistribution.png", "Distribution of GC content of reads",
+                   "Percentage of GC", "Percentage of reads", "Read 1", "Read 2",
+                   xAxis, distRead1, distRead2);
+    }
+    else
+    {
+      p = new Plot(outputPrefix + "GCDistribution.png", "Distribution of GC content of reads",
+                   "Percentage of GC", "Percentage of reads", "Read 1", xAxis, distRead1);
+    }
+    p.setYScale(0, Math.ceil(maxY) + 1);
+    p.setXScale(0, 100);
+    p.plotGraph();
+  }
+
+  /**
+   * Helper method to write the percentage of every base per cycle to a CSV
+   * file
+   * @throws IOException
+   */
+  private void logBaseComposition() throws IOException
+  {
+    BufferedWriter writer = new BufferedWriter(new FileWriter(outputPrefix +
+                                                              "BaseCompositionPerCycle.csv"));
+    String delimiter = ",";
+
+    writer.write("Cycle");
+    for(int b = 0; b < NUM_BASES; b++)
+      writer.write(delimiter + "Read1_" + BASE_NAMES[b]);
+    if(totalReadsRead2 > 0)
+    {
+      for(int b = 0; b < NUM_BASES; b++)
+        writer.write(delimiter + "Read2_" + BASE_NAMES[b]);
+    }
+    writer.newLine();
+
+    int maxCycles = Math.max(getCycles(basesRead1),
+                             totalReadsRead2 > 0 ? getCycles(basesRead2) : 0);
+    double percentRead1[][] = getPercentPerCycle(basesRead1, maxCycles);
+    double percentRead2[][] = getPercentPerCycle(basesRead2, maxCycles);
+
+    for(int i = 0; i < maxCycles; i++)
+    {
+      StringBuffer record = new StringBuffer(Integer.toString(i + 1));
+
+      for(int b = 0; b < NUM_BASES; b++)
+        record.append(delimiter + getFormattedNumber(percentRead1[b][i]));
+
+      if(totalReadsRead2 > 0)
+      {
+        for(int b = 0; b < NUM_BASES; b++)
+          record.append(delimiter + getFormattedNumber(percentRead2[b][i]));
+      }
+      writer.write(record.toString());
+      writer.newLine();
+    }
+    writer.close();
+  }
+
+  /**
+   * Return the percentage of every base among all bases of each cycle
+   */
+  private static double[][] getPercentPerCycle(PositionHistogram bases[], int size)
+  {
+    PositionHistogram total = sum(bases, 0, 1, 2, 3, 4);
+    double percent[][]      = new double[NUM_BASES][];
+
+    for(int b = 0; b < NUM_BASES; b++)
+    {
+      percent[b] = bases[b].divide(total, size);
+
+      for(int i = 0; i < size; i++)
+        percent[b][i] *= 100;
+    }
+    return percent;
+  }
+}
@@ -0,0 +1,179 @@
+package analyzer.SequenceAnalyzer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.PriorityQueue;
+import analyzer.Common.ResultMetric;
+
+/**
+ * Class to collect the duplication levels of the seeds seen by
+ * UniquenessHelper. Every run of identical seeds in the sorted buckets is
+ * added once, giving a histogram of how many distinct sequences occur once,
+ * twice and so on, and a bounded min-heap of the most overrepresented
+ * sequences.
+ * @author Nirav Shah niravs@bcm.edu
+ *
+ */
+class DuplicationStats
+{
+  // Lowest duplication level of every bin
+  private static final long LEVELS[] = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 50, 100, 500,
+                                        1000, 5000, 10000};
+
+  private long levelSequences[] = new long[LEVELS.length]; // Distinct sequences
+  private long levelReads[]     = new long[LEVELS.length]; // Reads
+
+  // Distinct sequences by exact count up to MAX_EXACT_COUNT, so that memory
+  // stays bounded however many reads there are
+  static final int MAX_EXACT_COUNT = 10000;
+  private long countHistogram[]   = new long[MAX_EXACT_COUNT + 1];
+  private long overflowSequences  = 0;   // Sequences above MAX_EXACT_COUNT
+  private long overflowReads      = 0;   // Their reads
+
+  private int maxSequences;                                // Heap size
+  private PriorityQueue<Sequence> topSequences;            // Least count first
+
+  /**
+   * Class constructor
+   * @param maxSequences - number of overrepresented sequences to keep
+   */
+  DuplicationStats(int maxSequences)
+  {
+    this.maxSequences = maxSequences;
+    topSequences = new PriorityQueue<Sequence>(maxSequences + 1);
+  }
+
+  /**
+   * Add a run of identical seeds
+   * @param seeds - array of seeds, UniquenessHelper.SEED_WORDS longs each
+   * @param index - index of the seed in the array
+   * @param count - number of times the seed occurs
+   */
+  void addRun(long seeds[], int index, long count)
+  {
+    int bin = LEVELS.length - 1;
+
+    while(count < LEVELS[bin])
+      bin--;
+    levelSequences[bin]++;
+    levelReads[bin] += count;
+
+    if(count <= MAX_EXACT_COUNT)
+    {
+      countHistogram[(int)count]++;
+    }
+    else
+    {
+      overflowSequences++;
+      overflowReads += count;
+    }
+
+    if(count < 2)
+      return;
+    if(topSequences.size() == maxSequences && topSequences.peek().count >= count)
+      return;
+
+    int offset = index * UniquenessHelper.SEED_WORDS;
+    topSequences.offer(new Sequence(seeds[offset], seeds[offset + 1], seeds[offset + 2], count));
+
+    if(topSequences.size() > maxSequences)
+      topSequences.poll();
+  }
+
+  /**
+   * Return the number of distinct sequences seen exactly i times, for i up to
+   * MAX_EXACT_COUNT
+   * @return
+   */
+  long[] getCountHistogram()
+  {
+    return countHistogram;
+  }
+
+  long getOverflowSequences()
+  {
+    return overflowSequences;
+  }
+
+  long getOverflowReads()
+  {
+    return overflowReads;
+  }
+
+  /**
+   * Build the result metrics of the duplication levels and the
+   * overrepresented sequences
+   * @param totalReads
+   * @return
+   */
+  ResultMetric[] buildResultMetrics(long totalReads)
+  {
+    ResultMetric levels = new ResultMetric();
+    levels.setMetricName("DuplicationLevels");
+
+    for(int i = 0; i < LEVELS.length; i++)
+    {
+      ResultMetric level = new ResultMetric();
+      level.setMetricName("Level");
+
+      if(i == LEVELS.length - 1)
+        level.addKeyValue("Duplication", LEVELS[i] + "+");
+      else if(LEVELS[i + 1] == LEVELS[i] + 1)
+        level.addKeyValue("Duplication", Long.toString(LEVELS[i]));
+      else
+        level.addKeyValue("Duplication", LEVELS[i] + "-" + (LEVELS[i + 1] - 1));
+
+      level.addKeyValue("NumSequences", Long.toString(levelSequences[i]));
+      level.addKeyValue("NumReads", Long.toString(levelReads[i]));
+      level.addKeyValue("PercentReads", formatPercent(levelReads[i], totalReads));
+      levels.addResultMetric(level);
+    }
+
+    ResultMetric overrepresented = new ResultMetric();
+    overrepresented.setMetricName("OverrepresentedSequences");
+
+    ArrayList<Sequence> sequences = new ArrayList<Sequence>(topSequences);
+    Collections.sort(sequences, Collections.reverseOrder());
+
+    for(Sequence s : sequences)
+    {
+      ResultMetric sequence = new ResultMetric();
+      sequence.setMetricName("Sequence");
+      sequence.addKeyValue("Read1", ReadScanner.decodeSeed(s.seed1, (int)(s.nMasks >>> 32) & 0x3FFFFFFF));
+
+      if((s.nMasks & UniquenessCalculator.NO_READ2) == 0)
+        sequence.addKeyValue("Read2", ReadScanner.decodeSeed(s.seed2, (int)s.nMasks & 0x3FFFFFFF));
+      sequence.addKeyValue("Count", Long.toString(s.count));
+      sequence.addKeyValue("PercentReads", formatPercent(s.count, totalReads));
+      overrepresented.addResultMetric(sequence);
+    }
+    return new ResultMetric[]{levels, overrepresented};
+  }
+
+  private static String formatPercent(long n, long total)
+  {
+    return (total > 0) ? String.format("%.2f", n * 100.0 / total) : "0";
+  }
+
+  /**
+   * An overrepresented seed and its count
+   */
+  private static class Sequence implements Comparable<Sequence>
+  {
+    long seed1, seed2, nMasks;
+    long count;
+
+    Sequence(long seed1, long seed2, long nMasks, long count)
+    {
+      this.seed1  = seed1;
+      this.seed2  = seed2;
+      this.nMasks = nMasks;
+      this.count  = count;
+    }
+
+    public int compareTo(Sequence other)
+    {
+      return (count < other.count) ? -1 : (count > other.count ? 1 : 0);
+    }
+  }
+}
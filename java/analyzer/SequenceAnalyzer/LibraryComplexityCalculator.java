@@ -0,0 +1,339 @@
+package analyzer.SequenceAnalyzer;
+
+import java.io.*;
+import analyzer.Common.*;
+
+/**
+ * Class to estimate the complexity of the library from the duplication
+ * histogram built by UniquenessCalculator, and to predict the number of
+ * unique reads if the library were sequenced 2, 5 and 10 times deeper. Two
+ * models are reported :
+ *
+ * Lander-Waterman, as in Picard's EstimateLibraryComplexity, which assumes
+ * every molecule is equally likely to be sequenced.
+ *
+ * A zero truncated negative binomial fitted to the histogram by maximum
+ * likelihood, as in preseq, which allows for amplification bias and usually
+ * predicts fewer unique reads at higher depth.
+ *
+ * Only the histogram of counts is used, which is bounded in size however many
+ * reads there are. It does not look at the reads itself and must be added
+ * after the UniquenessCalculator it reads from.
+ * @author Nirav Shah niravs@bcm.edu
+ *
+ */
+public class LibraryComplexityCalculator extends MetricsCalculator
+{
+  private static final int DEPTHS[] = {2, 5, 10};    // Extrapolate to these
+
+  private UniquenessCalculator uniqueness;           // Builds the histogram
+
+  private long totalReads    = 0;                    // Reads or pairs
+  private long distinctReads = 0;                    // Distinct sequences
+
+  private double lwLibrarySize = -1;                 // -1 if not estimable
+  private double ztnbMu        = -1;                 // Fitted mean, -1 if no fit
+  private double ztnbAlpha     = 0;                  // Fitted dispersion
+
+  /**
+   * Class constructor
+   * @param uniqueness - calculator whose duplication histogram to use
+   */
+  public LibraryComplexityCalculator(UniquenessCalculator uniqueness)
+  {
+    super();
+    this.uniqueness = uniqueness;
+  }
+
+  /**
+   * The histogram is built by UniquenessCalculator, nothing to do per read
+   */
+  @Override
+  void processRead(ScannedRead read1, ScannedRead read2) throws Exception
+  {
+  }
+
+  @Override
+  boolean needsReads()
+  {
+    return false;
+  }
+
+  /**
+   * The histogram is part of the state of UniquenessCalculator
+   */
+  @Override
+  void writeState(DataOutputStream out) throws IOException
+  {
+  }
+
+  @Override
+  void readState(DataInputStream in) throws IOException
+  {
+  }
+
+  /**
+   * Fit both models to the histogram
+   */
+  @Override
+  void calculateResult()
+  {
+    DuplicationStats stats = uniqueness.getDuplicationStats();
+    long histogram[]       = stats.getCountHistogram();
+
+    totalReads    = stats.getOverflowReads();
+    distinctReads = stats.getOverflowSequences();
+
+    for(int i = 1; i < histogram.length; i++)
+    {
+      totalReads    += i * histogram[i];
+      distinctReads += histogram[i];
+    }
+    if(distinctReads == 0)
+      return;
+
+    lwLibrarySize = estimateLibrarySize(totalReads, distinctReads);
+    fitZTNB(histogram, stats.getOverflowSequences(), stats.getOverflowReads());
+  }
+
+  /**
+   * Build the result object
+   */
+  @Override
+  void buildResultMetrics()
+  {
+    if(distinctReads == 0)
+    {
+      resultMetric = null;
+      return;
+    }
+    resultMetric = new ResultMetric();
+    resultMetric.setMetricName("LibraryComplexity");
+    resultMetric.addKeyValue("TotalReads", Long.toString(totalReads));
+    resultMetric.addKeyValue("DistinctReads", Long.toString(distinctReads));
+
+    ResultMetric lw = new ResultMetric();
+    lw.setMetricName("LanderWaterman");
+
+    if(lwLibrarySize > 0)
+    {
+      lw.addKeyValue("EstimatedLibrarySize", Long.toString(Math.round(lwLibrarySize)));
+
+      for(int i = 0; i < DEPTHS.length; i++)
+      {
+        double unique = lwLibrarySize * (1 - Math.exp(-DEPTHS[i] * totalReads / lwLibrarySize));
+        lw.addKeyValue("UniqueReadsAt" + DEPTHS[i] + "x", Long.toString(Math.round(unique)));
+      }
+    }
+    else
+    {
+      lw.addKeyValue("EstimatedLibrarySize", "NA");
+    }
+    resultMetric.addResultMetric(lw);
+
+    ResultMetric ztnb = new ResultMetric();
+    ztnb.setMetricName("ZeroTruncatedNegativeBinomial");
+
+    if(ztnbMu > 0)
+    {
+      double p0 = probabilityOfZero(ztnbMu, ztnbAlpha);
+      double librarySize = distinctReads / (1 - p0);
+
+      ztnb.addKeyValue("Mu", getFormattedNumber(ztnbMu));
+      ztnb.addKeyValue("Alpha", String.format("%.4f", ztnbAlpha));
+      ztnb.addKeyValue("EstimatedLibrarySize", Long.toString(Math.round(librarySize)));
+
+      for(int i = 0; i < DEPTHS.length; i++)
+      {
+        double unique = librarySize * (1 - probabilityOfZero(DEPTHS[i] * ztnbMu, ztnbAlpha));
+        ztnb.addKeyValue("UniqueReadsAt" + DEPTHS[i] + "x", Long.toString(Math.round(unique)));
+      }
+    }
+    else
+    {
+      ztnb.addKeyValue("EstimatedLibrarySize", "NA");
+    }
+    resultMetric.addResultMetric(ztnb);
+  }
+
+  /**
+   * Lander-Waterman estimate of the library size, solving
+   * c / x = 1 - exp(-n / x) by bisection.
+   * @param n - number of reads
+   * @param c - number of distinct reads
+   * @return estimated number of molecules, or -1 if there are no duplicates
+   */
+  static double estimateLibrarySize(long n, long c)
+  {
+    if(c >= n || lwFunction(c, c, n) < 0)
+      return -1;
+
+    double m = 1.0;
+    double M = 100.0;
+
+    while(lwFunction(M * c, c, n) > 0)
+      M *= 10.0;
+
+    for(int i = 0; i < 60; i++)
+    {
+      double r = (m + M) / 2.0;
+      double u = lwFunction(r * c, c, n);
+
+      if(u == 0)
+        break;
+      else if(u > 0)
+        m = r;
+      else
+        M = r;
+    }
+    return c * (m + M) / 2.0;
+  }
+
+  private static double lwFunction(double x, double c, double n)
+  {
+    return c / x - 1 + Math.exp(-n / x);
+  }
+
+  /**
+   * Fit a zero truncated negative binomial to the histogram by maximum
+   * likelihood. For a given dispersion alpha, the mean mu is the one at which
+   * the truncated mean equals the observed mean. Alpha is found by a golden
+   * section search of the likelihood over log(alpha). Sequences above the
+   * exact histogram are counted at their mean count.
+   */
+  private void fitZTNB(long histogram[], long overflowSequences, long overflowReads)
+  {
+    double observedMean = totalReads * 1.0 / distinctReads;
+
+    if(observedMean <= 1.000001)
+      return;
+
+    double overflowCount = (overflowSequences > 0) ?
+                           overflowReads * 1.0 / overflowSequences : 0;
+    double a = Math.log(1e-4);
+    double b = Math.log(100.0);
+    double ratio = (Math.sqrt(5) - 1) / 2;
+    double x1 = b - ratio * (b - a);
+    double x2 = a + ratio * (b - a);
+    double f1 = logLikelihood(histogram, overflowSequences, overflowCount, observedMean, Math.exp(x1));
+    double f2 = logLikelihood(histogram, overflowSequences, overflowCount, observedMean, Math.exp(x2));
+
+    for(int i = 0; i < 60; i++)
+    {
+      if(f1 > f2)
+      {
+        b  = x2;
+        x2 = x1;
+        f2 = f1;
+        x1 = b - ratio * (b - a);
+        f1 = logLikelihood(histogram, overflowSequences, overflowCount, observedMean, Math.exp(x1));
+      }
+      else
+      {
+        a  = x1;
+        x1 = x2;
+        f1 = f2;
+        x2 = a + ratio * (b - a);
+        f2 = logLikelihood(histogram, overflowSequences, overflowCount, observedMean, Math.exp(x2));
+      }
+    }
+    ztnbAlpha = Math.exp((a + b) / 2);
+    ztnbMu    = solveMu(observedMean, ztnbAlpha);
+  }
+
+  /**
+   * Log likelihood of the histogram for the dispersion alpha, with mu chosen
+   * to match the observed mean
+   */
+  private double logLikelihood(long histogram[], long overflowSequences, double overflowCount,
+                               double observedMean, double alpha)
+  {
+    double mu = solveMu(observedMean, alpha);
+    double k  = 1 / alpha;
+    double logP0Complement = Math.log(1 - probabilityOfZero(mu, alpha));
+    double logSuccess = Math.log(alpha * mu / (1 + alpha * mu));
+    double logFailure = -k * Math.log(1 + alpha * mu);
+    double ll = 0;
+
+    for(int j = 1; j < histogram.length; j++)
+    {
+      if(histogram[j] > 0)
+      {
+        ll += histogram[j] * (logGammaRatio(j, k) - logGamma(j + 1) + j * logSuccess +
+                              logFailure - logP0Complement);
+      }
+    }
+    if(overflowSequences > 0)
+    {
+      ll += overflowSequences * (logGamma(overflowCount + k) - logGamma(k) -
+                                 logGamma(overflowCount + 1) + overflowCount * logSuccess +
+                                 logFailure - logP0Complement);
+    }
+    return ll;
+  }
+
+  /**
+   * Return mu for which the mean of the zero truncated negative binomial,
+   * mu / (1 - P(0)), equals the observed mean. It grows with mu, and mu is
+   * below the observed mean.
+   */
+  private static double solveMu(double observedMean, double alpha)
+  {
+    double lo = 1e-12;
+    double hi = observedMean;
+
+    for(int i = 0; i < 100; i++)
+    {
+      double mid = (lo + hi) / 2;
+
+      if(mid / (1 - probabilityOfZero(mid, alpha)) < observedMean)
+        lo = mid;
+      else
+        hi = mid;
+    }
+    return (lo + hi) / 2;
+  }
+
+  /**
+   * Probability that a molecule is not sampled at all
+   */
+  private static double probabilityOfZero(double mu, double alpha)
+  {
+    return Math.exp(-Math.log(1 + alpha * mu) / alpha);
+  }
+
+  /**
+   * log(Gamma(j + k) / Gamma(k)), summed directly for small j where the
+   * difference of two large log gammas would lose precision
+   */
+  private static double logGammaRatio(int j, double k)
+  {
+    if(j <= 64)
+    {
+      double sum = 0;
+
+      for(int i = 0; i < j; i++)
+        sum += Math.log(k + i);
+      return sum;
+    }
+    return logGamma(j + k) - logGamma(k);
+  }
+
+  /**
+   * Log of the gamma function, by the Lanczos approximation
+   */
+  private static double logGamma(double x)
+  {
+    final double cof[] = {76.18009172947146, -86.50532032941677, 24.01409824083091,
+                          -1.231739572450155, 0.1208650973866179e-2, -0.5395239384953e-5};
+    double y   = x;
+    double tmp = x + 5.5;
+    double ser = 1.000000000190015;
+
+    tmp -= (x + 0.5) * Math.log(tmp);
+
+    for(int j = 0; j < cof.length; j++)
+      ser += cof[j] / ++y;
+    return -tmp + Math.log(2.5066282746310005 * ser / x);
+  }
+}
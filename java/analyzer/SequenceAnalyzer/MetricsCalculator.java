@@ -1,9 +1,9 @@
 package analyzer.SequenceAnalyzer;
 
+import java.io.*;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
 import analyzer.Common.*;
-import net.sf.picard.fastq.FastqRecord;
 
 /**
  * Generic class representing the interface to be followed by concrete classes
@@ -15,10 +15,12 @@ public abstract class MetricsCalculator
   protected ResultMetric resultMetric;     // Result metric
   protected Plot p;                        // To generate plots
   private NumberFormat formatter;          // To format numbers
+  protected String outputPrefix = "";      // Prefix of plots and CSV files
   
+  protected PositionHistogram histRead1;   // Count per position in read 1
+  protected PositionHistogram histRead2;   // Count per position in read 2
   protected double distRead1[]     = null; // Distribution of metric in read 1
   protected double distRead2[]     = null; // Distribution of metric in read 2
-  protected int maxLen             = 0;    // Max. read length seen so far
   
   /**
    * Class constructor
@@ -28,18 +30,71 @@ public abstract class MetricsCalculator
     resultMetric = new ResultMetric();
     p = null;
     formatter = new DecimalFormat("#0.00");
-    distRead1 = new double[maxLen];
-    distRead2 = new double[maxLen];
+    histRead1 = new PositionHistogram();
+    histRead2 = new PositionHistogram();
+    distRead1 = new double[0];
+    distRead2 = new double[0];
   }
   
-  abstract void processRead(FastqRecord record1, FastqRecord record2) throws Exception;
+  /**
+   * Process the next read or pair of reads, as scanned by ReadScanner
+   * @param read1
+   * @param read2 - null for fragments
+   * @throws Exception
+   */
+  abstract void processRead(ScannedRead read1, ScannedRead read2) throws Exception;
+
+  /**
+   * Return false if processRead does nothing, so that it need not be called
+   * @return
+   */
+  boolean needsReads()
+  {
+    return true;
+  }
+
   abstract void calculateResult();
   abstract void buildResultMetrics();
+
+  /**
+   * Write the counts collected so far, so that a run can be checkpointed
+   * and resumed by readState in a new calculator.
+   * @param out
+   * @throws IOException
+   */
+  abstract void writeState(DataOutputStream out) throws IOException;
+
+  /**
+   * Restore the counts written by writeState of the same calculator into
+   * this new calculator
+   * @param in
+   * @throws IOException
+   */
+  abstract void readState(DataInputStream in) throws IOException;
   
   public ResultMetric getResultMetrics()
   {
     return resultMetric;
   }
+
+  /**
+   * Set the prefix of the names of plots and CSV files written by this
+   * calculator, e.g. the output directory of a batch job
+   * @param prefix
+   */
+  public void setOutputPrefix(String prefix)
+  {
+    outputPrefix = prefix;
+  }
+
+  /**
+   * Return the longest read length seen so far
+   * @return
+   */
+  protected int getMaxLength()
+  {
+    return Math.max(histRead1.length(), histRead2.length());
+  }
   
   /**
    * Helper method to truncate doubles to 2 decimal places and return a string
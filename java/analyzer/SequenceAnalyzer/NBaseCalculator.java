@@ -1,9 +1,8 @@
 package analyzer.SequenceAnalyzer;
 
+import java.io.*;
 import java.util.ArrayList;
-import java.util.Arrays;
 import analyzer.Common.*;
-import net.sf.picard.fastq.FastqRecord;
 
 /**
  * Class to calculate the number of "N" bases, i.e. undetermined bases
@@ -52,44 +51,38 @@ public class NBaseCalculator extends MetricsCalculator
    * Process the next read
    */
   @Override
-  void processRead(FastqRecord read1, FastqRecord read2) throws Exception
+  void processRead(ScannedRead read1, ScannedRead read2) throws Exception
   {
-    if(read1 == null)
-    {
-      throw new Exception("Encountered null/empty fastq record for read 1");
-    }
-    String sequenceRead1 = read1.getReadString();
-    String sequenceRead2 = null;
-
-    if(read2 != null)
-    {
-      sequenceRead2 = read2.getReadString(); 
-    }
-
-    if(sequenceRead1.length() > maxLen)
-      maxLen = sequenceRead1.length();
-    if(sequenceRead2 != null && sequenceRead2.length() > maxLen)
-      maxLen = sequenceRead2.length();
-    
-    if(maxLen > distRead1.length)
-    {
-      distRead1 = Arrays.copyOf(distRead1, maxLen);
-    }
-    if(sequenceRead2 != null && maxLen > distRead2.length)
-    {
-      distRead2 = Arrays.copyOf(distRead2, maxLen);
-    }
-
     totalReadsRead1++;
-    calculateNs(sequenceRead1, ReadType.READ1);
+    calculateNs(read1, ReadType.READ1);
     
-    if(sequenceRead2 != null && !sequenceRead2.isEmpty())
+    if(read2 != null && read2.length > 0)
     {
       totalReadsRead2++;
-      calculateNs(sequenceRead2, ReadType.READ2);
+      calculateNs(read2, ReadType.READ2);
     }
-    sequenceRead1 = null;
-    sequenceRead2 = null;
+  }
+
+  @Override
+  void writeState(DataOutputStream out) throws IOException
+  {
+    out.writeInt(totalReadsRead1);
+    out.writeInt(totalReadsRead2);
+    out.writeInt(badReadsRead1);
+    out.writeInt(badReadsRead2);
+    histRead1.write(out);
+    histRead2.write(out);
+  }
+
+  @Override
+  void readState(DataInputStream in) throws IOException
+  {
+    totalReadsRead1 = in.readInt();
+    totalReadsRead2 = in.readInt();
+    badReadsRead1   = in.readInt();
+    badReadsRead2   = in.readInt();
+    histRead1.merge(in);
+    histRead2.merge(in);
   }
 
   /* 
@@ -127,43 +120,28 @@ public class NBaseCalculator extends MetricsCalculator
   @Override
   void calculateResult()
   {
-    for(int i = 0; i < distRead1.length && totalReadsRead1 > 0; i++)
-    {
-      distRead1[i] = distRead1[i] / totalReadsRead1 * 100.0; 
-    }
-    for(int i = 0; i < distRead2.length && totalReadsRead2 > 0; i++)
-    {
-      distRead2[i] = distRead2[i] / totalReadsRead2 * 100.0;
-    }
+    distRead1 = histRead1.toPercent(totalReadsRead1, getMaxLength());
+    distRead2 = histRead2.toPercent(totalReadsRead2, getMaxLength());
     plotDistribution();
   }
 
   /**
-   * Helper method to calculate Ns for a given read
-   * @param sequence
+   * Helper method to count the Ns found by the scan of a read
+   * @param read
    * @param readType
    */
-  private void calculateNs(String sequence, ReadType readType)
+  private void calculateNs(ScannedRead read, ReadType readType)
   {
-    int numN = 0;
-    
-    for(int i = 0; i < sequence.length(); i++)
-    {
-      if(sequence.charAt(i) == 'N' || sequence.charAt(i) == 'n')
-      {
-        numN++;
-        if(readType == ReadType.READ1)
-        {
-          distRead1[i]++;
-        }
-        else
-        {
-          distRead2[i]++;
-        }
-      }
-    }
+    PositionHistogram hist = (readType == ReadType.READ1) ? histRead1 : histRead2;
+    int nPositions[] = read.nPositions;
+    int numN         = read.numN;
+
+    hist.ensureLength(read.length);
+
+    for(int i = 0; i < numN; i++)
+      hist.increment(nPositions[i]);
     
-    if(numN >= threshold * sequence.length())
+    if(numN >= threshold * read.length)
     {
       if(readType == ReadType.READ1)
         badReadsRead1++;
@@ -194,18 +172,18 @@ public class NBaseCalculator extends MetricsCalculator
       {
         if(totalReadsRead2 > 0 && distRead2.length > 0)
         {
-          p = new Plot("DistributionOfN.png", "Distribution of N per base position",
+          p = new Plot(outputPrefix + "DistributionOfN.png", "Distribution of N per base position",
         		       "Base Position", "Percentage of N", "Read 1", "Read 2",
         		       xAxis, distRead1, distRead2);
         }
         else
         {
-          p = new Plot("DistributionOfN.png", "Distribution of N per base position",
+          p = new Plot(outputPrefix + "DistributionOfN.png", "Distribution of N per base position",
         		       "Base Position", "Percentage of N", "Read 1",
                        xAxis, distRead1);
         }
         p.setYScale(0, 100);
-        p.setXScale(0, maxLen);
+        p.setXScale(0, getMaxLength());
         p.plotGraph();
       }
     }
@@ -0,0 +1,162 @@
+package analyzer.SequenceAnalyzer;
+
+import java.util.Arrays;
+import common.FastqSlice;
+
+/**
+ * Class to scan the bases of a read once and find everything the calculators
+ * need from it : the positions of N bases for NBaseCalculator, the first
+ * adaptor for AdaptorCalculator, the packed seed for UniquenessCalculator and
+ * the base index of every base for BaseCompositionCalculator.
+ * The adaptor is found by comparing a rolling 2-bit window of the last bases
+ * with the packed adaptor, instead of searching the string once more.
+ * @author Nirav Shah niravs@bcm.edu
+ *
+ */
+class ReadScanner
+{
+  static final int SEED_LENGTH = 30;  // Bases of each read in the seed
+
+  // Code of each byte. 0-3 are A, C, G, T, 4-7 are a, c, g, t, N and n
+  // are CODE_N and everything else is CODE_OTHER.
+  private static final int CODE_N     = 8;
+  private static final int CODE_OTHER = 9;
+  private static final byte CODES[]   = new byte[256];
+
+  // Base index 0-4 of each code, as stored in ScannedRead.bases
+  private static final byte BASE_INDEX[] = {0, 1, 2, 3, 0, 1, 2, 3, 4, 4};
+
+  static
+  {
+    Arrays.fill(CODES, (byte)CODE_OTHER);
+    String bases = "ACGTacgt";
+
+    for(int i = 0; i < bases.length(); i++)
+      CODES[bases.charAt(i)] = (byte)i;
+    CODES['N'] = CODE_N;
+    CODES['n'] = CODE_N;
+  }
+
+  private int adaptorLength;      // Number of bases in the adaptor
+  private int adaptorCode;        // Adaptor packed 2 bits per base
+  private int adaptorWindowMask;  // Mask of the rolling window
+
+  /**
+   * Class constructor
+   * @param adaptorSequence - adaptor to find, of upper case A, C, G and T
+   *                          bases and at most 15 bases long
+   */
+  ReadScanner(String adaptorSequence)
+  {
+    adaptorLength = adaptorSequence.length();
+
+    if(adaptorLength < 1 || adaptorLength > 15)
+      throw new IllegalArgumentException("Adaptor must be 1 to 15 bases long");
+
+    for(int i = 0; i < adaptorLength; i++)
+    {
+      char base = adaptorSequence.charAt(i);
+      int code  = (base < CODES.length) ? CODES[base] : CODE_OTHER;
+
+      if(code > 3)
+        throw new IllegalArgumentException("Invalid base in adaptor " + adaptorSequence);
+      adaptorCode = (adaptorCode << 2) | code;
+    }
+    adaptorWindowMask = (1 << (2 * adaptorLength)) - 1;
+  }
+
+  /**
+   * Return the bases of a seed packed by scan
+   * @param seed
+   * @param nMask
+   * @return
+   */
+  static String decodeSeed(long seed, int nMask)
+  {
+    char bases[] = new char[SEED_LENGTH];
+
+    for(int i = 0; i < SEED_LENGTH; i++)
+    {
+      int shift = SEED_LENGTH - 1 - i;
+
+      if((nMask & (1 << shift)) != 0)
+        bases[i] = 'N';
+      else
+        bases[i] = "ACGT".charAt((int)(seed >>> (2 * shift)) & 3);
+    }
+    return new String(bases);
+  }
+
+  /**
+   * Scan the bases of a read, in the buffer of the reader
+   * @param read - the read
+   * @param result - object to fill, reused from read to read
+   * @return result
+   */
+  ScannedRead scan(FastqSlice read, ScannedRead result)
+  {
+    int length = read.getReadLength();
+    int nPositions[] = result.nPositions;
+    byte bases[]     = result.bases;
+
+    if(nPositions.length < length)
+      nPositions = result.nPositions = new int[Math.max(length, 2 * nPositions.length)];
+    if(bases.length < length)
+      bases = result.bases = new byte[Math.max(length, 2 * bases.length)];
+
+    int numN            = 0;
+    int adaptorPosition = -1;
+    int window          = 0;    // Last bases, 2 bits each
+    int validBases      = 0;    // Upper case ACGT bases ending the window
+    long seed           = 0;
+    int seedNMask       = 0;
+
+    for(int i = 0; i < length; i++)
+    {
+      int code = CODES[read.getBase(i) & 0xFF];
+      bases[i] = BASE_INDEX[code];
+
+      if(code == CODE_N)
+        nPositions[numN++] = i;
+
+      if(i < SEED_LENGTH)
+      {
+        seed <<= 2;
+
+        if(code < CODE_N)
+          seed |= code & 3;
+        else
+          seedNMask |= 1 << (SEED_LENGTH - 1 - i);
+      }
+
+      if(adaptorPosition < 0)
+      {
+        if(code < 4)
+        {
+          window = ((window << 2) | code) & adaptorWindowMask;
+
+          if(++validBases >= adaptorLength && window == adaptorCode)
+            adaptorPosition = i - adaptorLength + 1;
+        }
+        else
+        {
+          validBases = 0;
+        }
+      }
+    }
+
+    // Pad the seed of a short read with N
+    for(int i = length; i < SEED_LENGTH; i++)
+    {
+      seed <<= 2;
+      seedNMask |= 1 << (SEED_LENGTH - 1 - i);
+    }
+
+    result.length          = length;
+    result.numN            = numN;
+    result.adaptorPosition = adaptorPosition;
+    result.seed            = seed;
+    result.seedNMask       = seedNMask;
+    return result;
+  }
+}
@@ -0,0 +1,26 @@
+package analyzer.SequenceAnalyzer;
+
+/**
+ * Class holding everything the calculators need from one read, as found by a
+ * single scan of its bases by ReadScanner. Instances are reused from read to
+ * read, so calculators must not keep references to them.
+ * @author Nirav Shah niravs@bcm.edu
+ *
+ */
+class ScannedRead
+{
+  int length          = 0;            // Number of bases in the read
+  int nPositions[]    = new int[256]; // Positions of N bases
+  int numN            = 0;            // Number of N bases
+  int adaptorPosition = -1;           // Start of the first adaptor, or -1
+
+  // Every base as 0-4 for A, C, G, T and N (or any other character),
+  // ignoring case
+  byte bases[]        = new byte[256];
+
+  // The first ReadScanner.SEED_LENGTH bases packed 2 bits per base, the first
+  // base in the highest bits. N and any base beyond the end of a short read
+  // are packed as 0 and marked by the corresponding bit of seedNMask.
+  long seed           = 0;
+  int seedNMask       = 0;
+}
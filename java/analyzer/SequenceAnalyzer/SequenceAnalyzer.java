@@ -2,17 +2,28 @@ package analyzer.SequenceAnalyzer;
 
 import net.sf.picard.cmdline.*;
 import net.sf.picard.io.IoUtil;
-import java.io.File;
+import java.io.*;
 import java.util.*;
 
-import net.sf.picard.fastq.FastqReader;
-import net.sf.picard.fastq.FastqRecord;
 
 import analyzer.Common.*;
+import common.BatchManifest;
+import common.BatchRunner;
+import common.CheckpointWriter;
+import common.FastqSlice;
+import common.MappedFastqReader;
+import common.ReadSampler;
+import common.ProgressMonitor;
+import common.ProgressMonitor.Stage;
 
 /**
  * Driver class to analyzer sequence files and calculate percentage of unique
- * reads, distribution of adaptor reads, and distribution of "N" bases.
+ * reads, distribution of adaptor reads, distribution of "N" bases, base
+ * composition and GC content, and library complexity. A long run can
+ * periodically write a checkpoint of its counts and of the offsets in the
+ * sequence files, and be resumed from it after it was killed. With MANIFEST,
+ * many read 1 / read 2 pairs are analyzed concurrently in one JVM, each
+ * writing its files in its own output directory.
  * @author Nirav Shah niravs@bcm.edu
  *
  */
@@ -22,7 +33,8 @@ public class SequenceAnalyzer extends CommandLineProgram
   public String USAGE = getStandardUsagePreamble() +
   "Read Fastq sequence files and number of unique reads and other metrics.\r\n";
 	  
-  @Option(shortName = "R1", doc = "Sequence file for read 1")
+  @Option(shortName = "R1", doc = "Sequence file for read 1. Required unless MANIFEST is " +
+          "specified", optional=true)
   public File Read1;
   
   @Option(shortName = "R2", doc = "Sequence file for read 2", optional=true)
@@ -30,12 +42,60 @@ public class SequenceAnalyzer extends CommandLineProgram
 
   @Option(doc = "Stop after debugging N reads. Mainly for debugging. Default value: 0, which means process the whole file")
   public int STOP_AFTER = 0;
+
+  @Option(doc = "Analyze only this fraction of the reads, chosen by a hash of the read name " +
+          "so that the same reads are chosen from read 1, read 2 and the BAM", optional=true)
+  public double SAMPLE_FRACTION = 1.0;
   
-  @Option(shortName = StandardOptionDefinitions.OUTPUT_SHORT_NAME, doc = "Output file to write results in txt format")
+  @Option(shortName = StandardOptionDefinitions.OUTPUT_SHORT_NAME, doc = "Output file to write results in txt format. " +
+          "Required unless MANIFEST is specified", optional=true)
   public File OUTPUT;
 
   @Option(shortName = "X", doc = "File with results in XML format", optional=true)
   public File XMLOUTPUT;
+
+  @Option(doc = "File to periodically write progress and throughput to", optional=true)
+  public File PROGRESS_FILE;
+
+  @Option(doc = "Seconds between progress reports", optional=true)
+  public int PROGRESS_INTERVAL = 60;
+
+  @Option(doc = "File to periodically write a checkpoint to. The uniqueness buckets are " +
+          "kept in a directory of the same name with .buckets appended", optional=true)
+  public File CHECKPOINT_FILE;
+
+  @Option(doc = "Seconds between checkpoints", optional=true)
+  public int CHECKPOINT_INTERVAL = 600;
+
+  @Option(doc = "Resume from CHECKPOINT_FILE if it exists, otherwise start from the beginning")
+  public boolean RESUME = false;
+
+  @Option(doc = "Tab separated file with an output directory, a read 1 and optionally a " +
+          "read 2 file per line, to analyze all of them in this JVM. OUTPUT, XMLOUTPUT, " +
+          "PROGRESS_FILE and CHECKPOINT_FILE are then file names in every output directory",
+          optional=true)
+  public File MANIFEST;
+
+  @Option(doc = "Jobs of MANIFEST run at the same time", optional=true)
+  public int BATCH_THREADS = Runtime.getRuntime().availableProcessors();
+
+  @Option(doc = "Heap in MB shared by the running jobs of MANIFEST. Default value: 0, " +
+          "which means three quarters of the maximum heap", optional=true)
+  public int MEMORY_BUDGET_MB = 0;
+
+  @Option(doc = "Estimated heap in MB of one job of MANIFEST", optional=true)
+  public int JOB_MEMORY_MB = 1024;
+
+  private String outputPrefix = "";         // Prefix of plots and CSV files
+  private String toolName     = "SequenceAnalyzer";
+  private boolean sharedJVM   = false;      // Other jobs of a batch run in this JVM
+
+  private static final String CHECKPOINT_MAGIC = "SequenceAnalyzerCheckpoint";
+  private static final int CHECKPOINT_VERSION  = 3;
+
+  // Stages and calculators are timed on every TIMING_INTERVAL-th read only,
+  // and the times scaled up, as timing every read costs as much as a scan
+  private static final int TIMING_INTERVAL = 64;
   
   public static void main(String[] args)
   {
@@ -48,24 +108,45 @@ public class SequenceAnalyzer extends CommandLineProgram
   @Override
   protected int doWork()
   {
-    FastqReader reader1  = null;  // To read sequence file for read1
-    FastqReader reader2  = null;  // To read sequence file for read2
-    FastqRecord record1  = null;  // Fastq record for read1
-    FastqRecord record2  = null;  // Fastq record for read2
-    String sequenceRead1 = null;  // Read sequence from fastq record of read1
-    String sequenceRead2 = null;  // Read sequence from fastq record of read2
+    MappedFastqReader reader1 = null;  // To read sequence file for read1
+    MappedFastqReader reader2 = null;  // To read sequence file for read2
+    FastqSlice record1   = null;  // Fastq record for read1
+    FastqSlice record2   = null;  // Fastq record for read2
+
+    if(MANIFEST != null)
+      return runBatch();
+
+    if(Read1 == null || OUTPUT == null)
+    {
+      System.err.println("Read1 and OUTPUT are required unless MANIFEST is specified");
+      return -1;
+    }
     
+    // Every read is scanned once, and the calculators use the result
+    ReadScanner scanner    = new ReadScanner(AdaptorCalculator.ADAPTOR_SEQUENCE);
+    ScannedRead scanned1   = new ScannedRead();
+    ScannedRead scanned2   = new ScannedRead();
+    
+    ProgressMonitor monitor = new ProgressMonitor(toolName, PROGRESS_FILE,
+                                                  PROGRESS_INTERVAL);
     long totalReads       = 0;
+    CheckpointWriter checkpoint = null;
     
     boolean isFragment = (Read2 == null) ? true : false;
     
     IoUtil.assertFileIsReadable(Read1);
-    reader1 = new FastqReader(Read1);
+    Read1 = Read1.getAbsoluteFile();
     
     if(!isFragment)
     {
       IoUtil.assertFileIsReadable(Read2);
-      reader2 = new FastqReader(Read2);
+      Read2 = Read2.getAbsoluteFile();
+    }
+
+    if(RESUME && CHECKPOINT_FILE == null)
+    {
+      System.err.println("RESUME requires CHECKPOINT_FILE");
+      return -1;
     }
 
     if(OUTPUT != null)
@@ -83,32 +164,121 @@ public class SequenceAnalyzer extends CommandLineProgram
     ArrayList<MetricsCalculator> metrics = new ArrayList<MetricsCalculator>();
     metrics.add(new NBaseCalculator());
     metrics.add(new AdaptorCalculator());
-    metrics.add(new UniquenessCalculator(TMP_DIR));
+    UniquenessCalculator uniqueness = new UniquenessCalculator(TMP_DIR);
+    metrics.add(uniqueness);
+    metrics.add(new BaseCompositionCalculator());
+    metrics.add(new LibraryComplexityCalculator(uniqueness));
+
+    for(MetricsCalculator calculator : metrics)
+      calculator.setOutputPrefix(outputPrefix);
+
+    RuntimeProfile profile = new RuntimeProfile(sharedJVM);
+    int scannerProfileId = profile.addCalculator("ReadScanner");
+    int profileIds[] = new int[metrics.size()];
+
+    for(int i = 0; i < metrics.size(); i++)
+      profileIds[i] = profile.addCalculator(metrics.get(i).getClass().getSimpleName());
+
+    // Calculators that do something with every read
+    ArrayList<Integer> readIndexes = new ArrayList<Integer>();
+
+    for(int i = 0; i < metrics.size(); i++)
+    {
+      if(metrics.get(i).needsReads())
+        readIndexes.add(i);
+    }
+    MetricsCalculator readCalculators[] = new MetricsCalculator[readIndexes.size()];
+    int readProfileIds[] = new int[readIndexes.size()];
+
+    for(int i = 0; i < readCalculators.length; i++)
+    {
+      readCalculators[i] = metrics.get(readIndexes.get(i));
+      readProfileIds[i]  = profileIds[readIndexes.get(i)];
+    }
     
     try
     {
+      long offsets[] = {0, 0};
+
+      if(CHECKPOINT_FILE != null)
+      {
+        CHECKPOINT_FILE = CHECKPOINT_FILE.getAbsoluteFile();
+        uniqueness.setCheckpointDir(new File(CHECKPOINT_FILE.getPath() + ".buckets"));
+
+        if(RESUME && CHECKPOINT_FILE.exists())
+        {
+          totalReads = restoreCheckpoint(metrics, offsets);
+          System.err.println("Resuming after " + totalReads + " reads from " +
+                             CHECKPOINT_FILE.getAbsolutePath());
+        }
+        checkpoint = new CheckpointWriter(CHECKPOINT_FILE, CHECKPOINT_INTERVAL);
+      }
+
+      ReadSampler sampler = (SAMPLE_FRACTION != 1) ? new ReadSampler(SAMPLE_FRACTION) : null;
+      reader1 = new MappedFastqReader(Read1, offsets[0]);
+      reader1.setSampler(sampler);
+
+      if(!isFragment)
+      {
+        reader2 = new MappedFastqReader(Read2, offsets[1]);
+        reader2.setSampler(sampler);
+      }
+
+      monitor.start();
+
       while(true)
       {
-        if(reader1.hasNext())
-          record1 = reader1.next();
-        else
-          record1 = null;
-      
-        if(isFragment == false && reader2.hasNext())
-          record2 = reader2.next();
-        else
-          record2 = null;
+        boolean timed = (totalReads % TIMING_INTERVAL == 0);
+        long t = timed ? System.nanoTime() : 0;
+
+        record1 = reader1.next();
+        record2 = (isFragment == false) ? reader2.next() : null;
       
         if(record1 == null && record2 == null)
           break;
 
+        if(record1 == null)
+          throw new Exception("Encountered null/empty record for read 1");
+
         totalReads++;
 
-        if(totalReads > 0 && totalReads % 10000000 == 0)
-          System.err.println("\r" + totalReads);
+        if(!timed)
+        {
+          ScannedRead read1 = scanner.scan(record1, scanned1);
+          ScannedRead read2 = (record2 != null) ? scanner.scan(record2, scanned2) : null;
 
-        for(int i = 0; i < metrics.size(); i++)
-          metrics.get(i).processRead(record1, record2);
+          for(int i = 0; i < readCalculators.length; i++)
+            readCalculators[i].processRead(read1, read2);
+        }
+        else
+        {
+          long now = System.nanoTime();
+          monitor.addStageNanos(Stage.DECODE, TIMING_INTERVAL * (now - t));
+          long calculateStart = now;
+          t = now;
+
+          ScannedRead read1 = scanner.scan(record1, scanned1);
+          ScannedRead read2 = (record2 != null) ? scanner.scan(record2, scanned2) : null;
+          now = System.nanoTime();
+          profile.addProcessTime(scannerProfileId, TIMING_INTERVAL * (now - t));
+          t = now;
+
+          for(int i = 0; i < readCalculators.length; i++)
+          {
+            readCalculators[i].processRead(read1, read2);
+            now = System.nanoTime();
+            profile.addProcessTime(readProfileIds[i], TIMING_INTERVAL * (now - t));
+            t = now;
+          }
+          monitor.addStageNanos(Stage.CALCULATE, TIMING_INTERVAL * (now - calculateStart));
+        }
+        monitor.addRecord();
+
+        // The snapshot is taken here, between reads, and written in the
+        // background
+        if(checkpoint != null && (totalReads & 0xFFFF) == 0 && checkpoint.isDue())
+          checkpoint.submit(takeCheckpoint(metrics, reader1, reader2, totalReads),
+                            uniqueness.getOpenBuckets());
         
         if(STOP_AFTER > 0 && totalReads >= STOP_AFTER)
           break;
@@ -118,19 +288,45 @@ public class SequenceAnalyzer extends CommandLineProgram
       if(!isFragment)
         reader2.close();
       
+     profile.setStageMillis("Read", monitor.getStageMillis(Stage.DECODE));
      ArrayList<ResultMetric> resultMetrics = new ArrayList<ResultMetric>();
+
+     // The buckets being synced by a checkpoint are closed by the calculator
+     if(checkpoint != null)
+       checkpoint.waitForPending();
       
      for(int i = 0; i < metrics.size(); i++)
      {
+       long t = System.nanoTime();
        metrics.get(i).calculateResult();
        metrics.get(i).buildResultMetrics();
+       profile.addResultTime(profileIds[i], System.nanoTime() - t);
        if(metrics.get(i).getResultMetrics() != null)
          resultMetrics.add(metrics.get(i).getResultMetrics());
      }
+     if(sampler != null)
+     {
+       ResultMetric sampling = new ResultMetric();
+       sampling.setMetricName("Sampling");
+       sampling.addKeyValue("SampleFraction", Double.toString(SAMPLE_FRACTION));
+       sampling.addKeyValue("SampledReads", Long.toString(totalReads));
+       resultMetrics.add(sampling);
+     }
+     resultMetrics.add(profile.buildResultMetric());
      logResults(resultMetrics);
+
+     if(checkpoint != null)
+     {
+       checkpoint.close(true);
+       uniqueness.deleteCheckpointDir();
+     }
+     monitor.finish(true);
     }
     catch(Exception e)
     {
+      if(checkpoint != null)
+        checkpoint.close(false);
+      monitor.finish(false);
       System.err.println(e.getMessage());
       e.printStackTrace();
       return -1;
@@ -138,6 +334,174 @@ public class SequenceAnalyzer extends CommandLineProgram
     return 0;
   }
   
+  /**
+   * Analyze every line of MANIFEST as a separate SequenceAnalyzer with the
+   * options of this one, on a shared pool of threads
+   * @return 0 if all jobs succeeded
+   */
+  private int runBatch()
+  {
+    try
+    {
+      if(Read1 != null || Read2 != null)
+        throw new Exception("Read1 and Read2 can not be used with MANIFEST");
+
+      IoUtil.assertFileIsReadable(MANIFEST);
+      ArrayList<BatchRunner.Task> tasks = new ArrayList<BatchRunner.Task>();
+
+      for(BatchManifest.Job job : BatchManifest.read(MANIFEST, 1, 2))
+      {
+        final SequenceAnalyzer analyzer = createJob(job);
+
+        tasks.add(new BatchRunner.Task(job.toString(), JOB_MEMORY_MB)
+        {
+          public int run() throws Exception
+          {
+            try
+            {
+              return analyzer.doWork();
+            }
+            finally
+            {
+              analyzer.TMP_DIR.delete();
+            }
+          }
+        });
+      }
+      return new BatchRunner(BATCH_THREADS, MEMORY_BUDGET_MB).run(tasks) == 0 ? 0 : -1;
+    }
+    catch(Exception e)
+    {
+      System.err.println(e.getMessage());
+      e.printStackTrace();
+      return -1;
+    }
+  }
+
+  /**
+   * Create the SequenceAnalyzer of one job of MANIFEST. Its temporary files
+   * are kept in a directory of its own under TMP_DIR.
+   * @param job
+   * @return
+   * @throws IOException
+   */
+  private SequenceAnalyzer createJob(BatchManifest.Job job) throws IOException
+  {
+    SequenceAnalyzer analyzer = new SequenceAnalyzer();
+
+    analyzer.Read1 = job.getInputs().get(0);
+    analyzer.Read2 = (job.getInputs().size() > 1) ? job.getInputs().get(1) : null;
+    analyzer.OUTPUT              = job.resolve(OUTPUT);
+    analyzer.XMLOUTPUT           = job.resolve(XMLOUTPUT);
+    analyzer.PROGRESS_FILE       = job.resolve(PROGRESS_FILE);
+    analyzer.CHECKPOINT_FILE     = job.resolve(CHECKPOINT_FILE);
+    analyzer.STOP_AFTER          = STOP_AFTER;
+    analyzer.SAMPLE_FRACTION     = SAMPLE_FRACTION;
+    analyzer.PROGRESS_INTERVAL   = PROGRESS_INTERVAL;
+    analyzer.CHECKPOINT_INTERVAL = CHECKPOINT_INTERVAL;
+    analyzer.RESUME              = RESUME;
+    analyzer.outputPrefix        = job.getOutputPrefix();
+    analyzer.toolName            = toolName + "_" + job.getName();
+    analyzer.sharedJVM           = true;
+
+    if(analyzer.OUTPUT == null)
+      throw new IOException("OUTPUT is required");
+
+    File tempDir = File.createTempFile(analyzer.toolName + "_", "", TMP_DIR);
+
+    if(!tempDir.delete() || !tempDir.mkdir())
+      throw new IOException("Could not create directory " + tempDir.getAbsolutePath());
+    analyzer.TMP_DIR = tempDir;
+    return analyzer;
+  }
+
+  /**
+   * Take a snapshot of the offsets in the sequence files and the state of
+   * every calculator
+   * @return
+   * @throws IOException
+   */
+  private byte[] takeCheckpoint(ArrayList<MetricsCalculator> metrics,
+                                MappedFastqReader reader1, MappedFastqReader reader2,
+                                long totalReads) throws IOException
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+
+    out.writeUTF(CHECKPOINT_MAGIC);
+    out.writeInt(CHECKPOINT_VERSION);
+    out.writeUTF(Read1.getPath());
+    out.writeUTF((Read2 != null) ? Read2.getPath() : "");
+    out.writeLong(reader1.getPosition());
+    out.writeLong((reader2 != null) ? reader2.getPosition() : 0);
+    out.writeLong(totalReads);
+    out.writeDouble(SAMPLE_FRACTION);
+    out.writeInt(metrics.size());
+
+    for(MetricsCalculator calculator : metrics)
+    {
+      ByteArrayOutputStream state = new ByteArrayOutputStream();
+      DataOutputStream stateOut   = new DataOutputStream(state);
+      calculator.writeState(stateOut);
+      stateOut.flush();
+
+      out.writeUTF(calculator.getClass().getSimpleName());
+      out.writeInt(state.size());
+      state.writeTo(out);
+    }
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Restore the calculators from CHECKPOINT_FILE
+   * @param metrics
+   * @param offsets - set to the offsets of the next records in the sequence files
+   * @return number of reads processed before the checkpoint
+   * @throws IOException if the checkpoint is of other sequence files
+   */
+  private long restoreCheckpoint(ArrayList<MetricsCalculator> metrics, long offsets[])
+                                 throws IOException
+  {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                                             CheckpointWriter.read(CHECKPOINT_FILE)));
+
+    if(!CHECKPOINT_MAGIC.equals(in.readUTF()) || in.readInt() != CHECKPOINT_VERSION)
+      throw new IOException(CHECKPOINT_FILE.getAbsolutePath() + " is not a checkpoint of this version");
+
+    String read1 = in.readUTF();
+    String read2 = in.readUTF();
+
+    if(!read1.equals(Read1.getPath()) || !read2.equals((Read2 != null) ? Read2.getPath() : ""))
+      throw new IOException("Checkpoint " + CHECKPOINT_FILE.getAbsolutePath() +
+                            " is of other sequence files : " + read1 + " " + read2);
+
+    offsets[0]      = in.readLong();
+    offsets[1]      = in.readLong();
+    long totalReads = in.readLong();
+
+    if(in.readDouble() != SAMPLE_FRACTION)
+      throw new IOException("Checkpoint " + CHECKPOINT_FILE.getAbsolutePath() +
+                            " was taken with another SAMPLE_FRACTION");
+
+    if(in.readInt() != metrics.size())
+      throw new IOException("Checkpoint has a different set of calculators");
+
+    for(MetricsCalculator calculator : metrics)
+    {
+      String name = in.readUTF();
+      int length  = in.readInt();
+
+      if(!name.equals(calculator.getClass().getSimpleName()))
+        throw new IOException("Checkpoint has state of " + name + " instead of " +
+                              calculator.getClass().getSimpleName());
+      byte state[] = new byte[length];
+      in.readFully(state);
+      calculator.readState(new DataInputStream(new ByteArrayInputStream(state)));
+    }
+    return totalReads;
+  }
+
   /**
    * Helper method to log the results in various formats.
    * @param resultMetrics
@@ -1,13 +1,17 @@
 package analyzer.SequenceAnalyzer;
 
 import analyzer.Common.*;
-import java.util.*;
 import java.io.*;
-import net.sf.picard.fastq.FastqRecord;
+import java.util.ArrayList;
 
 /**
  * Class to calculate percentage of unique reads based on comparing k-mer
- * sequences of specified of read sequences.
+ * sequences of specified of read sequences. The seed of a read or pair, as
+ * packed by ReadScanner, is written as three longs (read 1 seed, read 2 seed,
+ * N masks) to one of 1024 bucket files chosen by the first 5 bases of read 1,
+ * and every bucket is then sorted and counted separately. For a checkpointed
+ * run the buckets are kept in a checkpoint directory, and the state records
+ * how many seeds of every bucket the checkpoint covers.
  * @author Nirav Shah niravs@bcm.edu
  *
  */
@@ -15,15 +19,27 @@ public class UniquenessCalculator extends MetricsCalculator
 {
   private int prefixLength       = 5;    // Length of read prefix used to split
                                          // read sequences in different buckets
-  private int seedLength         = 30;   // K-mer length of sequence
+  private int numBuckets         = 1 << (2 * prefixLength);
   
   private long totalReads        = 0;    // Total number of reads
   private long uniqueReads       = 0;    // Number of unique reads
   
   private File tempDir           = null; // Directory where to write temp files
   
-  //Table holding references to intermediate files
-  private Hashtable<String, BufferedWriter>prefixTable;
+  // Intermediate files and their writers, opened on first use
+  private File bucketFiles[];
+  private DataOutputStream bucketWriters[];
+  private FileOutputStream bucketStreams[];  // Synced by the checkpoint writer
+  private long bucketSeeds[];                // Seeds written per bucket
+
+  private File checkpointDir     = null; // Buckets of a checkpointed run
+  private static final int SEED_BYTES = 24;
+
+  // Marks a fragment in the N masks of a seed
+  static final long NO_READ2 = 1L << 63;
+
+  // Distinct sequences per duplication level and the most frequent ones
+  private DuplicationStats duplicationStats = new DuplicationStats(20);
   
   /**
    * Class constructor.
@@ -31,38 +47,127 @@ public class UniquenessCalculator extends MetricsCalculator
   public UniquenessCalculator(File tempDir)
   {
     super();
-    prefixTable  = new Hashtable<String, BufferedWriter>();
-    this.tempDir = tempDir;
+    bucketFiles   = new File[numBuckets];
+    bucketWriters = new DataOutputStream[numBuckets];
+    bucketStreams = new FileOutputStream[numBuckets];
+    bucketSeeds   = new long[numBuckets];
+    this.tempDir  = tempDir;
   }
-  
+
   /**
-   * Process the next set of reads. Calculate the k-mer string for these reads
-   * and store it in the correct file bucket.
+   * Keep the bucket files in the given directory instead of temporary files,
+   * so that they outlive the process and a checkpoint can refer to them.
+   * Must be called before the first read.
+   * @param checkpointDir
+   * @throws IOException
+   */
+  void setCheckpointDir(File checkpointDir) throws IOException
+  {
+    if(!checkpointDir.isDirectory() && !checkpointDir.mkdirs())
+      throw new IOException("Could not create directory " + checkpointDir.getAbsolutePath());
+    this.checkpointDir = checkpointDir;
+  }
+
+  /**
+   * Flush the buckets and write the number of seeds in every bucket. The
+   * buckets are synced by the checkpoint writer thread, see getOpenBuckets.
    */
   @Override
-  void processRead(FastqRecord read1, FastqRecord read2) throws Exception
+  void writeState(DataOutputStream out) throws IOException
   {
-    if(read1 == null)
+    if(checkpointDir == null)
+      throw new IOException("Uniqueness buckets are temporary files and can not be checkpointed");
+
+    int numFiles = 0;
+
+    for(int i = 0; i < numBuckets; i++)
     {
-      throw new Exception("Encountered null/empty record for read 1");
+      if(bucketWriters[i] != null)
+      {
+        bucketWriters[i].flush();
+        numFiles++;
+      }
     }
-    String sequenceRead1 = read1.getReadString();
-    String sequenceRead2 = null;
-	    
-    if(read2 != null)
+    out.writeInt(numFiles);
+
+    for(int i = 0; i < numBuckets; i++)
     {
-      sequenceRead2 = read2.getReadString();
+      if(bucketWriters[i] != null)
+      {
+        out.writeInt(i);
+        out.writeLong(bucketSeeds[i]);
+      }
     }
+  }
 
-    StringBuffer kmerString = new StringBuffer(sequenceRead1.substring(0, seedLength));
-    if(sequenceRead2 != null && !sequenceRead2.isEmpty())
-      kmerString.append(sequenceRead2.substring(0, seedLength));
+  /**
+   * Return the descriptors of the open buckets, to be synced before the
+   * checkpoint taken by writeState is put in place
+   * @throws IOException
+   */
+  ArrayList<FileDescriptor> getOpenBuckets() throws IOException
+  {
+    ArrayList<FileDescriptor> buckets = new ArrayList<FileDescriptor>();
+
+    for(int i = 0; i < numBuckets; i++)
+    {
+      if(bucketStreams[i] != null && bucketWriters[i] != null)
+        buckets.add(bucketStreams[i].getFD());
+    }
+    return buckets;
+  }
 
-    writeToFileBucket(kmerString.toString());
-    kmerString = null;
+  /**
+   * Reopen the buckets of the checkpoint directory, dropping the seeds
+   * written after the checkpoint was taken
+   */
+  @Override
+  void readState(DataInputStream in) throws IOException
+  {
+    if(checkpointDir == null)
+      throw new IOException("Uniqueness buckets are temporary files and can not be restored");
+
+    int numFiles = in.readInt();
+
+    for(int i = 0; i < numFiles; i++)
+    {
+      int key    = in.readInt();
+      long seeds = in.readLong();
+      File file  = getBucketFile(key);
+
+      if(!file.exists() || file.length() < seeds * SEED_BYTES)
+        throw new IOException("Bucket " + file.getAbsolutePath() + " is shorter than the checkpoint");
+
+      RandomAccessFile truncated = new RandomAccessFile(file, "rw");
+      truncated.setLength(seeds * SEED_BYTES);
+      truncated.close();
+
+      bucketFiles[key] = file;
+      openBucket(key, true);
+      bucketSeeds[key] = seeds;
+    }
+  }
+  
+  /**
+   * Process the next set of reads. Calculate the k-mer string for these reads
+   * and store it in the correct file bucket.
+   */
+  @Override
+  void processRead(ScannedRead read1, ScannedRead read2) throws Exception
+  {
+    long seed2  = 0;
+    long nMasks = (long)read1.seedNMask << 32;
 
-    sequenceRead1 = null;
-    sequenceRead2 = null;
+    if(read2 != null && read2.length > 0)
+    {
+      seed2   = read2.seed;
+      nMasks |= read2.seedNMask;
+    }
+    else
+    {
+      nMasks |= NO_READ2;
+    }
+    writeToFileBucket(read1.seed, seed2, nMasks);
   }
 
   /* 
@@ -85,6 +190,20 @@ public class UniquenessCalculator extends MetricsCalculator
     {
       resultMetric.addKeyValue("PercentUnique", "0");
     }
+
+    ResultMetric duplication[] = duplicationStats.buildResultMetrics(totalReads);
+
+    for(int i = 0; i < duplication.length; i++)
+      resultMetric.addResultMetric(duplication[i]);
+  }
+
+  /**
+   * Return the duplication levels, available after calculateResult
+   * @return
+   */
+  DuplicationStats getDuplicationStats()
+  {
+    return duplicationStats;
   }
 
   /** 
@@ -93,29 +212,31 @@ public class UniquenessCalculator extends MetricsCalculator
   @Override
   void calculateResult()
   {
-    BufferedReader fileToRead = null;
-    String fileName           = null;
     UniquenessHelper helper   = null;
     
     try
     {
-      for(BufferedWriter wr: prefixTable.values())
+      for(int i = 0; i < numBuckets; i++)
       {
-        wr.close();
+        if(bucketWriters[i] != null)
+          bucketWriters[i].close();
       }
       System.err.println("Finished generating intermediate files");
-      Enumeration<String> e = prefixTable.keys();
       
-      while(e.hasMoreElements())
+      for(int i = 0; i < numBuckets; i++)
       {
-        fileName    = e.nextElement() + ".seq";
-        fileToRead  = new BufferedReader(new FileReader(new File(tempDir, fileName)));
-        helper      = new UniquenessHelper(fileToRead, tempDir);
+        if(bucketFiles[i] == null)
+          continue;
+
+        helper      = new UniquenessHelper(bucketFiles[i], tempDir, duplicationStats);
         totalReads  += helper.getTotalReads();
  
-        System.err.println("File : " + fileName + " Total Reads : " + totalReads);
+        System.err.println("File : " + bucketFiles[i].getName() + " Total Reads : " + totalReads);
         uniqueReads += helper.getUniqueReads();
-        fileToRead.close();
+
+        // A checkpointed run may still resume until it writes its results
+        if(checkpointDir == null)
+          bucketFiles[i].delete();
       }
     }
     catch(Exception e)
@@ -126,31 +247,61 @@ public class UniquenessCalculator extends MetricsCalculator
   }
 
   /**
-   * Helper method to write the k-mer sequence to a file bucket such that
-   * all these sequences have the same prefix of length prefixLength.
-   * @param kmerSequence
+   * Helper method to write the seed to a file bucket such that all seeds in
+   * a bucket have the same prefix of length prefixLength.
+   * @param seed1
+   * @param seed2
+   * @param nMasks
    */
-  private void writeToFileBucket(String kmerSequence) throws IOException
+  private void writeToFileBucket(long seed1, long seed2, long nMasks) throws IOException
   {
-    BufferedWriter writer   = null;
-    String key = kmerSequence.substring(0, prefixLength);
+    int key = (int)(seed1 >>> (2 * (ReadScanner.SEED_LENGTH - prefixLength)));
+    DataOutputStream writer = bucketWriters[key];
     
-    if(prefixTable.containsKey(key))
+    if(writer == null)
     {
-      writer = prefixTable.get(key);
-      writer.write(kmerSequence);
-      writer.newLine();
+      if(checkpointDir != null)
+      {
+        bucketFiles[key] = getBucketFile(key);
+      }
+      else
+      {
+        bucketFiles[key] = File.createTempFile("uniqbucket" + key + "_", ".seq", tempDir);
+        bucketFiles[key].deleteOnExit();
+      }
+      writer = openBucket(key, false);
     }
-    else
+    writer.writeLong(seed1);
+    writer.writeLong(seed2);
+    writer.writeLong(nMasks);
+    bucketSeeds[key]++;
+  }
+
+  /**
+   * Delete the buckets and the checkpoint directory once the run is complete
+   */
+  void deleteCheckpointDir()
+  {
+    if(checkpointDir == null)
+      return;
+
+    for(int i = 0; i < numBuckets; i++)
     {
-      File file = new File(tempDir, key + ".seq");
-  
-      // Delete the temp files when Java VM exits"
-      // file.deleteOnExit();
-      writer    = new BufferedWriter(new FileWriter(file));
-      writer.write(kmerSequence);
-      writer.newLine();
-      prefixTable.put(key, writer);
+      if(bucketFiles[i] != null)
+        bucketFiles[i].delete();
     }
+    checkpointDir.delete();
+  }
+
+  private DataOutputStream openBucket(int key, boolean append) throws IOException
+  {
+    bucketStreams[key] = new FileOutputStream(bucketFiles[key], append);
+    bucketWriters[key] = new DataOutputStream(new BufferedOutputStream(bucketStreams[key], 16384));
+    return bucketWriters[key];
+  }
+
+  private File getBucketFile(int key)
+  {
+    return new File(checkpointDir, "uniqbucket" + key + ".seq");
   }
 }
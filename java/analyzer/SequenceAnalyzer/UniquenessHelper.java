@@ -8,82 +8,111 @@ import java.util.*;
  * the number of total and unique reads from it.
  * @author Nirav Shah niravs@bcm.edu
  *
- * It uses disk based sorting with priority queues to sort the lines of the 
- * file. This approach should allow this class to be used when sequences from
- * many sequencing events are to be examined for uniqueness.
+ * The file holds seeds of three longs each. They are sorted in a primitive
+ * long array, so that no object is created per read. If the file has more
+ * seeds than fit in memory, sorted segments are written to temp files and
+ * merged with a priority queue. This approach should allow this class to be
+ * used when sequences from many sequencing events are to be examined for
+ * uniqueness.
  */
 class UniquenessHelper
 {
-  private int totalReads         = 0;        // Total reads in given file
-  private int uniqueReads        = 0;        // Num. unique reads in given file
+  static final int SEED_WORDS    = 3;        // Longs per seed
+
+  private long totalReads        = 0;        // Total reads in given file
+  private long uniqueReads       = 0;        // Num. unique reads in given file
   private File tempDir           = null;     // where to write temp files
-  private String memoryBuffer[]  = null;     // to hold records in memory
+  private long memoryBuffer[]    = null;     // to hold records in memory
   private int MAX_READS_IN_RAM   = 10000000; // Max records to store in memory
   private int index              = 0;
   private ArrayList<File> tempFileList;      // List of temporary files
-  
+  private DuplicationStats duplicationStats; // Gets every run of equal seeds
+
   /**
    * Class constructor.
    * @param inputFile
    * @param tempDir
+   * @param duplicationStats - to add the duplication level of every seed to
    * @throws Exception
    */
-  UniquenessHelper(BufferedReader inputFile, File tempDir) throws Exception
+  UniquenessHelper(File inputFile, File tempDir, DuplicationStats duplicationStats)
+                   throws Exception
   {
-    memoryBuffer = new String[MAX_READS_IN_RAM];
+    this.duplicationStats = duplicationStats;
+    long numSeeds = inputFile.length() / (8 * SEED_WORDS);
+
+    memoryBuffer = new long[(int)Math.min(numSeeds, MAX_READS_IN_RAM) * SEED_WORDS];
     this.tempDir = tempDir;
     tempFileList = new ArrayList<File>();
-    readInputFile(inputFile, tempDir);    
+
+    DataInputStream reader = new DataInputStream(new BufferedInputStream(
+                                                 new FileInputStream(inputFile), 65536));
+    try
+    {
+      readInputFile(reader, numSeeds);
+    }
+    finally
+    {
+      reader.close();
+    }
   }
-  
-  int getTotalReads()
+
+  long getTotalReads()
   {
     return totalReads;
   }
-  
-  int getUniqueReads()
+
+  long getUniqueReads()
   {
     return uniqueReads;
   }
-  
+
   /**
    * Read the input file. Sort reads in memory or spill them to temp file.
    * @param reader
-   * @param tempDir
+   * @param numSeeds
    * @throws Exception
    */
-  private void readInputFile(BufferedReader reader, File tempDir) throws Exception
+  private void readInputFile(DataInputStream reader, long numSeeds) throws Exception
   {
-    String line;
-	    
-     while((line = reader.readLine()) != null)
-     {
-       if(index >= MAX_READS_IN_RAM)
-       {
-         spillToTempFile(memoryBuffer.length);
-         index = 0;
-       }
-       memoryBuffer[index++] = line;
-     }
-      
-     /*
-      * The total number of records in file was less than the the maximum
-      * in-memory limit. Hence, perform in-memory uniqueness computation. 
-      */
-     if(tempFileList.isEmpty())
-     {
-       countUnique(index);
-     }
-     else
-     {
-       spillToTempFile(index);
-       // Now read temp files and find unique values.
-       MergeAndComputeResults merge = new MergeAndComputeResults(tempFileList);
-       totalReads  += merge.totalReads;
-       uniqueReads += merge.uniqueReads;
-     }
+    for(long i = 0; i < numSeeds; i++)
+    {
+      if(index >= MAX_READS_IN_RAM)
+      {
+        spillToTempFile(index);
+        index = 0;
+      }
+      int offset = index * SEED_WORDS;
+
+      for(int j = 0; j < SEED_WORDS; j++)
+        memoryBuffer[offset + j] = reader.readLong();
+      index++;
+    }
+
+    /*
+     * The total number of records in file was less than the the maximum
+     * in-memory limit. Hence, perform in-memory uniqueness computation.
+     */
+    if(tempFileList.isEmpty())
+    {
+      countUnique(index);
+    }
+    else
+    {
+      spillToTempFile(index);
+      memoryBuffer = null;
+
+      // Now read temp files and find unique values.
+      MergeAndComputeResults merge = new MergeAndComputeResults(tempFileList,
+                                                                duplicationStats);
+      totalReads  += merge.totalReads;
+      uniqueReads += merge.uniqueReads;
+
+      for(int i = 0; i < tempFileList.size(); i++)
+        tempFileList.get(i).delete();
+    }
   }
-  
+
   /**
    * Helper method to sort the records in memory and write them to a temporary
    * file on disk.
@@ -94,20 +123,20 @@ class UniquenessHelper
   {
     File tempFile = File.createTempFile("uniqsegment", ".tmp", tempDir);
     tempFile.deleteOnExit();
-    
-    BufferedWriter writer = new BufferedWriter(new FileWriter(tempFile));
+
+    DataOutputStream writer = new DataOutputStream(new BufferedOutputStream(
+                                                   new FileOutputStream(tempFile), 65536));
     tempFileList.add(tempFile);
-    
-    Arrays.sort(memoryBuffer, 0, size);
-    
-    for(int i = 0; i < size; i++)
+
+    sortSeeds(memoryBuffer, 0, size);
+
+    for(int i = 0; i < size * SEED_WORDS; i++)
     {
-      writer.write(memoryBuffer[i]);
-      writer.newLine();
+      writer.writeLong(memoryBuffer[i]);
     }
     writer.close();
   }
-  
+
   /**
    * Sort all reads from in-memory buffer and update the values of
    * total reads and unique reads.
@@ -115,22 +144,116 @@ class UniquenessHelper
    */
   private void countUnique(int size)
   {
-    String lastRecord = "";
-    String nextRecord = "";
-    
     totalReads += size;
-    
-    Arrays.sort(memoryBuffer, 0, size);
-    
+
+    sortSeeds(memoryBuffer, 0, size);
+
+    int runStart = 0;
+
     for(int i = 0; i < size; i++)
     {
-      nextRecord = memoryBuffer[i];
-      
-      if(!nextRecord.equalsIgnoreCase(lastRecord))
+      if(i == 0 || compareSeeds(memoryBuffer, i, memoryBuffer, i - 1) != 0)
       {
         uniqueReads++;
+
+        if(i > 0)
+          duplicationStats.addRun(memoryBuffer, runStart, i - runStart);
+        runStart = i;
       }
-      lastRecord = nextRecord;
+    }
+    if(size > 0)
+      duplicationStats.addRun(memoryBuffer, runStart, size - runStart);
+  }
+
+  /**
+   * Compare seed i of array a with seed j of array b
+   */
+  static int compareSeeds(long a[], int i, long b[], int j)
+  {
+    int ai = i * SEED_WORDS;
+    int bj = j * SEED_WORDS;
+
+    for(int k = 0; k < SEED_WORDS; k++)
+    {
+      if(a[ai + k] != b[bj + k])
+        return (a[ai + k] < b[bj + k]) ? -1 : 1;
+    }
+    return 0;
+  }
+
+  private static void swapSeeds(long a[], int i, int j)
+  {
+    int ai = i * SEED_WORDS;
+    int aj = j * SEED_WORDS;
+
+    for(int k = 0; k < SEED_WORDS; k++)
+    {
+      long t    = a[ai + k];
+      a[ai + k] = a[aj + k];
+      a[aj + k] = t;
+    }
+  }
+
+  /**
+   * Sort seeds from to to - 1 of the array in place. It is a quicksort with
+   * three way partitioning, since duplicate reads give many equal seeds.
+   * @param a
+   * @param from
+   * @param to
+   */
+  static void sortSeeds(long a[], int from, int to)
+  {
+    long pivot[] = new long[SEED_WORDS];
+
+    while(to - from > 16)
+    {
+      // Median of the first, middle and last seed as pivot
+      int mid = from + (to - from) / 2;
+      int last = to - 1;
+
+      if(compareSeeds(a, mid, a, from) < 0)
+        swapSeeds(a, mid, from);
+      if(compareSeeds(a, last, a, from) < 0)
+        swapSeeds(a, last, from);
+      if(compareSeeds(a, last, a, mid) < 0)
+        swapSeeds(a, last, mid);
+      System.arraycopy(a, mid * SEED_WORDS, pivot, 0, SEED_WORDS);
+
+      // Partition into < pivot, == pivot and > pivot
+      int lt = from;
+      int gt = last;
+      int i  = from;
+
+      while(i <= gt)
+      {
+        int cmp = compareSeeds(a, i, pivot, 0);
+
+        if(cmp < 0)
+          swapSeeds(a, lt++, i++);
+        else if(cmp > 0)
+          swapSeeds(a, i, gt--);
+        else
+          i++;
+      }
+
+      // Recurse into the smaller part to bound the stack depth
+      if(lt - from < to - gt - 1)
+      {
+        sortSeeds(a, from, lt);
+        from = gt + 1;
+      }
+      else
+      {
+        sortSeeds(a, gt + 1, to);
+        to = lt;
+      }
+    }
+
+    // Insertion sort of small ranges
+    for(int i = from + 1; i < to; i++)
+    {
+      for(int j = i; j > from && compareSeeds(a, j, a, j - 1) < 0; j--)
+        swapSeeds(a, j, j - 1);
     }
   }
 }
@@ -143,117 +266,103 @@ class UniquenessHelper
  */
 class MergeAndComputeResults
 {
-  private PriorityQueue<String> pQueue; // To get least string
-  private String setOfLines[];          // Next set of lines, one line per file
-  private BufferedReader readerList[];  // List of file readers
-  int totalReads  = 0;
-  int uniqueReads = 0;
-  
+  private static final int SEED_WORDS = UniquenessHelper.SEED_WORDS;
+
+  private PriorityQueue<Integer> pQueue; // To get the file with least seed
+  private long setOfSeeds[];             // Next seed of every file
+  private DataInputStream readerList[];  // List of file readers
+  private long remaining[];              // Seeds left to read in each file
+  private DuplicationStats duplicationStats;
+  long totalReads  = 0;
+  long uniqueReads = 0;
+
   /**
    * Class Constructor
    * @param tempFileList
+   * @param duplicationStats
    * @throws Exception
    */
-  MergeAndComputeResults(ArrayList<File> tempFileList) throws Exception
+  MergeAndComputeResults(ArrayList<File> tempFileList, DuplicationStats duplicationStats)
+                         throws Exception
   {
-    setOfLines = new String[tempFileList.size()];
-    readerList = new BufferedReader[tempFileList.size()];
-    pQueue = new PriorityQueue<String>();
-    
+    this.duplicationStats = duplicationStats;
+    setOfSeeds = new long[tempFileList.size() * SEED_WORDS];
+    readerList = new DataInputStream[tempFileList.size()];
+    remaining  = new long[tempFileList.size()];
+
+    pQueue = new PriorityQueue<Integer>(Math.max(1, tempFileList.size()), new Comparator<Integer>()
+    {
+      public int compare(Integer i, Integer j)
+      {
+        return UniquenessHelper.compareSeeds(setOfSeeds, i, setOfSeeds, j);
+      }
+    });
+
    // Create instances of readers to read temp files
     for(int i = 0; i < tempFileList.size(); i++)
     {
-      readerList[i] = new BufferedReader(new FileReader(tempFileList.get(i)));
+      readerList[i] = new DataInputStream(new BufferedInputStream(
+                                          new FileInputStream(tempFileList.get(i)), 65536));
+      remaining[i]  = tempFileList.get(i).length() / (8 * SEED_WORDS);
     }
     mergeResults();
-    
+
     for(int i = 0; i < tempFileList.size(); i++)
       readerList[i].close();
   }
 
   /**
-   * Read all temp files, add lines to priority queue and calculate the
-   * number of unique reads. 
+   * Read all temp files in sorted order and calculate the number of unique
+   * reads.
    * @throws Exception
    */
   void mergeResults() throws Exception
   {
-    String last = "";
-    String next = "";
-    
-    readNextSetOfLines();
-    
-    while(true)
-    {
-      // Break out if no more data to read
-      if(noMoreDataToRead())
-        break;
-      
-      // Get the next line
-      next = pQueue.poll();
-      totalReads++;
-      
-      // If lines are different, update unique reads
-      if(!next.equalsIgnoreCase(last))
-        uniqueReads++;
+    long last[]    = new long[SEED_WORDS];
+    long runLength = 0;
 
-      last = next;
-      
-      for(int i = 0; i < setOfLines.length; i++)
-      {
-        if(next.equalsIgnoreCase(setOfLines[i]))
-        {
-          addLineToPQ(i);
-        }
-      }
+    for(int i = 0; i < readerList.length; i++)
+    {
+      addSeedToPQ(i);
     }
-    
-    // Read out the remaining lines from priority queue
+
     while(!pQueue.isEmpty())
     {
-      next = pQueue.poll();
+      // Get the file with the next seed
+      int next = pQueue.poll();
       totalReads++;
-      if(!next.equalsIgnoreCase(last))
+
+      // If seeds are different, update unique reads
+      if(totalReads == 1 || UniquenessHelper.compareSeeds(setOfSeeds, next, last, 0) != 0)
+      {
         uniqueReads++;
-      last = next;
-    }
-  }
-  
-  /**
-   * Read next line from each open file
-   * @throws Exception
-   */
-  private void readNextSetOfLines() throws Exception
-  {
-    for(int i = 0; i < readerList.length; i++)
-    {
-      addLineToPQ(i);
+
+        if(runLength > 0)
+          duplicationStats.addRun(last, 0, runLength);
+        runLength = 0;
+      }
+      runLength++;
+
+      System.arraycopy(setOfSeeds, next * SEED_WORDS, last, 0, SEED_WORDS);
+      addSeedToPQ(next);
     }
+    if(runLength > 0)
+      duplicationStats.addRun(last, 0, runLength);
   }
-  
+
   /**
-   * Adds the specified line to priority queue.
+   * Read the next seed of a file and add the file to the priority queue
    * @param i
    * @throws Exception
    */
-  private void addLineToPQ(int i) throws Exception
+  private void addSeedToPQ(int i) throws Exception
   {
-    setOfLines[i] = readerList[i].readLine();
-    if(setOfLines[i] != null)
-    {
-      pQueue.offer(setOfLines[i]);
-    }
-  }
-  
-  /**
-   * Method to test if all lines from all temp files have been read.
-   * @return - true - if all data has been read, false otherwise.
-   */
-  private boolean noMoreDataToRead()
-  {
-    for(int i = 0; i < setOfLines.length; i++)
-      if(setOfLines[i] != null)
-        return false;
-    return true;
+    if(remaining[i] == 0)
+      return;
+
+    for(int k = 0; k < SEED_WORDS; k++)
+      setOfSeeds[i * SEED_WORDS + k] = readerList[i].readLong();
+    remaining[i]--;
+    pQueue.offer(i);
   }
 }
@@ -7,6 +7,8 @@ import net.sf.picard.cmdline.Usage;
 import net.sf.picard.io.IoUtil;
 import net.sf.samtools.*;
 import net.sf.samtools.util.RuntimeIOException;
+import common.ProgressMonitor;
+import common.ProgressMonitor.Stage;
 
 import java.io.File;
 import java.io.IOException;
@@ -66,6 +68,12 @@ public class BAMHeaderFixer extends CommandLineProgram
     
   @Option(shortName = "SP", optional=true, doc = "Species (SP) field in SQ tags")
   public String SPECIES;
+
+  @Option(doc = "File to periodically write progress and throughput to", optional=true)
+  public File PROGRESS_FILE;
+
+  @Option(doc = "Seconds between progress reports", optional=true)
+  public int PROGRESS_INTERVAL = 60;
     
   private boolean rgTagAdded = false; // Whether RG tag was added
   private String rgID = "0";          // Default RG tag ID
@@ -82,7 +90,8 @@ public class BAMHeaderFixer extends CommandLineProgram
   protected int doWork()
   {
     IoUtil.assertFileIsReadable(INPUT);
-    long numReadsProcessed = 0;
+    ProgressMonitor monitor = new ProgressMonitor("BAMHeaderFixer", PROGRESS_FILE,
+                                                  PROGRESS_INTERVAL);
 	
     if(OUTPUT != null) OUTPUT = OUTPUT.getAbsoluteFile();
     final boolean differentOutputFile = OUTPUT != null;
@@ -102,25 +111,27 @@ public class BAMHeaderFixer extends CommandLineProgram
     
     SAMRecordIterator iter = reader.iterator();
     SAMRecord record = null;
+    monitor.setOutputFile(OUTPUT);
+    monitor.start();
 
     while(iter.hasNext())
     {
-      numReadsProcessed++;
-      if(numReadsProcessed % 1000000 == 0)
-      {
-        System.err.print("Processed : " + numReadsProcessed + " reads\r");
-      }
+      long t = System.nanoTime();
       record = iter.next();
+      t = monitor.addStageTime(Stage.DECODE, t);
       
       if(rgTagAdded)
         record.setAttribute("RG", rgID);
       
       writer.addAlignment(record);
+      monitor.addStageTime(Stage.WRITE, t);
+      monitor.addRecord();
       record = null;
     }
     writer.close();
     reader.close();
     iter.close();
+    monitor.finish(true);
     
     if(differentOutputFile) return 0;
     else return replaceInputFile();
@@ -6,6 +6,9 @@ import net.sf.picard.cmdline.StandardOptionDefinitions;
 import net.sf.picard.cmdline.Usage;
 import net.sf.picard.io.IoUtil;
 import net.sf.samtools.*;
+import common.ProgressMonitor;
+import common.ProgressMonitor.Stage;
+import common.QualityBinner;
 
 import java.io.File;
 import java.io.IOException;
@@ -29,7 +32,21 @@ public class CIGARFixer extends CommandLineProgram
   @Option(shortName = StandardOptionDefinitions.OUTPUT_SHORT_NAME, optional=true,
           doc = "Where to write cleaned SAM/BAM. If not specified, replaces original input file.")
   public File OUTPUT;
-  
+
+  @Option(doc = "File to periodically write progress and throughput to", optional=true)
+  public File PROGRESS_FILE;
+
+  @Option(doc = "Seconds between progress reports", optional=true)
+  public int PROGRESS_INTERVAL = 60;
+
+  @Option(doc = "Bin base qualities into a few levels, so that the output compresses better",
+          optional=true)
+  public boolean BIN_QUALITIES = false;
+
+  @Option(doc = "Comma separated bins of Phred qualities, low-high:value. Default value: " +
+          QualityBinner.ILLUMINA_8_LEVEL, optional=true)
+  public String QUALITY_BINS;
+
   public static void main(String[] args)
   {
     new CIGARFixer().instanceMainWithExit(args);
@@ -41,10 +58,11 @@ public class CIGARFixer extends CommandLineProgram
   @Override
   protected int doWork()
   {
+    ProgressMonitor monitor = new ProgressMonitor("CIGARFixer", PROGRESS_FILE, PROGRESS_INTERVAL);
+
     try
     {
       IoUtil.assertFileIsReadable(INPUT);
-      int numReadsProcessed = 0;
       
       if(OUTPUT != null) OUTPUT = OUTPUT.getAbsoluteFile();
       
@@ -60,27 +78,40 @@ public class CIGARFixer extends CommandLineProgram
       SAMFileWriter writer = new
       SAMFileWriterFactory().makeSAMOrBAMWriter(reader.getFileHeader(), true, OUTPUT);
       SAMRecord rec = null;
+      QualityBinner binner = BIN_QUALITIES ? new QualityBinner(QUALITY_BINS) : null;
       
       SAMRecordIterator it = reader.iterator();
+      monitor.setOutputFile(OUTPUT);
+      monitor.start();
+
       while(it.hasNext())
       {
-        numReadsProcessed++;
-        if(numReadsProcessed % 10000000 == 0)
-        {
-          System.err.print("Processed : " + numReadsProcessed + " reads\r");
-        }
+        long t = System.nanoTime();
         rec = it.next();
-        writer.addAlignment(SAMRecordFixer.fixCIGARForUnmappedReads(rec));
+        t = monitor.addStageTime(Stage.DECODE, t);
+        rec = SAMRecordFixer.fixCIGARForUnmappedReads(rec);
+
+        if(binner != null)
+          SAMRecordFixer.binQualities(rec, binner);
+        t = monitor.addStageTime(Stage.CALCULATE, t);
+        writer.addAlignment(rec);
+        monitor.addStageTime(Stage.WRITE, t);
+        monitor.addRecord();
       }
       writer.close();
       reader.close();
       it.close();
+      monitor.finish(true);
+
+      if(binner != null)
+        binner.printReport(System.out);
       
       if(differentOutputFile) return 0;
       else return replaceInputFile();
     }
     catch(Exception e)
     {
+      monitor.finish(false);
       System.err.println(e.getMessage());
       e.printStackTrace();
       return -1;
@@ -0,0 +1,538 @@
+package bamtools;
+
+import net.sf.samtools.*;
+import net.sf.samtools.util.BlockCompressedInputStream;
+import net.sf.samtools.util.BlockCompressedOutputStream;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+import java.util.concurrent.*;
+
+/**
+ * Class to sort SAM records in coordinate order using external memory.
+ * Records are encoded in BAM format into large off-heap buffers. Each full
+ * buffer is sorted on a primitive (reference index, position, flags) key and
+ * written as a run to a temporary file by a pool of threads, while the caller
+ * keeps filling the next buffer. Runs are written with a fast compression
+ * level and merged in a single k-way pass straight into the final writer.
+ * @author Nirav Shah niravs@bcm.edu
+ *
+ */
+public class CoordinateSorter
+{
+  private static final int MAX_REFERENCE_INDEX = 0xFFFFF; // 20 bits, used for unmapped reads
+  private static final int MAX_BUFFER_MB       = 2000;    // Largest ByteBuffer is 2GB
+  private static final int DEFAULT_MAX_MEMORY_MB = 4096;  // Default memory at most
+
+  private SAMFileHeader header;       // Header of the records to sort
+  private File tempDir;               // Where to write the runs
+  private int bufferSize;             // Size of one off-heap buffer in bytes
+  private int runCompressionLevel;    // Compression level of run files
+
+  private ExecutorService runWriters;                // Sorts and writes runs
+  private LinkedBlockingQueue<SortBuffer> freeBuffers; // Buffers ready for reuse
+  private ArrayList<Future<File>> runs;              // Runs written so far
+  private SortBuffer currentBuffer;                  // Buffer being filled
+
+  private ExposedByteArrayOutputStream staging;      // Encoded current record
+  private BAMRecordCodec encoder;                    // Encodes into staging
+  private long numRecords = 0;                       // Records added
+
+  /**
+   * One off-heap buffer of BAM encoded records with their sort keys.
+   */
+  private static class SortBuffer
+  {
+    ByteBuffer data;        // Encoded records
+    long keys[];            // Sort key of each record
+    int offsets[];          // Start of each record in data
+    int count;              // Number of records in the buffer
+
+    SortBuffer(int size)
+    {
+      data    = ByteBuffer.allocateDirect(size);
+      keys    = new long[Math.max(1024, size / 256)];
+      offsets = new int[keys.length];
+      count   = 0;
+    }
+
+    void clear()
+    {
+      data.clear();
+      count = 0;
+    }
+
+    int recordEnd(int idx)
+    {
+      return (idx + 1 < count) ? offsets[idx + 1] : data.position();
+    }
+  }
+
+  /**
+   * Class constructor. The memory is split into numThreads + 1 off-heap
+   * buffers, which must fit in the direct memory of the JVM.
+   * @param header - header of the records, must contain the sequence dictionary
+   * @param tempDir - directory for temporary run files
+   * @param memoryMB - total size of the in-memory buffers in MB
+   * @param numThreads - number of threads sorting and writing runs
+   * @param runCompressionLevel - compression level of run files
+   */
+  public CoordinateSorter(SAMFileHeader header, File tempDir, int memoryMB,
+                          int numThreads, int runCompressionLevel)
+  {
+    if(numThreads < 1)
+      numThreads = 1;
+
+    int bufferSizeMB  = memoryMB / (numThreads + 1);
+    long directMemory = getMaxDirectMemory();
+
+    if(bufferSizeMB < 1 || bufferSizeMB > MAX_BUFFER_MB)
+      throw new IllegalArgumentException("Sort memory must be between 1 and " + MAX_BUFFER_MB +
+                                         " MB for each of " + (numThreads + 1) + " buffers");
+    if((long)memoryMB << 20 > directMemory)
+      throw new IllegalArgumentException("Sort memory of " + memoryMB + " MB exceeds the " +
+                                         (directMemory >> 20) + " MB of direct memory. " +
+                                         "Raise -XX:MaxDirectMemorySize or lower the memory");
+
+    this.header              = header;
+    this.tempDir             = tempDir;
+    this.bufferSize          = bufferSizeMB * 1024 * 1024;
+    this.runCompressionLevel = runCompressionLevel;
+
+    runWriters  = Executors.newFixedThreadPool(numThreads);
+    freeBuffers = new LinkedBlockingQueue<SortBuffer>();
+    runs        = new ArrayList<Future<File>>();
+
+    // One buffer per run writer, plus the one being filled
+    for(int i = 0; i < numThreads; i++)
+      freeBuffers.add(new SortBuffer(bufferSize));
+    currentBuffer = new SortBuffer(bufferSize);
+
+    staging = new ExposedByteArrayOutputStream();
+    encoder = new BAMRecordCodec(header);
+    encoder.setOutputStream(staging);
+  }
+
+  /**
+   * Return the default total memory for sort buffers in MB: half of the direct
+   * memory of the JVM or of the RAM left over by the heap, whichever is less,
+   * and at most DEFAULT_MAX_MEMORY_MB. Each buffer gets at least 64 MB as
+   * long as that fits in half of the direct memory.
+   * @param numThreads - number of threads sorting and writing runs
+   * @return
+   */
+  public static int getDefaultMemoryMB(int numThreads)
+  {
+    long direct    = getMaxDirectMemory();
+    long available = direct;
+    java.lang.management.OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+
+    if(os instanceof com.sun.management.OperatingSystemMXBean)
+    {
+      long ram = ((com.sun.management.OperatingSystemMXBean)os).getTotalPhysicalMemorySize();
+      available = Math.min(available, ram - Runtime.getRuntime().maxMemory());
+    }
+
+    int buffers = Math.max(1, numThreads) + 1;
+    long memoryMB = Math.min(available / 2 >> 20, DEFAULT_MAX_MEMORY_MB);
+    memoryMB = Math.min(memoryMB, (long)MAX_BUFFER_MB * buffers);
+    return (int)Math.max(memoryMB, Math.min(64L * buffers, Math.max(direct / 2 >> 20, buffers)));
+  }
+
+  /**
+   * Return the direct memory the JVM can allocate, given by
+   * -XX:MaxDirectMemorySize and otherwise equal to the maximum heap size.
+   * @return
+   */
+  public static long getMaxDirectMemory()
+  {
+    String option = "-XX:MaxDirectMemorySize=";
+
+    for(String arg : ManagementFactory.getRuntimeMXBean().getInputArguments())
+    {
+      if(!arg.startsWith(option))
+        continue;
+
+      String value = arg.substring(option.length()).toLowerCase();
+      char unit = value.charAt(value.length() - 1);
+      int shift = (unit == 'k') ? 10 : (unit == 'm') ? 20 : (unit == 'g') ? 30 : 0;
+
+      if(shift > 0)
+        value = value.substring(0, value.length() - 1);
+      return Long.parseLong(value) << shift;
+    }
+    return Runtime.getRuntime().maxMemory();
+  }
+
+  /**
+   * Add the next record
+   * @param rec
+   * @throws Exception
+   */
+  public void add(SAMRecord rec) throws Exception
+  {
+    staging.reset();
+    encoder.encode(rec);
+    int size = staging.size();
+
+    if(size > bufferSize)
+      throw new Exception("Record " + rec.getReadName() + " is larger than the sort buffer");
+
+    if(size > currentBuffer.data.remaining())
+      spillCurrentBuffer();
+
+    SortBuffer buf = currentBuffer;
+
+    if(buf.count == buf.keys.length)
+    {
+      buf.keys    = Arrays.copyOf(buf.keys, buf.keys.length * 2);
+      buf.offsets = Arrays.copyOf(buf.offsets, buf.offsets.length * 2);
+    }
+    buf.keys[buf.count]    = getSortKey(rec);
+    buf.offsets[buf.count] = buf.data.position();
+    buf.count++;
+    buf.data.put(staging.getBuffer(), 0, size);
+    numRecords++;
+  }
+
+  /**
+   * Write all records in coordinate order to the writer and release
+   * temporary files and threads. The writer must be created as presorted.
+   * @param writer
+   * @throws Exception
+   */
+  public void finish(SAMFileWriter writer) throws Exception
+  {
+    try
+    {
+      if(runs.isEmpty())
+      {
+        // Everything fit in memory, no need to touch the disk
+        int order[] = sortBuffer(currentBuffer);
+        writeFromMemory(currentBuffer, order, writer);
+      }
+      else
+      {
+        if(currentBuffer.count > 0)
+          spillCurrentBuffer();
+        mergeRuns(writer);
+      }
+      System.err.println("Sorted " + numRecords + " records using " + runs.size() + " runs");
+    }
+    finally
+    {
+      runWriters.shutdownNow();
+      for(Future<File> run : runs)
+      {
+        if(run.isDone() && !run.isCancelled())
+        {
+          try
+          {
+            run.get().delete();
+          }
+          catch(ExecutionException e) { }
+        }
+      }
+    }
+  }
+
+  /**
+   * Hand the current buffer to the run writers and continue with a free one.
+   * Blocks while all buffers are being sorted or written.
+   * @throws Exception
+   */
+  private void spillCurrentBuffer() throws Exception
+  {
+    final SortBuffer toSort = currentBuffer;
+
+    runs.add(runWriters.submit(new Callable<File>()
+    {
+      public File call() throws Exception
+      {
+        try
+        {
+          return writeRun(toSort, sortBuffer(toSort));
+        }
+        finally
+        {
+          toSort.clear();
+          freeBuffers.add(toSort);
+        }
+      }
+    }));
+    currentBuffer = freeBuffers.take();
+  }
+
+  /**
+   * Sort one buffer and write it to a temporary run file. Each entry is the
+   * sort key followed by the BAM encoded record.
+   * @param buf
+   * @param order
+   * @return
+   * @throws IOException
+   */
+  private File writeRun(SortBuffer buf, int order[]) throws IOException
+  {
+    File runFile = File.createTempFile("sortrun", ".tmp", tempDir);
+    runFile.deleteOnExit();
+
+    DataOutputStream out = new DataOutputStream(
+                           new BlockCompressedOutputStream(runFile, runCompressionLevel));
+    byte record[]     = new byte[64 * 1024];
+    ByteBuffer source = buf.data.duplicate();
+
+    for(int i = 0; i < buf.count; i++)
+    {
+      int idx   = order[i];
+      int start = buf.offsets[idx];
+      int len   = buf.recordEnd(idx) - start;
+
+      if(len > record.length)
+        record = new byte[len];
+
+      source.limit(start + len);
+      source.position(start);
+      source.get(record, 0, len);
+
+      out.writeLong(buf.keys[idx]);
+      out.write(record, 0, len);
+    }
+    out.close();
+    return runFile;
+  }
+
+  /**
+   * Write a sorted buffer to the writer without going through the disk
+   * @param buf
+   * @param order
+   * @param writer
+   */
+  private void writeFromMemory(SortBuffer buf, int order[], SAMFileWriter writer)
+  {
+    BAMRecordCodec decoder = new BAMRecordCodec(header);
+    ByteBufferInputStream in = new ByteBufferInputStream(buf.data.duplicate());
+    decoder.setInputStream(in);
+
+    for(int i = 0; i < buf.count; i++)
+    {
+      int idx = order[i];
+      in.setRange(buf.offsets[idx], buf.recordEnd(idx));
+      writer.addAlignment(decoder.decode());
+    }
+  }
+
+  /**
+   * Merge all runs in one pass into the writer
+   * @param writer
+   * @throws Exception
+   */
+  private void mergeRuns(SAMFileWriter writer) throws Exception
+  {
+    PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>();
+
+    for(int i = 0; i < runs.size(); i++)
+    {
+      RunReader reader = new RunReader(runs.get(i).get(), i, header);
+
+      if(reader.advance())
+        queue.add(reader);
+    }
+
+    while(!queue.isEmpty())
+    {
+      RunReader reader = queue.poll();
+      writer.addAlignment(reader.record);
+
+      if(reader.advance())
+        queue.add(reader);
+      else
+        reader.close();
+    }
+  }
+
+  /**
+   * Build the sort key of a record. Reference index takes 20 bits, alignment
+   * start 31 bits and the flags 12 bits, so that keys stay positive and
+   * unmapped reads without position sort last.
+   * @param rec
+   * @return
+   */
+  static long getSortKey(SAMRecord rec)
+  {
+    int refIndex = rec.getReferenceIndex().intValue();
+
+    if(refIndex < 0)
+      refIndex = MAX_REFERENCE_INDEX;
+    else
+    if(refIndex >= MAX_REFERENCE_INDEX)
+      throw new IllegalArgumentException("Too many reference sequences to sort");
+
+    return ((long)refIndex << 43) |
+           ((long)(rec.getAlignmentStart() & 0x7FFFFFFF) << 12) |
+           (rec.getFlags() & 0xFFF);
+  }
+
+  /**
+   * Stable sort of the buffer on the keys. Returns record indexes in sorted
+   * order.
+   * @param buf
+   * @return
+   */
+  private static int[] sortBuffer(SortBuffer buf)
+  {
+    int order[]   = new int[buf.count];
+    int scratch[] = new int[buf.count];
+
+    for(int i = 0; i < order.length; i++)
+      order[i] = i;
+
+    mergeSort(buf.keys, order, scratch, 0, order.length);
+    return order;
+  }
+
+  /**
+   * Merge sort of indexes [from, to) on their keys
+   */
+  private static void mergeSort(long keys[], int order[], int scratch[], int from, int to)
+  {
+    if(to - from < 32)
+    {
+      // Insertion sort for small ranges
+      for(int i = from + 1; i < to; i++)
+      {
+        int idx  = order[i];
+        long key = keys[idx];
+        int j    = i - 1;
+
+        while(j >= from && keys[order[j]] > key)
+        {
+          order[j + 1] = order[j];
+          j--;
+        }
+        order[j + 1] = idx;
+      }
+      return;
+    }
+    int mid = (from + to) >>> 1;
+    mergeSort(keys, order, scratch, from, mid);
+    mergeSort(keys, order, scratch, mid, to);
+
+    if(keys[order[mid - 1]] <= keys[order[mid]])
+      return;
+
+    System.arraycopy(order, from, scratch, from, to - from);
+    int i = from, j = mid, k = from;
+
+    while(i < mid && j < to)
+      order[k++] = (keys[scratch[j]] < keys[scratch[i]]) ? scratch[j++] : scratch[i++];
+    while(i < mid)
+      order[k++] = scratch[i++];
+    while(j < to)
+      order[k++] = scratch[j++];
+  }
+
+  /**
+   * Reads one run file during the merge
+   */
+  private static class RunReader implements Comparable<RunReader>
+  {
+    private DataInputStream in;
+    private BAMRecordCodec decoder;
+    private File runFile;
+    private int runIndex;   // Breaks ties so that the merge stays stable
+    long key;               // Key of the current record
+    SAMRecord record;       // Current record
+
+    RunReader(File runFile, int runIndex, SAMFileHeader header) throws IOException
+    {
+      this.runFile  = runFile;
+      this.runIndex = runIndex;
+      in      = new DataInputStream(new BlockCompressedInputStream(runFile));
+      decoder = new BAMRecordCodec(header);
+      decoder.setInputStream(in);
+    }
+
+    boolean advance() throws IOException
+    {
+      try
+      {
+        key = in.readLong();
+      }
+      catch(EOFException e)
+      {
+        record = null;
+        return false;
+      }
+      record = decoder.decode();
+      return record != null;
+    }
+
+    void close() throws IOException
+    {
+      in.close();
+      runFile.delete();
+    }
+
+    public int compareTo(RunReader other)
+    {
+      if(key != other.key)
+        return key < other.key ? -1 : 1;
+      return runIndex - other.runIndex;
+    }
+  }
+
+  /**
+   * ByteArrayOutputStream that exposes its buffer to avoid a copy
+   */
+  private static class ExposedByteArrayOutputStream extends ByteArrayOutputStream
+  {
+    ExposedByteArrayOutputStream()
+    {
+      super(4096);
+    }
+
+    byte[] getBuffer()
+    {
+      return buf;
+    }
+  }
+
+  /**
+   * InputStream over a range of a ByteBuffer
+   */
+  private static class ByteBufferInputStream extends InputStream
+  {
+    private ByteBuffer buffer;
+
+    ByteBufferInputStream(ByteBuffer buffer)
+    {
+      this.buffer = buffer;
+    }
+
+    void setRange(int start, int end)
+    {
+      buffer.limit(end);
+      buffer.position(start);
+    }
+
+    @Override
+    public int read()
+    {
+      return buffer.hasRemaining() ? (buffer.get() & 0xFF) : -1;
+    }
+
+    @Override
+    public int read(byte b[], int off, int len)
+    {
+      if(!buffer.hasRemaining())
+        return -1;
+      len = Math.min(len, buffer.remaining());
+      buffer.get(b, off, len);
+      return len;
+    }
+  }
+}
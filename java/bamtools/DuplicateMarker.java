@@ -0,0 +1,679 @@
+package bamtools;
+
+import net.sf.picard.cmdline.CommandLineProgram;
+import net.sf.picard.cmdline.Option;
+import net.sf.picard.cmdline.StandardOptionDefinitions;
+import net.sf.picard.cmdline.Usage;
+import net.sf.picard.io.IoUtil;
+import net.sf.samtools.*;
+import net.sf.samtools.SAMFileHeader.SortOrder;
+import common.ProgressMonitor;
+import common.ProgressMonitor.Stage;
+
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Class to mark duplicate reads in a coordinate sorted SAM/BAM in a single
+ * streaming pass. It replaces running Picard's SortSam.jar and
+ * MarkDuplicates.jar on the output of MateInfoFixer.
+ *
+ * Fragments are grouped on (library, strand, unclipped 5' position). Pairs are
+ * grouped on (library, strand and unclipped 5' position of both ends). Each end
+ * finds the unclipped 5' position and base quality score of its mate from the
+ * MC and ms tags written by MateInfoFixer, so both ends of a pair reach the
+ * same decision without seeing each other, and only reads within a sliding
+ * genomic window are held in memory. Within a group, the read or pair with the
+ * highest sum of base qualities is kept, ties going to the lowest read name.
+ * Pairs without the tags are grouped on the alignment starts of both ends and
+ * chosen by read name.
+ *
+ * The duplicate reads and their bases are also counted for each read group
+ * and read type, so that BAMAnalyzer need not read the BAM again for them.
+ * @author Nirav Shah niravs@bcm.edu
+ *
+ */
+public class DuplicateMarker extends CommandLineProgram
+{
+  @Usage
+  public String USAGE = getStandardUsagePreamble() +
+  "Read a coordinate sorted SAM/BAM and mark duplicate reads in one pass.\r\n" +
+  "The output is written in coordinate sorted order.";
+
+  @Option(shortName = StandardOptionDefinitions.INPUT_SHORT_NAME,
+          doc = "Coordinate sorted input SAM/BAM")
+  public File INPUT;
+
+  @Option(shortName = StandardOptionDefinitions.OUTPUT_SHORT_NAME,
+          doc = "Where to write SAM/BAM with duplicates marked.")
+  public File OUTPUT;
+
+  @Option(shortName = "M", optional=true,
+          doc = "File to write duplication metrics in txt format")
+  public File METRICS_FILE;
+
+  @Option(shortName = "BI", doc = "Build a BAM index (.bai) of OUTPUT while writing it",
+          optional=true)
+  public boolean BUILD_INDEX = false;
+
+  @Option(shortName = "W", doc = "Size of the genomic window (in bases) to " +
+          "hold in memory. Must exceed the largest read length plus clipping.")
+  public int WINDOW = 1000;
+
+  @Option(doc = "File to periodically write progress and throughput to", optional=true)
+  public File PROGRESS_FILE;
+
+  @Option(doc = "Seconds between progress reports", optional=true)
+  public int PROGRESS_INTERVAL = 60;
+
+  private static final long POSITION_OFFSET = 1L << 30; // Keeps unclipped positions positive
+
+  // Header of the duplicate counts in the metrics file
+  public static final String DUPLICATE_COUNTS_HEADER =
+    "ReadGroup\tReadType\tDuplicateReads\tDuplicateValidBases";
+
+  private SAMFileWriter writer = null;
+
+  // Reads waiting for their duplicate decision, in input order
+  private ArrayDeque<PendingRead> pendingReads = new ArrayDeque<PendingRead>();
+
+  // Open fragment and pair sets keyed by signature, and both in order of creation
+  private HashMap<Long, DuplicateSet> fragmentSets = new HashMap<Long, DuplicateSet>();
+  private HashMap<PairSignature, DuplicateSet> pairSets = new HashMap<PairSignature, DuplicateSet>();
+  private ArrayDeque<DuplicateSet> setOrder = new ArrayDeque<DuplicateSet>();
+
+  // Library ordinal for each read group ID, resolved once from the header
+  private HashMap<String, Integer> libraryOrdinals = new HashMap<String, Integer>();
+  private String lastReadGroup = null;
+  private int lastLibraryOrdinal = 0;
+
+  private int currentReference = -1; // Reference index of current position
+  private int currentStart     = 0;  // Alignment start of current position
+
+  private long unpairedReadsExamined = 0; // Fragments or reads with unmapped mates
+  private long pairedReadsExamined   = 0; // Reads where both ends are mapped
+  private long unpairedDuplicates    = 0; // Fragments marked duplicate
+  private long pairedDuplicates      = 0; // Paired reads marked duplicate
+  private long unmappedReads         = 0; // Unmapped reads, never marked
+  private long secondaryReads        = 0; // Not primary alignments, never marked
+  private long untaggedPairedReads   = 0; // Paired reads without MC and ms tags
+
+  // Duplicate reads and their non-N bases, by read group and read type
+  private TreeMap<String, long[]> duplicateCounts = new TreeMap<String, long[]>();
+
+  /**
+   * A group of reads sharing a duplicate signature.
+   */
+  private class DuplicateSet
+  {
+    Object signature;       // Signature shared by all reads of the set
+    int referenceIndex;     // Reference where the set was created
+    int closePosition;      // After this position no new members can arrive
+    boolean isPairSet;      // True for pairs, false for fragments
+    boolean hasPairedRead;  // A mapped pair has an end at this fragment position
+    SAMRecord best;         // Fragment that is not a duplicate
+    String bestName;        // Name of the pair that is not a duplicate
+    long bestScore;         // Score of the best read or pair
+  }
+
+  /**
+   * Signature of a pair. Both ends compute the same ends, each a packed long
+   * of (reference, strand, unclipped 5' position), with the lower end first.
+   * The library also tells whether this read is the upper end, so that the
+   * lower and upper ends of a group of pairs are separate sets, each complete
+   * within the window of its own position.
+   */
+  private static class PairSignature
+  {
+    final long lowerEnd;
+    final long upperEnd;
+    final int library;
+
+    PairSignature(long lowerEnd, long upperEnd, int library)
+    {
+      this.lowerEnd = lowerEnd;
+      this.upperEnd = upperEnd;
+      this.library  = library;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+      if(!(o instanceof PairSignature))
+        return false;
+      PairSignature other = (PairSignature)o;
+      return lowerEnd == other.lowerEnd && upperEnd == other.upperEnd &&
+             library == other.library;
+    }
+
+    @Override
+    public int hashCode()
+    {
+      long h = lowerEnd * 0x9E3779B97F4A7C15L + upperEnd;
+      h = h * 31 + library;
+      return (int)(h ^ (h >>> 32));
+    }
+  }
+
+  /**
+   * A read held in the window.
+   */
+  private class PendingRead
+  {
+    SAMRecord record;       // The read
+    DuplicateSet set;       // Set it belongs to, null if it is not examined
+
+    PendingRead(SAMRecord record)
+    {
+      this.record = record;
+    }
+  }
+
+  /**
+   * Main method.
+   */
+  public static void main(String[] args)
+  {
+    new DuplicateMarker().instanceMainWithExit(args);
+  }
+
+  /**
+   * Method to do the actual work.
+   */
+  @Override
+  protected int doWork()
+  {
+    ProgressMonitor monitor = new ProgressMonitor("DuplicateMarker", PROGRESS_FILE,
+                                                  PROGRESS_INTERVAL);
+    try
+    {
+      IoUtil.assertFileIsReadable(INPUT);
+      OUTPUT = OUTPUT.getAbsoluteFile();
+      IoUtil.assertFileIsWritable(OUTPUT);
+
+      if(METRICS_FILE != null)
+        IoUtil.assertFileIsWritable(METRICS_FILE);
+
+      if(WINDOW < 1)
+        throw new Exception("WINDOW must be at least 1");
+
+      SAMFileReader.setDefaultValidationStringency(SAMFileReader.ValidationStringency.SILENT);
+      SAMFileReader reader = new SAMFileReader(INPUT);
+      SAMFileHeader header = reader.getFileHeader();
+
+      if(header.getSortOrder() != SortOrder.coordinate)
+        throw new Exception("Input must be coordinate sorted : " + INPUT.getAbsolutePath());
+
+      buildLibraryOrdinals(header);
+      SAMFileWriterFactory writerFactory = new SAMFileWriterFactory();
+      writerFactory.setCreateIndex(BUILD_INDEX);
+      writer = writerFactory.makeSAMOrBAMWriter(header, true, OUTPUT);
+
+      SAMRecordIterator it = reader.iterator();
+      monitor.setOutputFile(OUTPUT);
+      monitor.start();
+
+      while(it.hasNext())
+      {
+        long t = System.nanoTime();
+        SAMRecord rec = it.next();
+        t = monitor.addStageTime(Stage.DECODE, t);
+        processRecord(rec);
+        monitor.addStageTime(Stage.CALCULATE, t);
+        monitor.addRecord();
+      }
+      emitPendingReads(true);
+
+      writer.close();
+      it.close();
+      reader.close();
+      monitor.finish(true);
+
+      logMetrics();
+      return 0;
+    }
+    catch(Exception e)
+    {
+      monitor.finish(false);
+      System.err.println(e.getMessage());
+      e.printStackTrace();
+      return -1;
+    }
+  }
+
+  /**
+   * Add the next record to the window and write out the reads whose
+   * duplicate decision is complete.
+   * @param rec
+   * @throws Exception
+   */
+  private void processRecord(SAMRecord rec) throws Exception
+  {
+    PendingRead pending = new PendingRead(rec);
+    rec.setDuplicateReadFlag(false);
+
+    int refIndex = rec.getReferenceIndex().intValue();
+
+    if(refIndex >= 0)
+      advancePosition(refIndex, rec.getAlignmentStart());
+    else
+      emitPendingReads(true);
+
+    if(rec.getReadUnmappedFlag())
+      unmappedReads++;
+    else
+    if(rec.getNotPrimaryAlignmentFlag())
+      secondaryReads++;
+    else
+    if(rec.getReadPairedFlag() && !rec.getMateUnmappedFlag())
+    {
+      pairedReadsExamined++;
+      pending.set = addToPairSet(rec);
+
+      // A fragment at the same 5' position as an end of a pair is a duplicate
+      addToFragmentSet(rec, true);
+    }
+    else
+    {
+      unpairedReadsExamined++;
+      pending.set = addToFragmentSet(rec, false);
+    }
+    pendingReads.add(pending);
+    emitPendingReads(false);
+  }
+
+  /**
+   * Move the current position of the stream. If the reference changes, every
+   * set is complete and all pending reads are written.
+   * @param refIndex
+   * @param start
+   * @throws Exception
+   */
+  private void advancePosition(int refIndex, int start) throws Exception
+  {
+    if(refIndex != currentReference)
+    {
+      emitPendingReads(true);
+      currentReference = refIndex;
+      currentStart     = start;
+    }
+    else
+    if(start != currentStart)
+    {
+      if(start < currentStart)
+        throw new Exception("Input is not coordinate sorted at position " +
+                            start + " of reference index " + refIndex);
+      currentStart = start;
+    }
+  }
+
+  /**
+   * Add a fragment (or one end of a mapped pair) to the set for its 5'
+   * position. Returns the set the read belongs to.
+   * @param rec
+   * @param isPairedRead
+   * @return
+   */
+  private DuplicateSet addToFragmentSet(SAMRecord rec, boolean isPairedRead)
+  {
+    boolean reverse = rec.getReadNegativeStrandFlag();
+    int fivePrime   = reverse ? rec.getUnclippedEnd() : rec.getUnclippedStart();
+    Long signature  = Long.valueOf(getEndSignature(getLibraryOrdinal(rec), reverse, fivePrime));
+
+    DuplicateSet set = fragmentSets.get(signature);
+
+    if(set == null || isClosed(set))
+    {
+      set = createSet(signature, fivePrime, false);
+      fragmentSets.put(signature, set);
+    }
+
+    if(isPairedRead)
+    {
+      set.hasPairedRead = true;
+      return null;
+    }
+
+    long score = SAMRecordFixer.getBaseQualityScore(rec);
+
+    if(score > set.bestScore)
+    {
+      set.best      = rec;
+      set.bestScore = score;
+    }
+    return set;
+  }
+
+  /**
+   * Add one end of a mapped pair to the set of pairs with the same signature.
+   * The set holds the same end of every pair of the group, so it sees the
+   * same pairs and keeps the same pair as the set of the other end.
+   * @param rec
+   * @return
+   */
+  private DuplicateSet addToPairSet(SAMRecord rec)
+  {
+    Object mateCigar = rec.getAttribute(SAMRecordFixer.MATE_CIGAR_TAG);
+    Object mateScore = rec.getAttribute(SAMRecordFixer.MATE_SCORE_TAG);
+    boolean reverse     = rec.getReadNegativeStrandFlag();
+    boolean mateReverse = rec.getMateNegativeStrandFlag();
+    boolean tagged      = (mateCigar != null && mateScore instanceof Number);
+    int fivePrime;
+    int mateFivePrime;
+    long score;
+
+    if(tagged)
+    {
+      fivePrime     = reverse ? rec.getUnclippedEnd() : rec.getUnclippedStart();
+      mateFivePrime = getUnclippedFivePrime(rec.getMateAlignmentStart(), mateReverse,
+                                            mateCigar.toString());
+      score         = SAMRecordFixer.getBaseQualityScore(rec) +
+                      ((Number)mateScore).longValue();
+    }
+    else
+    {
+      // Without the mate's CIGAR only alignment starts are known to both ends
+      fivePrime     = rec.getAlignmentStart();
+      mateFivePrime = rec.getMateAlignmentStart();
+      score         = 0;
+      untaggedPairedReads++;
+    }
+
+    long end     = getEndSignature(rec.getReferenceIndex().intValue(), reverse, fivePrime);
+    long mateEnd = getEndSignature(rec.getMateReferenceIndex().intValue(), mateReverse,
+                                   mateFivePrime);
+    boolean isUpperEnd = end > mateEnd;
+    int library = (getLibraryOrdinal(rec) << 2) | (tagged ? 0 : 2) | (isUpperEnd ? 1 : 0);
+    PairSignature signature = isUpperEnd ? new PairSignature(mateEnd, end, library) :
+                                           new PairSignature(end, mateEnd, library);
+
+    DuplicateSet set = pairSets.get(signature);
+
+    if(set == null || isClosed(set))
+    {
+      set = createSet(signature, fivePrime, true);
+      pairSets.put(signature, set);
+    }
+
+    String name = rec.getReadName();
+
+    if(set.bestName == null || score > set.bestScore ||
+       (score == set.bestScore && name.compareTo(set.bestName) < 0))
+    {
+      set.bestName  = name;
+      set.bestScore = score;
+    }
+    return set;
+  }
+
+  /**
+   * Create a set at the current position. No more members can arrive once the
+   * stream is past the 5' position by more than the window.
+   */
+  private DuplicateSet createSet(Object signature, int fivePrime, boolean isPairSet)
+  {
+    DuplicateSet set = new DuplicateSet();
+    set.signature      = signature;
+    set.referenceIndex = currentReference;
+    set.closePosition  = Math.max(fivePrime, currentStart) + WINDOW;
+    set.isPairSet      = isPairSet;
+    set.bestScore      = -1;
+    setOrder.add(set);
+    return set;
+  }
+
+  /**
+   * Pack (prefix, strand, unclipped 5' position) into a long. The prefix is the
+   * library for fragments and the reference for ends of pairs.
+   */
+  private static long getEndSignature(int prefix, boolean reverse, int fivePrime)
+  {
+    return ((long)prefix << 33) | ((reverse ? 1L : 0L) << 32) |
+           ((fivePrime + POSITION_OFFSET) & 0xFFFFFFFFL);
+  }
+
+  /**
+   * Unclipped 5' position of a read from its alignment start and CIGAR, as
+   * getUnclippedStart and getUnclippedEnd of SAMRecord compute it.
+   * @param start - alignment start
+   * @param reverse - true if the read is on the reverse strand
+   * @param cigar - CIGAR string
+   * @return
+   */
+  static int getUnclippedFivePrime(int start, boolean reverse, String cigar)
+  {
+    int referenceLength = 0;
+    int leadingClips    = 0;
+    int trailingClips   = 0;
+    boolean aligned     = false;
+    int length          = 0;
+
+    for(int i = 0; i < cigar.length(); i++)
+    {
+      char c = cigar.charAt(i);
+
+      if(c >= '0' && c <= '9')
+      {
+        length = 10 * length + (c - '0');
+        continue;
+      }
+
+      switch(c)
+      {
+        case 'S':
+        case 'H':
+          if(aligned)
+            trailingClips += length;
+          else
+            leadingClips += length;
+          break;
+        case 'M':
+        case 'D':
+        case 'N':
+        case '=':
+        case 'X':
+          referenceLength += length;
+          aligned = true;
+          break;
+        default:
+          aligned = true;
+      }
+      length = 0;
+    }
+    return reverse ? start + referenceLength - 1 + trailingClips : start - leadingClips;
+  }
+
+  /**
+   * Write out reads from the head of the window whose sets are complete.
+   * @param flushAll - if true, write out all pending reads
+   */
+  private void emitPendingReads(boolean flushAll)
+  {
+    while(!pendingReads.isEmpty())
+    {
+      PendingRead head = pendingReads.peek();
+
+      if(!flushAll && head.set != null && !isClosed(head.set))
+        break;
+
+      pendingReads.poll();
+      SAMRecord rec = head.record;
+
+      if(head.set != null && isDuplicate(head.set, rec))
+      {
+        rec.setDuplicateReadFlag(true);
+
+        if(head.set.isPairSet)
+          pairedDuplicates++;
+        else
+          unpairedDuplicates++;
+        countDuplicate(rec);
+      }
+      writer.addAlignment(rec);
+    }
+
+    // Forget sets that can no longer receive reads
+    while(!setOrder.isEmpty() && (flushAll || isClosed(setOrder.peek())))
+    {
+      DuplicateSet set = setOrder.poll();
+      HashMap<?, DuplicateSet> sets = set.isPairSet ? pairSets : fragmentSets;
+
+      if(sets.get(set.signature) == set)
+        sets.remove(set.signature);
+    }
+  }
+
+  /**
+   * Count a duplicate read and its non-N bases for its read group and read
+   * type, the types being those of AlignmentCalculator of BAMAnalyzer.
+   * @param rec
+   */
+  private void countDuplicate(SAMRecord rec)
+  {
+    Object rg = rec.getAttribute("RG");
+    String readType;
+
+    if(!rec.getReadPairedFlag())
+      readType = "FRAGMENT";
+    else
+    if(rec.getFirstOfPairFlag())
+      readType = "READ1";
+    else
+      readType = "READ2";
+
+    String key    = ((rg == null) ? "-" : rg.toString()) + "\t" + readType;
+    long counts[] = duplicateCounts.get(key);
+
+    if(counts == null)
+    {
+      counts = new long[2];
+      duplicateCounts.put(key, counts);
+    }
+
+    byte bases[] = rec.getReadBases();
+    int validBases = 0;
+
+    for(int i = 0; i < bases.length; i++)
+    {
+      if(bases[i] != 'N' && bases[i] != 'n')
+        validBases++;
+    }
+    counts[0]++;
+    counts[1] += validBases;
+  }
+
+  /**
+   * Whether a set can still receive reads from the stream.
+   */
+  private boolean isClosed(DuplicateSet set)
+  {
+    return set.referenceIndex != currentReference ||
+           currentStart > set.closePosition;
+  }
+
+  /**
+   * Decide if the read is a duplicate within its complete set.
+   */
+  private boolean isDuplicate(DuplicateSet set, SAMRecord rec)
+  {
+    if(set.isPairSet)
+      return set.bestName != null && !set.bestName.equals(rec.getReadName());
+    return set.hasPairedRead || set.best != rec;
+  }
+
+  /**
+   * Resolve the library of every read group once from the header.
+   * @param header
+   */
+  private void buildLibraryOrdinals(SAMFileHeader header)
+  {
+    HashMap<String, Integer> libraries = new HashMap<String, Integer>();
+    List<SAMReadGroupRecord> rgList = header.getReadGroups();
+
+    for(SAMReadGroupRecord rg : rgList)
+    {
+      String library = rg.getLibrary();
+
+      if(library == null)
+        library = "Unknown Library";
+
+      Integer ordinal = libraries.get(library);
+
+      if(ordinal == null)
+      {
+        ordinal = Integer.valueOf(libraries.size() + 1);
+        libraries.put(library, ordinal);
+      }
+      libraryOrdinals.put(rg.getId(), ordinal);
+    }
+  }
+
+  /**
+   * Get library ordinal of a read. Reads without read group get zero.
+   */
+  private int getLibraryOrdinal(SAMRecord rec)
+  {
+    Object rg = rec.getAttribute("RG");
+
+    if(rg == null)
+      return 0;
+    if(rg.equals(lastReadGroup))
+      return lastLibraryOrdinal;
+
+    Integer ordinal    = libraryOrdinals.get(rg.toString());
+    lastReadGroup      = rg.toString();
+    lastLibraryOrdinal = (ordinal == null) ? 0 : ordinal.intValue();
+    return lastLibraryOrdinal;
+  }
+
+  /**
+   * Write duplication metrics to stdout and to the metrics file
+   * @throws IOException
+   */
+  private void logMetrics() throws IOException
+  {
+    long examined   = unpairedReadsExamined + pairedReadsExamined;
+    long duplicates = unpairedDuplicates + pairedDuplicates;
+    double percentDuplicates = 0;
+
+    if(examined > 0)
+      percentDuplicates = 1.0 * duplicates / examined * 100.0;
+
+    StringBuffer metrics = new StringBuffer();
+    String newLine = "\r\n";
+    metrics.append("UnpairedReadsExamined : " + unpairedReadsExamined + newLine);
+    metrics.append("PairedReadsExamined : " + pairedReadsExamined + newLine);
+    metrics.append("UnmappedReads : " + unmappedReads + newLine);
+    metrics.append("SecondaryReads : " + secondaryReads + newLine);
+    metrics.append("UnpairedDuplicates : " + unpairedDuplicates + newLine);
+    metrics.append("PairedDuplicates : " + pairedDuplicates + newLine);
+    metrics.append("PercentDuplicate : " + String.format("%.2f", percentDuplicates) + newLine);
+    metrics.append("PairedReadsWithoutMateTags : " + untaggedPairedReads + newLine);
+
+    // Counts for BAMAnalyzer DUPLICATE_METRICS, read group - without one
+    metrics.append(DUPLICATE_COUNTS_HEADER + newLine);
+
+    for(String key : duplicateCounts.keySet())
+    {
+      long counts[] = duplicateCounts.get(key);
+      metrics.append(key + "\t" + counts[0] + "\t" + counts[1] + newLine);
+    }
+
+    if(untaggedPairedReads > 0)
+      System.err.println("Warning : " + untaggedPairedReads + " paired reads have no " +
+                         "MC and ms tags. They were grouped on alignment starts. " +
+                         "Run MateInfoFixer to add the tags.");
+
+    System.out.print(metrics.toString());
+
+    if(METRICS_FILE != null)
+    {
+      BufferedWriter out = new BufferedWriter(new FileWriter(METRICS_FILE));
+      out.write(metrics.toString());
+      out.close();
+    }
+  }
+}
@@ -11,6 +11,9 @@ import net.sf.picard.sam.SamPairUtil;
 import net.sf.picard.util.PeekableIterator;
 import net.sf.samtools.*;
 import net.sf.samtools.SAMFileHeader.SortOrder;
+import common.ProgressMonitor;
+import common.ProgressMonitor.Stage;
+import common.QualityBinner;
 
 /**
  * Custom implementation of the class to fix mate information that works with
@@ -27,9 +30,11 @@ public class MateInfoFixer extends CommandLineProgram
   @Usage
   public String USAGE = getStandardUsagePreamble() +
   "Read SAM/BAM and fix mate information in it. The resulting file \r\n" +
-  "is written in coordinate sorted order.";
+  "is written in coordinate sorted order. Use INPUT=- or INPUT=/dev/stdin \r\n" +
+  "to read SAM piped from BWA without writing the SAM file.";
 
-  @Option(shortName = StandardOptionDefinitions.INPUT_SHORT_NAME, doc = "Input SAM/BAM to be fixed.")
+  @Option(shortName = StandardOptionDefinitions.INPUT_SHORT_NAME, doc = "Input SAM/BAM to be fixed. " +
+          "- or /dev/stdin for SAM on stdin.")
   public File INPUT;
 
   @Option(shortName = StandardOptionDefinitions.OUTPUT_SHORT_NAME,
@@ -39,8 +44,42 @@ public class MateInfoFixer extends CommandLineProgram
   @Option(shortName = "FUR", doc = "Fix CIGAR and mapping quality for unmapped reads ", 
           optional=true)
   public boolean FIXUNMAPPEDREADS = true;
+
+  @Option(shortName = "ST", doc = "Number of threads sorting and writing runs",
+          optional=true)
+  public int SORT_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+  @Option(shortName = "SM", doc = "Total size of the in-memory sort buffers in MB, split " +
+          "into SORT_THREADS + 1 buffers allocated off-heap. Must fit in the direct memory " +
+          "of the JVM. Default value: half of the direct memory or of the RAM left over by " +
+          "the heap, whichever is less, at most 4096", optional=true)
+  public Integer SORT_MEMORY_MB;
+
+  @Option(shortName = "RCL", doc = "Compression level of temporary sort runs",
+          optional=true)
+  public int RUN_COMPRESSION_LEVEL = 1;
+
+  @Option(doc = "Bin base qualities into a few levels, so that the output compresses better",
+          optional=true)
+  public boolean BIN_QUALITIES = false;
+
+  @Option(doc = "Comma separated bins of Phred qualities, low-high:value. Default value: " +
+          QualityBinner.ILLUMINA_8_LEVEL, optional=true)
+  public String QUALITY_BINS;
+
+  @Option(doc = "File to periodically write progress and throughput to", optional=true)
+  public File PROGRESS_FILE;
+
+  @Option(doc = "Seconds between progress reports", optional=true)
+  public int PROGRESS_INTERVAL = 60;
+
+  @Option(shortName = "PT", doc = "Number of threads parsing SAM text read from stdin",
+          optional=true)
+  public int PARSE_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
   
   protected SAMFileWriter writer;
+  protected CoordinateSorter sorter;
+  protected QualityBinner binner = null;    // Bins qualities, or null
 
   /**
    * Main method.
@@ -57,29 +96,53 @@ public class MateInfoFixer extends CommandLineProgram
   @Override
   protected int doWork()
   {
-    IoUtil.assertFileIsReadable(INPUT);
-    int numReadsProcessed = 0;
-	      
+    boolean fromStdin = INPUT.getPath().equals("-") || INPUT.getPath().equals("/dev/stdin");
+
+    if(!fromStdin)
+      IoUtil.assertFileIsReadable(INPUT);
+    ProgressMonitor monitor = new ProgressMonitor("MateInfoFixer", PROGRESS_FILE,
+                                                  PROGRESS_INTERVAL);
+
     OUTPUT = OUTPUT.getAbsoluteFile();
     IoUtil.assertFileIsWritable(OUTPUT);
     
     SAMFileHeader header;
     SAMFileReader.setDefaultValidationStringency(SAMFileReader.ValidationStringency.SILENT);
-    final SAMFileReader reader = new SAMFileReader(INPUT);
-    header = reader.getFileHeader();
-    header.setSortOrder(SortOrder.coordinate);
-    createSamFileWriter(header);
-    
-    final PeekableIterator<SAMRecord> iterator = new PeekableIterator<SAMRecord>(reader.iterator());
+    SAMTextStreamReader textReader = null;
+    PeekableIterator<SAMRecord> iterator;
     SAMRecord rec1;
     SAMRecord rec2;
     
     try
     {
+      // Parse SAM text from stdin on several threads, as a single thread
+      // cannot keep up with BWA
+      if(fromStdin)
+      {
+        textReader = new SAMTextStreamReader(System.in, "stdin", PARSE_THREADS);
+        header     = textReader.getFileHeader();
+        iterator   = new PeekableIterator<SAMRecord>(textReader);
+      }
+      else
+      {
+        SAMFileReader reader = new SAMFileReader(INPUT);
+        header   = reader.getFileHeader();
+        iterator = new PeekableIterator<SAMRecord>(reader.iterator());
+      }
+      header.setSortOrder(SortOrder.coordinate);
+      createSamFileWriter(header);
+
+      if(BIN_QUALITIES)
+        binner = new QualityBinner(QUALITY_BINS);
+
+      monitor.start();
+
       while(iterator.hasNext())
       {
+        long t = System.nanoTime();
         rec1 = iterator.next();
         rec2 = iterator.hasNext() ? iterator.peek() : null;
+        t = monitor.addStageTime(Stage.DECODE, t);
       
         if(rec2 != null)
         {
@@ -87,9 +150,19 @@ public class MateInfoFixer extends CommandLineProgram
           {
             iterator.next();
             SamPairUtil.setMateInfo(rec1, rec2, header);
+
+            if(binner != null)
+            {
+              SAMRecordFixer.binQualities(rec1, binner);
+              SAMRecordFixer.binQualities(rec2, binner);
+            }
+            SAMRecordFixer.setMateTags(rec1, rec2);
+            SAMRecordFixer.setMateTags(rec2, rec1);
+            t = monitor.addStageTime(Stage.CALCULATE, t);
             writeAlignment(rec1);
             writeAlignment(rec2);
-            numReadsProcessed += 2;
+            monitor.addStageTime(Stage.ENCODE, t);
+            monitor.addRecords(2);
           }
           else
           {
@@ -98,18 +171,31 @@ public class MateInfoFixer extends CommandLineProgram
         }
         else
         {
-          writer.addAlignment(rec1);
-          numReadsProcessed++;
+          if(binner != null)
+            SAMRecordFixer.binQualities(rec1, binner);
+          sorter.add(rec1);
+          monitor.addStageTime(Stage.ENCODE, t);
+          monitor.addRecord();
         }
-      
-        if(numReadsProcessed % 10000000 == 0)
-          System.err.println("Processed " + numReadsProcessed + " reads\r");
       }
       iterator.close();
+
+      if(textReader != null)
+        textReader.close();
+      System.err.println("\nWriting sorted output");
+      monitor.setOutputFile(OUTPUT);
+      long t = System.nanoTime();
+      sorter.finish(writer);
       writer.close();
+      monitor.addStageTime(Stage.WRITE, t);
+      monitor.finish(true);
+
+      if(binner != null)
+        binner.printReport(System.out);
     }
     catch(Exception e)
     {
+      monitor.finish(false);
       System.err.println(e.getMessage());
       e.printStackTrace();
       System.exit(-1);
@@ -124,22 +210,26 @@ public class MateInfoFixer extends CommandLineProgram
   protected void createSamFileWriter(final SAMFileHeader header)
   {
     header.setSortOrder(SortOrder.coordinate);
-    writer = new SAMFileWriterFactory().makeSAMOrBAMWriter(header, false, OUTPUT);
+    writer = new SAMFileWriterFactory().makeSAMOrBAMWriter(header, true, OUTPUT);
+    int sortMemoryMB = (SORT_MEMORY_MB != null) ? SORT_MEMORY_MB.intValue() :
+                       CoordinateSorter.getDefaultMemoryMB(SORT_THREADS);
+    sorter = new CoordinateSorter(header, TMP_DIR, sortMemoryMB, SORT_THREADS,
+                                  RUN_COMPRESSION_LEVEL);
   }
   
   /**
-   * Write the SAM records to the new file while fixing CIGAR if required.
+   * Add the SAM records to the sorter while fixing CIGAR if required.
    * @param rec
    */
-  protected void writeAlignment(SAMRecord rec)
+  protected void writeAlignment(SAMRecord rec) throws Exception
   {
     if(FIXUNMAPPEDREADS)
     {
       SAMRecord r2 = SAMRecordFixer.fixCIGARForUnmappedReads(rec);
-      writer.addAlignment(r2);
+      sorter.add(r2);
       r2 = null;
     }
     else
-      writer.addAlignment(rec);
+      sorter.add(rec);
   }
 }
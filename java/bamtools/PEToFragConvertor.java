@@ -6,6 +6,9 @@ import net.sf.picard.cmdline.StandardOptionDefinitions;
 import net.sf.picard.cmdline.Usage;
 import net.sf.picard.io.IoUtil;
 import net.sf.samtools.*;
+import common.ProgressMonitor;
+import common.ProgressMonitor.Stage;
+import common.QualityBinner;
 
 import java.io.File;
 import java.io.IOException;
@@ -29,7 +32,21 @@ public class PEToFragConvertor extends CommandLineProgram
   @Option(shortName = StandardOptionDefinitions.OUTPUT_SHORT_NAME,
           doc = "Where to write new SAM/BAM.")
   public File OUTPUT;
-  
+
+  @Option(doc = "File to periodically write progress and throughput to", optional=true)
+  public File PROGRESS_FILE;
+
+  @Option(doc = "Seconds between progress reports", optional=true)
+  public int PROGRESS_INTERVAL = 60;
+
+  @Option(doc = "Bin base qualities into a few levels, so that the output compresses better",
+          optional=true)
+  public boolean BIN_QUALITIES = false;
+
+  @Option(doc = "Comma separated bins of Phred qualities, low-high:value. Default value: " +
+          QualityBinner.ILLUMINA_8_LEVEL, optional=true)
+  public String QUALITY_BINS;
+
   public static void main(String[] args)
   {
     new PEToFragConvertor().instanceMainWithExit(args);
@@ -38,13 +55,14 @@ public class PEToFragConvertor extends CommandLineProgram
   @Override
   protected int doWork()
   {
+    ProgressMonitor monitor = new ProgressMonitor("PEToFragConvertor", PROGRESS_FILE,
+                                                  PROGRESS_INTERVAL);
     try
     {
 	  IoUtil.assertFileIsReadable(INPUT);
 	  IoUtil.assertFileIsWritable(OUTPUT);
 	
-	  int numReadsProcessed = 0;
-	  int numReadsWritten   = 0;
+	  long numReadsWritten  = 0;
 	
 	  SAMFileReader.setDefaultValidationStringency(SAMFileReader.ValidationStringency.SILENT);
       SAMFileReader reader = new SAMFileReader(INPUT);
@@ -52,36 +70,45 @@ public class PEToFragConvertor extends CommandLineProgram
       SAMFileWriterFactory().makeSAMOrBAMWriter(reader.getFileHeader(), true, OUTPUT);
       SAMRecord rec    = null;
       SAMRecord newRec = null;
+      QualityBinner binner = BIN_QUALITIES ? new QualityBinner(QUALITY_BINS) : null;
     
       SAMRecordIterator it = reader.iterator();
+      monitor.setOutputFile(OUTPUT);
+      monitor.start();
     
       while(it.hasNext())
       {
-        numReadsProcessed++;
-        if(numReadsProcessed % 10000000 == 0)
-        {
-          System.err.print("Processed : " + numReadsProcessed + " reads\r");
-        }
+        long t = System.nanoTime();
         rec = it.next();
+        t = monitor.addStageTime(Stage.DECODE, t);
       
         newRec = processRead(rec);
+        t = monitor.addStageTime(Stage.CALCULATE, t);
       
         if(newRec != null)
         {
+          if(binner != null)
+            SAMRecordFixer.binQualities(newRec, binner);
           writer.addAlignment(newRec);
+          monitor.addStageTime(Stage.WRITE, t);
           numReadsWritten++;
         }
+        monitor.addRecord();
       }
-    
-      System.out.println("Number of reads read    : " + numReadsProcessed);
-      System.out.println("Number of reads written : " + numReadsWritten);
-    
       writer.close();
-      reader.close();
       it.close();
+      reader.close();
+      monitor.finish(true);
+    
+      System.out.println("Number of reads read    : " + monitor.getRecords());
+      System.out.println("Number of reads written : " + numReadsWritten);
+
+      if(binner != null)
+        binner.printReport(System.out);
     }
     catch(Exception e)
     {
+      monitor.finish(false);
       System.err.println(e.getMessage());
       e.printStackTrace();
       return -1;
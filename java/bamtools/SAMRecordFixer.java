@@ -1,15 +1,20 @@
 package bamtools;
 
 import net.sf.samtools.SAMRecord;
+import common.QualityBinner;
 
 /**
- * Class to fix SAMRecord. Currently, the only available action is to fix
- * CIGAR for unmapped reads.
+ * Class to fix SAMRecord. It fixes CIGAR for unmapped reads, bins base
+ * qualities and records the mate information DuplicateMarker needs.
  * @author Nirav Shah niravs@bcm.edu
  *
  */
 public class SAMRecordFixer
 {
+  public static final String MATE_CIGAR_TAG = "MC";   // CIGAR of the mate
+  public static final String MATE_SCORE_TAG = "ms";   // Base quality score of the mate
+  public static final int MIN_BASE_QUAL     = 15;     // Base qualities counted towards score
+
   /**
    * For SAM records written by BWA, some unmapped reads contain non-empty
    * CIGAR and mapping quality > 0, which causes Picard's SamFileValidator
@@ -29,4 +34,61 @@ public class SAMRecordFixer
     }
     return rec;
   }
+
+  /**
+   * Bin the base qualities of the record. A record without qualities is not
+   * changed.
+   * @param rec
+   * @param binner
+   * @return
+   */
+  public static SAMRecord binQualities(SAMRecord rec, QualityBinner binner)
+  {
+    byte quals[] = rec.getBaseQualities();
+
+    if(quals != null && quals.length > 0 && quals[0] != (byte)0xFF)
+    {
+      binner.binPhred(quals);
+      rec.setBaseQualities(quals);
+    }
+    return rec;
+  }
+
+  /**
+   * Store the CIGAR and base quality score of the mate in the record, as
+   * samtools fixmate -m does, so that DuplicateMarker can find the unclipped
+   * 5' position and score of the pair from either end. Nothing is stored if
+   * the mate is unmapped.
+   * @param rec
+   * @param mate
+   * @return
+   */
+  public static SAMRecord setMateTags(SAMRecord rec, SAMRecord mate)
+  {
+    if(!mate.getReadUnmappedFlag())
+    {
+      rec.setAttribute(MATE_CIGAR_TAG, mate.getCigarString());
+      rec.setAttribute(MATE_SCORE_TAG, Integer.valueOf(getBaseQualityScore(mate)));
+    }
+    return rec;
+  }
+
+  /**
+   * Sum of base qualities of at least MIN_BASE_QUAL. Duplicate marking keeps
+   * the read or pair with the highest score.
+   * @param rec
+   * @return
+   */
+  public static int getBaseQualityScore(SAMRecord rec)
+  {
+    byte quals[] = rec.getBaseQualities();
+    int score    = 0;
+
+    for(int i = 0; i < quals.length; i++)
+    {
+      if(quals[i] >= MIN_BASE_QUAL)
+        score += quals[i];
+    }
+    return score;
+  }
 }
@@ -0,0 +1,246 @@
+package bamtools;
+
+import net.sf.samtools.*;
+import net.sf.samtools.util.StringLineReader;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.*;
+
+/**
+ * Class to read SAM text from a stream, such as the output of bwa sampe piped
+ * to stdin, so that the SAM file need not be written to disk. The header is
+ * read first. A splitter thread then cuts the rest of the stream into batches
+ * of lines, which a pool of threads parse into SAMRecords, each with its own
+ * SAMLineParser. Batches are returned in the order of the stream, so records
+ * come out exactly as they would from SAMFileReader.
+ * @author Nirav Shah niravs@bcm.edu
+ *
+ */
+public class SAMTextStreamReader implements Iterator<SAMRecord>
+{
+  private static final int BATCH_SIZE = 4096;      // Lines parsed by a task
+
+  private SAMFileHeader header;
+  private BufferedReader in;
+  private String source;                           // Name of the stream in errors
+  private ExecutorService parsers;
+  private Thread splitter;
+
+  // Parsed batches in stream order. A batch of null marks the end.
+  private LinkedBlockingQueue<Future<SAMRecord[]>> batches;
+
+  private SAMRecord batch[] = null;                // Batch being returned
+  private int batchPos      = 0;
+  private boolean finished  = false;
+
+  private ThreadLocal<SAMLineParser> lineParser = new ThreadLocal<SAMLineParser>()
+  {
+    @Override
+    protected SAMLineParser initialValue()
+    {
+      return new SAMLineParser(header);
+    }
+  };
+
+  /**
+   * Class constructor. Reads the header and starts parsing.
+   * @param stream - SAM text
+   * @param source - name of the stream in error messages
+   * @param numThreads - threads parsing lines
+   * @throws IOException
+   */
+  public SAMTextStreamReader(InputStream stream, String source, int numThreads) throws IOException
+  {
+    this.source = source;
+    in = new BufferedReader(new InputStreamReader(stream, "ISO-8859-1"), 1 << 20);
+
+    StringBuilder headerText = new StringBuilder();
+    String line;
+    int lineNum = 0;
+
+    while((line = in.readLine()) != null && line.startsWith("@"))
+    {
+      headerText.append(line).append('\n');
+      lineNum++;
+    }
+    header = new SAMTextHeaderCodec().decode(new StringLineReader(headerText.toString()), source);
+
+    numThreads = Math.max(1, numThreads);
+    batches    = new LinkedBlockingQueue<Future<SAMRecord[]>>(2 * numThreads);
+    parsers    = Executors.newFixedThreadPool(numThreads, new ThreadFactory()
+    {
+      public Thread newThread(Runnable r)
+      {
+        Thread t = new Thread(r, "SAMLineParser");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+
+    final String firstLine = line;
+    final int firstLineNum = lineNum + 1;
+
+    splitter = new Thread(new Runnable()
+    {
+      public void run()
+      {
+        split(firstLine, firstLineNum);
+      }
+    }, "SAMLineSplitter");
+    splitter.setDaemon(true);
+    splitter.start();
+  }
+
+  public SAMFileHeader getFileHeader()
+  {
+    return header;
+  }
+
+  public boolean hasNext()
+  {
+    while(batch == null || batchPos == batch.length)
+    {
+      if(finished)
+        return false;
+
+      try
+      {
+        batch    = batches.take().get();
+        batchPos = 0;
+      }
+      catch(ExecutionException e)
+      {
+        finished = true;
+        Throwable cause = e.getCause();
+
+        if(cause instanceof RuntimeException)
+          throw (RuntimeException)cause;
+        throw new SAMFormatException("Could not read " + source + " : " + cause.getMessage());
+      }
+      catch(InterruptedException e)
+      {
+        finished = true;
+        throw new SAMFormatException("Interrupted while reading " + source);
+      }
+
+      if(batch == null)
+      {
+        finished = true;
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public SAMRecord next()
+  {
+    if(!hasNext())
+      throw new NoSuchElementException();
+    return batch[batchPos++];
+  }
+
+  public void remove()
+  {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Stop the threads. The stream itself is not closed.
+   */
+  public void close()
+  {
+    finished = true;
+    splitter.interrupt();
+    parsers.shutdownNow();
+  }
+
+  /**
+   * Cut the stream into batches of lines and queue their parsing, in order
+   * @param line - first line after the header, or null
+   * @param lineNum - its line number
+   */
+  private void split(String line, int lineNum)
+  {
+    try
+    {
+      while(line != null)
+      {
+        final String lines[] = new String[BATCH_SIZE];
+        final int firstLineNum = lineNum;
+        int count = 0;
+
+        while(line != null && count < BATCH_SIZE)
+        {
+          lines[count++] = line;
+          line = in.readLine();
+          lineNum++;
+        }
+
+        final int numLines = count;
+
+        batches.put(parsers.submit(new Callable<SAMRecord[]>()
+        {
+          public SAMRecord[] call()
+          {
+            return parse(lines, numLines, firstLineNum);
+          }
+        }));
+      }
+      batches.put(done(null, null));
+    }
+    catch(InterruptedException e)
+    {
+      // Closed by the reader
+    }
+    catch(Throwable t)
+    {
+      try
+      {
+        batches.put(done(null, t));
+      }
+      catch(InterruptedException e)
+      {
+        // Closed by the reader
+      }
+    }
+  }
+
+  private SAMRecord[] parse(String lines[], int numLines, int firstLineNum)
+  {
+    SAMLineParser parser = lineParser.get();
+    SAMRecord records[]  = new SAMRecord[numLines];
+    int count = 0;
+
+    for(int i = 0; i < numLines; i++)
+    {
+      if(lines[i].length() > 0)
+        records[count++] = parser.parseLine(lines[i], firstLineNum + i);
+    }
+    return (count == numLines) ? records : Arrays.copyOf(records, count);
+  }
+
+  /**
+   * Return a completed batch
+   * @param records - the records, null for the end of the stream
+   * @param error - error to raise instead, or null
+   */
+  private static Future<SAMRecord[]> done(final SAMRecord records[], final Throwable error)
+  {
+    FutureTask<SAMRecord[]> task = new FutureTask<SAMRecord[]>(new Callable<SAMRecord[]>()
+    {
+      public SAMRecord[] call() throws Exception
+      {
+        if(error instanceof Exception)
+          throw (Exception)error;
+        if(error != null)
+          throw new Exception(error);
+        return records;
+      }
+    });
+    task.run();
+    return task;
+  }
+}
@@ -0,0 +1,143 @@
+package common;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Class to read the manifest of a batch run, in which one JVM analyzes many
+ * inputs. Every line is one job, with tab separated columns
+ *
+ *   OUTPUT_DIR  INPUT  [INPUT...]
+ *
+ * Blank lines and lines starting with # are skipped. Output files of a job
+ * are written in its output directory, so that jobs writing files of the
+ * same name do not collide. Relative paths are relative to the working
+ * directory.
+ * @author Nirav Shah niravs@bcm.edu
+ *
+ */
+public class BatchManifest
+{
+  /**
+   * One line of the manifest
+   */
+  public static class Job
+  {
+    private int lineNum;                   // Line of the manifest
+    private File outputDir;                // Where the job writes its files
+    private ArrayList<File> inputs;        // Input files
+
+    Job(int lineNum, File outputDir, ArrayList<File> inputs)
+    {
+      this.lineNum   = lineNum;
+      this.outputDir = outputDir;
+      this.inputs    = inputs;
+    }
+
+    /**
+     * Name of the job, unique within the manifest
+     * @return
+     */
+    public String getName()
+    {
+      return "job" + lineNum;
+    }
+
+    public File getOutputDir()
+    {
+      return outputDir;
+    }
+
+    public List<File> getInputs()
+    {
+      return inputs;
+    }
+
+    /**
+     * Prefix of plots and CSV files of the job
+     * @return
+     */
+    public String getOutputPrefix()
+    {
+      return outputDir.getPath() + File.separator;
+    }
+
+    /**
+     * Return the file of the given relative name in the output directory
+     * @param name - relative file name of a tool option, may be null
+     * @return the file in the output directory, or null if name is null
+     * @throws IOException if the name is an absolute path, which every job
+     *                     would write to
+     */
+    public File resolve(File name) throws IOException
+    {
+      if(name == null)
+        return null;
+      if(name.isAbsolute())
+        throw new IOException(name.getPath() + " must be a relative file name with MANIFEST");
+      return new File(outputDir, name.getPath());
+    }
+
+    @Override
+    public String toString()
+    {
+      return getName() + " (" + outputDir.getPath() + ")";
+    }
+  }
+
+  /**
+   * Read the jobs of a manifest and create their output directories
+   * @param manifest
+   * @param minInputs - inputs a job needs at least
+   * @param maxInputs - inputs a job may have at most
+   * @return
+   * @throws IOException if a line is malformed or a directory can not be made
+   */
+  public static List<Job> read(File manifest, int minInputs, int maxInputs) throws IOException
+  {
+    ArrayList<Job> jobs = new ArrayList<Job>();
+    BufferedReader reader = new BufferedReader(new FileReader(manifest));
+    String line;
+    int lineNum = 0;
+
+    try
+    {
+      while((line = reader.readLine()) != null)
+      {
+        lineNum++;
+        line = line.trim();
+
+        if(line.length() == 0 || line.startsWith("#"))
+          continue;
+
+        String columns[] = line.split("\t");
+        int numInputs    = columns.length - 1;
+
+        if(numInputs < minInputs || numInputs > maxInputs)
+          throw new IOException("Line " + lineNum + " of " + manifest.getName() + " needs an " +
+                                "output directory and " + minInputs + " to " + maxInputs +
+                                " inputs, separated by tabs");
+
+        File outputDir = new File(columns[0].trim()).getAbsoluteFile();
+
+        if(!outputDir.isDirectory() && !outputDir.mkdirs())
+          throw new IOException("Could not create directory " + outputDir.getPath());
+
+        ArrayList<File> inputs = new ArrayList<File>();
+
+        for(int i = 1; i < columns.length; i++)
+          inputs.add(new File(columns[i].trim()).getAbsoluteFile());
+        jobs.add(new Job(lineNum, outputDir, inputs));
+      }
+    }
+    finally
+    {
+      reader.close();
+    }
+
+    if(jobs.isEmpty())
+      throw new IOException(manifest.getName() + " has no jobs");
+    return jobs;
+  }
+}
@@ -0,0 +1,142 @@
+package common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Class to run the jobs of a batch concurrently in one JVM, so that many
+ * small inputs do not each pay for JVM startup and JIT warm-up. Jobs run on a
+ * fixed pool of threads and are admitted in order while their estimated
+ * memory fits in a global budget, so that a large heap is shared without
+ * running out of memory. A failed job is reported and does not stop the
+ * others.
+ * @author Nirav Shah niravs@bcm.edu
+ *
+ */
+public class BatchRunner
+{
+  /**
+   * One job of the batch
+   */
+  public static abstract class Task
+  {
+    private String name;                   // Name in messages
+    private int memoryMB;                  // Estimated heap it needs
+
+    public Task(String name, int memoryMB)
+    {
+      this.name     = name;
+      this.memoryMB = memoryMB;
+    }
+
+    public String getName()
+    {
+      return name;
+    }
+
+    /**
+     * Run the job
+     * @return 0 on success, like CommandLineProgram.doWork
+     * @throws Exception
+     */
+    public abstract int run() throws Exception;
+  }
+
+  private int numThreads;                  // Jobs running at the same time
+  private int budgetMB;                    // Heap shared by running jobs
+
+  /**
+   * Class constructor
+   * @param numThreads - jobs running at the same time at most
+   * @param budgetMB - heap shared by the running jobs, 0 for three quarters
+   *                   of the maximum heap
+   */
+  public BatchRunner(int numThreads, int budgetMB)
+  {
+    this.numThreads = Math.max(1, numThreads);
+
+    if(budgetMB <= 0)
+      budgetMB = (int)(Runtime.getRuntime().maxMemory() / (1024 * 1024) * 3 / 4);
+    this.budgetMB = Math.max(1, budgetMB);
+  }
+
+  /**
+   * Run all tasks and wait for them
+   * @param tasks
+   * @return number of tasks that failed
+   * @throws InterruptedException
+   */
+  public int run(List<? extends Task> tasks) throws InterruptedException
+  {
+    final Semaphore memory = new Semaphore(budgetMB, true);
+    ExecutorService pool   = Executors.newFixedThreadPool(numThreads);
+    ArrayList<Future<Integer>> results = new ArrayList<Future<Integer>>();
+    int failed = 0;
+
+    System.err.println("Running " + tasks.size() + " jobs on " + numThreads +
+                       " threads in " + budgetMB + " MB");
+
+    try
+    {
+      for(final Task task : tasks)
+      {
+        // A job larger than the budget runs alone
+        final int permits = Math.min(Math.max(1, task.memoryMB), budgetMB);
+        memory.acquire(permits);
+
+        results.add(pool.submit(new Callable<Integer>()
+        {
+          public Integer call()
+          {
+            try
+            {
+              System.err.println("Starting " + task.getName());
+              return task.run();
+            }
+            catch(Throwable t)
+            {
+              System.err.println(task.getName() + " : " + t.getMessage());
+              t.printStackTrace();
+              return -1;
+            }
+            finally
+            {
+              memory.release(permits);
+            }
+          }
+        }));
+      }
+
+      for(int i = 0; i < results.size(); i++)
+      {
+        int result = -1;
+
+        try
+        {
+          result = results.get(i).get();
+        }
+        catch(Exception e)
+        {
+          System.err.println(tasks.get(i).getName() + " : " + e.getMessage());
+        }
+
+        if(result != 0)
+        {
+          System.err.println("Failed " + tasks.get(i).getName());
+          failed++;
+        }
+      }
+    }
+    finally
+    {
+      pool.shutdown();
+    }
+    System.err.println("Finished " + tasks.size() + " jobs, " + failed + " failed");
+    return failed;
+  }
+}
@@ -0,0 +1,199 @@
+package common;
+
+import java.io.*;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Class to write checkpoints of a long running tool in a background thread,
+ * so that compressing and writing them does not stall the processing of
+ * records. The tool takes a snapshot of its state as bytes at a consistent
+ * point, and the snapshot is written to a temporary file, synced and renamed
+ * over the previous checkpoint, so that a checkpoint on disk is always
+ * complete. Files the snapshot refers to, e.g. bucket files, are synced on
+ * the same thread before the rename, not by the tool. A snapshot submitted while the previous one is still being
+ * written is dropped, and the tool tries again later.
+ * @author Nirav Shah niravs@bcm.edu
+ *
+ */
+public class CheckpointWriter
+{
+  private File checkpointFile;             // Checkpoint to replace
+  private int intervalSeconds;             // Seconds between checkpoints
+  private long lastCheckpoint;             // When the last one was taken, in ms
+  private ExecutorService writer;          // Single background thread
+  private Future<?> pending = null;        // Checkpoint being written
+
+  /**
+   * Class constructor
+   * @param checkpointFile - file to write checkpoints to
+   * @param intervalSeconds - seconds between checkpoints
+   */
+  public CheckpointWriter(File checkpointFile, int intervalSeconds)
+  {
+    this.checkpointFile  = checkpointFile;
+    this.intervalSeconds = intervalSeconds;
+    lastCheckpoint       = System.currentTimeMillis();
+
+    writer = Executors.newSingleThreadExecutor(new ThreadFactory()
+    {
+      public Thread newThread(Runnable r)
+      {
+        Thread t = new Thread(r, "CheckpointWriter");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  /**
+   * Return true if a checkpoint should be taken now, i.e. the interval has
+   * passed and the previous checkpoint has been written. Cheap enough to call
+   * every few thousand records.
+   * @return
+   */
+  public boolean isDue()
+  {
+    return System.currentTimeMillis() - lastCheckpoint >= intervalSeconds * 1000L &&
+           (pending == null || pending.isDone());
+  }
+
+  /**
+   * Write the snapshot in the background
+   * @param snapshot - state of the tool, not changed by the caller afterwards
+   */
+  public void submit(byte snapshot[])
+  {
+    submit(snapshot, Collections.<FileDescriptor>emptyList());
+  }
+
+  /**
+   * Write the snapshot in the background, after syncing the files it refers
+   * to, which must have been flushed and stay open until the write is done
+   * @param snapshot - state of the tool, not changed by the caller afterwards
+   * @param syncFirst - files to sync before the checkpoint is put in place
+   */
+  public void submit(final byte snapshot[], final List<FileDescriptor> syncFirst)
+  {
+    checkPending();
+    lastCheckpoint = System.currentTimeMillis();
+
+    pending = writer.submit(new Runnable()
+    {
+      public void run()
+      {
+        try
+        {
+          for(FileDescriptor fd : syncFirst)
+            fd.sync();
+          write(snapshot);
+        }
+        catch(IOException e)
+        {
+          throw new RuntimeException(e);
+        }
+      }
+    });
+  }
+
+  /**
+   * Wait for the checkpoint being written, e.g. before closing the files it
+   * syncs
+   */
+  public void waitForPending()
+  {
+    checkPending();
+  }
+
+  /**
+   * Wait for the checkpoint being written and stop the background thread
+   * @param delete - delete the checkpoint, e.g. when the tool finished
+   */
+  public void close(boolean delete)
+  {
+    checkPending();
+    writer.shutdown();
+
+    if(delete)
+      checkpointFile.delete();
+  }
+
+  /**
+   * Read a checkpoint written by this class
+   * @param checkpointFile
+   * @return the snapshot
+   * @throws IOException
+   */
+  public static byte[] read(File checkpointFile) throws IOException
+  {
+    InputStream in = new GZIPInputStream(new FileInputStream(checkpointFile), 65536);
+    ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+    byte buffer[] = new byte[65536];
+    int n;
+
+    try
+    {
+      while((n = in.read(buffer)) > 0)
+        snapshot.write(buffer, 0, n);
+    }
+    finally
+    {
+      in.close();
+    }
+    return snapshot.toByteArray();
+  }
+
+  /**
+   * Wait for the checkpoint being written. A failed checkpoint is reported
+   * but does not stop the tool, it only loses the chance to resume from it.
+   */
+  private void checkPending()
+  {
+    if(pending == null)
+      return;
+
+    try
+    {
+      pending.get();
+    }
+    catch(Exception e)
+    {
+      System.err.println("Could not write checkpoint " + checkpointFile.getAbsolutePath() +
+                         " : " + e.getMessage());
+    }
+    pending = null;
+  }
+
+  private void write(byte snapshot[]) throws IOException
+  {
+    File tempFile = new File(checkpointFile.getPath() + ".tmp");
+    FileOutputStream file = new FileOutputStream(tempFile);
+    GZIPOutputStream out  = new GZIPOutputStream(new BufferedOutputStream(file, 65536));
+
+    try
+    {
+      out.write(snapshot);
+      out.finish();
+      out.flush();
+      file.getFD().sync();
+    }
+    finally
+    {
+      out.close();
+    }
+
+    if(!tempFile.renameTo(checkpointFile))
+    {
+      checkpointFile.delete();
+
+      if(!tempFile.renameTo(checkpointFile))
+        throw new IOException("Could not rename " + tempFile.getAbsolutePath());
+    }
+  }
+}
@@ -0,0 +1,645 @@
+package common;
+
+import java.io.*;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Class to compress a block of FASTQ records, with \n line terminators, into
+ * separate streams of headers, bases and qualities, each coded its own way:
+ *
+ * Headers are split into runs of letters and digits and runs of other
+ * characters, and every run is coded against the same run of the previous
+ * header, as unchanged, as the difference of two numbers, or as new text. The
+ * result, with the read lengths and quality headers, is deflated.
+ *
+ * Bases are packed 2 bits each. Characters other than ACGT, such as N, are
+ * stored as A and listed, with their positions, in a deflated exception list.
+ *
+ * Qualities are range coded with an adaptive order-2 model, the probability of
+ * each quality given the two qualities before it in the read.
+ *
+ * The block holds a CRC32 of the records, which decode checks, so that a
+ * block is restored exactly or an error is raised. Every length in a block is
+ * checked against the bytes left in it before anything is allocated, and the
+ * records are restored into a buffer that grows as they are decoded, so that
+ * a corrupt block raises an IOException rather than running out of memory.
+ * Blocks are independent of each other and can be coded by different threads.
+ * @author Nirav Shah niravs@bcm.edu
+ *
+ */
+public class FastqBlockCodec
+{
+  private static final int QUALITY_BITS = 7;
+  private static final int MIN_QUALITY  = 33;      // '!'
+  private static final int MAX_QUALITY  = MIN_QUALITY + (1 << QUALITY_BITS) - 1;
+  private static final int MAX_RUNS     = 256;     // Runs of a header coded by run
+  private static final int MAX_HEADER_LENGTH = 65536; // Longest header or quality header
+  private static final int MAX_DEFLATE_RATIO = 1032;  // Most that deflate can compress
+
+  // Codes of a header
+  private static final int HEADER_LITERAL = 0;
+  private static final int HEADER_RUNS    = 1;
+
+  // Codes of a run of a header
+  private static final int RUN_SAME    = 0;
+  private static final int RUN_DELTA   = 1;
+  private static final int RUN_LITERAL = 2;
+
+  // Codes of a quality header
+  private static final int QUAL_HEADER_EMPTY   = 0;
+  private static final int QUAL_HEADER_REPEAT  = 1;   // Same as the header
+  private static final int QUAL_HEADER_LITERAL = 2;
+
+  private static final byte BASE_CODES[] = new byte[256];
+  private static final byte BASES[]      = {'A', 'C', 'G', 'T'};
+
+  static
+  {
+    java.util.Arrays.fill(BASE_CODES, (byte)-1);
+    BASE_CODES['A'] = 0;
+    BASE_CODES['C'] = 1;
+    BASE_CODES['G'] = 2;
+    BASE_CODES['T'] = 3;
+  }
+
+  // Runs of the previous and current header, as start offsets followed by
+  // the end offset
+  private int prevRuns[] = new int[MAX_RUNS + 1];
+  private int runs[]     = new int[MAX_RUNS + 1];
+  private int numPrevRuns;
+
+  /**
+   * Compress a block of records
+   * @param data - records with \n line terminators
+   * @param length - bytes of data
+   * @return the compressed block
+   * @throws IOException if a record is malformed
+   */
+  public byte[] encode(byte data[], int length) throws IOException
+  {
+    ByteArrayOutputStream headers    = new ByteArrayOutputStream(length / 8 + 16);
+    ByteArrayOutputStream exceptions = new ByteArrayOutputStream(256);
+    byte packedBases[]   = new byte[length / 8 + 1];
+    RangeEncoder quals   = new RangeEncoder(length / 6);
+    short qualityModel[] = RangeEncoder.newModel(1 << (3 * QUALITY_BITS));
+
+    int numRecords    = 0;
+    int totalBases    = 0;
+    int lastException = 0;
+    int pos           = 0;
+
+    numPrevRuns = -1;
+
+    while(pos < length)
+    {
+      int headerEnd       = lineEnd(data, pos, length);
+      int basesStart      = headerEnd + 1;
+      int basesEnd        = lineEnd(data, basesStart, length);
+      int qualHeaderStart = basesEnd + 1;
+      int qualHeaderEnd   = lineEnd(data, qualHeaderStart, length);
+      int qualsStart      = qualHeaderEnd + 1;
+      int qualsEnd        = lineEnd(data, qualsStart, length);
+      int readLength      = basesEnd - basesStart;
+
+      if(data[pos] != '@' || qualHeaderEnd == qualHeaderStart || data[qualHeaderStart] != '+' ||
+         qualsEnd - qualsStart != readLength)
+        throw new IOException("Malformed FASTQ record " + (numRecords + 1) + " in block");
+
+      if(headerEnd - pos - 1 > MAX_HEADER_LENGTH ||
+         qualHeaderEnd - qualHeaderStart - 1 > MAX_HEADER_LENGTH)
+        throw new IOException("Header longer than " + MAX_HEADER_LENGTH + " in FASTQ record " +
+                              (numRecords + 1) + " of block");
+
+      encodeHeader(data, pos + 1, headerEnd, headers);
+      writeVarint(headers, readLength);
+
+      // Quality header
+      int qualHeaderLength = qualHeaderEnd - qualHeaderStart - 1;
+
+      if(qualHeaderLength == 0)
+        headers.write(QUAL_HEADER_EMPTY);
+      else
+      if(qualHeaderLength == headerEnd - pos - 1 &&
+         regionsEqual(data, pos + 1, data, qualHeaderStart + 1, qualHeaderLength))
+        headers.write(QUAL_HEADER_REPEAT);
+      else
+      {
+        headers.write(QUAL_HEADER_LITERAL);
+        writeVarint(headers, qualHeaderLength);
+        headers.write(data, qualHeaderStart + 1, qualHeaderLength);
+      }
+
+      // Bases
+      for(int i = basesStart; i < basesEnd; i++)
+      {
+        int code = BASE_CODES[data[i] & 0xFF];
+
+        if(code < 0)
+        {
+          writeVarint(exceptions, totalBases - lastException);
+          exceptions.write(data[i]);
+          lastException = totalBases;
+          code = 0;
+        }
+        packedBases[totalBases >>> 2] |= code << ((totalBases & 3) << 1);
+        totalBases++;
+      }
+
+      // Qualities
+      int q1 = 0;
+      int q2 = 0;
+
+      for(int i = qualsStart; i < qualsEnd; i++)
+      {
+        int q = data[i] & 0xFF;
+
+        if(q < MIN_QUALITY || q > MAX_QUALITY)
+          throw new IOException("Quality character " + q + " out of range in record " +
+                                (numRecords + 1) + " of block");
+        q -= MIN_QUALITY;
+        quals.encodeTree(qualityModel, ((q2 << QUALITY_BITS) | q1) << QUALITY_BITS,
+                         QUALITY_BITS, q);
+        q2 = q1;
+        q1 = q;
+      }
+      numRecords++;
+      pos = qualsEnd + 1;
+    }
+    quals.finish();
+
+    CRC32 crc = new CRC32();
+    crc.update(data, 0, length);
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(length / 3 + 64);
+    DataOutputStream out = new DataOutputStream(bytes);
+
+    out.writeInt(numRecords);
+    out.writeInt(length);
+    out.writeInt((int)crc.getValue());
+    out.writeInt(totalBases);
+    writeDeflated(out, headers);
+    writeDeflated(out, exceptions);
+    out.writeInt((totalBases + 3) >>> 2);
+    out.write(packedBases, 0, (totalBases + 3) >>> 2);
+    out.writeInt(quals.size());
+    out.write(quals.getBuffer(), 0, quals.size());
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Restore the records of a block compressed by encode
+   * @param block
+   * @return the records, exactly as given to encode
+   * @throws IOException if the block is corrupt or fails its checksum
+   */
+  public byte[] decode(byte block[]) throws IOException
+  {
+    try
+    {
+      return decodeBlock(block);
+    }
+    catch(RuntimeException e)
+    {
+      // Offsets of a corrupt block run past its arrays
+      throw new IOException("Corrupt FASTQ block");
+    }
+  }
+
+  private byte[] decodeBlock(byte block[]) throws IOException
+  {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(block));
+    int numRecords = in.readInt();
+    int length     = in.readInt();
+    int checksum   = in.readInt();
+    int totalBases = in.readInt();
+
+    if(numRecords < 0 || length < 0 || totalBases < 0 || totalBases > length)
+      throw new IOException("Corrupt FASTQ block");
+
+    byte headerBytes[]    = readInflated(in);
+    ByteReader headers    = new ByteReader(headerBytes);
+    ByteReader exceptions = new ByteReader(readInflated(in));
+    byte packedBases[]    = readArray(in);
+    byte coded[]          = readArray(in);
+
+    // A record takes at least its read length and quality header code
+    if(numRecords > headerBytes.length / 2 || packedBases.length != (totalBases + 3) >>> 2)
+      throw new IOException("Corrupt FASTQ block");
+
+    RangeDecoder quals   = new RangeDecoder(coded, 0, coded.length);
+    short qualityModel[] = RangeEncoder.newModel(1 << (3 * QUALITY_BITS));
+    byte out[]           = new byte[(int)Math.min(length, 8L * block.length + 65536)];
+    int pos              = 0;
+    int baseIndex        = 0;
+    long nextException   = exceptions.hasMore() ? exceptions.readVarint() : Long.MAX_VALUE;
+
+    numPrevRuns = -1;
+
+    for(int r = 0; r < numRecords; r++)
+    {
+      int headerStart = pos + 1;
+
+      out = ensureCapacity(out, pos + MAX_HEADER_LENGTH + 2L, length);
+      out[pos++] = '@';
+      pos = decodeHeader(headers, out, pos);
+      int headerEnd = pos;
+      out[pos++] = '\n';
+
+      int readLength = (int)headers.readVarint();
+
+      if(readLength < 0 || readLength > totalBases - baseIndex)
+        throw new IOException("Corrupt FASTQ block");
+
+      out = ensureCapacity(out, pos + 2L * readLength + MAX_HEADER_LENGTH + 4, length);
+
+      for(int i = 0; i < readLength; i++, baseIndex++)
+      {
+        if(baseIndex == nextException)
+        {
+          out[pos++] = exceptions.readByte();
+          nextException = exceptions.hasMore() ? baseIndex + exceptions.readVarint() :
+                                                 Long.MAX_VALUE;
+        }
+        else
+          out[pos++] = BASES[(packedBases[baseIndex >>> 2] >>> ((baseIndex & 3) << 1)) & 3];
+      }
+      out[pos++] = '\n';
+      out[pos++] = '+';
+
+      int qualHeaderCode = headers.readByte();
+
+      if(qualHeaderCode == QUAL_HEADER_REPEAT)
+      {
+        System.arraycopy(out, headerStart, out, pos, headerEnd - headerStart);
+        pos += headerEnd - headerStart;
+      }
+      else
+      if(qualHeaderCode == QUAL_HEADER_LITERAL)
+      {
+        long qualHeaderLength = headers.readVarint();
+
+        if(qualHeaderLength > MAX_HEADER_LENGTH)
+          throw new IOException("Corrupt FASTQ block");
+        pos = headers.readBytes(out, pos, (int)qualHeaderLength);
+      }
+      out[pos++] = '\n';
+
+      int q1 = 0;
+      int q2 = 0;
+
+      for(int i = 0; i < readLength; i++)
+      {
+        int q = quals.decodeTree(qualityModel, ((q2 << QUALITY_BITS) | q1) << QUALITY_BITS,
+                                 QUALITY_BITS);
+        out[pos++] = (byte)(q + MIN_QUALITY);
+        q2 = q1;
+        q1 = q;
+      }
+      out[pos++] = '\n';
+    }
+
+    CRC32 crc = new CRC32();
+    crc.update(out, 0, pos);
+
+    if(pos != length || (int)crc.getValue() != checksum)
+      throw new IOException("FASTQ block fails its checksum");
+    return out;
+  }
+
+  /**
+   * Code the header from to to, without its '@'
+   */
+  private void encodeHeader(byte data[], int from, int to, ByteArrayOutputStream headers)
+  {
+    int numRuns = findRuns(data, from, to, runs);
+
+    if(numRuns <= 0 || numRuns != numPrevRuns)
+    {
+      headers.write(HEADER_LITERAL);
+      writeVarint(headers, to - from);
+      headers.write(data, from, to - from);
+    }
+    else
+    {
+      headers.write(HEADER_RUNS);
+
+      for(int i = 0; i < numRuns; i++)
+      {
+        int start      = runs[i];
+        int length     = runs[i + 1] - start;
+        int prevStart  = prevRuns[i];
+        int prevLength = prevRuns[i + 1] - prevStart;
+
+        if(length == prevLength && regionsEqual(data, start, data, prevStart, length))
+          headers.write(RUN_SAME);
+        else
+        if(isNumber(data, start, length, true) && isNumber(data, prevStart, prevLength, false))
+        {
+          headers.write(RUN_DELTA);
+          long delta = parseNumber(data, start, length) - parseNumber(data, prevStart, prevLength);
+          writeVarint(headers, (delta << 1) ^ (delta >> 63));
+        }
+        else
+        {
+          headers.write(RUN_LITERAL);
+          writeVarint(headers, length);
+          headers.write(data, start, length);
+        }
+      }
+    }
+    rememberHeader(numRuns);
+  }
+
+  /**
+   * Restore a header at pos of out
+   * @return the end of the header
+   */
+  private int decodeHeader(ByteReader headers, byte out[], int pos) throws IOException
+  {
+    int from = pos;
+    int code = headers.readByte();
+
+    if(code == HEADER_LITERAL)
+      pos = headers.readBytes(out, pos, (int)headers.readVarint());
+    else
+    if(code == HEADER_RUNS && numPrevRuns > 0)
+    {
+      for(int i = 0; i < numPrevRuns; i++)
+      {
+        int prevStart  = prevRuns[i];
+        int prevLength = prevRuns[i + 1] - prevStart;
+        int runCode    = headers.readByte();
+
+        if(runCode == RUN_SAME)
+        {
+          System.arraycopy(out, prevStart, out, pos, prevLength);
+          pos += prevLength;
+        }
+        else
+        if(runCode == RUN_DELTA)
+        {
+          long zigzag = headers.readVarint();
+          long value  = parseNumber(out, prevStart, prevLength) + ((zigzag >>> 1) ^ -(zigzag & 1));
+          pos = writeNumber(out, pos, value);
+        }
+        else
+          pos = headers.readBytes(out, pos, (int)headers.readVarint());
+      }
+    }
+    else
+      throw new IOException("Corrupt FASTQ block");
+
+    rememberHeader(findRuns(out, from, pos, runs));
+    return pos;
+  }
+
+  /**
+   * Make the runs just found those of the previous header
+   */
+  private void rememberHeader(int numRuns)
+  {
+    int swap[]  = prevRuns;
+    prevRuns    = runs;
+    runs        = swap;
+    numPrevRuns = numRuns;
+  }
+
+  /**
+   * Split from to to into alternating runs of letters and digits and runs of
+   * other characters
+   * @return number of runs, or -1 if there are more than MAX_RUNS
+   */
+  private static int findRuns(byte data[], int from, int to, int runStarts[])
+  {
+    int numRuns = 0;
+
+    for(int i = from; i < to; i++)
+    {
+      if(i == from || isWordByte(data[i]) != isWordByte(data[i - 1]))
+      {
+        if(numRuns == MAX_RUNS)
+          return -1;
+        runStarts[numRuns++] = i;
+      }
+    }
+    runStarts[numRuns] = to;
+    return numRuns;
+  }
+
+  private static boolean isWordByte(byte b)
+  {
+    return (b >= '0' && b <= '9') || (b >= 'A' && b <= 'Z') || (b >= 'a' && b <= 'z');
+  }
+
+  /**
+   * True if the bytes are a number of at most 18 digits. A number written by
+   * the decoder must not have leading zeros, which it would lose.
+   */
+  private static boolean isNumber(byte data[], int start, int length, boolean written)
+  {
+    if(length == 0 || length > 18 || (written && length > 1 && data[start] == '0'))
+      return false;
+
+    for(int i = start; i < start + length; i++)
+    {
+      if(data[i] < '0' || data[i] > '9')
+        return false;
+    }
+    return true;
+  }
+
+  private static long parseNumber(byte data[], int start, int length)
+  {
+    long value = 0;
+
+    for(int i = start; i < start + length; i++)
+      value = 10 * value + (data[i] - '0');
+    return value;
+  }
+
+  private static int writeNumber(byte out[], int pos, long value) throws IOException
+  {
+    if(value < 0)
+      throw new IOException("Corrupt FASTQ block");
+
+    int digits = 1;
+
+    for(long v = value / 10; v > 0; v /= 10)
+      digits++;
+
+    for(int i = pos + digits - 1; i >= pos; i--)
+    {
+      out[i] = (byte)('0' + value % 10);
+      value /= 10;
+    }
+    return pos + digits;
+  }
+
+  private static boolean regionsEqual(byte a[], int aStart, byte b[], int bStart, int length)
+  {
+    for(int i = 0; i < length; i++)
+    {
+      if(a[aStart + i] != b[bStart + i])
+        return false;
+    }
+    return true;
+  }
+
+  private static int lineEnd(byte data[], int from, int length) throws IOException
+  {
+    for(int i = from; i < length; i++)
+    {
+      if(data[i] == '\n')
+        return i;
+    }
+    throw new IOException("FASTQ block does not end with a complete record");
+  }
+
+  private static void writeVarint(ByteArrayOutputStream out, long value)
+  {
+    while((value & ~0x7FL) != 0)
+    {
+      out.write((int)(value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.write((int)value);
+  }
+
+  private static void writeDeflated(DataOutputStream out, ByteArrayOutputStream stream)
+    throws IOException
+  {
+    byte input[]      = stream.toByteArray();
+    Deflater deflater = new Deflater();
+    byte buffer[]     = new byte[65536];
+    ByteArrayOutputStream deflated = new ByteArrayOutputStream(input.length / 4 + 64);
+
+    deflater.setInput(input);
+    deflater.finish();
+
+    while(!deflater.finished())
+    {
+      int n = deflater.deflate(buffer);
+      deflated.write(buffer, 0, n);
+    }
+    deflater.end();
+
+    out.writeInt(input.length);
+    out.writeInt(deflated.size());
+    deflated.writeTo(out);
+  }
+
+  /**
+   * Grow out to hold needed bytes, but never beyond the length of the block
+   */
+  private static byte[] ensureCapacity(byte out[], long needed, int length)
+  {
+    if(needed <= out.length || out.length == length)
+      return out;
+    return java.util.Arrays.copyOf(out, (int)Math.min(length, Math.max(needed, 2L * out.length)));
+  }
+
+  /**
+   * Read an array preceded by its length
+   * @throws IOException if the length is more than the bytes left
+   */
+  private static byte[] readArray(DataInputStream in) throws IOException
+  {
+    int length = in.readInt();
+
+    if(length < 0 || length > in.available())
+      throw new IOException("Corrupt FASTQ block");
+
+    byte array[] = new byte[length];
+    in.readFully(array);
+    return array;
+  }
+
+  private static byte[] readInflated(DataInputStream in) throws IOException
+  {
+    int outputLength = in.readInt();
+    byte input[]     = readArray(in);
+
+    if(outputLength < 0 || outputLength > (long)input.length * MAX_DEFLATE_RATIO + 64)
+      throw new IOException("Corrupt FASTQ block");
+
+    byte output[] = new byte[outputLength];
+
+    Inflater inflater = new Inflater();
+
+    try
+    {
+      inflater.setInput(input);
+
+      int n = 0;
+
+      while(n < output.length)
+      {
+        int inflated = inflater.inflate(output, n, output.length - n);
+
+        if(inflated == 0 && (inflater.finished() || inflater.needsInput()))
+          throw new IOException("Corrupt FASTQ block");
+        n += inflated;
+      }
+    }
+    catch(DataFormatException e)
+    {
+      throw new IOException("Corrupt FASTQ block : " + e.getMessage());
+    }
+    finally
+    {
+      inflater.end();
+    }
+    return output;
+  }
+
+  /**
+   * Cursor over an inflated stream
+   */
+  private static class ByteReader
+  {
+    private byte data[];
+    private int pos = 0;
+
+    ByteReader(byte data[])
+    {
+      this.data = data;
+    }
+
+    boolean hasMore()
+    {
+      return pos < data.length;
+    }
+
+    byte readByte()
+    {
+      return data[pos++];
+    }
+
+    long readVarint()
+    {
+      long value = 0;
+      int shift  = 0;
+      byte b;
+
+      do
+      {
+        b = data[pos++];
+        value |= (long)(b & 0x7F) << shift;
+        shift += 7;
+      }
+      while((b & 0x80) != 0);
+      return value;
+    }
+
+    int readBytes(byte out[], int outPos, int length)
+    {
+      System.arraycopy(data, pos, out, outPos, length);
+      pos += length;
+      return outPos + length;
+    }
+  }
+}
@@ -0,0 +1,242 @@
+package common;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import net.sf.picard.fastq.FastqRecord;
+
+/**
+ * Class to represent a FASTQ record as offsets into the buffer of
+ * MappedFastqReader, without copying or decoding it. The reader fills the
+ * same instance for every record, so a slice is only valid until the next
+ * record is read. Strings are made only when asked for, and a record can be
+ * written out byte for byte.
+ * @author Nirav Shah niravs@bcm.edu
+ *
+ */
+public class FastqSlice
+{
+  private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+  private ByteBuffer buffer;              // Buffer of the reader
+  private ByteBuffer view;                // Its duplicate for bulk copies
+  private long fileOffset;                // Offset of the record in the file
+
+  // Offsets in the buffer. Line ends exclude the line terminator.
+  private int start;                      // The '@' of the header line
+  private int headerEnd;
+  private int basesStart;
+  private int basesEnd;
+  private int qualHeaderStart;            // The '+' of the quality header line
+  private int qualHeaderEnd;
+  private int qualsStart;
+  private int qualsEnd;
+  private int end;                        // After the last line terminator
+
+  private byte scratch[] = new byte[8192];
+
+  /**
+   * Called by MappedFastqReader when it moves to another buffer
+   */
+  void setBuffer(ByteBuffer buffer)
+  {
+    this.buffer = buffer;
+    view        = buffer.duplicate();
+  }
+
+  /**
+   * Called by MappedFastqReader for every record
+   */
+  void set(long fileOffset, int start, int headerEnd, int basesStart, int basesEnd,
+           int qualHeaderStart, int qualHeaderEnd, int qualsStart, int qualsEnd, int end)
+  {
+    this.fileOffset      = fileOffset;
+    this.start           = start;
+    this.headerEnd       = headerEnd;
+    this.basesStart      = basesStart;
+    this.basesEnd        = basesEnd;
+    this.qualHeaderStart = qualHeaderStart;
+    this.qualHeaderEnd   = qualHeaderEnd;
+    this.qualsStart      = qualsStart;
+    this.qualsEnd        = qualsEnd;
+    this.end             = end;
+  }
+
+  /**
+   * Offset of the record in the file, in the uncompressed data of a
+   * compressed file
+   * @return
+   */
+  public long getOffset()
+  {
+    return fileOffset;
+  }
+
+  /**
+   * Number of bytes of the record in the file
+   * @return
+   */
+  public int getLength()
+  {
+    return end - start;
+  }
+
+  public int getReadLength()
+  {
+    return basesEnd - basesStart;
+  }
+
+  /**
+   * Return base i of the read as an ASCII character
+   * @param i
+   * @return
+   */
+  public byte getBase(int i)
+  {
+    return buffer.get(basesStart + i);
+  }
+
+  /**
+   * Return the quality of base i as the ASCII character of the file
+   * @param i
+   * @return
+   */
+  public byte getQuality(int i)
+  {
+    return buffer.get(qualsStart + i);
+  }
+
+  /**
+   * Return the header without the '@'
+   * @return
+   */
+  public String getReadHeader()
+  {
+    return decode(start + 1, headerEnd);
+  }
+
+  public String getReadString()
+  {
+    return decode(basesStart, basesEnd);
+  }
+
+  /**
+   * Return the quality header without the '+'
+   * @return
+   */
+  public String getBaseQualityHeader()
+  {
+    return decode(qualHeaderStart + 1, qualHeaderEnd);
+  }
+
+  public String getBaseQualityString()
+  {
+    return decode(qualsStart, qualsEnd);
+  }
+
+  /**
+   * Return the read name, the header up to the first white space
+   * @return
+   */
+  public String getReadName()
+  {
+    int nameEnd = start + 1;
+
+    while(nameEnd < headerEnd && buffer.get(nameEnd) != ' ' && buffer.get(nameEnd) != '\t')
+      nameEnd++;
+    return decode(start + 1, nameEnd);
+  }
+
+  /**
+   * Return a copy of the record as a Picard FastqRecord
+   * @return
+   */
+  public FastqRecord toFastqRecord()
+  {
+    return new FastqRecord(getReadHeader(), getReadString(), getBaseQualityHeader(),
+                           getBaseQualityString());
+  }
+
+  /**
+   * Write the record exactly as it is in the file, with a line terminator
+   * added to the last line of a file that has none
+   * @param out
+   * @throws IOException
+   */
+  public void writeTo(OutputStream out) throws IOException
+  {
+    copy(out, start, end);
+
+    if(end == qualsEnd)
+      out.write('\n');
+  }
+
+  /**
+   * Write the header line, with its '@'
+   * @param out
+   * @throws IOException
+   */
+  public void writeHeaderLine(OutputStream out) throws IOException
+  {
+    copy(out, start, headerEnd);
+    out.write('\n');
+  }
+
+  /**
+   * Write bases from to to - 1, without a line terminator
+   * @param out
+   * @param from
+   * @param to
+   * @throws IOException
+   */
+  public void writeBases(OutputStream out, int from, int to) throws IOException
+  {
+    copy(out, basesStart + from, basesStart + to);
+  }
+
+  /**
+   * Write the quality header line, with its '+'
+   * @param out
+   * @throws IOException
+   */
+  public void writeQualityHeaderLine(OutputStream out) throws IOException
+  {
+    copy(out, qualHeaderStart, qualHeaderEnd);
+    out.write('\n');
+  }
+
+  /**
+   * Write the qualities of bases from to to - 1, without a line terminator
+   * @param out
+   * @param from
+   * @param to
+   * @throws IOException
+   */
+  public void writeQualities(OutputStream out, int from, int to) throws IOException
+  {
+    copy(out, qualsStart + from, qualsStart + to);
+  }
+
+  private void copy(OutputStream out, int from, int to) throws IOException
+  {
+    view.limit(to);
+    view.position(from);
+
+    while(view.hasRemaining())
+    {
+      int n = Math.min(scratch.length, view.remaining());
+      view.get(scratch, 0, n);
+      out.write(scratch, 0, n);
+    }
+  }
+
+  private String decode(int from, int to)
+  {
+    byte bytes[] = new byte[to - from];
+    view.limit(to);
+    view.position(from);
+    view.get(bytes);
+    return new String(bytes, LATIN1);
+  }
+}
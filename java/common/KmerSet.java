@@ -0,0 +1,287 @@
+package common;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Class to hold the k-mers of small reference sequences, such as PhiX, E. coli
+ * or adaptors, for screening reads against them. Every k-mer is packed 2 bits
+ * per base and stored in its canonical form, the smaller of the k-mer and its
+ * reverse complement, so that reads of either strand are found. The k-mers are
+ * kept in an open addressing hash table of longs with linear probing, together
+ * with the index of the reference each came from. The set is built by one
+ * thread and may then be looked up by many threads without locking.
+ * @author Nirav Shah niravs@bcm.edu
+ *
+ */
+public class KmerSet
+{
+  public static final int MAX_K = 31;       // Bases that fit in 62 bits
+  public static final int SHARED = 127;     // Owner of k-mers of more than one reference
+
+  private static final long EMPTY = -1L;    // Not a valid k-mer, as k <= 31
+  private static final int MAX_REFERENCES = SHARED;
+
+  // 2 bit code of each base, 4 for everything else
+  private static final byte CODES[] = new byte[256];
+
+  static
+  {
+    Arrays.fill(CODES, (byte)4);
+    CODES['A'] = CODES['a'] = 0;
+    CODES['C'] = CODES['c'] = 1;
+    CODES['G'] = CODES['g'] = 2;
+    CODES['T'] = CODES['t'] = 3;
+  }
+
+  private int k;                            // Length of the k-mers
+  private long kmerMask;                    // Low 2k bits
+  private long keys[];                      // Canonical k-mers or EMPTY
+  private byte owners[];                    // Reference of each k-mer
+  private int tableMask;                    // Table size - 1
+  private int size = 0;                     // Distinct k-mers
+
+  private ArrayList<String> referenceNames = new ArrayList<String>();
+
+  /**
+   * Class constructor
+   * @param k - length of the k-mers, 1 to 31
+   */
+  public KmerSet(int k)
+  {
+    if(k < 1 || k > MAX_K)
+      throw new IllegalArgumentException("K-mer length must be 1 to " + MAX_K + " : " + k);
+    this.k   = k;
+    kmerMask = (1L << (2 * k)) - 1;
+    allocate(1 << 16);
+  }
+
+  public int getK()
+  {
+    return k;
+  }
+
+  public int size()
+  {
+    return size;
+  }
+
+  public int getNumReferences()
+  {
+    return referenceNames.size();
+  }
+
+  public String getReferenceName(int owner)
+  {
+    return (owner == SHARED) ? "Shared" : referenceNames.get(owner);
+  }
+
+  /**
+   * Add the k-mers of every sequence of a FASTA file, as one reference named
+   * after the file
+   * @param fasta
+   * @return the index of the reference
+   * @throws IOException
+   */
+  public int addReference(File fasta) throws IOException
+  {
+    if(referenceNames.size() == MAX_REFERENCES)
+      throw new IOException("At most " + MAX_REFERENCES + " references can be screened");
+
+    int owner = referenceNames.size();
+    referenceNames.add(fasta.getName());
+
+    BufferedReader reader = new BufferedReader(new FileReader(fasta));
+    StringBuilder sequence = new StringBuilder();
+    String line;
+
+    try
+    {
+      while((line = reader.readLine()) != null)
+      {
+        if(line.startsWith(">"))
+        {
+          addSequence(sequence, owner);
+          sequence.setLength(0);
+        }
+        else
+          sequence.append(line.trim());
+      }
+      addSequence(sequence, owner);
+    }
+    finally
+    {
+      reader.close();
+    }
+    return owner;
+  }
+
+  /**
+   * Add the k-mers of a sequence, skipping those with bases other than ACGT
+   * @param sequence
+   * @param owner - index of the reference
+   */
+  public void addSequence(CharSequence sequence, int owner)
+  {
+    long forward = 0;
+    long reverse = 0;
+    int validBases = 0;
+    int shift = 2 * (k - 1);
+
+    for(int i = 0; i < sequence.length(); i++)
+    {
+      char c = sequence.charAt(i);
+      int code = (c < 256) ? CODES[c] : 4;
+
+      if(code > 3)
+      {
+        validBases = 0;
+        continue;
+      }
+      forward = ((forward << 2) | code) & kmerMask;
+      reverse = (reverse >>> 2) | ((long)(3 - code) << shift);
+
+      if(++validBases >= k)
+        add(Math.min(forward, reverse), owner);
+    }
+  }
+
+  /**
+   * Count the k-mers of a read that are in the set. The read is not copied
+   * and nothing is allocated.
+   * @param bases - buffer holding the bases as ASCII characters
+   * @param from - index of the first base
+   * @param to - index after the last base
+   * @param ownerHits - incremented at the owner of every k-mer found, of
+   *                    length getNumReferences() + 1, the last for shared
+   *                    k-mers
+   * @return number of k-mers of the read in the set
+   */
+  public int countHits(byte bases[], int from, int to, int ownerHits[])
+  {
+    long forward = 0;
+    long reverse = 0;
+    int validBases = 0;
+    int shift = 2 * (k - 1);
+    int hits = 0;
+    int sharedIndex = ownerHits.length - 1;
+
+    for(int i = from; i < to; i++)
+    {
+      int code = CODES[bases[i] & 0xFF];
+
+      if(code > 3)
+      {
+        validBases = 0;
+        continue;
+      }
+      forward = ((forward << 2) | code) & kmerMask;
+      reverse = (reverse >>> 2) | ((long)(3 - code) << shift);
+
+      if(++validBases >= k)
+      {
+        int owner = getOwner(Math.min(forward, reverse));
+
+        if(owner >= 0)
+        {
+          hits++;
+          ownerHits[(owner == SHARED) ? sharedIndex : owner]++;
+        }
+      }
+    }
+    return hits;
+  }
+
+  /**
+   * Return the reference of a canonical k-mer, SHARED, or -1 if it is not in
+   * the set
+   * @param kmer
+   * @return
+   */
+  public int getOwner(long kmer)
+  {
+    int slot = hash(kmer) & tableMask;
+
+    while(true)
+    {
+      long key = keys[slot];
+
+      if(key == kmer)
+        return owners[slot];
+      if(key == EMPTY)
+        return -1;
+      slot = (slot + 1) & tableMask;
+    }
+  }
+
+  private void add(long kmer, int owner)
+  {
+    int slot = hash(kmer) & tableMask;
+
+    while(true)
+    {
+      long key = keys[slot];
+
+      if(key == kmer)
+      {
+        if(owners[slot] != owner)
+          owners[slot] = (byte)SHARED;
+        return;
+      }
+
+      if(key == EMPTY)
+        break;
+      slot = (slot + 1) & tableMask;
+    }
+    keys[slot]   = kmer;
+    owners[slot] = (byte)owner;
+
+    // Keep the table at most half full so that probes stay short
+    if(++size > keys.length / 2)
+      grow();
+  }
+
+  private void grow()
+  {
+    long oldKeys[]   = keys;
+    byte oldOwners[] = owners;
+
+    allocate(2 * oldKeys.length);
+
+    for(int i = 0; i < oldKeys.length; i++)
+    {
+      if(oldKeys[i] == EMPTY)
+        continue;
+
+      int slot = hash(oldKeys[i]) & tableMask;
+
+      while(keys[slot] != EMPTY)
+        slot = (slot + 1) & tableMask;
+      keys[slot]   = oldKeys[i];
+      owners[slot] = oldOwners[i];
+    }
+  }
+
+  private void allocate(int capacity)
+  {
+    keys      = new long[capacity];
+    owners    = new byte[capacity];
+    tableMask = capacity - 1;
+    Arrays.fill(keys, EMPTY);
+  }
+
+  /**
+   * MurmurHash3 finalizer, so that k-mers differing in their first bases
+   * spread over the table
+   */
+  private static int hash(long kmer)
+  {
+    kmer ^= kmer >>> 33;
+    kmer *= 0xff51afd7ed558ccdL;
+    kmer ^= kmer >>> 33;
+    kmer *= 0xc4ceb9fe1a85ec53L;
+    kmer ^= kmer >>> 33;
+    return (int)kmer;
+  }
+}
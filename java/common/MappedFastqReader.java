@@ -0,0 +1,385 @@
+package common;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Class to read FASTQ records without copying or decoding them. A plain file
+ * is memory mapped in large windows, and every record is returned as offsets
+ * into the mapped window by a reused FastqSlice, so that reading a record
+ * creates no objects. A gzipped file is gunzipped into a heap buffer that is
+ * read the same way, and so is a bzip2 file, through the bzip2 program. Line
+ * ends are found 8 bytes at a time, and a line terminator of \r\n is
+ * accepted.
+ *
+ * The reader keeps track of the byte offset of the next record, so that a tool
+ * can record where it is in a checkpoint and later start reading from that
+ * offset. For compressed files the offset is in the uncompressed data, and
+ * starting at an offset decompresses and skips the data before it. With a
+ * ReadSampler, records not in the sample are skipped by their header.
+ * @author Nirav Shah niravs@bcm.edu
+ *
+ */
+public class MappedFastqReader
+{
+  private static final int WINDOW_SIZE = 256 * 1024 * 1024;  // Bytes mapped at a time
+  private static final int STREAM_BUFFER_SIZE = 4 * 1024 * 1024;
+
+  private static final long NEWLINES  = 0x0A0A0A0A0A0A0A0AL;
+  private static final long LOW_BITS  = 0x0101010101010101L;
+  private static final long HIGH_BITS = 0x8080808080808080L;
+
+  private File file;                          // File being read
+  private FileChannel channel = null;         // To map a plain file
+  private long fileSize       = 0;
+  private InputStream stream  = null;         // Uncompressed data of a compressed file
+  private Process bzip2       = null;         // Decompressing a bzip2 file, or null
+  private boolean streamEnded = false;
+
+  private ByteBuffer buffer;                  // Mapped window or heap buffer
+  private long bufferOffset = 0;              // Offset in the file of buffer[0]
+  private int limit         = 0;              // Valid bytes in buffer
+  private int pos           = 0;              // Start of the next record
+  private long recordNum    = 0;              // Records read since the start
+  private int headerStart   = 0;              // Start of the header of the last record
+  private int headerEnd     = 0;              // End of the header of the last record
+
+  private FastqSlice slice = new FastqSlice();
+  private ReadSampler sampler = null;         // Skip reads not in it, or null
+
+  /**
+   * Class constructor
+   * @param file - FASTQ file, compressed if the name ends with .gz or .bz2
+   * @throws IOException
+   */
+  public MappedFastqReader(File file) throws IOException
+  {
+    this(file, 0);
+  }
+
+  /**
+   * Class constructor
+   * @param file - FASTQ file, compressed if the name ends with .gz or .bz2
+   * @param startOffset - offset of the first record to read, 0 for the start
+   * @throws IOException
+   */
+  public MappedFastqReader(File file, long startOffset) throws IOException
+  {
+    this.file = file;
+
+    if(file.getName().endsWith(".gz") || file.getName().endsWith(".bz2"))
+    {
+      if(file.getName().endsWith(".gz"))
+        stream = new GZIPInputStream(new FileInputStream(file), 65536);
+      else
+      {
+        bzip2  = new ProcessBuilder("bzip2", "-dc", file.getPath()).start();
+        stream = bzip2.getInputStream();
+      }
+      long toSkip = startOffset;
+
+      while(toSkip > 0)
+      {
+        long skipped = stream.skip(toSkip);
+
+        if(skipped <= 0)
+        {
+          stream.close();
+          throw new IOException(file.getName() + " is shorter than offset " + startOffset);
+        }
+        toSkip -= skipped;
+      }
+      buffer = ByteBuffer.wrap(new byte[STREAM_BUFFER_SIZE]).order(ByteOrder.LITTLE_ENDIAN);
+      slice.setBuffer(buffer);
+      bufferOffset = startOffset;
+    }
+    else
+    {
+      channel  = new FileInputStream(file).getChannel();
+      fileSize = channel.size();
+
+      if(startOffset > fileSize)
+      {
+        channel.close();
+        throw new IOException(file.getName() + " is shorter than offset " + startOffset);
+      }
+      map(startOffset);
+    }
+  }
+
+  /**
+   * Return only the records in the sample from now on
+   * @param sampler - null to return all records
+   */
+  public void setSampler(ReadSampler sampler)
+  {
+    this.sampler = sampler;
+  }
+
+  /**
+   * Return the byte offset of the record that next returns next
+   * @return
+   */
+  public long getPosition()
+  {
+    return bufferOffset + pos;
+  }
+
+  /**
+   * Read the next record. The returned slice is reused, and is only valid
+   * until next is called again.
+   * @return the record or null at the end of the file
+   * @throws IOException if the record is malformed
+   */
+  public FastqSlice next() throws IOException
+  {
+    while(true)
+    {
+      if(atEnd() && isBlank(pos))
+      {
+        pos = limit;
+        return null;
+      }
+
+      if(!parseRecord())
+      {
+        refill();
+        continue;
+      }
+      recordNum++;
+
+      if(sampler == null ||
+         sampler.keep(buffer, headerStart + 1, headerEnd))
+        return slice;
+    }
+  }
+
+  public void close() throws IOException
+  {
+    if(channel != null)
+      channel.close();
+    if(stream != null)
+      stream.close();
+    if(bzip2 != null)
+      bzip2.destroy();
+    buffer = null;
+  }
+
+  /**
+   * Find the four lines of the record at pos and point the slice to them
+   * @return false if the buffer ends before the record does
+   * @throws IOException if the record is malformed
+   */
+  private boolean parseRecord() throws IOException
+  {
+    int start = pos;
+    int lineEnd1 = lineEnd(start);
+
+    if(lineEnd1 < 0)
+      return false;
+
+    int basesStart = lineEnd1 + 1;
+    int lineEnd2   = lineEnd(basesStart);
+
+    if(lineEnd2 < 0)
+      return false;
+
+    int qualHeaderStart = lineEnd2 + 1;
+    int lineEnd3        = lineEnd(qualHeaderStart);
+
+    if(lineEnd3 < 0)
+      return false;
+
+    int qualsStart = lineEnd3 + 1;
+    int lineEnd4   = lineEnd(qualsStart);
+
+    if(lineEnd4 < 0)
+      return false;
+
+    // Lines past the end of a file that ends in the middle of a record
+    if(qualsStart > limit)
+      throw new IOException("Malformed FASTQ record " + (recordNum + 1) + " of " +
+                            file.getName());
+
+    int end = Math.min(lineEnd4 + 1, limit);
+
+    headerStart       = start;
+    headerEnd         = stripReturn(start, lineEnd1);
+    int basesEnd      = stripReturn(basesStart, lineEnd2);
+    int qualHeaderEnd = stripReturn(qualHeaderStart, lineEnd3);
+    int qualsEnd      = stripReturn(qualsStart, lineEnd4);
+
+    if(headerEnd == start || buffer.get(start) != '@' ||
+       qualHeaderEnd == qualHeaderStart || buffer.get(qualHeaderStart) != '+')
+      throw new IOException("Malformed FASTQ record " + (recordNum + 1) + " of " +
+                            file.getName());
+
+    if(basesEnd - basesStart != qualsEnd - qualsStart)
+      throw new IOException("Bases and qualities differ in length in record " +
+                            (recordNum + 1) + " of " + file.getName());
+
+    slice.set(bufferOffset + start, start, headerEnd, basesStart, basesEnd,
+              qualHeaderStart, qualHeaderEnd, qualsStart, qualsEnd, end);
+    pos = end;
+    return true;
+  }
+
+  /**
+   * Return the index of the '\n' ending the line that starts at from, limit
+   * for the last line of a file that has no line terminator, or -1 if the
+   * buffer ends before the line does
+   */
+  private int lineEnd(int from)
+  {
+    int i = findNewline(from);
+
+    if(i < 0 && atEnd())
+      return limit;
+    return i;
+  }
+
+  /**
+   * Return the index of the first '\n' at or after from, or -1. Eight bytes
+   * are tested at a time: a byte of x is zero where the byte is '\n', and the
+   * lowest such byte sets the high bit of its byte in t.
+   */
+  private int findNewline(int from)
+  {
+    int i = from;
+    int lastWord = limit - 8;
+
+    while(i <= lastWord)
+    {
+      long x = buffer.getLong(i) ^ NEWLINES;
+      long t = (x - LOW_BITS) & ~x & HIGH_BITS;
+
+      if(t != 0)
+        return i + (Long.numberOfTrailingZeros(t) >>> 3);
+      i += 8;
+    }
+
+    while(i < limit)
+    {
+      if(buffer.get(i) == '\n')
+        return i;
+      i++;
+    }
+    return -1;
+  }
+
+  /**
+   * Return true if only line terminators follow from, i.e. blank lines after
+   * the last record of a file. Stops at the first other byte, which for a
+   * record is the byte at from.
+   */
+  private boolean isBlank(int from)
+  {
+    for(int i = from; i < limit; i++)
+    {
+      byte b = buffer.get(i);
+
+      if(b != '\n' && b != '\r')
+        return false;
+    }
+    return true;
+  }
+
+  private int stripReturn(int lineStart, int lineEnd)
+  {
+    if(lineEnd > lineStart && buffer.get(lineEnd - 1) == '\r')
+      return lineEnd - 1;
+    return lineEnd;
+  }
+
+  private boolean atEnd()
+  {
+    if(channel != null)
+      return bufferOffset + limit == fileSize;
+    return streamEnded;
+  }
+
+  /**
+   * Move the buffer to start at the record at pos and fill the rest of it
+   * @throws IOException if the record does not fit in a window
+   */
+  private void refill() throws IOException
+  {
+    long recordOffset = bufferOffset + pos;
+
+    if(channel != null)
+    {
+      if(pos == 0)
+        throw new IOException("FASTQ record at offset " + recordOffset + " of " +
+                              file.getName() + " is longer than " + WINDOW_SIZE + " bytes");
+      map(recordOffset);
+      return;
+    }
+
+    byte data[]   = buffer.array();
+    int remaining = limit - pos;
+
+    if(remaining == data.length)
+    {
+      // The record is larger than the buffer
+      byte grown[] = new byte[2 * data.length];
+      System.arraycopy(data, 0, grown, 0, remaining);
+      data   = grown;
+      buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+      slice.setBuffer(buffer);
+    }
+    else
+      System.arraycopy(data, pos, data, 0, remaining);
+
+    bufferOffset = recordOffset;
+    pos          = 0;
+    limit        = remaining;
+
+    while(limit < data.length)
+    {
+      int n = stream.read(data, limit, data.length - limit);
+
+      if(n < 0)
+      {
+        checkBzip2();
+        streamEnded = true;
+        break;
+      }
+      limit += n;
+    }
+  }
+
+  /**
+   * A bzip2 file that fails to decompress would otherwise look like a short
+   * file
+   */
+  private void checkBzip2() throws IOException
+  {
+    if(bzip2 == null)
+      return;
+
+    try
+    {
+      if(bzip2.waitFor() != 0)
+        throw new IOException("bzip2 failed to decompress " + file.getName());
+    }
+    catch(InterruptedException e)
+    {
+      throw new IOException("Interrupted while reading " + file.getName());
+    }
+  }
+
+  private void map(long offset) throws IOException
+  {
+    long size = Math.min(WINDOW_SIZE, fileSize - offset);
+
+    buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+    slice.setBuffer(buffer);
+    bufferOffset = offset;
+    pos          = 0;
+    limit        = (int)size;
+  }
+}
@@ -0,0 +1,310 @@
+package common;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Class to track the progress and throughput of a tool. Counters are lock
+ * free so that worker threads can update them without contention. A
+ * background thread periodically prints the progress to stderr and, if a
+ * progress file is given, rewrites it atomically in key=value format so that
+ * the scheduler or a person can watch a running job. The same numbers are
+ * exposed as a JMX MBean.
+ * @author Nirav Shah niravs@bcm.edu
+ *
+ */
+public class ProgressMonitor implements ProgressMonitorMBean
+{
+  /**
+   * Stages of processing a record that are timed separately
+   */
+  public enum Stage
+  {
+    DECODE,     // Reading and parsing input records
+    CALCULATE,  // Tool specific processing
+    ENCODE,     // Encoding output records
+    WRITE       // Compressing and writing output
+  }
+
+  private String toolName;                // Name of the tool being monitored
+  private File progressFile;              // Where to write progress, or null
+  private int intervalSeconds;            // Seconds between reports
+  private File outputFile;                // Output whose size is reported
+
+  private AtomicLong records = new AtomicLong();   // Records processed
+  private AtomicLong bytes   = new AtomicLong();   // Bytes processed
+  private AtomicLong stageNanos[];                 // Time spent per stage
+
+  private long startTime;                 // When monitoring started, in ms
+  private long lastReportTime;            // When the last report was written
+  private long lastReportRecords;         // Records at the last report
+  private volatile String state = "RUNNING";
+
+  private ScheduledExecutorService reporter;
+  private ObjectName mbeanName;
+
+  /**
+   * Class constructor
+   * @param toolName - name of the tool, used in reports
+   * @param progressFile - file to rewrite with progress, may be null
+   * @param intervalSeconds - seconds between reports
+   */
+  public ProgressMonitor(String toolName, File progressFile, int intervalSeconds)
+  {
+    this.toolName        = toolName;
+    this.progressFile    = (progressFile != null) ? progressFile.getAbsoluteFile() : null;
+    this.intervalSeconds = Math.max(1, intervalSeconds);
+
+    // Tools call finish(false) on errors before start(), which must then
+    // report the time since construction rather than since the epoch
+    startTime      = System.currentTimeMillis();
+    lastReportTime = startTime;
+
+    stageNanos = new AtomicLong[Stage.values().length];
+    for(int i = 0; i < stageNanos.length; i++)
+      stageNanos[i] = new AtomicLong();
+  }
+
+  /**
+   * Report the size of the given output file as bytes processed, for tools
+   * that cannot count their own bytes cheaply.
+   * @param outputFile
+   */
+  public void setOutputFile(File outputFile)
+  {
+    this.outputFile = outputFile;
+  }
+
+  /**
+   * Start the periodic reports
+   */
+  public void start()
+  {
+    startTime         = System.currentTimeMillis();
+    lastReportTime    = startTime;
+    lastReportRecords = 0;
+
+    reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+    {
+      public Thread newThread(Runnable r)
+      {
+        Thread t = new Thread(r, "ProgressMonitor");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    reporter.scheduleAtFixedRate(new Runnable()
+    {
+      public void run()
+      {
+        report();
+      }
+    }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+
+    try
+    {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      mbeanName = new ObjectName("common:type=ProgressMonitor,name=" + toolName);
+      if(!server.isRegistered(mbeanName))
+        server.registerMBean(this, mbeanName);
+      else
+        mbeanName = null;
+    }
+    catch(Exception e)
+    {
+      // Monitoring must never stop the tool
+      mbeanName = null;
+    }
+  }
+
+  /**
+   * Stop the reports and write the final one
+   * @param success - whether the tool completed successfully
+   */
+  public void finish(boolean success)
+  {
+    state = success ? "DONE" : "FAILED";
+
+    if(reporter != null)
+      reporter.shutdownNow();
+    report();
+    System.err.println();
+
+    if(mbeanName != null)
+    {
+      try
+      {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+      }
+      catch(Exception e) { }
+    }
+  }
+
+  public void addRecord()
+  {
+    records.incrementAndGet();
+  }
+
+  public void addRecords(long n)
+  {
+    records.addAndGet(n);
+  }
+
+  public void addBytes(long n)
+  {
+    bytes.addAndGet(n);
+  }
+
+  /**
+   * Add the time since startNanos to the stage.
+   * @param stage
+   * @param startNanos - value of System.nanoTime() when the stage began
+   * @return current System.nanoTime(), to start timing the next stage
+   */
+  public long addStageTime(Stage stage, long startNanos)
+  {
+    long now = System.nanoTime();
+    stageNanos[stage.ordinal()].addAndGet(now - startNanos);
+    return now;
+  }
+
+  /**
+   * Add time to the stage, e.g. the time of a sampled record scaled up
+   * @param stage
+   * @param nanos
+   */
+  public void addStageNanos(Stage stage, long nanos)
+  {
+    stageNanos[stage.ordinal()].addAndGet(nanos);
+  }
+
+  /**
+   * Print progress to stderr and rewrite the progress file
+   */
+  synchronized void report()
+  {
+    long now        = System.currentTimeMillis();
+    long numRecords = records.get();
+    double recentRate = (now > lastReportTime) ?
+                        1000.0 * (numRecords - lastReportRecords) / (now - lastReportTime) : 0;
+
+    lastReportTime    = now;
+    lastReportRecords = numRecords;
+
+    System.err.print("\rProcessed : " + numRecords + " records (" +
+                     (long)recentRate + " records/sec)");
+
+    if(progressFile != null)
+    {
+      try
+      {
+        writeProgressFile(now, numRecords, recentRate);
+      }
+      catch(IOException e)
+      {
+        System.err.println("\nCould not write progress file : " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Write to a temporary file and rename it, so that readers never see a
+   * partial file.
+   */
+  private void writeProgressFile(long now, long numRecords, double recentRate) throws IOException
+  {
+    File tempFile = new File(progressFile.getPath() + ".tmp");
+    PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(tempFile)));
+
+    writer.println("tool=" + toolName);
+    writer.println("state=" + state);
+    writer.println("timestamp=" + now);
+    writer.println("elapsedSeconds=" + getElapsedSeconds());
+    writer.println("records=" + numRecords);
+    writer.println("bytes=" + getBytes());
+    writer.println("recordsPerSecond=" + Math.round(getRecordsPerSecond()));
+    writer.println("recentRecordsPerSecond=" + Math.round(recentRate));
+    writer.println("bytesPerSecond=" + Math.round(getBytesPerSecond()));
+
+    for(Stage stage : Stage.values())
+      writer.println("stage." + stage.toString() + ".millis=" + getStageMillis(stage));
+    writer.close();
+
+    if(!tempFile.renameTo(progressFile))
+    {
+      progressFile.delete();
+      tempFile.renameTo(progressFile);
+    }
+  }
+
+  public long getStageMillis(Stage stage)
+  {
+    return stageNanos[stage.ordinal()].get() / 1000000;
+  }
+
+  public String getToolName()
+  {
+    return toolName;
+  }
+
+  public String getState()
+  {
+    return state;
+  }
+
+  public long getRecords()
+  {
+    return records.get();
+  }
+
+  public long getBytes()
+  {
+    if(outputFile != null)
+      return Math.max(bytes.get(), outputFile.length());
+    return bytes.get();
+  }
+
+  public long getElapsedSeconds()
+  {
+    return (System.currentTimeMillis() - startTime) / 1000;
+  }
+
+  public double getRecordsPerSecond()
+  {
+    long elapsed = System.currentTimeMillis() - startTime;
+    return (elapsed > 0) ? 1000.0 * records.get() / elapsed : 0;
+  }
+
+  public double getBytesPerSecond()
+  {
+    long elapsed = System.currentTimeMillis() - startTime;
+    return (elapsed > 0) ? 1000.0 * getBytes() / elapsed : 0;
+  }
+
+  public long getDecodeMillis()
+  {
+    return getStageMillis(Stage.DECODE);
+  }
+
+  public long getCalculateMillis()
+  {
+    return getStageMillis(Stage.CALCULATE);
+  }
+
+  public long getEncodeMillis()
+  {
+    return getStageMillis(Stage.ENCODE);
+  }
+
+  public long getWriteMillis()
+  {
+    return getStageMillis(Stage.WRITE);
+  }
+}
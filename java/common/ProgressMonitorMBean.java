@@ -0,0 +1,22 @@
+package common;
+
+/**
+ * Management interface of ProgressMonitor, so that a running tool can be
+ * inspected with jconsole or any other JMX client.
+ * @author Nirav Shah niravs@bcm.edu
+ *
+ */
+public interface ProgressMonitorMBean
+{
+  public String getToolName();
+  public String getState();
+  public long getRecords();
+  public long getBytes();
+  public long getElapsedSeconds();
+  public double getRecordsPerSecond();
+  public double getBytesPerSecond();
+  public long getDecodeMillis();
+  public long getCalculateMillis();
+  public long getEncodeMillis();
+  public long getWriteMillis();
+}
@@ -0,0 +1,174 @@
+package common;
+
+import java.io.PrintStream;
+import java.util.zip.Deflater;
+
+/**
+ * Class to bin base qualities into a few levels, so that BAM and FASTQ files
+ * compress better. The bins are given as comma separated ranges of Phred
+ * qualities with the quality each range becomes, e.g. 10-19:15. Qualities in
+ * no range are not changed. The default is the 8 level scheme of Illumina.
+ *
+ * To report what binning saves, the qualities of some reads are kept before
+ * and after binning, and both samples are deflated as BGZF would. An instance
+ * is not thread safe.
+ * @author Nirav Shah niravs@bcm.edu
+ *
+ */
+public class QualityBinner
+{
+  public static final String ILLUMINA_8_LEVEL =
+    "2-9:6,10-19:15,20-24:22,25-29:27,30-34:33,35-39:37,40-93:40";
+
+  private static final int MAX_PHRED      = 93;         // Highest quality in FASTQ
+  private static final int SAMPLE_EVERY   = 64;         // Reads between samples
+  private static final int MAX_SAMPLE     = 16 << 20;   // Bytes sampled at most
+  private static final int DEFLATE_LEVEL  = 5;          // As written by BAM writers
+
+  private byte bins[] = new byte[256];                  // Binned quality of each quality
+  private long numReads = 0;
+
+  private byte before[] = new byte[1 << 16];            // Sampled qualities
+  private byte after[]  = new byte[1 << 16];
+  private int sampled   = 0;
+
+  /**
+   * Class constructor
+   * @param scheme - comma separated bins, low-high:value, or null for
+   *                 ILLUMINA_8_LEVEL
+   */
+  public QualityBinner(String scheme)
+  {
+    if(scheme == null)
+      scheme = ILLUMINA_8_LEVEL;
+
+    for(int i = 0; i < bins.length; i++)
+      bins[i] = (byte)i;
+
+    for(String bin : scheme.split(","))
+    {
+      String fields[] = bin.trim().split("[-:]");
+      int low   = -1;                                   // -1 if malformed
+      int high  = -1;
+      int value = -1;
+
+      if(fields.length == 3)
+      {
+        try
+        {
+          low   = Integer.parseInt(fields[0]);
+          high  = Integer.parseInt(fields[1]);
+          value = Integer.parseInt(fields[2]);
+        }
+        catch(NumberFormatException e)
+        {
+          low = -1;
+        }
+      }
+
+      if(low < 0 || low > high || high > MAX_PHRED || value < 0 || value > MAX_PHRED)
+        throw new IllegalArgumentException("Quality bin must be low-high:value with " +
+                                           "qualities 0 to " + MAX_PHRED + " : " + bin);
+
+      for(int q = low; q <= high; q++)
+        bins[q] = (byte)value;
+    }
+  }
+
+  /**
+   * Return the binned value of a Phred quality
+   * @param phred
+   * @return
+   */
+  public int bin(int phred)
+  {
+    return bins[phred & 0xFF] & 0xFF;
+  }
+
+  /**
+   * Bin Phred qualities in place, as in SAMRecord.getBaseQualities
+   * @param quals
+   */
+  public void binPhred(byte quals[])
+  {
+    binAscii(quals, 0, quals.length, 0);
+  }
+
+  /**
+   * Bin qualities stored as characters in place
+   * @param quals
+   * @param from - index of the first quality
+   * @param to - index after the last quality
+   * @param offset - character of quality 0, 33 for FASTQ
+   */
+  public void binAscii(byte quals[], int from, int to, int offset)
+  {
+    boolean sample = (numReads++ % SAMPLE_EVERY == 0) && sampled + (to - from) <= MAX_SAMPLE;
+
+    if(sample)
+      append(quals, from, to);
+
+    for(int i = from; i < to; i++)
+    {
+      int q = (quals[i] & 0xFF) - offset;
+
+      if(q >= 0 && q <= MAX_PHRED)
+        quals[i] = (byte)(bins[q] + offset);
+    }
+
+    if(sample)
+    {
+      System.arraycopy(quals, from, after, sampled, to - from);
+      sampled += to - from;
+    }
+  }
+
+  /**
+   * Print the deflated size of the sampled qualities before and after binning,
+   * an estimate of what binning saves in the output
+   * @param out
+   */
+  public void printReport(PrintStream out)
+  {
+    if(sampled == 0)
+      return;
+
+    long sizeBefore = deflatedSize(before, sampled);
+    long sizeAfter  = deflatedSize(after, sampled);
+
+    out.println("Quality bytes sampled         : " + sampled);
+    out.println("Estimated from 1 read in " + SAMPLE_EVERY + ", not the output file size");
+    out.println("Estimated compressed before   : " + sizeBefore);
+    out.println("Estimated compressed after    : " + sizeAfter);
+    out.println("Estimated quality reduction   : " +
+                String.format("%.1f", 100.0 * (sizeBefore - sizeAfter) / sizeBefore) + "%");
+  }
+
+  private void append(byte quals[], int from, int to)
+  {
+    int length = to - from;
+
+    if(sampled + length > before.length)
+    {
+      int size = Math.min(MAX_SAMPLE, Math.max(2 * before.length, sampled + length));
+      before = java.util.Arrays.copyOf(before, size);
+      after  = java.util.Arrays.copyOf(after, size);
+    }
+    System.arraycopy(quals, from, before, sampled, length);
+  }
+
+  private static long deflatedSize(byte data[], int length)
+  {
+    Deflater deflater = new Deflater(DEFLATE_LEVEL);
+    byte buffer[]     = new byte[65536];
+    long size         = 0;
+
+    deflater.setInput(data, 0, length);
+    deflater.finish();
+
+    while(!deflater.finished())
+      size += deflater.deflate(buffer);
+    deflater.end();
+    return size;
+  }
+}
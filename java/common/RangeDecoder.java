@@ -0,0 +1,90 @@
+package common;
+
+import java.io.IOException;
+
+/**
+ * Decoder of the output of RangeEncoder. It must be given the same
+ * probabilities, in the same order, as the encoder.
+ * @author Nirav Shah niravs@bcm.edu
+ *
+ */
+public class RangeDecoder
+{
+  private byte buf[];
+  private int pos;
+  private int end;
+  private int range = -1;                     // Used as unsigned
+  private int code  = 0;
+
+  /**
+   * Class constructor
+   * @param buf - coded bytes
+   * @param offset - index of the first coded byte
+   * @param length - number of coded bytes
+   * @throws IOException if there are too few bytes
+   */
+  public RangeDecoder(byte buf[], int offset, int length) throws IOException
+  {
+    if(length < 5)
+      throw new IOException("Range coded data is truncated");
+    this.buf = buf;
+    pos      = offset;
+    end      = offset + length;
+
+    for(int i = 0; i < 5; i++)
+      code = (code << 8) | nextByte();
+  }
+
+  public int decodeBit(short probs[], int index)
+  {
+    int prob  = probs[index];
+    int bound = (range >>> RangeEncoder.PROBABILITY_BITS) * prob;
+    int bit;
+
+    if((code ^ 0x80000000) < (bound ^ 0x80000000))
+    {
+      range = bound;
+      probs[index] = (short)(prob + ((RangeEncoder.ONE - prob) >>> RangeEncoder.ADAPT_SHIFT));
+      bit   = 0;
+    }
+    else
+    {
+      range -= bound;
+      code  -= bound;
+      probs[index] = (short)(prob - (prob >>> RangeEncoder.ADAPT_SHIFT));
+      bit   = 1;
+    }
+
+    if((range & RangeEncoder.TOP) == 0)
+    {
+      code = (code << 8) | nextByte();
+      range <<= 8;
+    }
+    return bit;
+  }
+
+  /**
+   * Decode a symbol coded by RangeEncoder.encodeTree
+   * @param probs
+   * @param base
+   * @param numBits
+   * @return
+   */
+  public int decodeTree(short probs[], int base, int numBits)
+  {
+    int node = 1;
+
+    for(int i = 0; i < numBits; i++)
+      node = (node << 1) | decodeBit(probs, base + node);
+    return node - (1 << numBits);
+  }
+
+  /**
+   * Past the end of the data zeros are read, as a corrupt block is caught
+   * by its checksum
+   */
+  private int nextByte()
+  {
+    return (pos < end) ? (buf[pos++] & 0xFF) : 0;
+  }
+}
@@ -0,0 +1,139 @@
+package common;
+
+import java.util.Arrays;
+
+/**
+ * Binary adaptive range coder, as in LZMA. Every bit is coded with an 11 bit
+ * probability that adapts to the bits seen in its context, and symbols of
+ * several bits are coded as a binary tree of such probabilities. The output
+ * is kept in a growing byte array. RangeDecoder reads it back.
+ * @author Nirav Shah niravs@bcm.edu
+ *
+ */
+public class RangeEncoder
+{
+  static final int PROBABILITY_BITS = 11;
+  static final int ONE              = 1 << PROBABILITY_BITS;
+  static final int ADAPT_SHIFT      = 5;      // Rate at which probabilities adapt
+  static final int TOP              = 0xFF000000;
+
+  private long low      = 0;
+  private int range     = -1;                 // 0xFFFFFFFF, used as unsigned
+  private int cache     = 0;                  // Byte held back for a carry
+  private long cacheSize = 1;                 // Bytes held back
+
+  private byte buf[];
+  private int count = 0;
+
+  public RangeEncoder(int initialSize)
+  {
+    buf = new byte[Math.max(16, initialSize)];
+  }
+
+  /**
+   * Return new probabilities for the given number of contexts, each 1/2
+   * @param size
+   * @return
+   */
+  public static short[] newModel(int size)
+  {
+    short probs[] = new short[size];
+    Arrays.fill(probs, (short)(ONE / 2));
+    return probs;
+  }
+
+  /**
+   * Code a bit with the probability at probs[index] and update it
+   * @param probs
+   * @param index
+   * @param bit
+   */
+  public void encodeBit(short probs[], int index, int bit)
+  {
+    int prob  = probs[index];
+    int bound = (range >>> PROBABILITY_BITS) * prob;
+
+    if(bit == 0)
+    {
+      range = bound;
+      probs[index] = (short)(prob + ((ONE - prob) >>> ADAPT_SHIFT));
+    }
+    else
+    {
+      low   += bound & 0xFFFFFFFFL;
+      range -= bound;
+      probs[index] = (short)(prob - (prob >>> ADAPT_SHIFT));
+    }
+
+    if((range & TOP) == 0)
+    {
+      range <<= 8;
+      shiftLow();
+    }
+  }
+
+  /**
+   * Code a symbol of numBits bits, most significant bit first, with the
+   * binary tree of probabilities at probs[base + 1] to probs[base + 2^numBits - 1]
+   * @param probs
+   * @param base
+   * @param numBits
+   * @param symbol
+   */
+  public void encodeTree(short probs[], int base, int numBits, int symbol)
+  {
+    int node = 1;
+
+    for(int i = numBits - 1; i >= 0; i--)
+    {
+      int bit = (symbol >>> i) & 1;
+      encodeBit(probs, base + node, bit);
+      node = (node << 1) | bit;
+    }
+  }
+
+  /**
+   * Write the last bytes. No bits may be coded after this.
+   */
+  public void finish()
+  {
+    for(int i = 0; i < 5; i++)
+      shiftLow();
+  }
+
+  public byte[] getBuffer()
+  {
+    return buf;
+  }
+
+  public int size()
+  {
+    return count;
+  }
+
+  private void shiftLow()
+  {
+    if(low < 0xFF000000L || low > 0xFFFFFFFFL)
+    {
+      int carry = (int)(low >>> 32);
+      int temp  = cache;
+
+      do
+      {
+        write((temp + carry) & 0xFF);
+        temp = 0xFF;
+      }
+      while(--cacheSize != 0);
+      cache = (int)(low >>> 24) & 0xFF;
+    }
+    cacheSize++;
+    low = (low & 0x00FFFFFFL) << 8;
+  }
+
+  private void write(int b)
+  {
+    if(count == buf.length)
+      buf = Arrays.copyOf(buf, 2 * buf.length);
+    buf[count++] = (byte)b;
+  }
+}
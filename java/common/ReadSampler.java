@@ -0,0 +1,140 @@
+package common;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Class to choose a deterministic subset of reads by a hash of the read name,
+ * for quick QC of a fraction of a run. The /1 and /2 suffixes and, in FASTQ
+ * headers, the comment after the first space are not part of the hashed name,
+ * so both reads of a pair are kept or dropped together, and the same reads
+ * are chosen from the FASTQ files and from the BAM. Unlike the first N reads,
+ * the subset is spread over all tiles.
+ * @author Nirav Shah niravs@bcm.edu
+ *
+ */
+public class ReadSampler
+{
+  private double fraction;                // Fraction of reads to keep
+  private long threshold;                 // Keep if hash >>> 1 is below this
+
+  private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME  = 0x100000001b3L;
+
+  /**
+   * Class constructor
+   * @param fraction - fraction of reads to keep, more than 0 and at most 1
+   */
+  public ReadSampler(double fraction)
+  {
+    if(!(fraction > 0 && fraction <= 1))
+      throw new IllegalArgumentException("Sample fraction must be more than 0 and at most 1 : " +
+                                         fraction);
+    this.fraction = fraction;
+    threshold     = (fraction >= 1) ? Long.MAX_VALUE : (long)(fraction * Long.MAX_VALUE);
+  }
+
+  public double getFraction()
+  {
+    return fraction;
+  }
+
+  /**
+   * Return true if the read is in the sample
+   * @param readName
+   * @return
+   */
+  public boolean keep(CharSequence readName)
+  {
+    return keep(readName, 0);
+  }
+
+  /**
+   * Return true if the read whose name starts at start is in the sample, e.g.
+   * start is 1 for a FASTQ header line with its '@'
+   * @param header
+   * @param start
+   * @return
+   */
+  public boolean keep(CharSequence header, int start)
+  {
+    if(threshold == Long.MAX_VALUE)
+      return true;
+
+    int end = start;
+    int length = header.length();
+
+    while(end < length && !Character.isWhitespace(header.charAt(end)))
+      end++;
+
+    if(end - start > 2 && header.charAt(end - 2) == '/' &&
+       (header.charAt(end - 1) == '1' || header.charAt(end - 1) == '2'))
+      end -= 2;
+
+    return (hash(header, start, end) >>> 1) < threshold;
+  }
+
+  /**
+   * Return true if the read whose header is in buffer from start to end,
+   * without the '@', is in the sample. Bytes are read as ISO-8859-1 and the
+   * name ends at the same whitespace, so the same reads are chosen as by
+   * keep(CharSequence).
+   * @param buffer
+   * @param start
+   * @param end
+   * @return
+   */
+  public boolean keep(ByteBuffer buffer, int start, int end)
+  {
+    if(threshold == Long.MAX_VALUE)
+      return true;
+
+    int nameEnd = start;
+
+    while(nameEnd < end && !Character.isWhitespace((char)(buffer.get(nameEnd) & 0xFF)))
+      nameEnd++;
+
+    if(nameEnd - start > 2 && buffer.get(nameEnd - 2) == '/' &&
+       (buffer.get(nameEnd - 1) == '1' || buffer.get(nameEnd - 1) == '2'))
+      nameEnd -= 2;
+
+    long h = FNV_OFFSET;
+
+    for(int i = start; i < nameEnd; i++)
+    {
+      h ^= buffer.get(i) & 0xFF;
+      h *= FNV_PRIME;
+    }
+    return (mix(h) >>> 1) < threshold;
+  }
+
+  /**
+   * 64 bit FNV-1a hash of the characters, finished with the MurmurHash3 mix
+   * so that names differing in their last characters, e.g. by tile and
+   * coordinate, spread over the whole range
+   * @param s
+   * @param start
+   * @param end
+   * @return
+   */
+  static long hash(CharSequence s, int start, int end)
+  {
+    long h = FNV_OFFSET;
+
+    for(int i = start; i < end; i++)
+    {
+      h ^= s.charAt(i);
+      h *= FNV_PRIME;
+    }
+    return mix(h);
+  }
+
+  private static long mix(long h)
+  {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+}
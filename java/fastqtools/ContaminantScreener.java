@@ -0,0 +1,419 @@
+package fastqtools;
+
+import net.sf.picard.cmdline.*;
+import net.sf.picard.io.IoUtil;
+import common.FastqSlice;
+import common.KmerSet;
+import common.MappedFastqReader;
+import common.ProgressMonitor;
+import common.ProgressMonitor.Stage;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Class to screen Illumina fastq files for reads of PhiX, E. coli, adaptors or
+ * other contaminants before alignment, by looking up the k-mers of every read
+ * in the k-mers of the contaminant references. A pair is contaminated if its
+ * reads share at least MIN_HITS k-mers with the references. The contamination
+ * of every reference is reported, and in FILTER mode the clean pairs are
+ * written to new fastq files, so that spike-in reads are not aligned.
+ *
+ * Reads are screened in batches by a pool of threads. Batches are written in
+ * the order they were read, so that the pairs of both files stay in step.
+ * @author Nirav Shah niravs@bcm.edu
+ *
+ */
+public class ContaminantScreener extends CommandLineProgram
+{
+  public enum Mode
+  {
+    REPORT,     // Only report the contamination
+    FILTER      // Also write the clean pairs
+  }
+
+  @Usage
+  public String USAGE = getStandardUsagePreamble() +
+  "Screen Illumina Fastq sequence files for reads of contaminants such as\r\n" +
+  "PhiX, E. coli or adaptors, given as FASTA files, and report the percentage\r\n" +
+  "of contaminated reads. In FILTER mode, pairs without contaminant k-mers are\r\n" +
+  "written to <input file name>.screened\r\n";
+
+  @Option(shortName = "R1", doc = "Read 1 fastq file")
+  public File READ1;
+
+  @Option(shortName = "R2", optional=true, doc = "Read 2 fastq file")
+  public File READ2;
+
+  @Option(shortName = "REF", doc = "FASTA file of a contaminant. May be given more than once.")
+  public List<File> REFERENCE = new ArrayList<File>();
+
+  @Option(doc = "Report the contamination, or also write the clean reads")
+  public Mode MODE = Mode.REPORT;
+
+  @Option(doc = "Length of the k-mers, at most 31")
+  public int K = 25;
+
+  @Option(doc = "K-mers of a pair found in the references to call it contaminated")
+  public int MIN_HITS = 2;
+
+  @Option(doc = "Threads screening reads", optional=true)
+  public int NUM_THREADS = Runtime.getRuntime().availableProcessors();
+
+  @Option(doc = "File to periodically write progress and throughput to", optional=true)
+  public File PROGRESS_FILE;
+
+  @Option(doc = "Seconds between progress reports", optional=true)
+  public int PROGRESS_INTERVAL = 60;
+
+  private static final int BATCH_SIZE = 16384;   // Pairs screened by a task
+  private static final byte CLEAN = -1;          // Result of a clean pair
+
+  private KmerSet kmers;                        // K-mers of all references
+  private boolean isFragment = false;           // If true, READ2 does not exist
+
+  private long numReads = 0;                    // Number of pairs read
+  private long numReadsWritten = 0;             // Number of pairs written
+  private long contaminated[];                  // Pairs of each reference, the
+                                                // last for shared k-mers
+
+  /**
+   * Pairs of reads, copied from the readers so that they can be screened by
+   * another thread. Batches are reused to avoid allocating in the main loop.
+   */
+  private static class Batch
+  {
+    RecordBlock reads1 = new RecordBlock();
+    RecordBlock reads2 = new RecordBlock();
+    byte results[]     = new byte[BATCH_SIZE];  // Reference of each pair or CLEAN
+    int ownerHits[];                            // Scratch counts of a pair
+
+    Batch(int numOwners)
+    {
+      ownerHits = new int[numOwners];
+    }
+
+    int size()
+    {
+      return reads1.count;
+    }
+  }
+
+  /**
+   * Records stored one after another in a growing byte array, with the offsets
+   * of each record and of its bases
+   */
+  private static class RecordBlock extends ByteArrayOutputStream
+  {
+    int count = 0;
+    int starts[]     = new int[BATCH_SIZE + 1];
+    int basesStart[] = new int[BATCH_SIZE];
+    int basesEnd[]   = new int[BATCH_SIZE];
+
+    RecordBlock()
+    {
+      super(BATCH_SIZE * 256);
+    }
+
+    @Override
+    public void reset()
+    {
+      super.reset();
+      count = 0;
+    }
+
+    /**
+     * Copy a record, with \n line terminators
+     */
+    void add(FastqSlice record) throws IOException
+    {
+      starts[count] = size();
+      record.writeHeaderLine(this);
+      basesStart[count] = size();
+      record.writeBases(this, 0, record.getReadLength());
+      basesEnd[count] = size();
+      write('\n');
+      record.writeQualityHeaderLine(this);
+      record.writeQualities(this, 0, record.getReadLength());
+      write('\n');
+      count++;
+      starts[count] = size();
+    }
+
+    byte[] getBuffer()
+    {
+      return buf;
+    }
+
+    void writeRecord(int i, OutputStream out) throws IOException
+    {
+      out.write(buf, starts[i], starts[i + 1] - starts[i]);
+    }
+  }
+
+  public static void main(String[] args)
+  {
+    new ContaminantScreener().instanceMainWithExit(args);
+  }
+
+  @Override
+  protected int doWork()
+  {
+    MappedFastqReader reader1 = null;  // To read sequence file for read1
+    MappedFastqReader reader2 = null;  // To read sequence file for read2
+    OutputStream writer1      = null;
+    OutputStream writer2      = null;
+    ExecutorService pool      = null;
+    ProgressMonitor monitor = new ProgressMonitor("ContaminantScreener", PROGRESS_FILE,
+                                                  PROGRESS_INTERVAL);
+
+    if(READ2 == null)
+      isFragment = true;
+
+    IoUtil.assertFileIsReadable(READ1);
+
+    if(!isFragment)
+      IoUtil.assertFileIsReadable(READ2);
+
+    try
+    {
+      if(REFERENCE.isEmpty())
+        throw new Exception("At least one REFERENCE is needed");
+
+      kmers = new KmerSet(K);
+
+      for(File reference : REFERENCE)
+      {
+        IoUtil.assertFileIsReadable(reference);
+        kmers.addReference(reference);
+      }
+      System.err.println("Loaded " + kmers.size() + " k-mers of length " + K + " from " +
+                         REFERENCE.size() + " references");
+      contaminated = new long[kmers.getNumReferences() + 1];
+
+      reader1 = new MappedFastqReader(READ1);
+
+      if(!isFragment)
+        reader2 = new MappedFastqReader(READ2);
+
+      if(MODE == Mode.FILTER)
+      {
+        writer1 = new BufferedOutputStream(new FileOutputStream(getOutputFileName(READ1)), 65536);
+
+        if(!isFragment)
+          writer2 = new BufferedOutputStream(new FileOutputStream(getOutputFileName(READ2)), 65536);
+      }
+
+      int numThreads = Math.max(1, NUM_THREADS);
+      pool = Executors.newFixedThreadPool(numThreads);
+
+      // Batches being screened, in the order they were read
+      ArrayDeque<Future<Batch>> pending = new ArrayDeque<Future<Batch>>();
+      ArrayDeque<Batch> freeBatches     = new ArrayDeque<Batch>();
+      boolean moreReads = true;
+
+      monitor.start();
+
+      while(moreReads)
+      {
+        long t = System.nanoTime();
+        Batch batch = freeBatches.isEmpty() ? new Batch(contaminated.length) :
+                                              freeBatches.poll();
+        moreReads = readBatch(batch, reader1, reader2);
+        monitor.addStageTime(Stage.DECODE, t);
+
+        if(batch.size() > 0)
+          pending.add(pool.submit(newScreeningTask(batch)));
+        else
+          freeBatches.add(batch);
+
+        // Two batches a thread keep the threads busy while the oldest is written
+        while(pending.size() >= 2 * numThreads || (!moreReads && !pending.isEmpty()))
+          freeBatches.add(writeBatch(pending.poll().get(), writer1, writer2, monitor));
+      }
+
+      reader1.close();
+
+      if(!isFragment)
+        reader2.close();
+
+      if(writer1 != null)
+        writer1.close();
+      if(writer2 != null)
+        writer2.close();
+      monitor.finish(true);
+      printReport();
+    }
+    catch(Exception e)
+    {
+      monitor.finish(false);
+      System.err.println(e.getMessage());
+      e.printStackTrace();
+      return -1;
+    }
+    finally
+    {
+      if(pool != null)
+        pool.shutdown();
+    }
+    return 0;
+  }
+
+  /**
+   * Copy the next pairs of reads into a batch
+   * @return false if the end of the input was reached
+   * @throws IOException if READ2 has fewer reads than READ1 or more
+   */
+  private boolean readBatch(Batch batch, MappedFastqReader reader1, MappedFastqReader reader2)
+    throws IOException
+  {
+    batch.reads1.reset();
+    batch.reads2.reset();
+
+    while(batch.size() < BATCH_SIZE)
+    {
+      FastqSlice record1 = reader1.next();
+      FastqSlice record2 = isFragment ? null : reader2.next();
+
+      if(record1 == null)
+      {
+        if(record2 != null)
+          throw new IOException(READ2.getName() + " has more reads than " + READ1.getName());
+        return false;
+      }
+
+      if(!isFragment && record2 == null)
+        throw new IOException(READ2.getName() + " has fewer reads than " + READ1.getName());
+
+      batch.reads1.add(record1);
+
+      if(!isFragment)
+        batch.reads2.add(record2);
+    }
+    return true;
+  }
+
+  private Callable<Batch> newScreeningTask(final Batch batch)
+  {
+    return new Callable<Batch>()
+    {
+      public Batch call()
+      {
+        screenBatch(batch);
+        return batch;
+      }
+    };
+  }
+
+  /**
+   * Find the contaminant of every pair of the batch. A contaminated pair is
+   * assigned to the reference with the most k-mers in it, or to the shared
+   * k-mers if it has no k-mers of a single reference.
+   */
+  private void screenBatch(Batch batch)
+  {
+    int ownerHits[] = batch.ownerHits;
+    int sharedIndex = ownerHits.length - 1;
+
+    for(int i = 0; i < batch.size(); i++)
+    {
+      Arrays.fill(ownerHits, 0);
+      int hits = countHits(batch.reads1, i, ownerHits);
+
+      if(!isFragment)
+        hits += countHits(batch.reads2, i, ownerHits);
+
+      if(hits < MIN_HITS)
+      {
+        batch.results[i] = CLEAN;
+        continue;
+      }
+
+      int best = sharedIndex;
+
+      for(int j = 0; j < sharedIndex; j++)
+      {
+        if(ownerHits[j] > 0 && (best == sharedIndex || ownerHits[j] > ownerHits[best]))
+          best = j;
+      }
+      batch.results[i] = (byte)best;
+    }
+  }
+
+  private int countHits(RecordBlock reads, int i, int ownerHits[])
+  {
+    return kmers.countHits(reads.getBuffer(), reads.basesStart[i], reads.basesEnd[i], ownerHits);
+  }
+
+  /**
+   * Count the contaminated pairs of a screened batch and write its clean pairs
+   * @return the batch, to be reused
+   */
+  private Batch writeBatch(Batch batch, OutputStream writer1, OutputStream writer2,
+                           ProgressMonitor monitor) throws IOException
+  {
+    long t = System.nanoTime();
+
+    for(int i = 0; i < batch.size(); i++)
+    {
+      byte result = batch.results[i];
+
+      if(result != CLEAN)
+      {
+        contaminated[result]++;
+        continue;
+      }
+
+      if(writer1 != null)
+      {
+        batch.reads1.writeRecord(i, writer1);
+
+        if(!isFragment)
+          batch.reads2.writeRecord(i, writer2);
+        numReadsWritten++;
+      }
+    }
+    numReads += batch.size();
+    monitor.addRecords(batch.size());
+    monitor.addBytes(batch.reads1.size() + batch.reads2.size());
+    monitor.addStageTime(Stage.WRITE, t);
+    return batch;
+  }
+
+  private void printReport()
+  {
+    long totalContaminated = 0;
+
+    System.out.println("Total Pairs of Reads : " + numReads);
+
+    for(int i = 0; i < contaminated.length; i++)
+    {
+      String name = (i < kmers.getNumReferences()) ? kmers.getReferenceName(i) :
+                                                     kmers.getReferenceName(KmerSet.SHARED);
+
+      System.out.println("Contaminant " + name + " : " + contaminated[i] + " (" +
+                         percent(contaminated[i]) + "%)");
+      totalContaminated += contaminated[i];
+    }
+    System.out.println("Total Pairs contaminated : " + totalContaminated + " (" +
+                       percent(totalContaminated) + "%)");
+
+    if(MODE == Mode.FILTER)
+      System.out.println("Total Pairs written  : " + numReadsWritten);
+  }
+
+  private double percent(long pairs)
+  {
+    return (numReads > 0) ? 100.0 * pairs / numReads : 0;
+  }
+
+  /**
+   * Method to get the output file name
+   * @param file
+   * @return
+   */
+  private String getOutputFileName(File file)
+  {
+    return file.getName() + ".screened";
+  }
+}
@@ -1,10 +1,11 @@
 package fastqtools;
 
 import net.sf.picard.cmdline.*;
-import net.sf.picard.fastq.FastqReader;
-import net.sf.picard.fastq.FastqRecord;
-import net.sf.picard.fastq.FastqWriter;
 import net.sf.picard.io.IoUtil;
+import common.FastqSlice;
+import common.MappedFastqReader;
+import common.ProgressMonitor;
+import common.ProgressMonitor.Stage;
 import java.io.*;
 import java.util.*;
 
@@ -30,9 +31,15 @@ public class FastqDecontaminator extends CommandLineProgram
   
   @Option(shortName = "T", doc = "Index tag")
   public String TAG;
-  
-  private int numReads        = 0;      // Number of reads in original files
-  private int numReadsWritten = 0;      // Number of reads written (pure reads)
+
+  @Option(doc = "File to periodically write progress and throughput to", optional=true)
+  public File PROGRESS_FILE;
+
+  @Option(doc = "Seconds between progress reports", optional=true)
+  public int PROGRESS_INTERVAL = 60;
+
+  private long numReads        = 0;     // Number of reads in original files
+  private long numReadsWritten = 0;     // Number of reads written (pure reads)
   private boolean isFragment  = false;  // If true, READ2 does not exist, it is
                                         // fragment
   
@@ -45,41 +52,50 @@ public class FastqDecontaminator extends CommandLineProgram
   protected int doWork()
   {
     String key = null;
-    FastqWriter writer1  = null;
-    FastqWriter writer2  = null;
-    FastqReader reader1  = null;  // To read sequence file for read1
-    FastqReader reader2  = null;  // To read sequence file for read2
-    FastqRecord record1  = null;  // Fastq record for read1
-    FastqRecord record2  = null;  // Fastq record for read2
-
+    OutputStream writer1 = null;
+    OutputStream writer2 = null;
+    MappedFastqReader reader1 = null;  // To read sequence file for read1
+    MappedFastqReader reader2 = null;  // To read sequence file for read2
+    FastqSlice record1   = null;  // Fastq record for read1
+    FastqSlice record2   = null;  // Fastq record for read2
+    ProgressMonitor monitor = new ProgressMonitor("FastqDecontaminator", PROGRESS_FILE,
+                                                  PROGRESS_INTERVAL);
 
     if(READ2 == null)
       isFragment = true;
 
     IoUtil.assertFileIsReadable(READ1);
-    reader1 = new FastqReader(READ1);
-    writer1 = new FastqWriter(new File(getOutputFileName(READ1)));
-   
+
     if(!isFragment)
-    {
       IoUtil.assertFileIsReadable(READ2);
-      reader2 = new FastqReader(READ2);
-      writer2 = new FastqWriter(new File(getOutputFileName(READ2)));
-    }
     
     try
     {
+      // Kept records are copied byte for byte from the input
+      reader1 = new MappedFastqReader(READ1);
+      writer1 = new BufferedOutputStream(new FileOutputStream(getOutputFileName(READ1)), 65536);
+
+      if(!isFragment)
+      {
+        reader2 = new MappedFastqReader(READ2);
+        writer2 = new BufferedOutputStream(new FileOutputStream(getOutputFileName(READ2)), 65536);
+      }
+      monitor.start();
+
       while(true)
       {
-        record1 = (reader1.hasNext()) ? reader1.next() : null;
+        long t = System.nanoTime();
+        record1 = reader1.next();
  
         if(!isFragment)
-          record2 = (reader2.hasNext()) ? reader2.next() : null;
+          record2 = reader2.next();
 			
         if(record1 == null || (!isFragment && record2 == null))
           break;
 			
+        t = monitor.addStageTime(Stage.DECODE, t);
         numReads++;
+        monitor.addRecord();
         
         if((isFragment == false && indexTagsEqual(record1.getReadHeader(), record2.getReadHeader()) ||
             isFragment == true))
@@ -88,13 +104,15 @@ public class FastqDecontaminator extends CommandLineProgram
 
           if(keepRead(key))
           {
-            writer1.write(record1);
+            record1.writeTo(writer1);
             if(!isFragment)
-              writer2.write(record2);
+              record2.writeTo(writer2);
             numReadsWritten++;
           }
         }
+        monitor.addStageTime(Stage.WRITE, t);
       }
+      monitor.finish(true);
       reader1.close();
       writer1.close();
       
@@ -111,6 +129,7 @@ public class FastqDecontaminator extends CommandLineProgram
     }
     catch(Exception e)
     {
+      monitor.finish(false);
       System.err.println(e.getMessage());
       e.printStackTrace();
       System.exit(-1);
@@ -0,0 +1,289 @@
+package fastqtools;
+
+import net.sf.picard.cmdline.*;
+import net.sf.picard.io.IoUtil;
+import common.FastqBlockCodec;
+import common.FastqSlice;
+import common.MappedFastqReader;
+import common.ProgressMonitor;
+import common.ProgressMonitor.Stage;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Class to pack FASTQ files for archiving and to unpack them again. Records
+ * are packed in blocks by FastqBlockCodec, which codes headers, bases and
+ * qualities as separate streams and checks every block with a CRC32 on
+ * unpacking. Blocks are packed and unpacked by a pool of threads and written
+ * in order. With VERIFY, every packed block is unpacked again by its thread
+ * and compared with its records before it is written, so that a packing
+ * error is found while the original Fastq still exists.
+ *
+ * The packed file is the 4 bytes FQPK, a version, and blocks each preceded by
+ * its length, ending with a length of 0. Line terminators are unpacked as \n.
+ * @author Nirav Shah niravs@bcm.edu
+ *
+ */
+public class FastqPacker extends CommandLineProgram
+{
+  public enum Mode
+  {
+    PACK,
+    UNPACK
+  }
+
+  @Usage
+  public String USAGE = getStandardUsagePreamble() +
+  "Pack a Fastq file, plain, gzipped or bzip2, into a smaller archive file,\r\n" +
+  "or unpack an archive file into the Fastq file.\r\n" +
+  "The records are preserved, but not every byte: CRLF line terminators are\r\n" +
+  "unpacked as LF, and a missing newline at the end of the file is added.\r\n";
+
+  @Option(shortName = StandardOptionDefinitions.INPUT_SHORT_NAME, doc = "Fastq file to pack, " +
+          "or packed file to unpack")
+  public File INPUT;
+
+  @Option(shortName = StandardOptionDefinitions.OUTPUT_SHORT_NAME, doc = "Packed file, or " +
+          "unpacked Fastq file")
+  public File OUTPUT;
+
+  @Option(doc = "Pack or unpack")
+  public Mode MODE = Mode.PACK;
+
+  @Option(doc = "Records in a block", optional=true)
+  public int BLOCK_SIZE = 100000;
+
+  @Option(doc = "Unpack every packed block again and compare it with its records before " +
+          "writing it", optional=true)
+  public boolean VERIFY = true;
+
+  @Option(doc = "Threads packing or unpacking blocks", optional=true)
+  public int NUM_THREADS = Runtime.getRuntime().availableProcessors();
+
+  @Option(doc = "File to periodically write progress and throughput to", optional=true)
+  public File PROGRESS_FILE;
+
+  @Option(doc = "Seconds between progress reports", optional=true)
+  public int PROGRESS_INTERVAL = 60;
+
+  private static final byte MAGIC[] = {'F', 'Q', 'P', 'K'};
+  private static final int VERSION  = 1;
+
+  /**
+   * Records of a block with \n line terminators
+   */
+  private static class RecordBlock extends ByteArrayOutputStream
+  {
+    int count = 0;
+
+    RecordBlock(int size)
+    {
+      super(size);
+    }
+
+    void add(FastqSlice record) throws IOException
+    {
+      record.writeHeaderLine(this);
+      record.writeBases(this, 0, record.getReadLength());
+      write('\n');
+      record.writeQualityHeaderLine(this);
+      record.writeQualities(this, 0, record.getReadLength());
+      write('\n');
+      count++;
+    }
+
+    byte[] getBuffer()
+    {
+      return buf;
+    }
+  }
+
+  public static void main(String[] args)
+  {
+    new FastqPacker().instanceMainWithExit(args);
+  }
+
+  @Override
+  protected int doWork()
+  {
+    ExecutorService pool = null;
+    ProgressMonitor monitor = new ProgressMonitor("FastqPacker", PROGRESS_FILE,
+                                                  PROGRESS_INTERVAL);
+
+    try
+    {
+      IoUtil.assertFileIsReadable(INPUT);
+      IoUtil.assertFileIsWritable(OUTPUT);
+
+      int numThreads = Math.max(1, NUM_THREADS);
+      pool = Executors.newFixedThreadPool(numThreads);
+      monitor.start();
+
+      if(MODE == Mode.PACK)
+        pack(pool, numThreads, monitor);
+      else
+        unpack(pool, numThreads, monitor);
+      monitor.finish(true);
+      return 0;
+    }
+    catch(Exception e)
+    {
+      monitor.finish(false);
+      System.err.println(e.getMessage());
+      e.printStackTrace();
+      return -1;
+    }
+    finally
+    {
+      if(pool != null)
+        pool.shutdown();
+    }
+  }
+
+  private void pack(ExecutorService pool, int numThreads, ProgressMonitor monitor)
+    throws Exception
+  {
+    MappedFastqReader reader = new MappedFastqReader(INPUT);
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                                                new FileOutputStream(OUTPUT), 65536));
+    ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+    ArrayDeque<Integer> pendingRecords = new ArrayDeque<Integer>();
+    long rawBytes    = 0;
+    long packedBytes = MAGIC.length + 4;
+    long numBlocks   = 0;
+    boolean moreReads = true;
+
+    out.write(MAGIC);
+    out.writeInt(VERSION);
+
+    while(moreReads)
+    {
+      long t = System.nanoTime();
+      final RecordBlock block = new RecordBlock(BLOCK_SIZE * 128);
+      FastqSlice record;
+
+      while(block.count < BLOCK_SIZE && (record = reader.next()) != null)
+        block.add(record);
+      moreReads = (block.count == BLOCK_SIZE);
+      monitor.addStageTime(Stage.DECODE, t);
+
+      if(block.count > 0)
+      {
+        final long blockNum = ++numBlocks;
+        rawBytes += block.size();
+        pendingRecords.add(block.count);
+        pending.add(pool.submit(new Callable<byte[]>()
+        {
+          public byte[] call() throws IOException
+          {
+            FastqBlockCodec codec = new FastqBlockCodec();
+            byte packed[] = codec.encode(block.getBuffer(), block.size());
+
+            if(VERIFY && !isSame(codec.decode(packed), block.getBuffer(), block.size()))
+              throw new IOException("Block " + blockNum + " of " + INPUT.getName() +
+                                    " does not unpack to its records");
+            return packed;
+          }
+        }));
+      }
+
+      // Two blocks a thread keep the threads busy while the oldest is written
+      while(pending.size() >= 2 * numThreads || (!moreReads && !pending.isEmpty()))
+      {
+        byte packed[] = pending.poll().get();
+        t = System.nanoTime();
+        out.writeInt(packed.length);
+        out.write(packed);
+        packedBytes += 4 + packed.length;
+        monitor.addStageTime(Stage.WRITE, t);
+        monitor.addRecords(pendingRecords.poll());
+        monitor.addBytes(packed.length);
+      }
+    }
+    out.writeInt(0);
+    out.close();
+    reader.close();
+    packedBytes += 4;
+
+    System.out.println("Fastq bytes  : " + rawBytes);
+    System.out.println("Packed bytes : " + packedBytes);
+    System.out.println("Ratio        : " + String.format("%.2f", 1.0 * rawBytes / packedBytes));
+
+    if(VERIFY)
+      System.out.println("Verified     : " + numBlocks + " blocks");
+  }
+
+  /**
+   * Return true if unpacked holds exactly the first length bytes of records
+   */
+  private static boolean isSame(byte unpacked[], byte records[], int length)
+  {
+    if(unpacked.length != length)
+      return false;
+
+    for(int i = 0; i < length; i++)
+    {
+      if(unpacked[i] != records[i])
+        return false;
+    }
+    return true;
+  }
+
+  private void unpack(ExecutorService pool, int numThreads, ProgressMonitor monitor)
+    throws Exception
+  {
+    DataInputStream in   = new DataInputStream(new BufferedInputStream(
+                                               new FileInputStream(INPUT), 65536));
+    OutputStream out     = new BufferedOutputStream(new FileOutputStream(OUTPUT), 65536);
+    ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+    byte magic[] = new byte[MAGIC.length];
+    boolean moreBlocks = true;
+
+    in.readFully(magic);
+
+    if(!Arrays.equals(magic, MAGIC))
+      throw new IOException(INPUT.getName() + " is not a packed Fastq file");
+
+    int version = in.readInt();
+
+    if(version != VERSION)
+      throw new IOException(INPUT.getName() + " has unsupported version " + version);
+
+    while(moreBlocks)
+    {
+      long t = System.nanoTime();
+      int length = in.readInt();
+
+      if(length < 0)
+        throw new IOException(INPUT.getName() + " is corrupt");
+      moreBlocks = (length > 0);
+
+      if(moreBlocks)
+      {
+        final byte packed[] = new byte[length];
+        in.readFully(packed);
+        monitor.addStageTime(Stage.DECODE, t);
+
+        pending.add(pool.submit(new Callable<byte[]>()
+        {
+          public byte[] call() throws IOException
+          {
+            return new FastqBlockCodec().decode(packed);
+          }
+        }));
+      }
+
+      while(pending.size() >= 2 * numThreads || (!moreBlocks && !pending.isEmpty()))
+      {
+        byte records[] = pending.poll().get();
+        t = System.nanoTime();
+        out.write(records);
+        monitor.addStageTime(Stage.WRITE, t);
+        monitor.addBytes(records.length);
+      }
+    }
+    out.close();
+    in.close();
+  }
+}
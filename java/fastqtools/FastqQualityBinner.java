@@ -0,0 +1,113 @@
+package fastqtools;
+
+import net.sf.picard.cmdline.*;
+import net.sf.picard.io.IoUtil;
+import common.FastqSlice;
+import common.MappedFastqReader;
+import common.ProgressMonitor;
+import common.ProgressMonitor.Stage;
+import common.QualityBinner;
+import java.io.*;
+
+/**
+ * Class to bin the base qualities of a fastq file into a few levels, so that
+ * it compresses better. Headers and bases are copied unchanged.
+ * @author Nirav Shah niravs@bcm.edu
+ *
+ */
+public class FastqQualityBinner extends CommandLineProgram
+{
+  @Usage
+  public String USAGE = getStandardUsagePreamble() +
+  "Read Fastq file and bin its base qualities, by default into the 8 levels\r\n" +
+  "of Illumina.\r\n";
+
+  @Option(shortName = StandardOptionDefinitions.INPUT_SHORT_NAME, doc = "Fastq file to bin")
+  public File INPUT;
+
+  @Option(shortName = StandardOptionDefinitions.OUTPUT_SHORT_NAME, doc = "Binned Fastq file")
+  public File OUTPUT;
+
+  @Option(doc = "Comma separated bins of Phred qualities, low-high:value. Default value: " +
+          QualityBinner.ILLUMINA_8_LEVEL, optional=true)
+  public String QUALITY_BINS;
+
+  @Option(doc = "Character of quality 0, 64 for old Illumina fastq files", optional=true)
+  public int QUALITY_OFFSET = 33;
+
+  @Option(doc = "File to periodically write progress and throughput to", optional=true)
+  public File PROGRESS_FILE;
+
+  @Option(doc = "Seconds between progress reports", optional=true)
+  public int PROGRESS_INTERVAL = 60;
+
+  public static void main(String[] args)
+  {
+    new FastqQualityBinner().instanceMainWithExit(args);
+  }
+
+  @Override
+  protected int doWork()
+  {
+    MappedFastqReader reader = null;
+    OutputStream writer      = null;
+    FastqSlice record        = null;
+    byte quals[]             = new byte[1024];
+    ProgressMonitor monitor = new ProgressMonitor("FastqQualityBinner", PROGRESS_FILE,
+                                                  PROGRESS_INTERVAL);
+
+    try
+    {
+      IoUtil.assertFileIsReadable(INPUT);
+      IoUtil.assertFileIsWritable(OUTPUT);
+
+      QualityBinner binner = new QualityBinner(QUALITY_BINS);
+      reader = new MappedFastqReader(INPUT);
+      writer = new BufferedOutputStream(new FileOutputStream(OUTPUT), 65536);
+
+      monitor.start();
+
+      while(true)
+      {
+        long t = System.nanoTime();
+        record = reader.next();
+
+        if(record == null)
+          break;
+        t = monitor.addStageTime(Stage.DECODE, t);
+
+        int length = record.getReadLength();
+
+        if(quals.length < length)
+          quals = new byte[2 * length];
+
+        for(int i = 0; i < length; i++)
+          quals[i] = record.getQuality(i);
+        binner.binAscii(quals, 0, length, QUALITY_OFFSET);
+        t = monitor.addStageTime(Stage.CALCULATE, t);
+
+        record.writeHeaderLine(writer);
+        record.writeBases(writer, 0, length);
+        writer.write('\n');
+        record.writeQualityHeaderLine(writer);
+        writer.write(quals, 0, length);
+        writer.write('\n');
+        monitor.addStageTime(Stage.WRITE, t);
+        monitor.addBytes(record.getLength());
+        monitor.addRecord();
+      }
+      reader.close();
+      writer.close();
+      monitor.finish(true);
+      binner.printReport(System.out);
+      return 0;
+    }
+    catch(Exception e)
+    {
+      monitor.finish(false);
+      System.err.println(e.getMessage());
+      e.printStackTrace();
+      return -1;
+    }
+  }
+}
@@ -5,10 +5,11 @@ package fastqtools;
  * number of bases.
  */
 import net.sf.picard.cmdline.*;
-import net.sf.picard.fastq.FastqReader;
-import net.sf.picard.fastq.FastqRecord;
-import net.sf.picard.fastq.FastqWriter;
 import net.sf.picard.io.IoUtil;
+import common.FastqSlice;
+import common.MappedFastqReader;
+import common.ProgressMonitor;
+import common.ProgressMonitor.Stage;
 import java.io.*;
 
 /**
@@ -32,6 +33,12 @@ public class FastqTrimmer extends  CommandLineProgram
   
   @Option(shortName = "NT", doc = "Number of bases to trim starting from (TS)")
   public int numBasesToTrim = 0;
+
+  @Option(doc = "File to periodically write progress and throughput to", optional=true)
+  public File PROGRESS_FILE;
+
+  @Option(doc = "Seconds between progress reports", optional=true)
+  public int PROGRESS_INTERVAL = 60;
   
   // Read length
   protected int readLen = 0;
@@ -44,76 +51,83 @@ public class FastqTrimmer extends  CommandLineProgram
   @Override
   protected int doWork()
   {
-    FastqReader reader = null;
-    FastqWriter writer = null;
-    FastqRecord record = null;
-    long numReads      = 0;
+    MappedFastqReader reader = null;
+    OutputStream writer      = null;
+    FastqSlice record        = null;
+    ProgressMonitor monitor = new ProgressMonitor("FastqTrimmer", PROGRESS_FILE,
+                                                  PROGRESS_INTERVAL);
     
     try
     {
       IoUtil.assertFileIsReadable(INPUT);
       IoUtil.assertFileIsWritable(OUTPUT);
       
-      reader = new FastqReader(INPUT);
-      writer = new FastqWriter(OUTPUT);
+      reader = new MappedFastqReader(INPUT);
+      writer = new BufferedOutputStream(new FileOutputStream(OUTPUT), 65536);
     
       record = reader.next();
-      readLen = record.getReadString().length();
+
+      if(record == null)
+        throw new Exception("Empty input file " + INPUT.getName());
+      readLen = record.getReadLength();
       
       if(trimStartPosition < 1 || trimStartPosition >= readLen)
         throw new Exception("Invalid value for trimStartLength");
       if(numBasesToTrim < 1)
 			throw new Exception("Number of bases to remove must be at least 1.");
       
-      writer.write(trimReads(record));
+      monitor.start();
+      writeTrimmedRead(record, writer);
       
-      while(reader.hasNext())
+      while(true)
       {
+        long t = System.nanoTime();
         record = reader.next();
-        writer.write(trimReads(record));
-        record = null;
-        numReads++;
-        
-        if(numReads % 1000000 == 0)
-        {
-          System.err.print("Processing Read : " + numReads + "\r");
-        }
+
+        if(record == null)
+          break;
+        t = monitor.addStageTime(Stage.DECODE, t);
+        writeTrimmedRead(record, writer);
+        monitor.addStageTime(Stage.WRITE, t);
+        monitor.addBytes(record.getLength());
+        monitor.addRecord();
       }
       reader.close();
       writer.close();
+      monitor.finish(true);
       return 0;
     }
     catch(Exception e)
     {
+      monitor.finish(false);
       System.err.println(e.getMessage());
       e.printStackTrace();
       return -1;
     }
   }
   
-  protected FastqRecord trimReads(FastqRecord record)
+  /**
+   * Write the record with its bases and qualities trimmed, copying the bytes
+   * of the input instead of building a new record
+   */
+  protected void writeTrimmedRead(FastqSlice record, OutputStream out) throws IOException
   {
+    int length       = record.getReadLength();
+    int prefixEnd    = Math.min(trimStartPosition - 1, length);
 	int nextPosition = trimStartPosition + numBasesToTrim -1;
-    StringBuilder readString = new StringBuilder();
-    StringBuilder qualString = new StringBuilder();
-    readString.append(record.getReadString().substring(0, trimStartPosition -1));
-    qualString.append(record.getBaseQualityString().substring(0, trimStartPosition -1));
-    
-    if(nextPosition < readLen)
-    {
-      readString.append(record.getReadString().substring(nextPosition));
-      qualString.append(record.getBaseQualityString().substring(nextPosition));
-    }
 
-    String qualHeader = null;
+    record.writeHeaderLine(out);
+    record.writeBases(out, 0, prefixEnd);
+
+    if(nextPosition < length)
+      record.writeBases(out, nextPosition, length);
+    out.write('\n');
 
-    if(record.getBaseQualityHeader() != null)
-      qualHeader = record.getBaseQualityHeader();
-    else
-      qualHeader = "";
+    record.writeQualityHeaderLine(out);
+    record.writeQualities(out, 0, prefixEnd);
 
-    FastqRecord rec = new FastqRecord(record.getReadHeader(), readString.toString(), 
-				                              qualHeader, qualString.toString());
-    return rec;
+    if(nextPosition < length)
+      record.writeQualities(out, nextPosition, length);
+    out.write('\n');
   }
 }
@@ -85,12 +85,12 @@ class AlignerHelper
     return cmd
   end
 
-  # Mark duplicates on a sorted BAM
+  # Mark duplicates on a sorted BAM in a single streaming pass
   def markDupCommand(input, output)
-    cmd = "java " + @heapSize + " -jar " + @picardPath + "/MarkDuplicates.jar " +
-          " I=" + input +  " O=" + output + " " + @picardTempDir + " " +
-          @maxRecordsInRam.to_s + " AS=true M=metrics.foo " +
-          @picardValStr  + " 1>markDups.o 2>markDups.e"
+    jarName = @javaDir + "/DuplicateMarker.jar"
+    cmd = "java " + @heapSize + " -jar " + jarName + " I=" + input +
+          " O=" + output + " M=metrics.foo " + @picardValStr +
+          " 1>markDups.o 2>markDups.e"
     return cmd
   end
 
@@ -130,7 +130,8 @@ class AlignerHelper
     puts @javaDir
     jarName = @javaDir + "/BAMAnalyzer.jar"
     cmd = "java " + @heapSize + " -jar " + jarName + " I=" + input +
-          " O=BWA_Map_Stats.txt X=BAMAnalysisInfo.xml " +
+          " O=BWA_Map_Stats.txt X=BAMAnalysisInfo.xml BUILD_INDEX=true " +
+          "STATE_OUTPUT=BAMAnalysisState.gz " +
           "1>mappingStats.o 2>mappingStats.e" 
     return cmd
   end
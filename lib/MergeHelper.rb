@@ -49,7 +49,8 @@ class MergeHelper
   private
 
   def initializeDefaultParams()
-    @bamsToMerge  = Array.new
+    @bamsToMerge   = Array.new
+    @statesToMerge = Array.new
   end
 
 
@@ -73,6 +74,14 @@ class MergeHelper
       end
 
       @bamsToMerge << bamName[0]
+
+      # Raw metrics written by BAMAnalyzer, merged instead of analyzing the
+      # merged BAM from scratch
+      stateName = dirPath.strip + "/BAMAnalysisState.gz"
+
+      if File::exist?(stateName)
+        @statesToMerge << stateName
+      end
     end
   end
 
@@ -157,14 +166,23 @@ class MergeHelper
     errLog    = @outDir + "/markDups.e"
     markedBam = @outDir + "/" + outFileName
 
-    cmd = "java " + @heapSize + " -jar " + @picardPath + "/MarkDuplicates.jar " +
-          " I=" + input +  " O=" + markedBam + " " + @picardTempDir + " " +
-          @maxRecordsInRam.to_s + " AS=true M=metrics.foo " +
-          @picardValStr  + " 1>" + outLog + " 2>" + errLog
+    jarName   = @javaDir + "/DuplicateMarker.jar"
+
+    cmd = "java " + @heapSize + " -jar " + jarName + " I=" + input +
+          " O=" + markedBam + " M=" + dupMetricsFile() + " BUILD_INDEX=true " +
+          @picardValStr + " 1>" + outLog + " 2>" + errLog
     return cmd
   end
 
-  # Run BAMAnalyzer on finished BAM
+  # Metrics of DuplicateMarker, with the duplicate counts used by BAMAnalyzer
+  def dupMetricsFile()
+    return @outDir + "/markDups.metrics"
+  end
+
+  # Run BAMAnalyzer for the finished BAM. If every input BAM has a state file,
+  # the state files are merged and the duplicate counts taken from the
+  # DuplicateMarker metrics, without reading the finished BAM. Otherwise the
+  # finished BAM is analyzed.
   def buildBamAnalyzerCommand(input)
     outLog  = @outDir + "/bamAnalyzer.o"
     errLog  = @outDir + "/bamAnalyzer.e"
@@ -172,8 +190,19 @@ class MergeHelper
     txtLog  = @outDir + "/BWA_Map_Stats.txt"
     xmlLog  = @outDir + "/BAMAnalysisInfo.xml"
 
-    cmd = "java " + @heapSize + " -jar " + jarName + " I=" + input +
-          " O=" + txtLog + " X=" + xmlLog + " 1>" + outLog + " 2>" + errLog 
+    cmd = "java " + @heapSize + " -jar " + jarName +
+          " O=" + txtLog + " X=" + xmlLog +
+          " STATE_OUTPUT=" + @outDir + "/BAMAnalysisState.gz"
+
+    if @statesToMerge.length == @bamsToMerge.length
+      @statesToMerge.each do |stateFile|
+        cmd = cmd + " STATE_INPUT=" + stateFile
+      end
+      cmd = cmd + " DUPLICATE_METRICS=" + dupMetricsFile()
+    else
+      cmd = cmd + " I=" + input
+    end
+    cmd = cmd + " 1>" + outLog + " 2>" + errLog
     return cmd
   end
 
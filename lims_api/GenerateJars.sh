@@ -19,5 +19,5 @@ echo -e "Main-Class: limsClient.AnalysisResultUploader\n" > $ResultUploadManifes
 echo "Building Jar files"
 cd ..
 
-jar cvfm $fcPlanJarName $FCPlanManifestFile limsClient/FlowcellPlanBuilder*.class limsClient/LaneInfo.class limsClient/LIMSClient.class limsClient/LimsInfo.config
-jar cvfm $resultUploadJarName $ResultUploadManifestFile limsClient/AnalysisResultUploader*.class limsClient/LIMSClient.class limsClient/LimsInfo.config
+jar cvfm $fcPlanJarName $FCPlanManifestFile limsClient/FlowcellPlanBuilder*.class limsClient/LaneInfo.class limsClient/LIMSClient*.class limsClient/LIMSResponseCache*.class limsClient/LimsInfo.config
+jar cvfm $resultUploadJarName $ResultUploadManifestFile limsClient/AnalysisResultUploader*.class limsClient/ResultUploadQueue*.class limsClient/LIMSClient*.class limsClient/LIMSResponseCache*.class limsClient/LimsInfo.config
@@ -1,7 +1,9 @@
 package limsClient;
 
 /**
- * Class to upload analysis results to LIMS.
+ * Class to upload analysis results to LIMS. Results are added to a local
+ * journal first and then sent by a ResultUploadQueue, together with any
+ * results left in the journal by earlier runs that could not reach LIMS.
  * @author Nirav Shah niravs@bcm.edu
  *
  */
@@ -58,28 +60,50 @@ public class AnalysisResultUploader extends LIMSClient
     }
   }
 
+  /**
+   * Constructor to only send the results pending in the journal
+   * @param dbName
+   * @throws Exception
+   */
+  public AnalysisResultUploader(String dbName) throws Exception
+  {
+    super(dbName);
+  }
+
   /**
    * Overridden method to perform the actual action
    */
   @Override
   public void process()
   {
-    String limsRequestURL = buildRequest();
-    
-    printInfo("Sending HTTP request " + limsRequestURL);
-    
     try
     {
-      boolean error = sendGETRequest(limsRequestURL);
-    
-      if(error)
+      ResultUploadQueue queue = new ResultUploadQueue(this,
+                                ResultUploadQueue.getDefaultJournalDir(getDatabaseName()));
+      String id = null;
+
+      if(newState != null)
+      {
+        id = queue.enqueue(fcBarcode, newState, keys, values);
+
+        if(id == null)
+          printInfo("Results for " + fcBarcode + " " + newState + " are already queued");
+      }
+
+      int numPending = queue.flush();
+
+      // An entry claimed by another uploader is being sent by it and is not
+      // a failure of this one
+      if(id != null && queue.isWaiting(id))
       {
-        printError("Error in uploading results to LIMS. Response : " + responseContent.toString());
+        printError("Error in uploading results to LIMS. They are kept in the journal and " +
+                   "will be sent by the next upload or flush");
         System.exit(-1);
       }
-      else
+      if(newState == null && numPending > 0)
       {
-        printInfo("Results uploaded to LIMS. Response Message : " + responseContent.toString());
+        printError(numPending + " results could not be uploaded and remain in the journal");
+        System.exit(-1);
       }
     }
     catch(Exception e)
@@ -89,7 +113,7 @@ public class AnalysisResultUploader extends LIMSClient
       System.exit(-1);
     }
   }
-  
+
   /**
    * Given a key=Value string, split it and return Key and Value
    * @param keyValPair
@@ -121,9 +145,13 @@ public class AnalysisResultUploader extends LIMSClient
   }
   /**
    * Method to build a request URL to send results to LIMS
+   * @param fcBarcode
+   * @param newState
+   * @param keys
+   * @param values
    * @return
    */
-  private String buildRequest()
+  String buildRequest(String fcBarcode, String newState, String keys[], String values[])
   {
     StringBuffer completeURL = new StringBuffer(limsBaseURL + "/");
     
@@ -153,6 +181,8 @@ public class AnalysisResultUploader extends LIMSClient
     System.err.println("Usage. Specify the following commannd line parameters :");
     System.err.println();
     System.err.println("DBName NewState FCLaneBarcode Key=value...");
+    System.err.println("  or");
+    System.err.println("DBName FLUSH");
     System.err.println("  DBName        : LIMS database name");
     System.err.println("  NewState      : New result state");
     System.err.print("                    e.g. ANALYSIS_FINISHED, SEQUENCE_FINISHED, ");
@@ -161,6 +191,10 @@ public class AnalysisResultUploader extends LIMSClient
     System.err.println("                  e.g. 70EMPAAXX-5-ID01");
     System.err.print("  Key=value     : Collection of key value pairs to be uploaded");
     System.err.println(" as results to LIMS");
+    System.err.println("  FLUSH         : Only send the results pending in the journal");
+    System.err.println();
+    System.err.println("Results are added to a journal (-Dlims.journalDir, default");
+    System.err.println("~/.limsJournal) and kept there until LIMS accepts them.");
   }
   
   /**
@@ -169,6 +203,20 @@ public class AnalysisResultUploader extends LIMSClient
    */
   public static void main(String args[])
   {
+    if(args.length == 2 && args[1].equals("FLUSH"))
+    {
+      try
+      {
+        new AnalysisResultUploader(args[0]).process();
+      }
+      catch(Exception e)
+      {
+        System.err.println(e.getMessage());
+        e.printStackTrace();
+        System.exit(-1);
+      }
+      return;
+    }
     if(args.length < 4)
     {
       printUsage();
@@ -1,6 +1,8 @@
 package limsClient;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.concurrent.*;
 import org.w3c.dom.*;
 import javax.xml.parsers.*;
 import javax.xml.transform.*;
@@ -77,47 +79,85 @@ public class FlowcellPlanBuilder extends LIMSClient
     String completeURL = limsBaseURL + "/" + flowcellInfoPage + "?flowcell_barcode=" +
                          fcName;
     printInfo("Sending HTTP request " + completeURL);
-    boolean error = sendGETRequest(completeURL);
+    LIMSResponse response = fetchCached(completeURL);
     
-    if(error)
+    if(response.isError())
     {
+      printError("Error in HTTP Response. Response code : " + response.code);
+      printError("Repsonse :" + response.content);
       printError("Error in receiving information about lane barcodes");
       System.exit(-1);
     }
     else
     {
-      fcBarcodes = responseContent.toString().split("\n");
+      printInfo(response.content);
+      fcBarcodes = response.content.split("\n");
     }
   }
   
   /**
    * Given a lane barcode, retrive all the information necessary to analyze that barcode.
-   * @param laneBarcode
+   * The lane barcodes are queried concurrently, at most lims.parallelism at a
+   * time, and the results are kept in the order of the lane barcodes.
    * @throws Exception
    */
   private void getBarcodeInfo() throws Exception
   {
-	barcodeInfo = new LaneInfo[fcBarcodes.length];
-    String baseURL = limsBaseURL + "/" + laneInfoPage + "?lane_barcode=";
-    boolean error;
-    
-    for(int i = 0; i < fcBarcodes.length; i++)
-    {                     
-      String completeURL = baseURL + fcBarcodes[i];
-      printInfo("Sending HTTP request " + completeURL);
-      error = sendGETRequest(completeURL);
-      
-      if(error)
+    barcodeInfo = new LaneInfo[fcBarcodes.length];
+    final String baseURL = limsBaseURL + "/" + laneInfoPage + "?lane_barcode=";
+
+    ExecutorService pool = Executors.newFixedThreadPool(Math.min(parallelism,
+                           Math.max(1, fcBarcodes.length)));
+    ArrayList<Future<LIMSResponse>> responses = new ArrayList<Future<LIMSResponse>>();
+
+    try
+    {
+      for(int i = 0; i < fcBarcodes.length; i++)
       {
-        printError("Error occurred in receiving barcode list");
-        System.exit(-1);
+        final String completeURL = baseURL + fcBarcodes[i];
+        printInfo("Sending HTTP request " + completeURL);
+
+        responses.add(pool.submit(new Callable<LIMSResponse>()
+        {
+          public LIMSResponse call() throws Exception
+          {
+            return fetchCached(completeURL);
+          }
+        }));
       }
-      else
+
+      for(int i = 0; i < fcBarcodes.length; i++)
       {
-        LaneInfo info = new LaneInfo(fcBarcodes[i], responseContent.toString());
-        barcodeInfo[i] = info;
+        LIMSResponse response;
+
+        try
+        {
+          response = responses.get(i).get();
+        }
+        catch(ExecutionException e)
+        {
+          printError("Error occurred in receiving information for " + fcBarcodes[i]);
+          throw (e.getCause() instanceof Exception) ? (Exception)e.getCause() : e;
+        }
+
+        if(response.isError())
+        {
+          printError("Error occurred in receiving information for " + fcBarcodes[i]);
+          printError("Error in HTTP Response. Response code : " + response.code);
+          printError("Repsonse :" + response.content);
+          System.exit(-1);
+        }
+        else
+        {
+          printInfo(response.content);
+          barcodeInfo[i] = new LaneInfo(fcBarcodes[i], response.content);
+        }
       }
     }
+    finally
+    {
+      pool.shutdownNow();
+    }
   }
   
   /**
@@ -6,7 +6,18 @@ import java.net.ProtocolException;
 import java.net.URL;
 
 /**
- * Class to encapsulate HTTP communication with LIMS
+ * Class to encapsulate HTTP communication with LIMS. Requests use the JDK's
+ * keep-alive connection pool, with timeouts and retries that can be tuned
+ * through system properties :
+ *   lims.baseURL          - overrides the URL from LimsInfo.config, e.g. to
+ *                           point the tools at a stub server
+ *   lims.connectTimeout   - connect timeout in ms
+ *   lims.readTimeout      - read timeout in ms
+ *   lims.retries          - number of retries of a failed request
+ *   lims.retryDelay       - delay before the first retry in ms, doubled for
+ *                           each further retry
+ *   lims.parallelism      - maximum number of concurrent requests
+ * See LIMSResponseCache for the properties of the response cache.
  * @author Nirav Shah niravs@bcm.edu
  *
  */
@@ -16,6 +27,20 @@ public abstract class LIMSClient
   private String limsDB = null;                  // Which database to hit
   protected int responseCode = 0;                // HTTP Response code from LIMS
   protected StringBuffer responseContent = null; // Actual response content from LIMS
+  protected LIMSResponseCache cache = null;      // Cache of read-only queries
+
+  protected static final int parallelism  = Math.max(1, getIntProperty("lims.parallelism", 8));
+  private static final int connectTimeoutMillis = getIntProperty("lims.connectTimeout", 10000);
+  private static final int readTimeoutMillis    = getIntProperty("lims.readTimeout", 60000);
+  private static final int maxRetries           = getIntProperty("lims.retries", 3);
+  private static final long retryDelayMillis    = getIntProperty("lims.retryDelay", 1000);
+
+  static
+  {
+    // Keep as many idle connections per host as requests may be in flight
+    if(System.getProperty("http.maxConnections") == null)
+      System.setProperty("http.maxConnections", Integer.toString(parallelism));
+  }
   
   /**
    * Class constructor
@@ -26,7 +51,16 @@ public abstract class LIMSClient
   public LIMSClient(String databaseName) throws IOException, Exception
   {
     limsDB = databaseName.toLowerCase();
-    getLIMSBaseURLName();
+
+    if(System.getProperty("lims.baseURL") != null)
+    {
+      limsBaseURL = System.getProperty("lims.baseURL");
+      System.out.println("LIMS Base URL : " + limsBaseURL);
+    }
+    else
+      getLIMSBaseURLName();
+
+    cache = LIMSResponseCache.fromSystemProperties();
   }
   
   /**
@@ -58,59 +92,250 @@ public abstract class LIMSClient
       throw new Exception("Error: LIMS base URL not defined for " + limsDB);    
   }
   
+  /**
+   * Return the name of the LIMS database, in lower case
+   * @return
+   */
+  public String getDatabaseName()
+  {
+    return limsDB;
+  }
+
   /**
    * Method to perform the required action
    */
   public abstract void process();
   
   /**
-   * Helper method to send GET request to LIMS
+   * Helper method to send GET request to LIMS. The response is stored in
+   * responseCode and responseContent.
    * @param completeURL
    * @throws Exception
    */
   protected boolean sendGETRequest(String completeURL) throws Exception
   {
-    boolean errorOccurred = false;
+    LIMSResponse response = fetch(completeURL, null);
+
+    responseCode    = response.code;
+    responseContent = new StringBuffer(response.content);
+
+    if(!response.isError())
+    {
+      printInfo("Resonse code 200, no error in response");
+      printInfo(response.content);
+    }
+    else
+    {
+      printError("Error in HTTP Response. Response code : " + responseCode);
+      printError("Repsonse :" + response.content);
+    }
+    return response.isError();
+  }
+
+  /**
+   * Send a read-only GET request to LIMS through the response cache. A fresh
+   * cached response is returned without contacting LIMS, a stale one is
+   * revalidated. If LIMS cannot be reached or the cache is offline, the
+   * stale response is returned. Successful responses are cached. Must not be
+   * used for requests that change anything in LIMS.
+   * @param completeURL
+   * @return
+   * @throws Exception if there is neither a response nor a cached one
+   */
+  protected LIMSResponse fetchCached(String completeURL) throws Exception
+  {
+    if(cache == null)
+      return fetch(completeURL, null);
+
+    LIMSResponse cached = cache.get(completeURL);
+
+    if(cached != null && (cache.isOffline() || cache.isFresh(cached)))
+    {
+      printInfo("Using cached response for " + completeURL);
+      return cached;
+    }
+    if(cache.isOffline())
+      throw new Exception("No cached response for " + completeURL + " in offline mode");
+
+    LIMSResponse response;
+
+    try
+    {
+      response = fetch(completeURL, cached);
+    }
+    catch(Exception e)
+    {
+      if(cached == null)
+        throw e;
+      printError("LIMS unavailable, using stale cached response for " + completeURL);
+      return cached;
+    }
+
+    if(response.code == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null)
+    {
+      printInfo("Cached response for " + completeURL + " is still valid");
+      response = new LIMSResponse(cached.code, cached.content);
+      response.etag         = cached.etag;
+      response.lastModified = cached.lastModified;
+    }
+    else if(response.code >= 500 && cached != null)
+    {
+      printError("LIMS unavailable, using stale cached response for " + completeURL);
+      return cached;
+    }
+
+    if(!response.isError())
+      cache.put(completeURL, response);
+    return response;
+  }
+
+  /**
+   * Send a GET request to LIMS and return its response. Unlike sendGETRequest
+   * it does not touch any fields, so several threads may call it at once.
+   * Connection failures and 5xx responses are retried with exponential
+   * backoff. The response body is always read to the end and closed, so that
+   * the JDK returns the socket to its keep-alive pool for the next request.
+   * @param completeURL
+   * @param cached - cached response to revalidate, or null
+   * @return the response, with code 304 if cached is still valid
+   * @throws Exception if the request still fails after all retries
+   */
+  protected LIMSResponse fetch(String completeURL, LIMSResponse cached) throws Exception
+  {
+    IOException lastException = null;
+    LIMSResponse response     = null;
     long startTime, endTime;
-   
+
+    for(int attempt = 0; attempt <= maxRetries; attempt++)
+    {
+      if(attempt > 0)
+      {
+        long delay = retryDelayMillis << (attempt - 1);
+        printError("Retrying " + completeURL + " in " + delay + " ms");
+        Thread.sleep(delay);
+      }
+      startTime = System.currentTimeMillis();
+
+      try
+      {
+        response = sendOnce(completeURL, cached);
+        endTime  = System.currentTimeMillis();
+        printInfo("Round trip query time : " + (endTime - startTime) + " " + completeURL);
+
+        if(response.code < 500)
+          return response;
+        printError("LIMS returned " + response.code + " for " + completeURL);
+      }
+      catch(IOException e)
+      {
+        printError("Request " + completeURL + " failed : " + e.getMessage());
+        lastException = e;
+        response      = null;
+      }
+    }
+    if(response != null)
+      return response;
+    throw lastException;
+  }
+
+  /**
+   * Make a single attempt at a GET request
+   * @param completeURL
+   * @return
+   * @throws IOException
+   */
+  private LIMSResponse sendOnce(String completeURL, LIMSResponse cached) throws IOException
+  {
     URL limsURL = new URL(completeURL);
     HttpURLConnection connection = (HttpURLConnection)limsURL.openConnection();
     connection.setRequestMethod("GET");
+    connection.setConnectTimeout(connectTimeoutMillis);
+    connection.setReadTimeout(readTimeoutMillis);
+    connection.setUseCaches(false);
 
-    startTime = System.currentTimeMillis();
-    connection.connect();
-    responseCode = connection.getResponseCode();
-    
-    BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-    responseContent = null;
-    responseContent = new StringBuffer();
-    String line = null;
-    
-    while((line = reader.readLine()) != null)
+    if(cached != null && cached.etag != null)
+      connection.setRequestProperty("If-None-Match", cached.etag);
+    if(cached != null && cached.lastModified != null)
+      connection.setRequestProperty("If-Modified-Since", cached.lastModified);
+
+    int code = connection.getResponseCode();
+    InputStream is = (code >= 400) ? connection.getErrorStream() : connection.getInputStream();
+
+    StringBuilder content = new StringBuilder();
+
+    if(is != null)
+    {
+      BufferedReader reader = new BufferedReader(new InputStreamReader(is));
+      String line = null;
+
+      try
+      {
+        while((line = reader.readLine()) != null)
+        {
+          content.append(line);
+          content.append("\n");
+        }
+      }
+      finally
+      {
+        reader.close();
+      }
+    }
+    LIMSResponse response = new LIMSResponse(code, content.toString());
+    response.etag         = connection.getHeaderField("ETag");
+    response.lastModified = connection.getHeaderField("Last-Modified");
+    return response;
+  }
+
+  /**
+   * Read an integer system property, or return the default value
+   */
+  protected static int getIntProperty(String name, int defaultValue)
+  {
+    String value = System.getProperty(name);
+
+    if(value == null)
+      return defaultValue;
+    try
     {
-      responseContent.append(line);
-      responseContent.append("\n");
+      return Integer.parseInt(value.trim());
     }
-    endTime = System.currentTimeMillis();
-    reader.close();
+    catch(NumberFormatException e)
+    {
+      System.err.println("Ignoring invalid value " + value + " of " + name);
+      return defaultValue;
+    }
+  }
 
-    printInfo("Round trip query time : " + (endTime - startTime));
-    
-    if(responseCode == 200 && responseContent.indexOf("Error") == -1 &&
-       responseContent.indexOf("error") == -1)
+  /**
+   * Response of one HTTP request to LIMS
+   */
+  protected static class LIMSResponse
+  {
+    public final int code;          // HTTP response code
+    public final String content;    // Response body, one "\n" per line
+    public long fetchTime;          // When LIMS returned it, in ms
+    public String etag;             // ETag header, if any
+    public String lastModified;     // Last-Modified header, if any
+
+    public LIMSResponse(int code, String content)
     {
-      printInfo("Resonse code 200, no error in response");
-      printInfo(responseContent.toString());
+      this.code      = code;
+      this.content   = content;
+      this.fetchTime = System.currentTimeMillis();
     }
-    else
+
+    /**
+     * LIMS reports failures in the body of a 200 response as well
+     * @return
+     */
+    public boolean isError()
     {
-      printError("Error in HTTP Response. Response code : " + responseCode);
-      printError("Repsonse :" + responseContent.toString());
-      errorOccurred = true;
+      return code != 200 || content.indexOf("Error") != -1 ||
+             content.indexOf("error") != -1;
     }
-    return errorOccurred;
   }
-  
+
   /**
    * Log information - for now dump to stdout
    * @param s
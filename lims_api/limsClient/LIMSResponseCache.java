@@ -0,0 +1,264 @@
+package limsClient;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Class to cache LIMS responses on the local disk, so that restarting a
+ * failed lane or re-running the wrappers does not need round trips to LIMS.
+ * Entries are keyed by the request URL, stored one file per URL under the
+ * cache directory, and fronted by a small in-memory LRU map. An entry is
+ * fresh for the TTL, after which it is revalidated with LIMS using its ETag
+ * or Last-Modified header. In offline mode, or when LIMS cannot be reached,
+ * stale entries are served. Only read-only queries should go through the
+ * cache - never requests that upload results.
+ *
+ * Configured with the system properties :
+ *   lims.cache         - set to false to disable the cache
+ *   lims.cacheDir      - cache directory (default ~/.limsCache)
+ *   lims.cacheTTL      - seconds an entry is fresh (default 3600)
+ *   lims.cacheEntries  - entries held in memory (default 256)
+ *   lims.offline       - set to true to never contact LIMS for cached URLs
+ * @author Nirav Shah niravs@bcm.edu
+ *
+ */
+public class LIMSResponseCache
+{
+  private File cacheDir;                  // Directory holding the entries
+  private long ttlMillis;                 // How long an entry is fresh
+  private boolean offline;                // Serve stale entries without asking
+  private Map<String, LIMSClient.LIMSResponse> memoryCache; // LRU front
+
+  /**
+   * Class constructor
+   * @param cacheDir - directory to store entries in, created if needed
+   * @param ttlMillis - milliseconds an entry is fresh
+   * @param memoryEntries - maximum entries held in memory
+   * @param offline - serve cached entries however old they are
+   */
+  public LIMSResponseCache(File cacheDir, long ttlMillis, final int memoryEntries,
+                           boolean offline)
+  {
+    this.cacheDir  = cacheDir;
+    this.ttlMillis = ttlMillis;
+    this.offline   = offline;
+
+    memoryCache = new LinkedHashMap<String, LIMSClient.LIMSResponse>(16, 0.75f, true)
+    {
+      protected boolean removeEldestEntry(Map.Entry<String, LIMSClient.LIMSResponse> eldest)
+      {
+        return size() > memoryEntries;
+      }
+    };
+
+    if(!cacheDir.isDirectory() && !cacheDir.mkdirs())
+      System.err.println("Could not create LIMS cache directory " + cacheDir);
+  }
+
+  /**
+   * Create the cache as configured by the system properties
+   * @return the cache, or null if it is disabled
+   */
+  public static LIMSResponseCache fromSystemProperties()
+  {
+    if("false".equalsIgnoreCase(System.getProperty("lims.cache")))
+      return null;
+
+    String dir = System.getProperty("lims.cacheDir");
+    File cacheDir = (dir != null) ? new File(dir) :
+                    new File(System.getProperty("user.home"), ".limsCache");
+
+    return new LIMSResponseCache(cacheDir,
+           1000L * LIMSClient.getIntProperty("lims.cacheTTL", 3600),
+           Math.max(1, LIMSClient.getIntProperty("lims.cacheEntries", 256)),
+           Boolean.getBoolean("lims.offline"));
+  }
+
+  public boolean isOffline()
+  {
+    return offline;
+  }
+
+  /**
+   * Return true if the entry can be used without revalidating it
+   * @param response
+   * @return
+   */
+  public boolean isFresh(LIMSClient.LIMSResponse response)
+  {
+    return System.currentTimeMillis() - response.fetchTime < ttlMillis;
+  }
+
+  /**
+   * Return the cached response for the URL, fresh or stale
+   * @param url
+   * @return the response or null if the URL is not cached
+   */
+  public LIMSClient.LIMSResponse get(String url)
+  {
+    synchronized(memoryCache)
+    {
+      LIMSClient.LIMSResponse response = memoryCache.get(url);
+      if(response != null)
+        return response;
+    }
+
+    LIMSClient.LIMSResponse response = readEntry(url);
+
+    if(response != null)
+    {
+      synchronized(memoryCache)
+      {
+        memoryCache.put(url, response);
+      }
+    }
+    return response;
+  }
+
+  /**
+   * Cache the response for the URL. Failures to write the entry are
+   * reported but otherwise ignored, the cache is only an optimization.
+   * @param url
+   * @param response
+   */
+  public void put(String url, LIMSClient.LIMSResponse response)
+  {
+    synchronized(memoryCache)
+    {
+      memoryCache.put(url, response);
+    }
+
+    try
+    {
+      writeEntry(url, response);
+    }
+    catch(IOException e)
+    {
+      System.err.println("Could not write LIMS cache entry for " + url + " : " +
+                         e.getMessage());
+    }
+  }
+
+  /**
+   * Read the entry of the URL from the disk
+   * @param url
+   * @return the response or null if there is no valid entry
+   */
+  private LIMSClient.LIMSResponse readEntry(String url)
+  {
+    File entryFile = getEntryFile(url);
+
+    if(!entryFile.exists())
+      return null;
+
+    Properties entry = new Properties();
+
+    try
+    {
+      InputStream is = new BufferedInputStream(new FileInputStream(entryFile));
+
+      try
+      {
+        entry.load(is);
+      }
+      finally
+      {
+        is.close();
+      }
+
+      // Guard against the rare hash collision
+      if(!url.equals(entry.getProperty("url")))
+        return null;
+
+      LIMSClient.LIMSResponse response = new LIMSClient.LIMSResponse(
+        Integer.parseInt(entry.getProperty("code")), entry.getProperty("content"));
+      response.fetchTime    = Long.parseLong(entry.getProperty("fetchTime"));
+      response.etag         = entry.getProperty("etag");
+      response.lastModified = entry.getProperty("lastModified");
+      return response;
+    }
+    catch(Exception e)
+    {
+      System.err.println("Ignoring unreadable LIMS cache entry " + entryFile + " : " +
+                         e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Write the entry to a temporary file and rename it, so that concurrent
+   * runs never read a partial entry.
+   */
+  private void writeEntry(String url, LIMSClient.LIMSResponse response) throws IOException
+  {
+    Properties entry = new Properties();
+    entry.setProperty("url", url);
+    entry.setProperty("code", Integer.toString(response.code));
+    entry.setProperty("content", response.content);
+    entry.setProperty("fetchTime", Long.toString(response.fetchTime));
+
+    if(response.etag != null)
+      entry.setProperty("etag", response.etag);
+    if(response.lastModified != null)
+      entry.setProperty("lastModified", response.lastModified);
+
+    File entryFile = getEntryFile(url);
+    File tempFile  = File.createTempFile(entryFile.getName(), ".tmp", cacheDir);
+    OutputStream os = new BufferedOutputStream(new FileOutputStream(tempFile));
+
+    try
+    {
+      entry.store(os, null);
+    }
+    finally
+    {
+      os.close();
+    }
+
+    if(!tempFile.renameTo(entryFile))
+    {
+      entryFile.delete();
+
+      if(!tempFile.renameTo(entryFile))
+      {
+        tempFile.delete();
+        throw new IOException("Could not rename " + tempFile + " to " + entryFile);
+      }
+    }
+  }
+
+  /**
+   * The entry file of a URL is named by the SHA-1 of the URL
+   */
+  private File getEntryFile(String url)
+  {
+    return new File(cacheDir, sha1Hex(url));
+  }
+
+  /**
+   * Return the SHA-1 of the string as a hex string
+   * @param s
+   * @return
+   */
+  static String sha1Hex(String s)
+  {
+    try
+    {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      byte hash[] = digest.digest(s.getBytes("UTF-8"));
+      StringBuilder hex = new StringBuilder();
+
+      for(int i = 0; i < hash.length; i++)
+        hex.append(String.format("%02x", hash[i] & 0xFF));
+      return hex.toString();
+    }
+    catch(Exception e)
+    {
+      // SHA-1 and UTF-8 are always available
+      throw new RuntimeException(e);
+    }
+  }
+}
@@ -0,0 +1,476 @@
+package limsClient;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Class to queue analysis results for upload to LIMS. Every result is first
+ * written to a journal directory, one file per result, so that a result is
+ * never lost when LIMS is unavailable - it stays in the journal until a later
+ * flush sends it. A flush claims the pending entries by renaming them, so
+ * that several uploaders finishing at the same time never send an entry
+ * twice, and batches consecutive entries of the same lane and state into one
+ * request where their keys do not clash. The batches of a lane are sent one
+ * after the other in the order the results were queued, so that LIMS sees the
+ * state transitions of a lane in order, while different lanes are sent
+ * concurrently with the retries of LIMSClient. An entry is identified by the
+ * hash of its content, so that the same result is queued only once while it
+ * is pending. Once LIMS acknowledges an entry it is deleted, so that the same
+ * result can be uploaded again later, e.g. after a lane is run again.
+ *
+ * Configured with the system properties :
+ *   lims.journalDir      - journal directory (default ~/.limsJournal)
+ *   lims.claimTimeout    - seconds after which the claim of an uploader that
+ *                          died is released (default 600)
+ * @author Nirav Shah niravs@bcm.edu
+ *
+ */
+public class ResultUploadQueue
+{
+  private static final String ENTRY_SUFFIX = ".entry";
+  private static final String SENT_SUFFIX  = ".sent";      // Left by older versions
+  private static final String CLAIM_SUFFIX = ".claimed-";
+  private static final String BAD_SUFFIX   = ".bad";
+
+  private AnalysisResultUploader uploader; // To build and send requests
+  private File journalDir;                 // Directory holding the entries
+  private String claimSuffix;              // Suffix of entries claimed by us
+  private long claimTimeoutMillis;         // When to release a dead claim
+
+  /**
+   * Class constructor
+   * @param uploader - uploader to build and send the requests with
+   * @param journalDir - journal directory, created if needed
+   * @throws IOException
+   */
+  public ResultUploadQueue(AnalysisResultUploader uploader, File journalDir) throws IOException
+  {
+    this.uploader   = uploader;
+    this.journalDir = journalDir;
+
+    claimSuffix = CLAIM_SUFFIX + Long.toHexString(System.nanoTime()) +
+                  Integer.toHexString(new Random().nextInt());
+    claimTimeoutMillis = 1000L * LIMSClient.getIntProperty("lims.claimTimeout", 600);
+
+    if(!journalDir.isDirectory() && !journalDir.mkdirs())
+      throw new IOException("Could not create journal directory " + journalDir);
+  }
+
+  /**
+   * Return the journal directory of the LIMS database, as configured by the
+   * system properties
+   * @param databaseName
+   * @return
+   */
+  public static File getDefaultJournalDir(String databaseName)
+  {
+    String dir = System.getProperty("lims.journalDir");
+    File journalDir = (dir != null) ? new File(dir) :
+                      new File(System.getProperty("user.home"), ".limsJournal");
+    return new File(journalDir, databaseName.toLowerCase());
+  }
+
+  /**
+   * Add a result to the journal
+   * @param laneBarcode
+   * @param state
+   * @param keys
+   * @param values
+   * @return id of the entry, or null if the same result is already pending
+   * @throws IOException
+   */
+  public String enqueue(String laneBarcode, String state, String keys[], String values[])
+         throws IOException
+  {
+    Entry entry = new Entry();
+    entry.laneBarcode = laneBarcode;
+    entry.state       = state;
+    entry.createTime  = System.currentTimeMillis();
+
+    for(int i = 0; i < keys.length; i++)
+      entry.results.put(keys[i], values[i]);
+
+    entry.id = computeId(entry);
+
+    if(isPending(entry.id))
+      return null;
+
+    Properties p = new Properties();
+    p.setProperty("laneBarcode", laneBarcode);
+    p.setProperty("state", state);
+    p.setProperty("createTime", Long.toString(entry.createTime));
+    p.setProperty("numResults", Integer.toString(keys.length));
+
+    for(int i = 0; i < keys.length; i++)
+    {
+      p.setProperty("key" + (i + 1), keys[i]);
+      p.setProperty("value" + (i + 1), values[i]);
+    }
+
+    File tempFile = File.createTempFile(entry.id, ".tmp", journalDir);
+    OutputStream os = new BufferedOutputStream(new FileOutputStream(tempFile));
+
+    try
+    {
+      p.store(os, null);
+    }
+    finally
+    {
+      os.close();
+    }
+
+    if(!tempFile.renameTo(new File(journalDir, entry.id + ENTRY_SUFFIX)))
+    {
+      tempFile.delete();
+      throw new IOException("Could not add " + entry.id + " to the journal");
+    }
+    return entry.id;
+  }
+
+  /**
+   * Return true if the entry with the given id is in the journal and not
+   * claimed by any uploader, i.e. it was not sent and nobody is sending it
+   * @param id
+   * @return
+   */
+  public boolean isWaiting(String id)
+  {
+    return new File(journalDir, id + ENTRY_SUFFIX).exists();
+  }
+
+  /**
+   * Return true if the entry is waiting in the journal or being sent
+   */
+  private boolean isPending(String id)
+  {
+    if(new File(journalDir, id + ENTRY_SUFFIX).exists())
+      return true;
+
+    String names[] = journalDir.list();
+
+    for(int i = 0; names != null && i < names.length; i++)
+    {
+      if(names[i].startsWith(id + ENTRY_SUFFIX + CLAIM_SUFFIX))
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * Send all entries pending in the journal, including those left by earlier
+   * runs, and wait for the uploads to finish. Entries that could not be sent
+   * are returned to the journal, and so are the later entries of their lane.
+   * @return number of entries that could not be sent
+   * @throws Exception
+   */
+  public int flush() throws Exception
+  {
+    releaseDeadClaims();
+    removeSentMarkers();
+
+    ArrayList<Entry> entries = claimEntries();
+
+    if(entries.isEmpty())
+      return 0;
+
+    ArrayList<ArrayList<ArrayList<Entry>>> lanes = buildBatches(entries);
+    int numBatches = 0;
+
+    for(ArrayList<ArrayList<Entry>> lane : lanes)
+      numBatches += lane.size();
+    uploader.printInfo("Sending " + entries.size() + " queued results in " +
+                       numBatches + " requests");
+
+    ExecutorService pool = Executors.newFixedThreadPool(Math.min(LIMSClient.parallelism,
+                                                                 lanes.size()));
+    ArrayList<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+
+    for(final ArrayList<ArrayList<Entry>> lane : lanes)
+    {
+      futures.add(pool.submit(new Callable<Integer>()
+      {
+        public Integer call()
+        {
+          return sendLane(lane);
+        }
+      }));
+    }
+    pool.shutdown();
+
+    int numFailed = 0;
+
+    for(int i = 0; i < futures.size(); i++)
+      numFailed += futures.get(i).get();
+    return numFailed;
+  }
+
+  /**
+   * Send the batches of one lane in order. Once a batch fails, the later
+   * batches are returned to the journal unsent, so that a later state never
+   * reaches LIMS before an earlier one.
+   * @param lane
+   * @return number of entries that were not sent
+   */
+  private int sendLane(ArrayList<ArrayList<Entry>> lane)
+  {
+    int numFailed = 0;
+
+    for(ArrayList<Entry> batch : lane)
+    {
+      if(numFailed == 0 && sendBatch(batch))
+        continue;
+
+      if(numFailed == 0)
+        uploader.printError("Keeping the remaining results of lane " +
+                            batch.get(0).laneBarcode + " in the journal");
+      else
+        returnToJournal(batch);
+      numFailed += batch.size();
+    }
+    return numFailed;
+  }
+
+  /**
+   * Send one batch and delete its entries, or return them to the journal
+   * @param batch
+   * @return true if the batch was sent
+   */
+  private boolean sendBatch(ArrayList<Entry> batch)
+  {
+    Entry first = batch.get(0);
+    LinkedHashMap<String, String> results = new LinkedHashMap<String, String>();
+
+    for(Entry entry : batch)
+      results.putAll(entry.results);
+
+    String request = uploader.buildRequest(first.laneBarcode, first.state,
+                     results.keySet().toArray(new String[0]),
+                     results.values().toArray(new String[0]));
+
+    try
+    {
+      uploader.printInfo("Sending HTTP request " + request);
+      LIMSClient.LIMSResponse response = uploader.fetch(request, null);
+
+      if(!response.isError())
+      {
+        uploader.printInfo("Results uploaded to LIMS. Response Message : " + response.content);
+
+        for(Entry entry : batch)
+          entry.file.delete();
+        return true;
+      }
+      uploader.printError("Error in uploading results to LIMS. Response : " + response.content);
+    }
+    catch(Exception e)
+    {
+      uploader.printError("Error in uploading results to LIMS : " + e.getMessage());
+    }
+    returnToJournal(batch);
+    return false;
+  }
+
+  /**
+   * Release our claim on the entries of the batch
+   */
+  private void returnToJournal(ArrayList<Entry> batch)
+  {
+    for(Entry entry : batch)
+      entry.file.renameTo(new File(journalDir, entry.id + ENTRY_SUFFIX));
+  }
+
+  /**
+   * Claim every pending entry by renaming it. A rename is atomic, so an
+   * entry can be claimed by only one uploader.
+   * @return claimed entries, oldest first
+   */
+  private ArrayList<Entry> claimEntries()
+  {
+    ArrayList<Entry> entries = new ArrayList<Entry>();
+    String names[] = journalDir.list();
+
+    for(int i = 0; names != null && i < names.length; i++)
+    {
+      if(!names[i].endsWith(ENTRY_SUFFIX))
+        continue;
+
+      File claimedFile = new File(journalDir, names[i] + claimSuffix);
+
+      if(!new File(journalDir, names[i]).renameTo(claimedFile))
+        continue;
+
+      String id = names[i].substring(0, names[i].length() - ENTRY_SUFFIX.length());
+
+      try
+      {
+        Entry entry = readEntry(claimedFile);
+        entry.id = id;
+        entries.add(entry);
+      }
+      catch(Exception e)
+      {
+        uploader.printError("Moving unreadable journal entry " + names[i] + " aside : " +
+                            e.getMessage());
+        claimedFile.renameTo(new File(journalDir, names[i] + BAD_SUFFIX));
+      }
+    }
+
+    Collections.sort(entries, new Comparator<Entry>()
+    {
+      public int compare(Entry e1, Entry e2)
+      {
+        return (e1.createTime < e2.createTime) ? -1 : (e1.createTime > e2.createTime ? 1 : 0);
+      }
+    });
+    return entries;
+  }
+
+  /**
+   * Group the entries of each lane, oldest first, into batches to send in
+   * order. An entry joins the last batch of its lane if it has the same state
+   * and none of its keys has a different value, so that results such as those
+   * of READ 1 and READ 2 are never merged into one request and no entry is
+   * sent before an older entry of its lane.
+   * @param entries - oldest first
+   * @return batches of each lane, in order
+   */
+  private ArrayList<ArrayList<ArrayList<Entry>>> buildBatches(ArrayList<Entry> entries)
+  {
+    LinkedHashMap<String, ArrayList<ArrayList<Entry>>> byLane =
+      new LinkedHashMap<String, ArrayList<ArrayList<Entry>>>();
+
+    for(Entry entry : entries)
+    {
+      ArrayList<ArrayList<Entry>> batches = byLane.get(entry.laneBarcode);
+
+      if(batches == null)
+      {
+        batches = new ArrayList<ArrayList<Entry>>();
+        byLane.put(entry.laneBarcode, batches);
+      }
+
+      ArrayList<Entry> target = batches.isEmpty() ? null : batches.get(batches.size() - 1);
+
+      if(target == null || !target.get(0).state.equals(entry.state) ||
+         conflicts(target, entry))
+      {
+        target = new ArrayList<Entry>();
+        batches.add(target);
+      }
+      target.add(entry);
+    }
+    return new ArrayList<ArrayList<ArrayList<Entry>>>(byLane.values());
+  }
+
+  /**
+   * Return true if the entry has a key with a different value than in the batch
+   */
+  private boolean conflicts(ArrayList<Entry> batch, Entry entry)
+  {
+    for(Entry other : batch)
+    {
+      for(Map.Entry<String, String> result : entry.results.entrySet())
+      {
+        String value = other.results.get(result.getKey());
+
+        if(value != null && !value.equals(result.getValue()))
+          return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Return the entries claimed by uploaders that died to the journal
+   */
+  private void releaseDeadClaims()
+  {
+    File files[] = journalDir.listFiles();
+    long now = System.currentTimeMillis();
+
+    for(int i = 0; files != null && i < files.length; i++)
+    {
+      String name = files[i].getName();
+      int claimIndex = name.indexOf(ENTRY_SUFFIX + CLAIM_SUFFIX);
+
+      if(claimIndex > 0 && now - files[i].lastModified() > claimTimeoutMillis)
+        files[i].renameTo(new File(journalDir, name.substring(0, claimIndex) + ENTRY_SUFFIX));
+    }
+  }
+
+  /**
+   * Delete the markers of sent entries left by older versions of the queue
+   */
+  private void removeSentMarkers()
+  {
+    File files[] = journalDir.listFiles();
+
+    for(int i = 0; files != null && i < files.length; i++)
+    {
+      if(files[i].getName().endsWith(SENT_SUFFIX))
+        files[i].delete();
+    }
+  }
+
+  /**
+   * Read an entry from the journal
+   */
+  private Entry readEntry(File file) throws Exception
+  {
+    Properties p = new Properties();
+    InputStream is = new BufferedInputStream(new FileInputStream(file));
+
+    try
+    {
+      p.load(is);
+    }
+    finally
+    {
+      is.close();
+    }
+
+    Entry entry = new Entry();
+    entry.file        = file;
+    entry.laneBarcode = p.getProperty("laneBarcode");
+    entry.state       = p.getProperty("state");
+    entry.createTime  = Long.parseLong(p.getProperty("createTime"));
+
+    int numResults = Integer.parseInt(p.getProperty("numResults"));
+
+    for(int i = 1; i <= numResults; i++)
+      entry.results.put(p.getProperty("key" + i), p.getProperty("value" + i));
+
+    if(entry.laneBarcode == null || entry.state == null)
+      throw new Exception("Missing lane barcode or state");
+    return entry;
+  }
+
+  /**
+   * The id of an entry is the hash of its lane, state and results, so that
+   * identical results get the same id. The results are sorted by key, as
+   * their order does not matter to LIMS.
+   */
+  private String computeId(Entry entry)
+  {
+    StringBuilder content = new StringBuilder();
+    content.append(entry.laneBarcode).append('\n').append(entry.state).append('\n');
+
+    for(Map.Entry<String, String> result : new TreeMap<String, String>(entry.results).entrySet())
+      content.append(result.getKey()).append('=').append(result.getValue()).append('\n');
+    return LIMSResponseCache.sha1Hex(content.toString());
+  }
+
+  /**
+   * One queued result
+   */
+  private static class Entry
+  {
+    String id;                    // Hash of the content
+    File file;                    // Claimed journal file
+    String laneBarcode;
+    String state;
+    long createTime;
+    LinkedHashMap<String, String> results = new LinkedHashMap<String, String>();
+  }
+}